@@ -15,7 +15,9 @@ import android.os.IBinder;
 
 import org.roundware.service.RW;
 import org.roundware.service.RWService;
+import org.roundware.service.util.RWContentCache;
 
+import java.io.IOException;
 import java.util.UUID;
 
 /**
@@ -34,6 +36,13 @@ public abstract class RwBoundActivity extends Activity {
     protected abstract void handleOnServiceConnected(RWService service);
     protected void handleOnServiceDisconnected() { }
 
+    private final RWContentCache.PageRenderer mUrlDataRenderer = new RWContentCache.PageRenderer() {
+        @Override
+        public String render(String content) {
+            return mungeUrlData(content);
+        }
+    };
+
     private ServiceConnection rwConnection = new ServiceConnection() {
 
         @Override
@@ -96,6 +105,38 @@ public abstract class RwBoundActivity extends Activity {
     }
 
 
+    /**
+     * Override to replace markers in content pages, e.g. with tags data.
+     * @param input
+     * @return the munged data
+     */
+    protected String mungeUrlData(String input){
+        return input;
+    }
+
+
+    /**
+     * Returns the key the result of mungeUrlData() is cached for. Override
+     * too when the data replacement depends on state, e.g. selected tags.
+     * @return the state key
+     */
+    protected String getUrlDataStateKey(){
+        return null;
+    }
+
+
+    /**
+     * Returns the content page with its data replaced by mungeUrlData(),
+     * from the content cache of the service when it is still valid.
+     * @param contentFileName of the page
+     * @return the munged page
+     * @throws IOException when the page can not be read
+     */
+    protected String getContentPage(String contentFileName) throws IOException {
+        return mRwBinder.getContentPage(contentFileName, getUrlDataStateKey(), mUrlDataRenderer);
+    }
+
+
     /**
      * Restores app settings from shared preferences.
      */
@@ -146,6 +146,10 @@ public class RwMainActivity extends RwBoundActivity {
                     allTags.saveSelectionState(prefs);
                 }
                 AssetImageManager.saveArtworkTags(prefs, allTags);
+                // cached tags are usable while the session is still connecting
+                if (mProgressDialog != null) {
+                    mProgressDialog.dismiss();
+                }
             } else if (RW.CONTENT_LOADED.equals(intent.getAction())) {
                 //String contentFileName = mRwBinder.getContentFilesDir() + "home-a.html";
                 //try {
@@ -38,10 +38,17 @@ public class RwRefineActivity extends RwWebActivity {
      * @param input
      * @return the munged data
      */
+    @Override
     protected String mungeUrlData(String input){
         return input.replace("/*%roundware_tags%*/", mTagsList.toJsonForWebView(ROUNDWARE_TAGS_TYPE));
     }
 
+
+    @Override
+    protected String getUrlDataStateKey(){
+        return mTagsList.getWebViewStateKey(ROUNDWARE_TAGS_TYPE);
+    }
+
     @Override
     protected void handleOnServiceConnected(RWService service) {
         mTagsList = new RWList(mRwBinder.getTags().filterByType(ROUNDWARE_TAGS_TYPE));
@@ -53,8 +60,7 @@ public class RwRefineActivity extends RwWebActivity {
         if ((mWebView != null) && (contentFileDir != null)) {
             String contentFileName = contentFileDir + "listen.html";
             try {
-                String data = mRwBinder.readContentFile(contentFileName);
-                data = mungeUrlData(data);
+                String data = getContentPage(contentFileName);
                 mWebView.loadDataWithBaseURL("file://" + contentFileName, data, null, null, null);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -188,11 +188,18 @@ public class RwSpeakActivity extends RwBoundActivity {
      * @param input
      * @return the munged data
      */
+    @Override
     protected String mungeUrlData(String input){
         return input.replace("/*%roundware_tags%*/", mTagsList.toJsonForWebView(ROUNDWARE_TAGS_TYPE));
     }
 
 
+    @Override
+    protected String getUrlDataStateKey(){
+        return mTagsList.getWebViewStateKey(ROUNDWARE_TAGS_TYPE);
+    }
+
+
     /**
      * Handles connection state to an RWService Android Service. In this
      * activity it is assumed that the service has already been started
@@ -213,8 +220,7 @@ public class RwSpeakActivity extends RwBoundActivity {
         if ((mWebView != null) && (contentFileDir != null)) {
             String contentFileName = contentFileDir + "speak.html";
             try {
-                mWebViewData = mRwBinder.readContentFile(contentFileName);
-                mWebViewData = mungeUrlData(mWebViewData);
+                mWebViewData = getContentPage(contentFileName);
                 mWebViewBaseUrl = "file://" + contentFileName;
                 mWebView.loadDataWithBaseURL(mWebViewBaseUrl, mWebViewData, null, null, null);
             } catch (IOException e) {
@@ -839,7 +845,7 @@ public class RwSpeakActivity extends RwBoundActivity {
             private int maxTimeSec = mRwBinder.getConfiguration().getMaxRecordingTimeSec();
             private long startTimeStampMillis;
 
-            public void recording(long timeStampMillis, short [] samples) {
+            public void recording(long timeStampMillis, float rms, float peak) {
                 int remainingTimeSec = maxTimeSec - (int)Math.round((timeStampMillis - startTimeStampMillis) / 1000.0);
                 if (remainingTimeSec < 0) {
                     remainingTimeSec = 0;
@@ -854,7 +860,7 @@ public class RwSpeakActivity extends RwBoundActivity {
                     }
                 });
 
-                updateLevelMeter(samples);
+                updateLevelMeter(rms);
 
                 if (remainingTimeSec <= 0) {
                     handler.post(new Runnable() {
@@ -895,12 +901,12 @@ public class RwSpeakActivity extends RwBoundActivity {
 
 
     /**
-     * Updates the level meter.
+     * Updates the level meter, can be called from any thread.
      *
-     * @param samples
+     * @param rms level of the recorded audio, 0 to 1
      */
-    public synchronized void updateLevelMeter(short [] samples) {
-        mRecordingLevelMeterView.setLevel(samples);
+    public void updateLevelMeter(float rms) {
+        mRecordingLevelMeterView.setLevel(rms);
         mRecordingLevelMeterView.postInvalidate();
     }
 
@@ -908,7 +914,7 @@ public class RwSpeakActivity extends RwBoundActivity {
     /**
      * Resets the level meter.
      */
-    public synchronized void resetLevelMeter() {
+    public void resetLevelMeter() {
         mRecordingLevelMeterView.reset();
     }
 
@@ -1012,7 +1018,7 @@ public class RwSpeakActivity extends RwBoundActivity {
             option.value = value;
             option.selectByDefault = selectByDefault;
             tag.options.add(option);
-            tags.getTags().add(tag);
+            tags.addTag(tag);
         }
         return tags;
     }
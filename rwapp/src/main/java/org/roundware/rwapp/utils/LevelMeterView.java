@@ -23,8 +23,9 @@ import android.widget.ImageView;
  * @author Rob Knapen
  */
 public class LevelMeterView extends ImageView {
-    double db;
+    volatile double db;
     Bitmap meterBitmap;
+    private final Paint mPaint = new Paint();
 
     private static final String TAG = "LevelMeterView";
 
@@ -54,8 +55,13 @@ public class LevelMeterView extends ImageView {
     }
 
 
-    public void setLevel(short[] samples) {
-        db = calculatePowerDb(samples, 0, samples.length);
+    /**
+     * Sets the level to show, can be called from any thread.
+     *
+     * @param rms level of the audio, 0 to 1 of full scale
+     */
+    public void setLevel(float rms) {
+        db = calculatePowerDb(rms);
     }
 
 
@@ -65,21 +71,10 @@ public class LevelMeterView extends ImageView {
     }
 
 
-    protected double calculatePowerDb(short[] sdata, int off, int samples) {
-        // Calculate the sum of the values, and the sum of the squared values.
-        // We need longs to avoid running out of bits.
-        double sum = 0;
-        double sqsum = 0;
-        for (int i = 0; i < samples; i++) {
-            final long v = sdata[off + i];
-            sum += v;
-            sqsum += v * v;
-        }
-
-        double power = (sqsum - sum * sum / samples) / samples;
-
-        // Scale to the range 0 - 1.
-        power /= MAX_16_BIT * MAX_16_BIT;
+    protected double calculatePowerDb(float rms) {
+        // The rms level is already scaled to the range 0 - 1, so its
+        // square is the power in that range.
+        double power = (double) rms * rms;
 
         // Convert to dB, with 0 being max power. Add a fudge factor to make
         // a "real" fully saturated input come to 0 dB.
@@ -90,9 +85,6 @@ public class LevelMeterView extends ImageView {
     // Constants.
     // ******************************************************************** //
 
-    // Maximum signal amplitude for 16-bit data.
-    private static final float MAX_16_BIT = 32768;
-
     // This fudge factor is added to the output to make a realistically
     // fully-saturated signal come to 0dB. Without it, the signal would
     // have to be solid samples of -32768 to read zero, which is not
@@ -105,10 +97,7 @@ public class LevelMeterView extends ImageView {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        double level = (db + AMBIENT_LOW_DB) / AMBIENT_LOW_DB;
-        assert level >= 0;
-
-        Paint paint = new Paint();
+        double level = Math.max(0, (db + AMBIENT_LOW_DB) / AMBIENT_LOW_DB);
 
         int wd = getWidth();
         int bottomY = getHeight() - 1;
@@ -118,7 +107,7 @@ public class LevelMeterView extends ImageView {
 
         // Hack!!!! - setting left = 20.0 - how do we get the lay'ed out
         // position?
-        canvas.drawBitmap(meterBitmap, (float) 20.0, (float) 0.0, paint);
+        canvas.drawBitmap(meterBitmap, (float) 20.0, (float) 0.0, mPaint);
     }
 
 }
@@ -230,6 +230,14 @@ public class RW {
      */
     public final static String EXTRA_FAILURE_EXCEPTION_MESSAGE = INTENT_EXTRA_PREFIX + "failure_exception_message";
 
+    /**
+     * Extra for the CONFIGURATION_LOADED and TAGS_LOADED broadcast intents,
+     * a boolean that is true when cached data is applied at start up while
+     * the server data is still being retrieved. Another broadcast follows
+     * when that is done.
+     */
+    public final static String EXTRA_REVALIDATING = INTENT_EXTRA_PREFIX + "revalidating";
+
 
     // --- Broadcast messages ---------------------------------------------------------------------
 
@@ -362,12 +370,14 @@ public class RW {
     // --- Shared preferences ---------------------------------------------------------------------
 
     /**
-     * Name of SharedPreferences cache for configurations of projects.
+     * Name of RWResponseCache for configurations of projects. Older versions
+     * used SharedPreferences with this name, which are migrated on use.
      */
     public final static String PROJECT_CONFIG_CACHE = PREFERENCES_PREFIX + "cached_project_configurations";
 
     /**
-     * Name of SharedPreferences cache for tags of projects.
+     * Name of RWResponseCache for tags of projects. Older versions used
+     * SharedPreferences with this name, which are migrated on use.
      */
     public final static String PROJECT_TAGS_CACHE = PREFERENCES_PREFIX + "cached_project_tags";
 
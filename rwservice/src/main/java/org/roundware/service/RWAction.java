@@ -30,10 +30,29 @@ public class RWAction {
     private final static String TAG = "RWAction";
     private final static boolean D = false;
 
+    /**
+     * Reasons the last perform of an action failed for, which decide how a
+     * queued action is retried.
+     */
+    public enum Failure {
+        /** did not fail */
+        NONE,
+        /** server not reachable, retry when there is connectivity */
+        CONNECTIVITY,
+        /** server error or other failure that may pass, retry a limited number of times */
+        RETRYABLE,
+        /** rejected by the server, e.g. HTTP 4xx or an error message in the response */
+        REJECTED
+    }
+
     // fields
     private Long mDbId;
     private Context mContext;
     private Properties mProperties;
+    private long mUploadOffset;
+    private int mAttempts;
+    private Failure mFailure = Failure.NONE;
+    private RWHttpManager.CacheValidators mCacheValidators;
 
     
     /**
@@ -90,11 +109,43 @@ public class RWAction {
      * @throws Exception caused by processing the action (I/O, HTTP)
      */
     public String perform(int timeOutSec) throws Exception {
+        return perform(timeOutSec, 0);
+    }
+
+
+    /**
+     * Executes the action, like perform(int), but when uploadChunkSize is
+     * larger than zero a file is uploaded in chunks of that size, starting
+     * at the current upload offset. After each chunk acknowledged by the
+     * server the offset is updated, and when the action is queued it is
+     * stored with the queue entry, so after a failure the upload resumes
+     * where it stopped instead of starting all over again.
+     * 
+     * @param timeOutSec timeout in seconds for performing the action
+     * @param uploadChunkSize chunk size in bytes for file uploads, or 0
+     * @return server response resulting from the action call
+     * @throws Exception caused by processing the action (I/O, HTTP)
+     */
+    public String perform(int timeOutSec, int uploadChunkSize) throws Exception {
         String filename = getFilename();
         if (filename != null) {
             if (D) { Log.d(TAG, "Uploading file: " + filename, null); }
             Properties p = getServerProperties();
-            String response = RWHttpManager.uploadFile(getUrl(), p, getStringForResId(R.string.rw_key_file), filename, timeOutSec);
+            String response;
+            if (uploadChunkSize > 0) {
+                response = RWHttpManager.uploadFileChunked(getUrl(), p, getStringForResId(R.string.rw_key_file), filename,
+                        mUploadOffset, uploadChunkSize, timeOutSec, new RWHttpManager.UploadProgressListener() {
+                    @Override
+                    public void uploadAcknowledged(long offset) {
+                        setUploadOffset(offset);
+                        if (mDbId != null) {
+                            RWActionQueue.instance().update(RWAction.this);
+                        }
+                    }
+                });
+            } else {
+                response = RWHttpManager.uploadFile(getUrl(), p, getStringForResId(R.string.rw_key_file), filename, timeOutSec);
+            }
             if (D) { Log.d(TAG, "Server response: " + response, null); }
             File noteFile = new File(filename);
             noteFile.delete();
@@ -104,10 +155,59 @@ public class RWAction {
                 Log.d(TAG, "Sending GET to : " + getUrl(), null);
             }
 
-            return RWHttpManager.doGet(getUrl(), getServerProperties(), timeOutSec);
+            String response = RWHttpManager.doGet(getUrl(), getServerProperties(), timeOutSec, mCacheValidators);
+            return (response != null) ? response : "";
         }
     }
 
+
+    /**
+     * Makes the action a conditional request for data that has been cached
+     * with the specified validators, e.g. from an earlier response. When
+     * the action is performed and the data on the server has not been
+     * modified, isNotModified() returns true and the response is empty.
+     * The validators of a new response are available after it has been
+     * performed. Does not apply to file uploads.
+     *
+     * @param eTag of the cached data, can be null
+     * @param lastModified time of the cached data, can be null
+     */
+    public void setCacheValidators(String eTag, String lastModified) {
+        mCacheValidators = new RWHttpManager.CacheValidators(eTag, lastModified);
+    }
+
+
+    /**
+     * Returns true when the action was performed as a conditional request
+     * and the server indicated that the cached data is still valid.
+     *
+     * @return true when the data has not been modified
+     */
+    public boolean isNotModified() {
+        return (mCacheValidators != null) && mCacheValidators.notModified;
+    }
+
+
+    /**
+     * Returns the ETag of the response of a conditional request.
+     *
+     * @return ETag header value, or null
+     */
+    public String getETag() {
+        return (mCacheValidators != null) ? mCacheValidators.eTag : null;
+    }
+
+
+    /**
+     * Returns the Last-Modified time of the response of a conditional
+     * request.
+     *
+     * @return Last-Modified header value, or null
+     */
+    public String getLastModified() {
+        return (mCacheValidators != null) ? mCacheValidators.lastModified : null;
+    }
+
     
     /**
      * Adds to the action's properties the key-value pair based on the
@@ -293,6 +393,71 @@ public class RWAction {
     }
 
 
+    /**
+     * Returns the number of bytes of the file of this action that have
+     * been acknowledged by the server in a chunked upload.
+     * 
+     * @return upload offset in bytes
+     */
+    public long getUploadOffset() {
+        return mUploadOffset;
+    }
+
+
+    /**
+     * Sets the number of bytes of the file of this action that have been
+     * acknowledged by the server in a chunked upload.
+     * 
+     * @param uploadOffset in bytes
+     */
+    public void setUploadOffset(long uploadOffset) {
+        mUploadOffset = uploadOffset;
+    }
+
+
+    /**
+     * Returns the number of failed attempts to perform this action from
+     * the queue that count towards its retry limit.
+     * 
+     * @return number of failed attempts
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+
+    /**
+     * Sets the number of failed attempts to perform this action from the
+     * queue, e.g. when it is read from the queue database.
+     * 
+     * @param attempts number of failed attempts
+     */
+    public void setAttempts(int attempts) {
+        mAttempts = attempts;
+    }
+
+
+    /**
+     * Returns the reason the last perform of this action by the RWService
+     * failed for.
+     * 
+     * @return failure reason, NONE when it did not fail
+     */
+    public Failure getFailure() {
+        return mFailure;
+    }
+
+
+    /**
+     * Sets the reason the last perform of this action failed for.
+     * 
+     * @param failure reason
+     */
+    public void setFailure(Failure failure) {
+        mFailure = failure;
+    }
+
+
     /**
      * Gets the URL of the server this action is intended for. When the
      * action is performed, this is the server that will be called.
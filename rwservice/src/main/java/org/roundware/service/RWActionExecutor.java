@@ -0,0 +1,339 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+
+/**
+ * Runs the actions that are performed immediately, on a fixed number of
+ * worker threads instead of a new thread for each action. Actions are
+ * submitted to one of three lanes, and a free worker always takes the next
+ * action from the lane with the highest priority: playback control before
+ * uploads, uploads before telemetry. Uploads and telemetry are each limited
+ * to one worker, so that a slow upload or a burst of log events can never
+ * keep playback control waiting for a free worker.
+ *
+ * Each lane has a bounded queue, submitting to a full lane is refused. A
+ * waiting action can be cancelled. The time actions wait for a worker and
+ * the time they run are kept per lane.
+ */
+public class RWActionExecutor {
+
+    // debugging
+    private final static String TAG = "RWActionExecutor";
+    private final static boolean D = false;
+
+    /**
+     * Lanes in order of priority, with the number of actions that can wait
+     * in each and the number of workers that can run them at the same time
+     * (0 for all workers).
+     */
+    public enum Lane {
+        INTERACTIVE(16, 0),
+        UPLOAD(8, 1),
+        TELEMETRY(32, 1);
+
+        private final int mCapacity;
+        private final int mMaxRunning;
+
+        Lane(int capacity, int maxRunning) {
+            mCapacity = capacity;
+            mMaxRunning = maxRunning;
+        }
+    }
+
+    /**
+     * An action submitted to the executor.
+     */
+    public class Task {
+        private final Lane mLane;
+        private final Runnable mRunnable;
+        private final long mSubmitNanos;
+        private boolean mStarted;
+        private boolean mCancelled;
+
+        private Task(Lane lane, Runnable runnable) {
+            mLane = lane;
+            mRunnable = runnable;
+            mSubmitNanos = System.nanoTime();
+        }
+
+        public Lane getLane() {
+            return mLane;
+        }
+
+        /**
+         * Removes the task from its lane when it has not started yet. A
+         * task that is already running is not interrupted.
+         *
+         * @return true if the task will not run
+         */
+        public boolean cancel() {
+            synchronized (RWActionExecutor.this) {
+                if (mStarted) {
+                    return false;
+                }
+                if (!mCancelled) {
+                    mCancelled = true;
+                    mQueues[mLane.ordinal()].remove(this);
+                    mCancelledCounts[mLane.ordinal()]++;
+                }
+                return true;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (RWActionExecutor.this) {
+                return mCancelled;
+            }
+        }
+    }
+
+    private final Lane[] mLanes = Lane.values();
+    private final ArrayDeque<Task>[] mQueues;
+    private final int[] mRunning = new int[mLanes.length];
+    private final Thread[] mWorkers;
+    private boolean mShutdown;
+
+    // statistics per lane
+    private final int[] mCompletedCounts = new int[mLanes.length];
+    private final int[] mRejectedCounts = new int[mLanes.length];
+    private final int[] mCancelledCounts = new int[mLanes.length];
+    private final long[] mTotalWaitMsec = new long[mLanes.length];
+    private final long[] mMaxWaitMsec = new long[mLanes.length];
+    private final long[] mTotalRunMsec = new long[mLanes.length];
+
+
+    /**
+     * Creates an instance and starts its workers.
+     *
+     * @param threadCount number of worker threads
+     * @param name prefix of the worker thread names
+     */
+    @SuppressWarnings("unchecked")
+    public RWActionExecutor(int threadCount, String name) {
+        mQueues = new ArrayDeque[mLanes.length];
+        for (int i = 0; i < mLanes.length; i++) {
+            mQueues[i] = new ArrayDeque<Task>();
+        }
+        mWorkers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, name + "-" + (i + 1));
+            mWorkers[i].start();
+        }
+    }
+
+
+    /**
+     * Submits a runnable to the specified lane.
+     *
+     * @param lane to submit to
+     * @param runnable to run on a worker thread
+     * @return task to cancel it with, or null when the lane is full or
+     * the executor has been shut down
+     */
+    public synchronized Task submit(Lane lane, Runnable runnable) {
+        ArrayDeque<Task> queue = mQueues[lane.ordinal()];
+        if (mShutdown || (queue.size() >= lane.mCapacity)) {
+            mRejectedCounts[lane.ordinal()]++;
+            Log.w(TAG, "Refused task for lane " + lane + ", " + queue.size() + " waiting");
+            return null;
+        }
+        Task task = new Task(lane, runnable);
+        queue.add(task);
+        notifyAll();
+        return task;
+    }
+
+
+    /**
+     * Cancels all tasks waiting in the specified lane.
+     *
+     * @param lane to clear
+     * @return number of tasks cancelled
+     */
+    public synchronized int cancel(Lane lane) {
+        ArrayDeque<Task> queue = mQueues[lane.ordinal()];
+        int count = queue.size();
+        for (Task task : queue) {
+            task.mCancelled = true;
+        }
+        queue.clear();
+        mCancelledCounts[lane.ordinal()] += count;
+        return count;
+    }
+
+
+    /**
+     * Cancels all waiting tasks and stops the workers when the tasks that
+     * are running have finished.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        for (Lane lane : mLanes) {
+            cancel(lane);
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * Returns the number of tasks waiting in the specified lane.
+     */
+    public synchronized int getWaitingCount(Lane lane) {
+        return mQueues[lane.ordinal()].size();
+    }
+
+
+    /**
+     * Returns the number of tasks of the specified lane that have run.
+     */
+    public synchronized int getCompletedCount(Lane lane) {
+        return mCompletedCounts[lane.ordinal()];
+    }
+
+
+    /**
+     * Returns the number of tasks refused because the lane was full.
+     */
+    public synchronized int getRejectedCount(Lane lane) {
+        return mRejectedCounts[lane.ordinal()];
+    }
+
+
+    /**
+     * Returns the number of tasks of the specified lane cancelled before
+     * they started.
+     */
+    public synchronized int getCancelledCount(Lane lane) {
+        return mCancelledCounts[lane.ordinal()];
+    }
+
+
+    /**
+     * Returns the average time tasks of the specified lane waited for a
+     * worker, in milliseconds.
+     */
+    public synchronized long getAverageWaitMsec(Lane lane) {
+        int count = mCompletedCounts[lane.ordinal()];
+        return (count == 0) ? 0 : mTotalWaitMsec[lane.ordinal()] / count;
+    }
+
+
+    /**
+     * Returns the longest time a task of the specified lane waited for a
+     * worker, in milliseconds.
+     */
+    public synchronized long getMaxWaitMsec(Lane lane) {
+        return mMaxWaitMsec[lane.ordinal()];
+    }
+
+
+    /**
+     * Returns the average time tasks of the specified lane ran, in
+     * milliseconds.
+     */
+    public synchronized long getAverageRunMsec(Lane lane) {
+        int count = mCompletedCounts[lane.ordinal()];
+        return (count == 0) ? 0 : mTotalRunMsec[lane.ordinal()] / count;
+    }
+
+
+    /**
+     * Returns a summary of the counters and times of all lanes, e.g. for
+     * logging.
+     *
+     * @return statistics summary
+     */
+    public synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (Lane lane : mLanes) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(lane).append(": completed ").append(getCompletedCount(lane))
+                    .append(", waiting ").append(getWaitingCount(lane))
+                    .append(", rejected ").append(getRejectedCount(lane))
+                    .append(", cancelled ").append(getCancelledCount(lane))
+                    .append(", wait avg ").append(getAverageWaitMsec(lane))
+                    .append(" max ").append(getMaxWaitMsec(lane))
+                    .append(" ms, run avg ").append(getAverageRunMsec(lane)).append(" ms");
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Takes the next task that may run, in order of lane priority.
+     * Returns null when there is none.
+     */
+    private Task next() {
+        for (Lane lane : mLanes) {
+            int i = lane.ordinal();
+            if (!mQueues[i].isEmpty() && ((lane.mMaxRunning == 0) || (mRunning[i] < lane.mMaxRunning))) {
+                Task task = mQueues[i].poll();
+                task.mStarted = true;
+                mRunning[i]++;
+                return task;
+            }
+        }
+        return null;
+    }
+
+
+    private void work() {
+        while (true) {
+            Task task = null;
+            synchronized (this) {
+                while (!mShutdown && ((task = next()) == null)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (task == null) {
+                    return;
+                }
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                task.mRunnable.run();
+            } catch (Throwable e) {
+                // also an Error, the worker keeps running for the other tasks
+                Log.e(TAG, "Task for lane " + task.mLane + " failed", e);
+            } finally {
+                finished(task, startNanos);
+            }
+        }
+    }
+
+
+    /**
+     * Frees the place of a task in its lane and records its statistics,
+     * however it ended.
+     */
+    private synchronized void finished(Task task, long startNanos) {
+        int i = task.mLane.ordinal();
+        long waitMsec = (startNanos - task.mSubmitNanos) / 1000000;
+        mRunning[i]--;
+        mCompletedCounts[i]++;
+        mTotalWaitMsec[i] += waitMsec;
+        mMaxWaitMsec[i] = Math.max(mMaxWaitMsec[i], waitMsec);
+        mTotalRunMsec[i] += (System.nanoTime() - startNanos) / 1000000;
+        // a worker may be waiting for this lane's limit
+        notifyAll();
+        if (D) { Log.d(TAG, "Task for lane " + task.mLane + " waited " + waitMsec + " ms, " + getStatistics()); }
+    }
+}
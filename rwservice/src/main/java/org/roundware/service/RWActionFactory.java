@@ -404,7 +404,13 @@ public class RWActionFactory {
                 .add(R.string.rw_key_operation, R.string.rw_op_add_asset_to_envelope)
                 .add(R.string.rw_key_envelope_id, String.valueOf(envelopeId))
                 .add(R.string.rw_key_filename, filename);
-        
+
+        // let the server know how the audio is encoded
+        int dot = filename.lastIndexOf('.');
+        if (dot >= 0) {
+            action.add(R.string.rw_key_audio_format, filename.substring(dot + 1).toLowerCase(Locale.US));
+        }
+
         if (submitted != null) {
             action.add(R.string.rw_key_submitted, submitted);
         }
@@ -10,6 +10,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
 
 import org.roundware.service.R;
@@ -38,6 +39,17 @@ public class RWActionQueue {
 
     private static RWActionQueue mInstance;
     private Context mContext;
+    private RWDbAdapter mDb;
+    private volatile StateListener mListener;
+
+
+    /**
+     * Interface for receiving notifications about changes of the queue
+     * contents, e.g. to start processing new items without polling.
+     */
+    public interface StateListener {
+        void actionAdded();
+    }
 
 
     /**
@@ -62,7 +74,8 @@ public class RWActionQueue {
 
 
     /**
-     * Initialize the queue for the specified context.
+     * Initialize the queue for the specified context. The queue database
+     * is opened lazily and kept open until close() is called.
      * 
      * @param context to be used by the queue instance
      */
@@ -72,23 +85,51 @@ public class RWActionQueue {
     }
 
 
+    /**
+     * Sets the listener to be notified of changes to the queue.
+     * 
+     * @param listener to notify, null to remove the current listener
+     */
+    public void setStateListener(StateListener listener) {
+        mListener = listener;
+    }
+
+
+    /**
+     * Closes the queue database. It will be reopened automatically when
+     * the queue is accessed again. All database operations hold the lock
+     * of this instance while using the adapter, so it is never closed
+     * while another thread is still using it.
+     */
+    public synchronized void close() {
+        if (mDb != null) {
+            mDb.close();
+            mDb = null;
+        }
+    }
+
+
+    /**
+     * Returns the long-lived database adapter for the queue, opening it
+     * when needed.
+     * 
+     * @return RWDbAdapter for the queue database
+     */
+    private synchronized RWDbAdapter db() {
+        if (mDb == null) {
+            mDb = new RWDbAdapter(mContext);
+        }
+        return mDb;
+    }
+
+
     /**
      * Returns the number of items currently in the queue.
      * 
      * @return number of items in the queue
      */
-    public int count() {
-        RWDbAdapter db = null;
-        int count = 0;
-        try {
-            db = new RWDbAdapter(mContext);
-            count = db.count();
-        } finally {
-            if (db != null) {
-                db.close();
-            }
-        }
-        return count;
+    public synchronized int count() {
+        return db().count();
     }
 
 
@@ -99,14 +140,13 @@ public class RWActionQueue {
      * @param props with info for the queue entry
      */
     public void add(Properties props) {
-        RWDbAdapter db = null;
-        try {
-            db = new RWDbAdapter(mContext);
-            db.insert(props);
-        } finally {
-            if (db != null) {
-                db.close();
-            }
+        synchronized (this) {
+            db().insert(props);
+        }
+
+        StateListener listener = mListener;
+        if (listener != null) {
+            listener.actionAdded();
         }
     }
 
@@ -116,18 +156,33 @@ public class RWActionQueue {
      * 
      * @return RWAction created from the first queue item
      */
-    public RWAction get() {
-        RWDbAdapter db = null;
-        RWAction action = null;
-        try {
-            db = new RWDbAdapter(mContext);
-            action = db.getAction();
-        } finally {
-            if (db != null) {
-                db.close();
-            }
-        }
-        return action;
+    public synchronized RWAction get() {
+        return db().getAction();
+    }
+
+
+    /**
+     * Retrieves the first items from the queue, in queue order.
+     * 
+     * @param limit maximum number of items to retrieve
+     * @return List of RWAction created from the first queue items
+     */
+    public synchronized List<RWAction> get(int limit) {
+        return db().getActions(limit);
+    }
+
+
+    /**
+     * Retrieves the items queued after the specified action, in queue
+     * order, e.g. to continue past items that could not be performed.
+     * 
+     * @param after action to continue after, null to start at the head
+     * @param limit maximum number of items to retrieve
+     * @return List of RWAction created from the queue items
+     */
+    public synchronized List<RWAction> get(RWAction after, int limit) {
+        long afterId = ((after == null) || (after.getDatabaseId() == null)) ? 0 : after.getDatabaseId();
+        return db().getActions(afterId, limit);
     }
 
 
@@ -137,23 +192,53 @@ public class RWActionQueue {
      * 
      * @param action to be removed
      */
-    public void delete(RWAction action) {
+    public synchronized void delete(RWAction action) {
         String filename = action.getFilename();
         if (filename != null) {
             File noteFile = new File(filename);
             noteFile.delete();
         }
 
-        RWDbAdapter db = null;
-        try {
-            db = new RWDbAdapter(mContext);
-            db.delete(action.getDatabaseId());
-        } finally {
-            if (db != null) {
-                db.close();
-            }
-        }
+        db().delete(action.getDatabaseId());
+    }
 
+
+    /**
+     * Stores the current properties and upload offset of the specified
+     * action in its queue entry, so an interrupted file upload can be
+     * resumed from that offset.
+     *
+     * @param action to be updated
+     */
+    public synchronized void update(RWAction action) {
+        db().update(action.getDatabaseId(), action.getProperties(), action.getUploadOffset());
+    }
+
+
+    /**
+     * Counts a failed attempt to perform the specified action. After
+     * RWDbAdapter.MAX_ATTEMPTS failed attempts it is a dead letter.
+     * 
+     * @param action that failed
+     * @return true when the action is now a dead letter
+     */
+    public synchronized boolean recordFailure(RWAction action) {
+        action.setAttempts(action.getAttempts() + 1);
+        db().setAttempts(action.getDatabaseId(), action.getAttempts());
+        return action.getAttempts() >= RWDbAdapter.MAX_ATTEMPTS;
+    }
+
+
+    /**
+     * Makes the specified action a dead letter: it is no longer performed,
+     * but stays in the queue database with its file, e.g. a recording the
+     * server rejected, instead of being deleted.
+     * 
+     * @param action to keep as dead letter
+     */
+    public synchronized void deadLetter(RWAction action) {
+        action.setAttempts(RWDbAdapter.MAX_ATTEMPTS);
+        db().setAttempts(action.getDatabaseId(), action.getAttempts());
     }
 
 
@@ -163,7 +248,8 @@ public class RWActionQueue {
      * 
      * @return true when successful
      */
-    public boolean deleteQueue() {
+    public synchronized boolean deleteQueue() {
+        close();
         boolean bReturn = RWDbAdapter.drop(mContext);
         bReturn = bReturn && deleteDir(new File(STORAGE_PATH));
         return bReturn;
@@ -228,9 +314,12 @@ public class RWActionQueue {
             numQueued = dir.listFiles().length;
         }
 
-        // Move scratch file to new directory with a unique name
+        // Move scratch file to new directory with a unique name, keeping
+        // its extension since it tells the audio format
         String queuedFileBaseName = mContext.getString(R.string.rw_spec_queued_file_basename);
-        String queuedFileExtension = mContext.getString(R.string.rw_spec_queued_file_extension);
+        String scratchName = scratchFile.getName();
+        int dot = scratchName.lastIndexOf('.');
+        String queuedFileExtension = (dot > 0) ? scratchName.substring(dot) : "";
         queueFilename = queuedFileBaseName + String.valueOf(numQueued) + queuedFileExtension;
 
         File queueFile = new File(dir, queueFilename);
@@ -0,0 +1,149 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a response body sent with "Transfer-Encoding: chunked".
+ *
+ * The decoder works in place on the buffer the body was read into: the
+ * chunk data in a range of the buffer is moved to the front of that range
+ * and the chunk sizes, extensions and trailers are dropped. A chunk can be
+ * split over any number of reads, the decoder keeps its state between
+ * calls. The body ends with the last (empty) chunk and its trailer, after
+ * which isDone() returns true.
+ */
+public class RWChunkedDecoder {
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int DATA = 2;
+    private static final int DATA_END = 3;
+    private static final int TRAILER = 4;
+    private static final int DONE = 5;
+
+    // chunk sizes above this are rejected instead of overflowing
+    private static final long MAX_CHUNK_SIZE = Long.MAX_VALUE >> 4;
+    private static final int COPY_SIZE = 4096;
+
+    private int state = SIZE;
+    private long chunkRemaining;
+    private int sizeDigits;
+    private int trailerLineLength;
+    private final byte[] copy = new byte[COPY_SIZE];
+
+    /**
+     * Decodes the data from start up to end in the buffer. The chunk data
+     * is moved to the front of the range, the buffer position and limit
+     * are not changed. Data after the end of the body is ignored.
+     *
+     * @param buffer with the encoded body
+     * @param start index of the first byte to decode
+     * @param end index after the last byte to decode
+     * @return index after the last decoded data byte
+     * @throws IOException when the data is not valid chunked encoding
+     */
+    public int decode(ByteBuffer buffer, int start, int end) throws IOException {
+        int read = start;
+        int write = start;
+        while (read < end && state != DONE) {
+            if (state == DATA) {
+                int n = (int) Math.min(chunkRemaining, end - read);
+                move(buffer, read, write, n);
+                read += n;
+                write += n;
+                chunkRemaining -= n;
+                if (chunkRemaining == 0) {
+                    state = DATA_END;
+                }
+                continue;
+            }
+
+            byte b = buffer.get(read++);
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (chunkRemaining > MAX_CHUNK_SIZE) {
+                            throw new IOException("Chunk size too large");
+                        }
+                        chunkRemaining = chunkRemaining * 16 + digit;
+                        sizeDigits++;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = EXTENSION;
+                    } else if (b == '\n') {
+                        endSizeLine();
+                    } else if (b != '\r') {
+                        throw new IOException("Invalid chunk size");
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == '\n') {
+                        endSizeLine();
+                    }
+                    break;
+                case DATA_END:
+                    if (b == '\n') {
+                        state = SIZE;
+                    } else if (b != '\r') {
+                        throw new IOException("Missing line break after chunk");
+                    }
+                    break;
+                case TRAILER:
+                    if (b == '\n') {
+                        if (trailerLineLength == 0) {
+                            state = DONE;
+                        }
+                        trailerLineLength = 0;
+                    } else if (b != '\r') {
+                        trailerLineLength++;
+                    }
+                    break;
+            }
+        }
+        return write;
+    }
+
+    /**
+     * Returns true when the complete body has been decoded.
+     */
+    public boolean isDone() {
+        return state == DONE;
+    }
+
+    private void endSizeLine() throws IOException {
+        if (sizeDigits == 0) {
+            throw new IOException("Missing chunk size");
+        }
+        sizeDigits = 0;
+        state = (chunkRemaining == 0) ? TRAILER : DATA;
+    }
+
+    /**
+     * Moves n bytes in the buffer from index from to index to, which is
+     * not after from. The bytes are copied front to back, so overlapping
+     * ranges are fine.
+     */
+    private void move(ByteBuffer buffer, int from, int to, int n) {
+        if (from == to) {
+            return;
+        }
+        ByteBuffer src = buffer.duplicate();
+        ByteBuffer dst = buffer.duplicate();
+        src.clear();
+        dst.clear();
+        dst.position(to);
+        while (n > 0) {
+            int count = Math.min(n, copy.length);
+            src.position(from);
+            src.get(copy, 0, count);
+            dst.put(copy, 0, count);
+            from += count;
+            n -= count;
+        }
+    }
+}
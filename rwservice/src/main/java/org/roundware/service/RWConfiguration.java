@@ -5,14 +5,17 @@
 package org.roundware.service;
 
 import android.content.Context;
+import android.util.JsonReader;
 import android.util.Log;
 
 import org.roundware.service.R;
+import org.roundware.service.util.RWJsonHelper;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 
@@ -25,7 +28,7 @@ import java.util.UUID;
  * 
  * @author Rob Knapen
  */
-public class RWConfiguration {
+public class RWConfiguration implements Cloneable {
 
     // debugging
     private final static String TAG = "RWConfiguration";
@@ -68,8 +71,15 @@ public class RWConfiguration {
     private final static String JSON_KEY_CONFIG_RESET_TAG_DEFAULTS_ON_STARTUP = "reset_tag_defaults_on_startup";
     private final static String JSON_KEY_CONFIG_MIN_LOCATION_UPDATE_TIME_MSEC = "min_location_update_time_msec";
     private final static String JSON_KEY_CONFIG_MIN_LOCATION_UPDATE_DISTANCE_METER = "min_location_update_distance_meter";
+    private final static String JSON_KEY_CONFIG_LOCATION_REPORT_INTERVAL_MSEC = "location_report_interval_msec";
+    private final static String JSON_KEY_CONFIG_LOG_EVENT_BATCH_SIZE = "log_event_batch_size";
+    private final static String JSON_KEY_CONFIG_LOG_EVENT_FLUSH_INTERVAL_MSEC = "log_event_flush_interval_msec";
+    private final static String JSON_KEY_CONFIG_LOG_EVENT_SAMPLING_RATES = "log_event_sampling_rates";
     private final static String JSON_KEY_CONFIG_USE_GPS_IF_POSSIBLE = "use_gps_if_possible";
     private final static String JSON_KEY_CONFIG_HTTP_TIMEOUT_SEC = "http_timeout_sec";
+    private final static String JSON_KEY_CONFIG_UPLOAD_CHUNK_SIZE_KB = "upload_chunk_size_kb";
+    private final static String JSON_KEY_CONFIG_RECORDING_FORMAT = "recording_format";
+    private final static String JSON_KEY_CONFIG_TRIM_SILENCE = "trim_silence";
 
     // json parsing error message
     public final static String JSON_SYNTAX_ERROR_MESSAGE = "Invalid server response received!";
@@ -126,6 +136,19 @@ public class RWConfiguration {
     private long mMinLocationUpdateTimeMSec = 60000;
     private double mMinLocationUpdateDistanceMeter = 5.0;
 
+    // window in which location updates are combined into one move_listener call
+    private long mLocationReportIntervalMSec = 2000;
+
+    /**
+     * Log events are sent in batches, when the batch size is reached or
+     * the flush interval has passed. Events can be sampled per event type,
+     * specified as e.g. "start_listen=0.1,stop_listen=0.1" to send one in
+     * ten of those events and all events of other types.
+     */
+    private int mLogEventBatchSize = 20;
+    private long mLogEventFlushIntervalMSec = 60000;
+    private Map<String, Float> mLogEventSamplingRates = new HashMap<String, Float>();
+
     /**
      * Use GPS for location tracking if possible on the device. It needs to be
      * present and activated for this to work. Using GPS indoors is not a good
@@ -138,6 +161,15 @@ public class RWConfiguration {
     // http call timeout
     private int mHttpTimeOutSec = 45;
 
+    // chunk size for resumable file uploads, 0 to upload in one request
+    private int mUploadChunkSizeKB = 0;
+
+    // file format of audio recordings, wav or flac when the server accepts it
+    private String mRecordingFormat = "wav";
+
+    // trim leading and trailing silence from audio recordings
+    private boolean mTrimSilence = false;
+
     // current Roundware software version on the server
     private String mServerVersion = null;
 
@@ -167,6 +199,17 @@ public class RWConfiguration {
             val = context.getString(R.string.rw_spec_min_location_update_distance_meters);
             mMinLocationUpdateDistanceMeter = Double.valueOf(val);
 
+            val = context.getString(R.string.rw_spec_location_report_interval_msec);
+            mLocationReportIntervalMSec = Long.valueOf(val);
+
+            val = context.getString(R.string.rw_spec_log_event_batch_size);
+            mLogEventBatchSize = Integer.valueOf(val);
+
+            val = context.getString(R.string.rw_spec_log_event_flush_interval_msec);
+            mLogEventFlushIntervalMSec = Long.valueOf(val);
+
+            setLogEventSamplingRates(context.getString(R.string.rw_spec_log_event_sampling_rates));
+
             val = context.getString(R.string.rw_spec_files_url);
             mContentFilesUrl = val;
 
@@ -185,6 +228,12 @@ public class RWConfiguration {
             mResetTagDefaultsOnStartup = "Y".equalsIgnoreCase(context.getString(R.string.rw_spec_reset_tag_defaults_on_startup_yn));
 
             mUseGpsIfPossible = "Y".equalsIgnoreCase(context.getString(R.string.rw_spec_use_gps_if_possible));
+
+            val = context.getString(R.string.rw_spec_upload_chunk_size_in_kb);
+            mUploadChunkSizeKB = Integer.valueOf(val);
+
+            mRecordingFormat = context.getString(R.string.rw_spec_recording_format);
+            mTrimSilence = "Y".equalsIgnoreCase(context.getString(R.string.rw_spec_trim_silence_yn));
         }
     }
 
@@ -198,59 +247,208 @@ public class RWConfiguration {
      * @param fromCache true if using cached data
      */
     public void assignFromJsonServerResponse(String jsonResponse, boolean fromCache) {
-        JSONObject specs = null;
-        
+        if (D) { Log.d(TAG, "Assigning configuration from json: " + jsonResponse); }
+        assignFromJsonServerResponse(new StringReader(jsonResponse), fromCache);
+    }
+
+
+    /**
+     * Overwrites configuration values from the specified JSON data, e.g.
+     * read straight from a server response or a cache file. The values are
+     * assigned while the data is read, without building a JSON object tree
+     * first. Values that are not in the data remain unchanged. When the
+     * data is not valid JSON no values are changed.
+     *
+     * @param in to read the JSON data from, it is not closed
+     * @param fromCache true if using cached data
+     */
+    public void assignFromJsonServerResponse(Reader in, boolean fromCache) {
+        RWConfiguration previous = copy();
         try {
-            JSONArray entries = new JSONArray(jsonResponse);
-            for (int i = 0; i < entries.length(); i++) {
-                JSONObject jsonObj = entries.getJSONObject(i);
-                if (D) { Log.d(TAG, jsonObj.toString()); }
-                if (jsonObj.has(JSON_KEY_CONFIG_SECTION_DEVICE)) {
-                    // decode section with device specific settings
-                    specs = jsonObj.getJSONObject(JSON_KEY_CONFIG_SECTION_DEVICE);
-                    setDeviceId(specs.optString(JSON_KEY_CONFIG_DEVICE_ID, getDeviceId()));
-                } else if (jsonObj.has(JSON_KEY_CONFIG_SECTION_SESSION)) {
-                    // decode section with session specific settings
-                    specs = jsonObj.getJSONObject(JSON_KEY_CONFIG_SECTION_SESSION);
-                    setSessionId(specs.optString(JSON_KEY_CONFIG_SESSION_ID, getSessionId()));
-                } else if (jsonObj.has(JSON_KEY_CONFIG_SECTION_PROJECT)) {
-                    // decode section with project specific settings
-                    specs = jsonObj.getJSONObject(JSON_KEY_CONFIG_SECTION_PROJECT);
-                    setProjectId(specs.optString(JSON_KEY_CONFIG_PROJECT_ID, getProjectId()));
-                    setProjectName(specs.optString(JSON_KEY_CONFIG_PROJECT_NAME, getProjectName()));
-                    setContentFilesUrl(specs.optString(JSON_KEY_CONFIG_FILES_URL, getContentFilesUrl()));
-                    setContentFilesVersion(specs.optInt(JSON_KEY_CONFIG_FILES_VERSION, getContentFilesVersion()));
-                    setHeartbeatTimerSec(specs.optInt(JSON_KEY_CONFIG_HEARTBEAT_TIMER_SEC, getHeartbeatTimerSec()));
-                    setMaxRecordingTimeSec(specs.optInt(JSON_KEY_CONFIG_MAX_RECORDING_LENGTH_SEC, getMaxRecordingTimeSec()));
-                    setSharingMessage(specs.optString(JSON_KEY_CONFIG_SHARING_MESSAGE, getSharingMessage()));
-                    setSharingUrl(specs.optString(JSON_KEY_CONFIG_SHARING_URL, getSharingUrl()));
-                    setLegalAgreement(specs.optString(JSON_KEY_CONFIG_LEGAL_AGREEMENT, getLegalAgreement()));
-                    setDynamicListenQuestions(specs.optBoolean(JSON_KEY_CONFIG_DYNAMIC_LISTEN_TAGS, isDynamicListenQuestions()));
-                    setDynamicSpeakQuestions(specs.optBoolean(JSON_KEY_CONFIG_DYNAMIC_SPEAK_TAGS, isDynamicSpeakQuestions()));
-                    setListenEnabled(specs.optBoolean(JSON_KEY_CONFIG_LISTEN_ENABLED, isListenEnabled()));
-                    setGeoListenEnabled(specs.optBoolean(JSON_KEY_CONFIG_GEO_LISTEN_ENABLED, isGeoListenEnabled()));
-                    setSpeakEnabled(specs.optBoolean(JSON_KEY_CONFIG_SPEAK_ENABLED, isSpeakEnabled()));
-                    setGeoSpeakEnabled(specs.optBoolean(JSON_KEY_CONFIG_GEO_SPEAK_ENABLED, isGeoSpeakEnabled()));
-                    setResetTagsDefaultsOnStartup(specs.optBoolean(JSON_KEY_CONFIG_RESET_TAG_DEFAULTS_ON_STARTUP, isResetTagsDefaultOnStartup()));
-                    setStreamMetadataEnabled(specs.optBoolean(JSON_KEY_CONFIG_STREAM_METADATA_ENABLED, isStreamMetadataEnabled()));
-                    setMinLocationUpdateTimeMSec(specs.optLong(JSON_KEY_CONFIG_MIN_LOCATION_UPDATE_TIME_MSEC, getMinLocationUpdateTimeMSec()));
-                    setMinLocationUpdateDistanceMeter(specs.optDouble(JSON_KEY_CONFIG_MIN_LOCATION_UPDATE_DISTANCE_METER, getMinLocationUpdateDistanceMeter()));
-                    setHttpTimeOutSec(specs.optInt(JSON_KEY_CONFIG_HTTP_TIMEOUT_SEC, getHttpTimeOutSec()));
-                    setUseGpsIfPossible(specs.optBoolean(JSON_KEY_CONFIG_USE_GPS_IF_POSSIBLE, getUseGpsIfPossible()));
-                } else if (jsonObj.has(JSON_KEY_CONFIG_SECTION_SERVER)) {
-                    specs = jsonObj.getJSONObject(JSON_KEY_CONFIG_SECTION_SERVER);
-                    setServerVersion(specs.optString(JSON_KEY_CONFIG_CURRENT_VERSION, getServerVersion()));
+            JsonReader reader = RWJsonHelper.createReader(in);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String section = reader.nextName();
+                    if (JSON_KEY_CONFIG_SECTION_DEVICE.equals(section)
+                            || JSON_KEY_CONFIG_SECTION_SESSION.equals(section)
+                            || JSON_KEY_CONFIG_SECTION_PROJECT.equals(section)
+                            || JSON_KEY_CONFIG_SECTION_SERVER.equals(section)) {
+                        if (D) { Log.d(TAG, "Decoding configuration section: " + section); }
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            assignFromJsonValue(section, reader.nextName(), reader);
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
                 }
+                reader.endObject();
             }
+            reader.endArray();
 
             mDataSource = fromCache ? FROM_CACHE : FROM_SERVER;
             if (fromCache) {
                 setSessionId(null);
             }
 
-        } catch (JSONException e) {
+        } catch (IOException e) {
             Log.e(TAG, JSON_SYNTAX_ERROR_MESSAGE, e);
+            restoreJsonValues(previous);
+        } catch (IllegalStateException e) {
+            // value of an unexpected type
+            Log.e(TAG, JSON_SYNTAX_ERROR_MESSAGE, e);
+        }
+    }
+
+
+    /**
+     * Returns a shallow copy of the configuration.
+     */
+    private RWConfiguration copy() {
+        try {
+            return (RWConfiguration) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    /**
+     * Sets the values that can be assigned from JSON data back to those of
+     * the specified copy, made before the data was read.
+     *
+     * @param previous copy of the configuration
+     */
+    private void restoreJsonValues(RWConfiguration previous) {
+        mDeviceId = previous.mDeviceId;
+        mSessionId = previous.mSessionId;
+        mProjectId = previous.mProjectId;
+        mProjectName = previous.mProjectName;
+        mContentFilesUrl = previous.mContentFilesUrl;
+        mContentFilesVersion = previous.mContentFilesVersion;
+        mHeartbeatTimerSec = previous.mHeartbeatTimerSec;
+        mMaxRecordingTimeSec = previous.mMaxRecordingTimeSec;
+        mSharingMessage = previous.mSharingMessage;
+        mSharingUrl = previous.mSharingUrl;
+        mLegalAgreement = previous.mLegalAgreement;
+        mDynamicListenQuestions = previous.mDynamicListenQuestions;
+        mDynamicSpeakQuestions = previous.mDynamicSpeakQuestions;
+        mListenEnabled = previous.mListenEnabled;
+        mGeoListenEnabled = previous.mGeoListenEnabled;
+        mSpeakEnabled = previous.mSpeakEnabled;
+        mGeoSpeakEnabled = previous.mGeoSpeakEnabled;
+        mResetTagDefaultsOnStartup = previous.mResetTagDefaultsOnStartup;
+        mStreamMetadataEnabled = previous.mStreamMetadataEnabled;
+        mMinLocationUpdateTimeMSec = previous.mMinLocationUpdateTimeMSec;
+        mMinLocationUpdateDistanceMeter = previous.mMinLocationUpdateDistanceMeter;
+        mLocationReportIntervalMSec = previous.mLocationReportIntervalMSec;
+        mLogEventBatchSize = previous.mLogEventBatchSize;
+        mLogEventFlushIntervalMSec = previous.mLogEventFlushIntervalMSec;
+        // the setter replaces the map, the copy still has the previous one
+        mLogEventSamplingRates = previous.mLogEventSamplingRates;
+        mHttpTimeOutSec = previous.mHttpTimeOutSec;
+        mUploadChunkSizeKB = previous.mUploadChunkSizeKB;
+        mRecordingFormat = previous.mRecordingFormat;
+        mTrimSilence = previous.mTrimSilence;
+        mUseGpsIfPossible = previous.mUseGpsIfPossible;
+        mServerVersion = previous.mServerVersion;
+    }
+
+
+    /**
+     * Assigns the next value read to the configuration parameter for the
+     * specified section and name, or skips it when there is none.
+     *
+     * @param section of the configuration data (device, session, etc.)
+     * @param name of the value in the section
+     * @param reader positioned at the value
+     * @throws IOException on read or syntax errors
+     */
+    private void assignFromJsonValue(String section, String name, JsonReader reader) throws IOException {
+        if (JSON_KEY_CONFIG_SECTION_DEVICE.equals(section)) {
+            // device specific settings
+            if (JSON_KEY_CONFIG_DEVICE_ID.equals(name)) {
+                setDeviceId(RWJsonHelper.nextString(reader, getDeviceId()));
+                return;
+            }
+        } else if (JSON_KEY_CONFIG_SECTION_SESSION.equals(section)) {
+            // session specific settings
+            if (JSON_KEY_CONFIG_SESSION_ID.equals(name)) {
+                setSessionId(RWJsonHelper.nextString(reader, getSessionId()));
+                return;
+            }
+        } else if (JSON_KEY_CONFIG_SECTION_PROJECT.equals(section)) {
+            // project specific settings
+            if (JSON_KEY_CONFIG_PROJECT_ID.equals(name)) {
+                setProjectId(RWJsonHelper.nextString(reader, getProjectId()));
+            } else if (JSON_KEY_CONFIG_PROJECT_NAME.equals(name)) {
+                setProjectName(RWJsonHelper.nextString(reader, getProjectName()));
+            } else if (JSON_KEY_CONFIG_FILES_URL.equals(name)) {
+                setContentFilesUrl(RWJsonHelper.nextString(reader, getContentFilesUrl()));
+            } else if (JSON_KEY_CONFIG_FILES_VERSION.equals(name)) {
+                setContentFilesVersion(RWJsonHelper.nextInt(reader, getContentFilesVersion()));
+            } else if (JSON_KEY_CONFIG_HEARTBEAT_TIMER_SEC.equals(name)) {
+                setHeartbeatTimerSec(RWJsonHelper.nextInt(reader, getHeartbeatTimerSec()));
+            } else if (JSON_KEY_CONFIG_MAX_RECORDING_LENGTH_SEC.equals(name)) {
+                setMaxRecordingTimeSec(RWJsonHelper.nextInt(reader, getMaxRecordingTimeSec()));
+            } else if (JSON_KEY_CONFIG_SHARING_MESSAGE.equals(name)) {
+                setSharingMessage(RWJsonHelper.nextString(reader, getSharingMessage()));
+            } else if (JSON_KEY_CONFIG_SHARING_URL.equals(name)) {
+                setSharingUrl(RWJsonHelper.nextString(reader, getSharingUrl()));
+            } else if (JSON_KEY_CONFIG_LEGAL_AGREEMENT.equals(name)) {
+                setLegalAgreement(RWJsonHelper.nextString(reader, getLegalAgreement()));
+            } else if (JSON_KEY_CONFIG_DYNAMIC_LISTEN_TAGS.equals(name)) {
+                setDynamicListenQuestions(RWJsonHelper.nextBoolean(reader, isDynamicListenQuestions()));
+            } else if (JSON_KEY_CONFIG_DYNAMIC_SPEAK_TAGS.equals(name)) {
+                setDynamicSpeakQuestions(RWJsonHelper.nextBoolean(reader, isDynamicSpeakQuestions()));
+            } else if (JSON_KEY_CONFIG_LISTEN_ENABLED.equals(name)) {
+                setListenEnabled(RWJsonHelper.nextBoolean(reader, isListenEnabled()));
+            } else if (JSON_KEY_CONFIG_GEO_LISTEN_ENABLED.equals(name)) {
+                setGeoListenEnabled(RWJsonHelper.nextBoolean(reader, isGeoListenEnabled()));
+            } else if (JSON_KEY_CONFIG_SPEAK_ENABLED.equals(name)) {
+                setSpeakEnabled(RWJsonHelper.nextBoolean(reader, isSpeakEnabled()));
+            } else if (JSON_KEY_CONFIG_GEO_SPEAK_ENABLED.equals(name)) {
+                setGeoSpeakEnabled(RWJsonHelper.nextBoolean(reader, isGeoSpeakEnabled()));
+            } else if (JSON_KEY_CONFIG_RESET_TAG_DEFAULTS_ON_STARTUP.equals(name)) {
+                setResetTagsDefaultsOnStartup(RWJsonHelper.nextBoolean(reader, isResetTagsDefaultOnStartup()));
+            } else if (JSON_KEY_CONFIG_STREAM_METADATA_ENABLED.equals(name)) {
+                setStreamMetadataEnabled(RWJsonHelper.nextBoolean(reader, isStreamMetadataEnabled()));
+            } else if (JSON_KEY_CONFIG_MIN_LOCATION_UPDATE_TIME_MSEC.equals(name)) {
+                setMinLocationUpdateTimeMSec(RWJsonHelper.nextLong(reader, getMinLocationUpdateTimeMSec()));
+            } else if (JSON_KEY_CONFIG_MIN_LOCATION_UPDATE_DISTANCE_METER.equals(name)) {
+                setMinLocationUpdateDistanceMeter(RWJsonHelper.nextDouble(reader, getMinLocationUpdateDistanceMeter()));
+            } else if (JSON_KEY_CONFIG_LOCATION_REPORT_INTERVAL_MSEC.equals(name)) {
+                setLocationReportIntervalMSec(RWJsonHelper.nextLong(reader, getLocationReportIntervalMSec()));
+            } else if (JSON_KEY_CONFIG_LOG_EVENT_BATCH_SIZE.equals(name)) {
+                setLogEventBatchSize(RWJsonHelper.nextInt(reader, getLogEventBatchSize()));
+            } else if (JSON_KEY_CONFIG_LOG_EVENT_FLUSH_INTERVAL_MSEC.equals(name)) {
+                setLogEventFlushIntervalMSec(RWJsonHelper.nextLong(reader, getLogEventFlushIntervalMSec()));
+            } else if (JSON_KEY_CONFIG_LOG_EVENT_SAMPLING_RATES.equals(name)) {
+                setLogEventSamplingRates(RWJsonHelper.nextString(reader, null));
+            } else if (JSON_KEY_CONFIG_HTTP_TIMEOUT_SEC.equals(name)) {
+                setHttpTimeOutSec(RWJsonHelper.nextInt(reader, getHttpTimeOutSec()));
+            } else if (JSON_KEY_CONFIG_UPLOAD_CHUNK_SIZE_KB.equals(name)) {
+                setUploadChunkSizeKB(RWJsonHelper.nextInt(reader, getUploadChunkSizeKB()));
+            } else if (JSON_KEY_CONFIG_RECORDING_FORMAT.equals(name)) {
+                setRecordingFormat(RWJsonHelper.nextString(reader, getRecordingFormat()));
+            } else if (JSON_KEY_CONFIG_TRIM_SILENCE.equals(name)) {
+                setTrimSilence(RWJsonHelper.nextBoolean(reader, isTrimSilence()));
+            } else if (JSON_KEY_CONFIG_USE_GPS_IF_POSSIBLE.equals(name)) {
+                setUseGpsIfPossible(RWJsonHelper.nextBoolean(reader, getUseGpsIfPossible()));
+            } else {
+                reader.skipValue();
+            }
+            return;
+        } else if (JSON_KEY_CONFIG_SECTION_SERVER.equals(section)) {
+            if (JSON_KEY_CONFIG_CURRENT_VERSION.equals(name)) {
+                setServerVersion(RWJsonHelper.nextString(reader, getServerVersion()));
+                return;
+            }
         }
+        reader.skipValue();
     }
 
 
@@ -477,6 +675,70 @@ public class RWConfiguration {
     }
 
 
+    public long getLocationReportIntervalMSec() {
+        return mLocationReportIntervalMSec;
+    }
+
+
+    public void setLocationReportIntervalMSec(long locationReportIntervalMSec) {
+        mLocationReportIntervalMSec = locationReportIntervalMSec;
+    }
+
+
+    public int getLogEventBatchSize() {
+        return mLogEventBatchSize;
+    }
+
+
+    public void setLogEventBatchSize(int logEventBatchSize) {
+        mLogEventBatchSize = Math.max(1, logEventBatchSize);
+    }
+
+
+    public long getLogEventFlushIntervalMSec() {
+        return mLogEventFlushIntervalMSec;
+    }
+
+
+    public void setLogEventFlushIntervalMSec(long logEventFlushIntervalMSec) {
+        mLogEventFlushIntervalMSec = logEventFlushIntervalMSec;
+    }
+
+
+    /**
+     * Returns the sampling rate for each log event type that has one.
+     */
+    public Map<String, Float> getLogEventSamplingRates() {
+        return mLogEventSamplingRates;
+    }
+
+
+    /**
+     * Sets the sampling rates of log event types from a comma separated
+     * list of type=rate pairs, e.g. "start_listen=0.1,stop_listen=0.1".
+     * Invalid pairs are ignored, an empty or null value removes all rates.
+     *
+     * @param spec list of sampling rates
+     */
+    public void setLogEventSamplingRates(String spec) {
+        Map<String, Float> rates = new HashMap<String, Float>();
+        if (spec != null) {
+            for (String pair : spec.split(",")) {
+                int pos = pair.indexOf('=');
+                if (pos > 0) {
+                    try {
+                        float rate = Float.parseFloat(pair.substring(pos + 1).trim());
+                        rates.put(pair.substring(0, pos).trim(), Math.max(0f, Math.min(1f, rate)));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid log event sampling rate: " + pair);
+                    }
+                }
+            }
+        }
+        mLogEventSamplingRates = rates;
+    }
+
+
     public int getHttpTimeOutSec() {
         return mHttpTimeOutSec;
     }
@@ -487,6 +749,36 @@ public class RWConfiguration {
     }
 
 
+    public int getUploadChunkSizeKB() {
+        return mUploadChunkSizeKB;
+    }
+
+
+    public void setUploadChunkSizeKB(int uploadChunkSizeKB) {
+        mUploadChunkSizeKB = uploadChunkSizeKB;
+    }
+
+
+    public String getRecordingFormat() {
+        return mRecordingFormat;
+    }
+
+
+    public void setRecordingFormat(String recordingFormat) {
+        mRecordingFormat = recordingFormat;
+    }
+
+
+    public boolean isTrimSilence() {
+        return mTrimSilence;
+    }
+
+
+    public void setTrimSilence(boolean trimSilence) {
+        mTrimSilence = trimSilence;
+    }
+
+
     public int getDataSource() {
         return mDataSource;
     }
@@ -4,28 +4,51 @@
  */
 package org.roundware.service;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 
 /**
  * Database for storing Roundware action items.
  * 
+ * An instance keeps its database connection open until close() is called,
+ * and uses precompiled statements for the frequent insert, delete and count
+ * operations. It is intended to be kept around for the lifetime of the
+ * RWService (see RWActionQueue) instead of being created per call. All
+ * methods are synchronized since the precompiled statements can not be
+ * shared between threads.
+ * 
  * @author Rob Knapen, Dan Latham
  */
 public class RWDbAdapter {
 
     public static final String KEY_ROWID = "_id";
     public static final String PARAMS = "params";
+    public static final String UPLOAD_OFFSET = "upload_offset";
+    public static final String ATTEMPTS = "attempts";
+
+    /**
+     * Number of counted failed attempts after which an action is a dead
+     * letter: it stays in the database, but is no longer returned or
+     * counted as a queued action.
+     */
+    public static final int MAX_ATTEMPTS = 5;
 
     private static final String TAG = "RWDbAdapter";
 
@@ -34,16 +57,42 @@ public class RWDbAdapter {
      */
     private static final String DATABASE_NAME = "RoundwareDB";
     private static final String DATABASE_TABLE = "actions";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 6;
 
     private static final String DATABASE_CREATE = "create table " + DATABASE_TABLE
-            + " (_id integer primary key autoincrement, " + PARAMS + " TEXT not null)";
+            + " (_id integer primary key autoincrement, " + PARAMS + " BLOB not null, "
+            + UPLOAD_OFFSET + " integer not null default 0, "
+            + ATTEMPTS + " integer not null default 0)";
+
+    /**
+     * Version of the binary encoding of the action parameters, stored as
+     * the first byte of each row so the format can evolve without another
+     * database migration.
+     */
+    private static final int PARAMS_FORMAT_VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-    private static final String DATABASE_COUNT = "select _id from " + DATABASE_TABLE;
+    private static final String DATABASE_INSERT = "insert into " + DATABASE_TABLE + " (" + PARAMS + ") values (?)";
+    private static final String DATABASE_DELETE = "delete from " + DATABASE_TABLE + " where " + KEY_ROWID + " = ?";
+    private static final String DATABASE_LIVE = ATTEMPTS + " < " + MAX_ATTEMPTS;
+    private static final String DATABASE_COUNT = "select count(*) from " + DATABASE_TABLE + " where " + DATABASE_LIVE;
+    private static final String DATABASE_UPDATE = "update " + DATABASE_TABLE + " set " + PARAMS + " = ?, "
+            + UPLOAD_OFFSET + " = ? where " + KEY_ROWID + " = ?";
+    private static final String DATABASE_SET_ATTEMPTS = "update " + DATABASE_TABLE + " set " + ATTEMPTS + " = ? where "
+            + KEY_ROWID + " = ?";
 
     private Context mContext;
+    private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
 
+    // precompiled statements, valid until close() is called
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mCountStatement;
+    private SQLiteStatement mUpdateStatement;
+    private SQLiteStatement mSetAttemptsStatement;
+
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
         DatabaseHelper(Context context) {
@@ -59,44 +108,111 @@ public class RWDbAdapter {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-                    + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-            onCreate(db);
+            if (oldVersion < 3) {
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+                        + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+                onCreate(db);
+                return;
+            }
+            if (oldVersion < 4) {
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+                        + ", converting queued actions to binary format");
+                // recreates the table with the current schema
+                migrateXmlParams(db);
+                return;
+            }
+            if (oldVersion < 5) {
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+                        + ", adding upload offset to queued actions");
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + UPLOAD_OFFSET
+                        + " integer not null default 0");
+            }
+            if (oldVersion < 6) {
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+                        + ", adding failed attempts to queued actions");
+                db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + ATTEMPTS
+                        + " integer not null default 0");
+            }
+        }
+
+
+        /**
+         * Converts the rows of a version 3 database, which stores the
+         * action parameters as XML Properties in a TEXT column, into the
+         * binary format. Rows that can not be parsed are dropped.
+         *
+         * @param db to migrate, called within the upgrade transaction
+         */
+        private void migrateXmlParams(SQLiteDatabase db) {
+            String oldTable = DATABASE_TABLE + "_v3";
+            db.execSQL("ALTER TABLE " + DATABASE_TABLE + " RENAME TO " + oldTable);
+            db.execSQL(DATABASE_CREATE);
+
+            Cursor cursor = db.query(oldTable, new String[] { KEY_ROWID, PARAMS }, null, null, null, null, KEY_ROWID);
+            try {
+                while (cursor.moveToNext()) {
+                    try {
+                        Properties props = new Properties();
+                        props.loadFromXML(new ByteArrayInputStream(cursor.getString(1).getBytes(UTF8)));
+                        db.execSQL("insert into " + DATABASE_TABLE + " (" + KEY_ROWID + ", " + PARAMS + ") values (?, ?)",
+                                new Object[] { cursor.getLong(0), encodeParams(props) });
+                    } catch (IOException ex) {
+                        Log.w(TAG, "Dropping unreadable queued action " + cursor.getLong(0), ex);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            db.execSQL("DROP TABLE " + oldTable);
         }
     }
 
 
     /**
      * Constructor - takes the context to allow the database to be
-     * opened/created
+     * opened/created. The database stays open, using write-ahead logging,
+     * until close() is called.
      *
      * @param ctx
      *            the Context within which to work
      */
     public RWDbAdapter(Context ctx) {
         mContext = ctx;
-        DatabaseHelper dbHelper = new DatabaseHelper(mContext);
-        mDb = dbHelper.getWritableDatabase();
+        mDbHelper = new DatabaseHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        try {
+            mDb.enableWriteAheadLogging();
+        } catch (Exception ex) {
+            // not fatal, continue with the default journal mode
+            Log.w(TAG, "Could not enable write-ahead logging: " + ex.getMessage());
+        }
+
+        mInsertStatement = mDb.compileStatement(DATABASE_INSERT);
+        mDeleteStatement = mDb.compileStatement(DATABASE_DELETE);
+        mCountStatement = mDb.compileStatement(DATABASE_COUNT);
+        mUpdateStatement = mDb.compileStatement(DATABASE_UPDATE);
+        mSetAttemptsStatement = mDb.compileStatement(DATABASE_SET_ATTEMPTS);
     }
 
 
-    public void close() {
-        mDb.close();
+    public synchronized void close() {
+        mInsertStatement.close();
+        mDeleteStatement.close();
+        mCountStatement.close();
+        mUpdateStatement.close();
+        mSetAttemptsStatement.close();
+        mDbHelper.close();
     }
 
 
-    public boolean insert(Properties props) throws SQLException {
+    public synchronized boolean insert(Properties props) throws SQLException {
         boolean bReturn = true;
 
         try {
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            props.storeToXML(stream, null);
-
-            ContentValues initialValues = new ContentValues();
-            initialValues.put(PARAMS, stream.toString());
-
-            long id = mDb.insert(DATABASE_TABLE, null, initialValues);
+            mInsertStatement.bindBlob(1, encodeParams(props));
+            long id = mInsertStatement.executeInsert();
 
             bReturn = (id > 0);
         } catch (Exception ex) {
@@ -114,57 +230,229 @@ public class RWDbAdapter {
      *            id of note to delete
      * @return true if deleted, false otherwise
      */
-    public boolean delete(Long rowId) {
-        int st = mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null);
+    public synchronized boolean delete(Long rowId) {
+        if (rowId == null) {
+            return false;
+        }
+        mDeleteStatement.bindLong(1, rowId);
+        int st = mDeleteStatement.executeUpdateDelete();
         return st > 0;
     }
 
 
+    /**
+     * Updates the parameters and the upload offset of the action with the
+     * given rowId, e.g. to record the progress of a chunked file upload.
+     *
+     * @param rowId id of action to update
+     * @param props new parameters of the action
+     * @param uploadOffset number of bytes of its file acknowledged by the server
+     * @return true if updated, false otherwise
+     */
+    public synchronized boolean update(Long rowId, Properties props, long uploadOffset) {
+        if (rowId == null) {
+            return false;
+        }
+        try {
+            mUpdateStatement.bindBlob(1, encodeParams(props));
+            mUpdateStatement.bindLong(2, uploadOffset);
+            mUpdateStatement.bindLong(3, rowId);
+            return mUpdateStatement.executeUpdateDelete() > 0;
+        } catch (Exception ex) {
+            Log.e(TAG, ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+
+    /**
+     * Sets the number of failed attempts of the action with the given
+     * rowId. With MAX_ATTEMPTS or more it becomes a dead letter.
+     *
+     * @param rowId id of action to update
+     * @param attempts number of failed attempts
+     * @return true if updated, false otherwise
+     */
+    public synchronized boolean setAttempts(Long rowId, int attempts) {
+        if (rowId == null) {
+            return false;
+        }
+        mSetAttemptsStatement.bindLong(1, attempts);
+        mSetAttemptsStatement.bindLong(2, rowId);
+        return mSetAttemptsStatement.executeUpdateDelete() > 0;
+    }
+
+
     public static boolean drop(Context context) {
         return context.deleteDatabase(DATABASE_NAME);
     }
 
 
     /**
-     * Return a Cursor over the list of all notes in the database
+     * Returns the oldest action stored in the database.
      *
-     * @return Cursor over all notes
+     * @return RWAction for the first queued item, or null when empty
      */
     public RWAction getAction() {
-        RWAction action = null;
-        Cursor cursor = null;
+        List<RWAction> actions = getActions(1);
+        return actions.isEmpty() ? null : actions.get(0);
+    }
 
-        try {
-            cursor = mDb.query(DATABASE_TABLE, new String[] { KEY_ROWID, PARAMS }, null, null, null, null, null);
 
-            if ((cursor != null) && (cursor.moveToFirst())) {
-                int id = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ROWID));
-                String params = cursor.getString(cursor.getColumnIndexOrThrow(PARAMS));
-                cursor.close();
+    /**
+     * Returns up to the specified number of actions stored in the database,
+     * oldest first, retrieved with a single query. Rows that can not be
+     * decoded are deleted, so they can not block the head of the queue.
+     * Dead letters are not returned.
+     *
+     * @param limit maximum number of actions to return
+     * @return List of RWAction, empty when the database is empty
+     */
+    public List<RWAction> getActions(int limit) {
+        return getActions(0, limit);
+    }
+
 
-                ByteArrayInputStream stream = new ByteArrayInputStream(params.getBytes());
-                Properties props = new Properties();
-                props.loadFromXML(stream);
-                action = new RWAction(mContext, (long) id, props);
+    /**
+     * Returns up to the specified number of actions stored in the database
+     * after the action with the specified rowId, oldest first, e.g. to page
+     * through the queue past actions that failed.
+     *
+     * @param afterRowId id of the action to continue after, 0 to start at
+     * the head of the queue
+     * @param limit maximum number of actions to return
+     * @return List of RWAction, empty when there are no more actions
+     */
+    public synchronized List<RWAction> getActions(long afterRowId, int limit) {
+        List<Long> invalidIds = new ArrayList<Long>();
+        List<RWAction> actions;
+        do {
+            invalidIds.clear();
+            actions = queryActions(afterRowId, limit, invalidIds);
+            for (Long id : invalidIds) {
+                delete(id);
+            }
+        } while (actions.isEmpty() && !invalidIds.isEmpty());
+        return actions;
+    }
+
+
+    /**
+     * Returns up to the specified number of live actions stored in the
+     * database after the specified rowId, oldest first, and adds the ids of
+     * rows that can not be decoded to the specified list.
+     */
+    private List<RWAction> queryActions(long afterRowId, int limit, List<Long> invalidIds) {
+        List<RWAction> actions = new ArrayList<RWAction>();
+        Cursor cursor = null;
+
+        try {
+            cursor = mDb.query(DATABASE_TABLE, new String[] { KEY_ROWID, PARAMS, UPLOAD_OFFSET, ATTEMPTS },
+                    KEY_ROWID + " > ? and " + DATABASE_LIVE, new String[] { String.valueOf(afterRowId) },
+                    null, null, KEY_ROWID, String.valueOf(limit));
+
+            if (cursor != null) {
+                int idColumn = cursor.getColumnIndexOrThrow(KEY_ROWID);
+                int paramsColumn = cursor.getColumnIndexOrThrow(PARAMS);
+                int uploadOffsetColumn = cursor.getColumnIndexOrThrow(UPLOAD_OFFSET);
+                int attemptsColumn = cursor.getColumnIndexOrThrow(ATTEMPTS);
+                while (cursor.moveToNext()) {
+                    int id = cursor.getInt(idColumn);
+                    byte[] params = cursor.getBlob(paramsColumn);
+
+                    try {
+                        RWAction action = new RWAction(mContext, (long) id, decodeParams(params));
+                        action.setUploadOffset(cursor.getLong(uploadOffsetColumn));
+                        action.setAttempts(cursor.getInt(attemptsColumn));
+                        actions.add(action);
+                    } catch (Exception ex) {
+                        Log.e(TAG, "Deleting unreadable queued action " + id, ex);
+                        invalidIds.add((long) id);
+                    }
+                }
             }
         } catch (Exception ex) {
             // not really an error to report
             ex.printStackTrace();
             Log.e(TAG, ex.getMessage(), ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
 
-        return action;
+        return actions;
     }
 
 
-    public int count() {
-        String[] args = new String[0];
+    /**
+     * Returns the number of queued actions, not counting dead letters.
+     *
+     * @return number of live actions
+     */
+    public synchronized int count() {
+        return (int) mCountStatement.simpleQueryForLong();
+    }
+
+
+    /**
+     * Encodes the specified properties for storage in the database. The
+     * format is a version byte, the number of entries, and then for each
+     * entry the length-prefixed UTF-8 bytes of its key and of its value.
+     *
+     * @param props to encode
+     * @return encoded properties
+     * @throws IOException on encoding error
+     */
+    static byte[] encodeParams(Properties props) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PARAMS_FORMAT_VERSION);
+        out.writeInt(props.size());
+        for (Map.Entry<Object, Object> entry : props.entrySet()) {
+            writeString(out, entry.getKey().toString());
+            writeString(out, entry.getValue().toString());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Decodes properties that were encoded with encodeParams.
+     *
+     * @param data to decode
+     * @return decoded properties
+     * @throws IOException when the data is not in a supported format
+     */
+    static Properties decodeParams(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != PARAMS_FORMAT_VERSION) {
+            throw new IOException("Unsupported action parameters format: " + version);
+        }
+        Properties props = new Properties();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            String value = readString(in);
+            props.put(key, value);
+        }
+        return props;
+    }
+
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
 
-        Cursor cursor = mDb.rawQuery(DATABASE_COUNT, args);
-        int count = cursor.getCount();
-        cursor.close();
 
-        return count;
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
     }
 
 }
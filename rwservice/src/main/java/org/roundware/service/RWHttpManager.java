@@ -8,6 +8,7 @@ import android.util.Log;
 
 import org.roundware.service.util.RWMultipartEntity;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
@@ -17,28 +18,46 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * General HTTP data transfer handler.
+ * 
+ * All requests are executed by a single shared HttpClient that uses a
+ * thread-safe pool of persistent connections, so repeated calls to the
+ * same Roundware server can reuse a connection instead of doing a new
+ * TCP (and TLS) handshake each time. The timeout specified for a call is
+ * applied to that request only. Call shutdown() to release the pool.
  */
 public class RWHttpManager {
 
@@ -48,13 +67,170 @@ public class RWHttpManager {
 
     private final static String POST_MIME_TYPE = "application/x-www-form-urlencoded";
 
+    // connection pool settings
+    private final static int MAX_TOTAL_CONNECTIONS = 8;
+    private final static int MAX_CONNECTIONS_PER_ROUTE = 4;
+    private final static int IDLE_CONNECTION_TIMEOUT_SEC = 30;
+    private final static int DEFAULT_TIMEOUT_SEC = 45;
+
+    // reading responses
+    private final static int READ_BUFFER_SIZE = 8192;
+    private final static int MAX_PRESIZE_LENGTH = 4 * 1024 * 1024;
+
+    // chunked upload protocol
+    private final static int SC_RESUME_INCOMPLETE = 308;
+    private final static String UPLOAD_OFFSET_PARAM = "upload_offset";
+    private final static String UPLOAD_TOTAL_SIZE_PARAM = "upload_total_size";
+
+    private static DefaultHttpClient sHttpClient;
+
+
+    /**
+     * Validators of a cached response, used to make a GET request
+     * conditional. When the server answers that the data has not been
+     * modified, notModified is set and no data is returned. Otherwise the
+     * validators are replaced by those of the new response.
+     */
+    public static class CacheValidators {
+        public String eTag;
+        public String lastModified;
+        public boolean notModified;
+
+        public CacheValidators(String eTag, String lastModified) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+
+    /**
+     * Callback for tracking the progress of a chunked upload.
+     */
+    public interface UploadProgressListener {
+        /**
+         * Called after the server acknowledged receiving the file up to
+         * the specified offset.
+         *
+         * @param offset number of bytes of the file stored by the server
+         */
+        void uploadAcknowledged(long offset);
+    }
+
+
+    /**
+     * Returns the shared HttpClient, creating it when needed. Expired and
+     * idle connections are evicted from its pool before it is returned.
+     * 
+     * @return shared HttpClient instance
+     */
+    private static synchronized HttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            HttpParams httpParams = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(httpParams, DEFAULT_TIMEOUT_SEC * 1000);
+            HttpConnectionParams.setSoTimeout(httpParams, DEFAULT_TIMEOUT_SEC * 1000);
+            HttpConnectionParams.setStaleCheckingEnabled(httpParams, true);
+            ConnManagerParams.setMaxTotalConnections(httpParams, MAX_TOTAL_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            ClientConnectionManager connManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+            sHttpClient = new DefaultHttpClient(connManager, httpParams);
+        } else {
+            ClientConnectionManager connManager = sHttpClient.getConnectionManager();
+            connManager.closeExpiredConnections();
+            connManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_SEC, TimeUnit.SECONDS);
+        }
+        return sHttpClient;
+    }
+
+
+    /**
+     * Closes all pooled connections of the shared HttpClient. A new client
+     * will be created when another request is made.
+     */
+    public static synchronized void shutdown() {
+        if (sHttpClient != null) {
+            sHttpClient.getConnectionManager().shutdown();
+            sHttpClient = null;
+        }
+    }
+
+
+    /**
+     * Sets the connection and socket timeouts for the specified request.
+     * 
+     * @param request to set timeouts for
+     * @param timeOutSec timeout in seconds
+     */
+    private static void setTimeOut(HttpRequestBase request, int timeOutSec) {
+        HttpParams requestParams = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(requestParams, timeOutSec * 1000);
+        HttpConnectionParams.setSoTimeout(requestParams, timeOutSec * 1000);
+    }
+
+
     
+    /**
+     * Reads the body of the response into the specified buffer, without
+     * line breaks. It is decoded in blocks, straight into the buffer, which
+     * is grown to the content length first when that is known. The content
+     * stream is always closed, which also releases the connection back to
+     * the pool.
+     * 
+     * @param response to read the body of
+     * @param sbResponse to append the body to
+     * @throws IOException on read error
+     */
+    private static void readResponse(HttpResponse response, StringBuffer sbResponse) throws IOException {
+        HttpEntity entity = response.getEntity();
+        long length = entity.getContentLength();
+        if ((length > 0) && (length < MAX_PRESIZE_LENGTH)) {
+            sbResponse.ensureCapacity(sbResponse.length() + (int) length);
+        }
+        String charset = EntityUtils.getContentCharSet(entity);
+        InputStream content = entity.getContent();
+        try {
+            Reader reader = new InputStreamReader(content, (charset != null) ? charset : HTTP.UTF_8);
+            char[] buffer = new char[READ_BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < count; i++) {
+                    char c = buffer[i];
+                    if ((c == '\n') || (c == '\r')) {
+                        sbResponse.append(buffer, start, i - start);
+                        start = i + 1;
+                    }
+                }
+                sbResponse.append(buffer, start, count - start);
+            }
+        } finally {
+            content.close(); // this will also release the connection
+        }
+    }
+
+
     public static String doGet(String page, Properties props, int timeOutSec) throws Exception {
-        HttpParams httpParams = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, timeOutSec * 1000);
-        HttpConnectionParams.setSoTimeout(httpParams, timeOutSec * 1000);
+        return doGet(page, props, timeOutSec, null);
+    }
+
 
-        HttpClient httpClient = new DefaultHttpClient(httpParams);
+    /**
+     * Performs a GET request, which is conditional when validators of the
+     * cached response are specified.
+     *
+     * @param page URL to request
+     * @param props to add as query parameters
+     * @param timeOutSec timeout in seconds
+     * @param validators of the cached response, updated from the response, can be null
+     * @return server response, or null when it has not been modified
+     * @throws Exception on I/O or HTTP error
+     */
+    public static String doGet(String page, Properties props, int timeOutSec, CacheValidators validators) throws Exception {
+        HttpClient httpClient = getHttpClient();
 
         StringBuilder uriBuilder = new StringBuilder(page);
 
@@ -79,10 +255,30 @@ public class RWHttpManager {
         if (D) { Log.d(TAG, "GET request: " + uriBuilder.toString(), null); }
 
         HttpGet request = new HttpGet(uriBuilder.toString());
+        setTimeOut(request, timeOutSec);
+        if (validators != null) {
+            validators.notModified = false;
+            if (validators.eTag != null) {
+                request.setHeader("If-None-Match", validators.eTag);
+            }
+            if (validators.lastModified != null) {
+                request.setHeader("If-Modified-Since", validators.lastModified);
+            }
+        }
         HttpResponse response = httpClient.execute(request);
 
         int status = response.getStatusLine().getStatusCode();
 
+        if ((status == HttpStatus.SC_NOT_MODIFIED) && (validators != null)) {
+            // no body, but release the connection
+            if (response.getEntity() != null) {
+                response.getEntity().consumeContent();
+            }
+            if (D) { Log.d(TAG, "GET response: not modified", null); }
+            validators.notModified = true;
+            return null;
+        }
+
         // we assume that the response body contains the error message
         if (status != HttpStatus.SC_OK) {
             ByteArrayOutputStream ostream = new ByteArrayOutputStream();
@@ -90,13 +286,12 @@ public class RWHttpManager {
             Log.e(TAG, "GET ERROR: " + ostream.toString(), null);
             throw new HttpException(String.valueOf(status));
         } else {
-            InputStream content = response.getEntity().getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sbResponse.append(line);
-            }
-            content.close(); // this will also close the connection
+            readResponse(response, sbResponse);
+        }
+
+        if (validators != null) {
+            validators.eTag = headerValue(response, "ETag");
+            validators.lastModified = headerValue(response, "Last-Modified");
         }
 
         if (D) { Log.d(TAG, "GET response: " + sbResponse.toString(), null); }
@@ -106,13 +301,10 @@ public class RWHttpManager {
 
 
     public static String doPost(String page, Properties props, int timeOutSec) throws Exception {
-        HttpParams httpParams = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, timeOutSec * 1000);
-        HttpConnectionParams.setSoTimeout(httpParams, timeOutSec * 1000);
-
-        HttpClient httpClient = new DefaultHttpClient(httpParams);
+        HttpClient httpClient = getHttpClient();
 
         HttpPost request = new HttpPost(page);
+        setTimeOut(request, timeOutSec);
         HttpResponse response;
         HttpEntity entity;
 
@@ -148,24 +340,18 @@ public class RWHttpManager {
             Log.e(TAG, ostream.toString(), null);
             throw new HttpException(String.valueOf(status));
         } else {
-            InputStream content = response.getEntity().getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader (content));
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                sbResponse.append(line);
-            }
-            content.close(); // this will also close the connection
+            readResponse(response, sbResponse);
 
             return sbResponse.toString();
         }
     }
     
     
-    public static String uploadFile(String page, Properties properties, String fileParam, String file, int timeOutSec) throws Exception {
-        if (D) { Log.d(TAG, "Starting upload of file: " + file, null); }
-
-        // build GET-like page name that includes the RW operation
+    /**
+     * Builds the GET-like page name for an upload that includes the RW
+     * operation.
+     */
+    private static String uploadUri(String page, Properties properties) throws IOException {
         Enumeration<Object> enumProps = properties.keys();
         StringBuilder uriBuilder = new StringBuilder(page).append('?');
         while (enumProps.hasMoreElements()) {
@@ -180,15 +366,16 @@ public class RWHttpManager {
         }
         
         if (D) { Log.d(TAG, "GET request: " + uriBuilder.toString(), null); }
+        return uriBuilder.toString();
+    }
 
-        HttpParams httpParams = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, timeOutSec * 1000);
-        HttpConnectionParams.setSoTimeout(httpParams, timeOutSec * 1000);
 
-        HttpClient httpClient = new DefaultHttpClient(httpParams);
-        HttpPost request = new HttpPost(uriBuilder.toString());
+    /**
+     * Creates a multipart entity with a string part for each of the
+     * specified properties.
+     */
+    private static RWMultipartEntity uploadEntity(Properties properties) {
         RWMultipartEntity entity = new RWMultipartEntity();
-
         Iterator<Map.Entry<Object, Object>> i = properties.entrySet().iterator();
         while (i.hasNext()) {
             Map.Entry<Object, Object> entry = (Map.Entry<Object, Object>) i.next();
@@ -197,6 +384,17 @@ public class RWHttpManager {
             entity.addPart(key, val);
             if (D) { Log.d(TAG, "Added StringBody multipart for: '" + key + "' = '" + val + "'", null); }
         }
+        return entity;
+    }
+
+
+    public static String uploadFile(String page, Properties properties, String fileParam, String file, int timeOutSec) throws Exception {
+        if (D) { Log.d(TAG, "Starting upload of file: " + file, null); }
+
+        HttpClient httpClient = getHttpClient();
+        HttpPost request = new HttpPost(uploadUri(page, properties));
+        setTimeOut(request, timeOutSec);
+        RWMultipartEntity entity = uploadEntity(properties);
 
         File upload = new File(file);
         entity.addPart(fileParam, upload);
@@ -217,13 +415,7 @@ public class RWHttpManager {
 
         if (st == HttpStatus.SC_OK) {
             StringBuffer sbResponse = new StringBuffer();
-            InputStream content = response.getEntity().getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sbResponse.append(line);
-            }
-            content.close(); // this will also close the connection
+            readResponse(response, sbResponse);
 
             if (D) {
                 Log.d(TAG, "Upload successful (HTTP code: " + st + ")", null);
@@ -232,11 +424,144 @@ public class RWHttpManager {
 
             return sbResponse.toString();
         } else {
+            // read the response body, this also releases the connection
             ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-            entity.writeTo(ostream);
+            response.getEntity().writeTo(ostream);
             Log.e(TAG, "Upload failed (http code: " + st + ")", null);
             Log.e(TAG, "Server response: " + ostream.toString(), null);
             throw new HttpException(String.valueOf(st));
         }
     }
+
+
+    /**
+     * Uploads a file in chunks of the specified size, starting at the given
+     * offset, so an upload interrupted by a network failure can be resumed
+     * later without sending the already acknowledged bytes again.
+     *
+     * Each chunk is sent as a multipart POST like uploadFile does, with the
+     * byte range of the chunk in a Content-Range header and in the
+     * upload_offset and upload_total_size parameters. The server identifies
+     * the upload by its envelope ID. For all but the last chunk it must
+     * answer with HTTP 308, optionally with a Range header with the bytes it
+     * has stored, e.g. "bytes=0-65535", from which the upload then
+     * continues, or with HTTP 200 and such a Range header. Any other
+     * response fails the upload, since a server that does not support
+     * chunks answers the first chunk with a plain 200 as if it were the
+     * whole file. The last chunk is answered like a regular upload.
+     *
+     * @param page URL to upload to
+     * @param properties to include as multipart string parts
+     * @param fileParam name of the file part
+     * @param file path of the file to upload
+     * @param startOffset number of bytes already acknowledged by the server
+     * @param chunkSize maximum number of bytes per chunk
+     * @param timeOutSec timeout in seconds for each chunk request
+     * @param listener notified after each acknowledged chunk, can be null
+     * @return server response for the last chunk
+     * @throws Exception on I/O or HTTP error
+     */
+    public static String uploadFileChunked(String page, Properties properties, String fileParam, String file,
+            long startOffset, int chunkSize, int timeOutSec, UploadProgressListener listener) throws Exception {
+        File upload = new File(file);
+        if (!upload.isFile()) {
+            throw new IOException("File to upload not found: " + upload.getAbsolutePath());
+        }
+
+        long total = upload.length();
+        long offset = Math.max(0, Math.min(startOffset, total));
+        String uri = uploadUri(page, properties);
+        HttpClient httpClient = getHttpClient();
+
+        if (D) { Log.d(TAG, "Starting chunked upload of file: " + file + " at offset " + offset + " of " + total, null); }
+
+        while (true) {
+            long length = Math.min(chunkSize, total - offset);
+            boolean last = (offset + length >= total);
+
+            HttpPost request = new HttpPost(uri);
+            setTimeOut(request, timeOutSec);
+            request.setHeader("Content-Range", (length > 0)
+                    ? "bytes " + offset + "-" + (offset + length - 1) + "/" + total
+                    : "bytes */" + total);
+
+            RWMultipartEntity entity = uploadEntity(properties);
+            entity.addPart(UPLOAD_OFFSET_PARAM, String.valueOf(offset));
+            entity.addPart(UPLOAD_TOTAL_SIZE_PARAM, String.valueOf(total));
+            entity.addPart(fileParam, upload, offset, length);
+            request.setEntity(entity);
+
+            HttpResponse response = httpClient.execute(request);
+            int st = response.getStatusLine().getStatusCode();
+            long acknowledged = acknowledgedOffset(response);
+            StringBuffer sbResponse = new StringBuffer();
+
+            if ((st == HttpStatus.SC_OK) && last) {
+                readResponse(response, sbResponse);
+                if (D) { Log.d(TAG, "Chunked upload completed, server response: " + sbResponse.toString(), null); }
+                if (listener != null) {
+                    listener.uploadAcknowledged(total);
+                }
+                return sbResponse.toString();
+            } else if ((st == SC_RESUME_INCOMPLETE) || ((st == HttpStatus.SC_OK) && (acknowledged >= 0))) {
+                if (acknowledged < 0) {
+                    acknowledged = offset + length;
+                }
+                if (response.getEntity() != null) {
+                    readResponse(response, sbResponse);
+                }
+                if (D) { Log.d(TAG, "Chunk acknowledged up to offset " + acknowledged, null); }
+                if (acknowledged <= offset) {
+                    // server did not store anything, avoid looping forever
+                    throw new HttpException(String.valueOf(st));
+                }
+                offset = Math.min(acknowledged, total);
+                if (listener != null) {
+                    listener.uploadAcknowledged(offset);
+                }
+            } else {
+                // error, or a plain 200 for a chunk that is not the last one
+                // read the response body, this also releases the connection
+                ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+                if (response.getEntity() != null) {
+                    response.getEntity().writeTo(ostream);
+                }
+                Log.e(TAG, "Chunk upload failed (http code: " + st + ", offset " + offset + ")", null);
+                Log.e(TAG, "Server response: " + ostream.toString(), null);
+                throw new HttpException(String.valueOf(st));
+            }
+        }
+    }
+
+
+    /**
+     * Returns the value of the first header with the specified name in the
+     * response, or null when there is none.
+     */
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return (header != null) ? header.getValue() : null;
+    }
+
+
+    /**
+     * Returns the offset up to which the server has stored the upload, as
+     * reported in the Range header of the response (e.g. "bytes=0-1023"
+     * means 1024 bytes), or -1 when there is no valid Range header.
+     */
+    private static long acknowledgedOffset(HttpResponse response) {
+        Header range = response.getFirstHeader("Range");
+        if (range != null) {
+            String value = range.getValue();
+            int dash = value.lastIndexOf('-');
+            if (dash >= 0) {
+                try {
+                    return Long.parseLong(value.substring(dash + 1).trim()) + 1;
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring invalid Range header: " + value);
+                }
+            }
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,245 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits an Icecast stream with interleaved icy metadata into the audio
+ * data and the metadata.
+ * Adapted from shoutcast protocol indicated at:
+ * http://www.smackfu.com/stuff/programming/shoutcast.html
+ *
+ * The demuxer works on the buffer the stream was read into. The audio
+ * byte ranges of that buffer are written straight to the output channel
+ * with one gathering write, instead of a read and write per range, and
+ * metadata blocks are collected in a fixed array that is reused for
+ * every block. The listener is only notified when the stream title (or,
+ * without a title, the metadata) differs from the previous block, so
+ * the repeated metadata of an unchanged stream costs no allocations.
+ */
+public class RWIcecastDemuxer {
+    private static final String TAG = RWIcecastDemuxer.class.getName();
+
+    // the metadata length byte counts blocks of 16 bytes
+    private static final int MAX_METADATA_SIZE = 255 * 16;
+    // maximum number of audio ranges written at once
+    private static final int MAX_RANGES = 64;
+    private static final byte[] TITLE_START = { 'S', 't', 'r', 'e', 'a', 'm', 'T', 'i', 't', 'l', 'e', '=', '\'' };
+    private static final byte[] TITLE_END = { '\'', ';' };
+
+    private final int metadataInterval;
+    private int audioRemaining;
+    private int metaRemaining;
+    private int metaLength;
+    private final byte[] metaData = new byte[MAX_METADATA_SIZE];
+
+    // views on the audio ranges of the buffer, for gathering writes
+    private final ByteBuffer[] ranges = new ByteBuffer[MAX_RANGES];
+    private ByteBuffer rangesBuffer;
+    private int pendingIndex;
+    private int pendingCount;
+
+    private final byte[] lastTitle = new byte[MAX_METADATA_SIZE];
+    private int lastTitleLength = -1;
+
+    private IcyMetaDataListener listener = null;
+
+    public RWIcecastDemuxer(int metadataInterval) {
+        this.metadataInterval = audioRemaining = metadataInterval;
+    }
+
+    public void setIcyMetaDataListener(IcyMetaDataListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Processes the stream data from the position to the limit of the
+     * buffer. Metadata is consumed, and the audio ranges in between are
+     * written to the output with a single gathering write. Returns false
+     * when the output does not accept all audio, e.g. a non-blocking
+     * channel with a full socket buffer. The remaining audio is then kept
+     * as pending, and this method should be called again when the output
+     * is writable. The buffer must not be changed until then.
+     *
+     * @param buffer with stream data, its position is advanced
+     * @param output for the audio data
+     * @return true when all data in the buffer has been written
+     * @throws IOException when writing to the output fails
+     */
+    public boolean demux(ByteBuffer buffer, GatheringByteChannel output) throws IOException {
+        while (true) {
+            if (pendingIndex < pendingCount) {
+                output.write(ranges, pendingIndex, pendingCount - pendingIndex);
+                while (pendingIndex < pendingCount && !ranges[pendingIndex].hasRemaining()) {
+                    pendingIndex++;
+                }
+                if (pendingIndex < pendingCount) {
+                    return false;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                return true;
+            }
+            scan(buffer);
+        }
+    }
+
+    /**
+     * Returns true when audio of the last processed buffer has not been
+     * written to the output yet.
+     */
+    public boolean hasPendingAudio() {
+        return pendingIndex < pendingCount;
+    }
+
+    /**
+     * Consumes the metadata in the buffer and sets up the views on the
+     * audio ranges in between, until the buffer is done or all views are
+     * used.
+     */
+    private void scan(ByteBuffer buffer) {
+        if (rangesBuffer != buffer) {
+            // views share the content of the buffer, and are created only
+            // once for the buffer that is used
+            for (int i = 0; i < ranges.length; i++) {
+                ranges[i] = buffer.duplicate();
+            }
+            rangesBuffer = buffer;
+        }
+        pendingIndex = 0;
+        pendingCount = 0;
+
+        while (buffer.hasRemaining() && pendingCount < ranges.length) {
+            if (metaRemaining > 0) {
+                int n = Math.min(metaRemaining, buffer.remaining());
+                buffer.get(metaData, metaLength, n);
+                metaLength += n;
+                metaRemaining -= n;
+                if (metaRemaining == 0) {
+                    examineMetaData();
+                }
+            } else if (audioRemaining == 0) {
+                metaRemaining = (buffer.get() & 0xff) * 16;
+                metaLength = 0;
+                audioRemaining = metadataInterval;
+            } else {
+                int start = buffer.position();
+                int n = Math.min(audioRemaining, buffer.remaining());
+                ByteBuffer range = ranges[pendingCount++];
+                range.clear();
+                range.position(start);
+                range.limit(start + n);
+                buffer.position(start + n);
+                audioRemaining -= n;
+            }
+        }
+    }
+
+    private void examineMetaData() {
+        // metadata is padded with zeros to a multiple of 16 bytes
+        int length = metaLength;
+        while (length > 0 && metaData[length - 1] == 0) {
+            length--;
+        }
+
+        int titleStart = indexOf(metaData, length, TITLE_START, 0);
+        int titleEnd = -1;
+        if (titleStart >= 0) {
+            titleStart += TITLE_START.length;
+            titleEnd = indexOf(metaData, length, TITLE_END, titleStart);
+        }
+        if (titleStart < 0 || titleEnd < 0) {
+            // no title, compare all metadata instead
+            titleStart = 0;
+            titleEnd = length;
+        }
+
+        int titleLength = titleEnd - titleStart;
+        if (titleLength == lastTitleLength && regionEquals(metaData, titleStart, lastTitle, titleLength)) {
+            return;
+        }
+        System.arraycopy(metaData, titleStart, lastTitle, 0, titleLength);
+        lastTitleLength = titleLength;
+
+        try {
+            String metadata = new String(metaData, 0, length, "UTF-8");
+            Log.v(TAG, "metadata: " + metadata);
+
+            // notify listener
+            if (listener != null) {
+                listener.OnMetaDataReceived(metadata);
+            }
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Error decoding metadata", e);
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern, int from) {
+        for (int i = from; i + pattern.length <= length; i++) {
+            if (regionEquals(data, i, pattern, pattern.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] data, int offset, byte[] other, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Splits a metadata value.
+     *
+     * Often a metadata value is formated like so: "Aritst - Title"
+     * @param meta
+     * @return
+     */
+    public static String[] splitMetaValue(String meta){
+        return meta.split("\\s+-\\s+");
+    }
+
+    /**
+     * Parse meta data into mapped name/value pairs
+     * http://uniqueculture.net/2010/11/stream-metadata-plain-java/
+     * @param metaString
+     * @return
+     */
+    public static Map<String, String> parseMetadata(String metaString) {
+        Map<String, String> metadata = new HashMap<String, String>();
+        String[] metaParts = metaString.split(";");
+        Pattern p = Pattern.compile("^([a-zA-Z]+)=\\'([^\\']*)\\'$");
+        Matcher m;
+        for (int i = 0; i < metaParts.length; i++) {
+            m = p.matcher(metaParts[i]);
+            if (m.find()) {
+                metadata.put(m.group(1), m.group(2));
+            }
+        }
+
+        return metadata;
+    }
+
+    public interface IcyMetaDataListener{
+        public void OnMetaDataReceived(String metaData);
+    }
+
+}
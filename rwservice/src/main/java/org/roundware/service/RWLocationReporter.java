@@ -0,0 +1,227 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.location.Location;
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * Decides when location updates are reported to the server. Updates are
+ * coalesced: the first update starts a window of a configurable length,
+ * and at its end only the newest update received is reported. The window
+ * is timed on the thread of the specified handler, and the report is sent
+ * in the interactive lane of the action executor, so that a slow server
+ * call does not hold up that thread. It is not reported when it is closer
+ * than the minimum distance to the last reported location, so that e.g.
+ * switching between the network and GPS location providers does not
+ * cause a burst of calls with the same position.
+ */
+public class RWLocationReporter {
+
+    // debugging
+    private final static String TAG = "RWLocationReporter";
+    private final static boolean D = false;
+
+    /**
+     * Reports a location to the server.
+     */
+    public interface Sender {
+        /**
+         * @param location to report
+         * @return true if the location has been reported
+         */
+        public boolean send(Location location);
+    }
+
+    private final Handler mHandler;
+    private final RWActionExecutor mExecutor;
+    private final Sender mSender;
+    private long mWindowMsec;
+    private double mMinDistanceMeter;
+
+    private Location mPending;
+    private Location mLastSent;
+
+    // statistics
+    private int mReceivedCount;
+    private int mCoalescedCount;
+    private int mSkippedCount;
+    private int mSentCount;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+
+    /**
+     * Creates an instance that times the coalescing window on the thread of
+     * the handler and reports locations with the specified sender in the
+     * interactive lane of the executor.
+     *
+     * @param handler to time the window on
+     * @param executor to report locations on
+     * @param sender to report locations with
+     * @param windowMsec length of the window updates are coalesced in
+     * @param minDistanceMeter minimum distance to the last location reported
+     */
+    public RWLocationReporter(Handler handler, RWActionExecutor executor, Sender sender, long windowMsec,
+            double minDistanceMeter) {
+        mHandler = handler;
+        mExecutor = executor;
+        mSender = sender;
+        mWindowMsec = windowMsec;
+        mMinDistanceMeter = minDistanceMeter;
+    }
+
+
+    /**
+     * Sets the length of the window updates are coalesced in, and the
+     * minimum distance to the last location reported for a new location
+     * to be reported.
+     *
+     * @param windowMsec length of the window, 0 to report without delay
+     * @param minDistanceMeter minimum distance, 0 to report every location
+     */
+    public synchronized void setLimits(long windowMsec, double minDistanceMeter) {
+        mWindowMsec = windowMsec;
+        mMinDistanceMeter = minDistanceMeter;
+    }
+
+
+    /**
+     * Handles a new location. It replaces a location that has not been
+     * reported yet.
+     *
+     * @param location to report
+     */
+    public synchronized void update(Location location) {
+        if (location == null) {
+            return;
+        }
+        mReceivedCount++;
+        if (mPending != null) {
+            mCoalescedCount++;
+            mPending = location;
+            return;
+        }
+        mPending = location;
+        mHandler.postDelayed(mFlushTask, Math.max(0, mWindowMsec));
+    }
+
+
+    /**
+     * Reports the pending location, if any, without waiting for the end
+     * of the window. It is handed to the action executor, it is skipped
+     * when the interactive lane is full.
+     */
+    public void flush() {
+        final Location location;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushTask);
+            location = mPending;
+            mPending = null;
+            if (location == null) {
+                return;
+            }
+            if ((mLastSent != null) && (mLastSent.distanceTo(location) < mMinDistanceMeter)) {
+                mSkippedCount++;
+                if (D) { Log.d(TAG, "Skipped location within " + mMinDistanceMeter + " m, " + getStatistics()); }
+                return;
+            }
+        }
+
+        RWActionExecutor.Task task = mExecutor.submit(RWActionExecutor.Lane.INTERACTIVE, new Runnable() {
+            @Override
+            public void run() {
+                send(location);
+            }
+        });
+        if (task == null) {
+            synchronized (this) {
+                mSkippedCount++;
+            }
+        }
+    }
+
+
+    /**
+     * Reports the location with the sender and counts the result.
+     *
+     * @param location to report
+     */
+    private void send(Location location) {
+        boolean sent = mSender.send(location);
+        synchronized (this) {
+            if (sent) {
+                mSentCount++;
+                mLastSent = location;
+            } else {
+                mSkippedCount++;
+            }
+            if (D) { Log.d(TAG, (sent ? "Sent location, " : "Location not sent, ") + getStatistics()); }
+        }
+    }
+
+
+    /**
+     * Drops the pending location and forgets the last one reported, e.g.
+     * when a new session is started.
+     */
+    public synchronized void reset() {
+        mHandler.removeCallbacks(mFlushTask);
+        mPending = null;
+        mLastSent = null;
+    }
+
+
+    /**
+     * Returns the number of locations received with update().
+     */
+    public synchronized int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+
+    /**
+     * Returns the number of locations replaced by a newer one before they
+     * were reported.
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+
+    /**
+     * Returns the number of locations not reported because they were too
+     * close to the last location reported, or could not be sent.
+     */
+    public synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+
+    /**
+     * Returns the number of locations reported.
+     */
+    public synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+
+    /**
+     * Returns a summary of the counters, e.g. for logging.
+     *
+     * @return counters summary
+     */
+    public synchronized String getStatistics() {
+        return "received " + mReceivedCount + ", coalesced " + mCoalescedCount
+                + ", skipped " + mSkippedCount + ", sent " + mSentCount;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * Collects log events in memory and sends them to the server in batches,
+ * on the thread of the specified handler. A batch is sent when the number
+ * of buffered events reaches the batch size, or when the flush interval
+ * has passed since the first event was buffered.
+ *
+ * Events can be sampled per event type, e.g. a rate of 0.1 keeps one in
+ * ten events of that type. An event of a deduplicated type is dropped when
+ * it is the same as the event before it, e.g. a second start_listen
+ * without a stop_listen in between. Events that could not be sent, and
+ * events still buffered when the service stops, are spilled to the
+ * persistent action queue so that they are not lost.
+ */
+public class RWLogEventBuffer {
+
+    // debugging
+    private final static String TAG = "RWLogEventBuffer";
+    private final static boolean D = false;
+
+    /**
+     * Delivers buffered log events.
+     */
+    public interface Sender {
+        /**
+         * @param action log event to send to the server now
+         * @return true if the log event has been sent
+         */
+        public boolean send(RWAction action);
+
+        /**
+         * Places the log event in the persistent queue. It must stay there
+         * until it has been sent, also while there is no connectivity.
+         *
+         * @param action log event to place in the persistent queue
+         */
+        public void spill(RWAction action);
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final Random mRandom = new Random();
+    private int mBatchSize;
+    private long mFlushIntervalMsec;
+    private Map<String, Float> mSamplingRates = new HashMap<String, Float>();
+    private final Set<String> mDedupEventTypes = new HashSet<String>();
+
+    private final List<RWAction> mBuffer = new ArrayList<RWAction>();
+    private String mLastEventKey;
+
+    // statistics
+    private int mReceivedCount;
+    private int mDuplicateCount;
+    private int mSampledOutCount;
+    private int mSentCount;
+    private int mSpilledCount;
+    private int mBatchCount;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+
+    /**
+     * Creates an instance that sends log events with the specified sender
+     * on the thread of the handler.
+     *
+     * @param handler to send log events on
+     * @param sender to send log events with
+     * @param batchSize number of buffered events that starts a flush
+     * @param flushIntervalMsec longest time an event is buffered
+     * @param dedupEventTypes event types of which back-to-back duplicates are dropped
+     */
+    public RWLogEventBuffer(Handler handler, Sender sender, int batchSize, long flushIntervalMsec,
+            String... dedupEventTypes) {
+        mHandler = handler;
+        mSender = sender;
+        mBatchSize = batchSize;
+        mFlushIntervalMsec = flushIntervalMsec;
+        Collections.addAll(mDedupEventTypes, dedupEventTypes);
+    }
+
+
+    /**
+     * Sets the number of buffered events that starts a flush, and the
+     * longest time an event is buffered.
+     *
+     * @param batchSize number of events, 1 to send every event directly
+     * @param flushIntervalMsec flush interval
+     */
+    public synchronized void setLimits(int batchSize, long flushIntervalMsec) {
+        mBatchSize = batchSize;
+        mFlushIntervalMsec = flushIntervalMsec;
+    }
+
+
+    /**
+     * Sets the sampling rates per event type, between 0 (drop all) and 1
+     * (keep all). Event types without a rate are all kept.
+     *
+     * @param samplingRates rate for each event type
+     */
+    public synchronized void setSamplingRates(Map<String, Float> samplingRates) {
+        mSamplingRates = new HashMap<String, Float>(samplingRates);
+    }
+
+
+    /**
+     * Adds a log event to the buffer, unless it is a duplicate of the
+     * previous event or it is sampled out.
+     *
+     * @param eventType of the log event
+     * @param data of the log event, may be null
+     * @param action to send the log event with
+     * @return true if the event has been buffered
+     */
+    public synchronized boolean add(String eventType, String data, RWAction action) {
+        mReceivedCount++;
+        String key = eventType + '\n' + data;
+        boolean duplicate = mDedupEventTypes.contains(eventType) && key.equals(mLastEventKey);
+        mLastEventKey = key;
+        if (duplicate) {
+            mDuplicateCount++;
+            if (D) { Log.d(TAG, "Dropped duplicate " + eventType + " event, " + getStatistics()); }
+            return false;
+        }
+
+        Float rate = mSamplingRates.get(eventType);
+        if ((rate != null) && (mRandom.nextFloat() >= rate)) {
+            mSampledOutCount++;
+            return false;
+        }
+
+        mBuffer.add(action);
+        if (mBuffer.size() >= mBatchSize) {
+            mHandler.removeCallbacks(mFlushTask);
+            mHandler.post(mFlushTask);
+        } else if (mBuffer.size() == 1) {
+            mHandler.postDelayed(mFlushTask, Math.max(0, mFlushIntervalMsec));
+        }
+        return true;
+    }
+
+
+    /**
+     * Sends all buffered events. When one cannot be sent it and the rest
+     * of the batch are spilled to the persistent queue.
+     */
+    public void flush() {
+        List<RWAction> batch;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushTask);
+            if (mBuffer.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<RWAction>(mBuffer);
+            mBuffer.clear();
+            mBatchCount++;
+        }
+
+        int sent = 0;
+        while ((sent < batch.size()) && mSender.send(batch.get(sent))) {
+            sent++;
+        }
+        for (int i = sent; i < batch.size(); i++) {
+            mSender.spill(batch.get(i));
+        }
+
+        synchronized (this) {
+            mSentCount += sent;
+            mSpilledCount += batch.size() - sent;
+            if (D) { Log.d(TAG, "Flushed " + batch.size() + " events, " + getStatistics()); }
+        }
+    }
+
+
+    /**
+     * Moves all buffered events to the persistent queue, e.g. when the
+     * service stops, and forgets the last event for deduplication.
+     */
+    public void spill() {
+        List<RWAction> buffered;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushTask);
+            buffered = new ArrayList<RWAction>(mBuffer);
+            mBuffer.clear();
+            mLastEventKey = null;
+            mSpilledCount += buffered.size();
+        }
+        for (RWAction action : buffered) {
+            mSender.spill(action);
+        }
+    }
+
+
+    /**
+     * Returns the number of events waiting to be sent.
+     */
+    public synchronized int getBufferedCount() {
+        return mBuffer.size();
+    }
+
+
+    /**
+     * Returns the number of events received with add().
+     */
+    public synchronized int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+
+    /**
+     * Returns the number of events sent to the server.
+     */
+    public synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+
+    /**
+     * Returns a summary of the counters, e.g. for logging.
+     *
+     * @return counters summary
+     */
+    public synchronized String getStatistics() {
+        return "received " + mReceivedCount + ", duplicates " + mDuplicateCount + ", sampled out "
+                + mSampledOutCount + ", sent " + mSentCount + " in " + mBatchCount + " batches, spilled "
+                + mSpilledCount + ", buffered " + mBuffer.size();
+    }
+}
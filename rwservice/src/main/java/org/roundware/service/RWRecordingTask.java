@@ -11,11 +11,14 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.util.Log;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import org.roundware.service.util.RWAudioEncoder;
+import org.roundware.service.util.RWAudioRingBuffer;
+import org.roundware.service.util.RWLevelAnalyzer;
+import org.roundware.service.util.RWWavWriter;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Locale;
 
 /**
  * Asynchronous task that handles creating an audio recording, suitable for
@@ -32,10 +35,11 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
     private final static boolean D = false;
 
     // settings for creating an audio recording
-    private static final String RECORDING_FILE_NAME = "rwaudio.wav";
+    private static final String RECORDING_FILE_BASENAME = "rwaudio.";
     private static final int RECORDING_EVENT_INTERVAL_MSEC = 100; // 0.1 sec between updates
     private static final int RECORDING_SAMPLE_RATE = 22050; // 44100, 22050, 11025
     private static final int EMULATOR_SAMPLE_RATE = 8000; // leave at 8K, currently something else crashes the app in the emulator
+    private static final int RECORDING_WRITE_BLOCKS = 32; // recording buffers that fit in the ring buffer
 
     // fields
     private RWService mRwServiceBinder;
@@ -43,7 +47,8 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
     private boolean mIsRecording = false;
     private String mTempDirName = null;
     private String mScratchFileName = null;
-    private long mLastRecordingEventMsec = 0;
+    private String mFormat = RWAudioEncoder.FORMAT_WAV;
+    private boolean mTrimSilence = false;
     private StateListener mListener;
 
 
@@ -70,12 +75,14 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
          * lengthy to prevent the device from become unresponsive. It can
          * be used to update a UI, in this case make sure the updating is
          * done in the UI thread since the callback is made from a background
-         * task.
+         * thread. This is not the recording thread, so the callback does
+         * not delay recording.
          *
          * @param timeStampMsec of recording progress
-         * @param samples latest 10 audio samples made
+         * @param rms level of the audio since the previous callback, 0 to 1
+         * @param peak level of the audio since the previous callback, 0 to 1
          */
-        public void recording(long timeStampMsec, short [] samples);
+        public void recording(long timeStampMsec, float rms, float peak);
 
         /**
          * Callback when audio recording has ended. Methods handling the
@@ -105,7 +112,19 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
         } else {
             mTempDirName = tempDirName;
         }
-        mScratchFileName = mTempDirName + RECORDING_FILE_NAME;
+
+        // recording format and silence trimming from the configuration, the
+        // extension matches the format
+        if (mRwServiceBinder != null) {
+            mTrimSilence = mRwServiceBinder.getConfiguration().isTrimSilence();
+            String format = mRwServiceBinder.getConfiguration().getRecordingFormat();
+            if (RWAudioEncoder.isSupportedFormat(format)) {
+                mFormat = format.toLowerCase(Locale.US);
+            } else {
+                Log.w(TAG, "Unsupported recording format '" + format + "', using " + mFormat);
+            }
+        }
+        mScratchFileName = mTempDirName + RECORDING_FILE_BASENAME + mFormat;
 
         // ensure scratch folder exists
         File scratch = new File(mTempDirName);
@@ -125,6 +144,16 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
     }
 
     
+    /**
+     * Gets the format of the audio recording file.
+     *
+     * @return RWAudioEncoder.FORMAT_FLAC or RWAudioEncoder.FORMAT_WAV
+     */
+    public String getRecordingFormat() {
+        return mFormat;
+    }
+
+
     /**
      * Gets the name of the file with the audio recording, if available.
      * 
@@ -202,9 +231,31 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
         AudioRecord recordInstance = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate, channelConfiguration, audioEncoding, bufferSize);
 
         byte[] data = new byte[bufferSize];
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-        short[] samples = new short[10];
-        int offset;
+
+        // captured audio goes into a ring buffer, from which it is encoded
+        // and written to the file, and analysed for the level callbacks,
+        // each on its own thread
+        RWAudioRingBuffer ringBuffer = new RWAudioRingBuffer(bufferSize * RECORDING_WRITE_BLOCKS);
+        String fileName = mScratchFileName;
+        RWAudioEncoder writer;
+        try {
+            writer = RWAudioEncoder.create(mFormat, new File(fileName), mSampleRate, ringBuffer, bufferSize, mTrimSilence);
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating audio file: " + e.getMessage(), e);
+            recordInstance.release();
+            mIsRecording = false;
+            return null;
+        }
+
+        RWLevelAnalyzer analyzer = null;
+        if (mListener != null) {
+            analyzer = new RWLevelAnalyzer(ringBuffer, RECORDING_EVENT_INTERVAL_MSEC, new RWLevelAnalyzer.LevelListener() {
+                @Override
+                public void level(long timeStampMsec, float rms, float peak) {
+                    mListener.recording(timeStampMsec, rms, peak);
+                }
+            });
+        }
 
         recordInstance.startRecording();
         if (mListener != null) {
@@ -212,82 +263,47 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
             mListener.recordingStarted(currentMillis);
         }
 
+        boolean saved = true;
         try  {
             while (mIsRecording) {
-                recordInstance.read(data, 0, bufferSize);
-                bytesOut.write(data);
-
-                offset = 0;
-                for(int i = 0; i < 10; i++) {
-                    samples[i] = (short) (((data[offset+1] << 8)) | ((data[offset] & 0xff)));
-                    offset += 2;
+                int n = recordInstance.read(data, 0, bufferSize);
+                if (n < 0) {
+                    Log.e(TAG, "Error reading audio data: " + n);
+                    break;
+                } else if (n == 0) {
+                    continue;
                 }
-
-                if (mListener != null) {
-                    long currentMillis = System.currentTimeMillis();
-                    if ((currentMillis - mLastRecordingEventMsec) > RECORDING_EVENT_INTERVAL_MSEC) {
-                        mLastRecordingEventMsec = currentMillis;
-                        mListener.recording(currentMillis, samples);
-                    }
+                ringBuffer.write(data, 0, n);
+                if (writer.hasFailed()) {
+                    break;
                 }
             }
         } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        } catch (OutOfMemoryError om) {
-            Log.e(TAG, "Record - Out of memory", om);
+            Log.e(TAG, "Error saving audio file: " + e.getMessage(), e);
+            saved = false;
         }
 
         recordInstance.stop();
         recordInstance.release();
-        save(mTempDirName + RECORDING_FILE_NAME, bytesOut);
-
+        ringBuffer.close();
+        if (analyzer != null) {
+            analyzer.stop();
+        }
+        try {
+            writer.close();
+            if (D) { Log.d(TAG, "Recording saved, trimmed leading samples: " + writer.getTrimmedSampleCount() + ", encoded samples: " + (writer.getDataLength() / 2)); }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving audio file: " + e.getMessage(), e);
+            saved = false;
+        }
+        mIsRecording = false;
 
         if (mListener != null) {
             long currentMillis = System.currentTimeMillis();
             mListener.recordingStopped(currentMillis);
         }
 
-        return mTempDirName + RECORDING_FILE_NAME;
-    }
-
-
-    /**
-     * Saves the supplied byte stream as a WAV file.
-     *  @param name The desired filename
-     * @param bytesOut
-     */
-    public void save(String name, ByteArrayOutputStream bytesOut) {
-        File file = new File(name);
-        if (file.exists()) {
-            file.delete();
-        }
-        BufferedOutputStream fileOut;
-        try{
-            file.createNewFile();
-            fileOut = new BufferedOutputStream(new FileOutputStream(file));
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving WAV file: " + e.getMessage(), e);
-            return;
-        }
-
-        try {
-            byte[] header = createHeader(bytesOut.size());
-            fileOut.write(header);
-            bytesOut.writeTo(fileOut);
-            fileOut.flush();
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error saving WAV file: " + e.getMessage(), e);
-        }finally {
-            if(fileOut != null) {
-                try {
-                    fileOut.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error saving WAV file: " + e.getMessage(), e);
-                }
-            }
-            System.gc();
-        }
+        return saved ? fileName : null;
     }
 
 
@@ -299,33 +315,7 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
      * @return The header, ready to be written to a file
      */
     public byte[] createHeader(int len) {
-        int totalLength = len + 4 + 24 + 8;
-        byte[] lengthData = intToBytes(totalLength);
-        byte[] samplesLength = intToBytes(len);
-        byte[] bitRate = intToBytes(mSampleRate);
-        byte[] bytesPerSecond = intToBytes(mSampleRate*2);
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        try {
-            out.write(new byte[] {'R','I','F','F'});
-            out.write(lengthData);
-            out.write(new byte[] {'W','A','V','E'});
-
-            out.write(new byte[] {'f','m','t',' '});
-            out.write(new byte[] {0x10,0x00,0x00,0x00}); // 16 bit chunks
-            out.write(new byte[] {0x01,0x00,0x01,0x00}); // mono
-            out.write(bitRate); // sampling rate
-            out.write(bytesPerSecond); // bytes per second
-            out.write(new byte[] {0x02,0x00,0x10,0x00}); // 2 bytes per sample
-
-            out.write(new byte[] {'d','a','t','a'});
-            out.write(samplesLength);
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving WAV file: " + e.getMessage(), e);
-        }
-
-        return out.toByteArray();
+        return RWWavWriter.createHeader(mSampleRate, len);
     }
 
 
@@ -336,11 +326,7 @@ public class RWRecordingTask extends AsyncTask<Void, Void, String> {
      * @return The bytes representing this integer
      */
     public byte[] intToBytes(int in) {
-        byte[] bytes = new byte[4];
-        for (int i=0; i<4; i++) {
-            bytes[i] = (byte) ((in >>> i*8) & 0xFF);
-        }
-        return bytes;
+        return RWWavWriter.intToBytes(in);
     }
 
 
@@ -15,6 +15,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
 import android.location.Location;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
@@ -26,38 +27,48 @@ import android.net.wifi.WifiManager.WifiLock;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.StrictMode;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
+import android.util.JsonToken;
 import android.util.Log;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpStatus;
-import org.json.JSONArray;
+import org.apache.http.NoHttpResponseException;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
+import org.roundware.service.util.RWContentCache;
+import org.roundware.service.util.RWJsonHelper;
 import org.roundware.service.util.RWList;
+import org.roundware.service.util.RWResponseCache;
 import org.roundware.service.util.RWSharedPrefsHelper;
 import org.roundware.service.util.RWUriHelper;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-
-// import android.os.StrictMode;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Service for background playback of Roundware sound stream and handle the
@@ -73,7 +84,7 @@ import java.util.TimerTask;
  * 
  * @author Rob Knapen
  */
-@SuppressLint("DefaultLocale") public class RWService extends Service implements Observer, RWIcecastInputStream.IcyMetaDataListener {
+@SuppressLint("DefaultLocale") public class RWService extends Service implements Observer, RWIcecastDemuxer.IcyMetaDataListener {
     
     // debugging
     private final static String TAG = "RWService";
@@ -83,6 +94,38 @@ import java.util.TimerTask;
     private final static int NOTIFICATION_ID = 10001;
     private final static int ERROR_RETRY_COUNT = 3;
 
+    // queue draining, max actions fetched per query and worker threads
+    private final static int QUEUE_DRAIN_BATCH_SIZE = 10;
+    private final static int QUEUE_DRAIN_POOL_SIZE = 3;
+
+    // worker threads for actions performed immediately from the main thread
+    private final static int ACTION_POOL_SIZE = 3;
+
+    // queue retry back off after failures, relative jitter and upper limit
+    private final static float QUEUE_RETRY_JITTER = 0.25f;
+    private final static long QUEUE_RETRY_MAX_MSEC = 10 * 60 * 1000;
+
+    // response cache, version of the cached data and suffixes of its keys
+    private final static int JSON_CACHE_VERSION = 1;
+    private final static String JSON_CACHE_SUFFIX = ".json";
+    private final static String TAGS_SNAPSHOT_SUFFIX = ".snapshot";
+    private final static String VALIDATORS_SUFFIX = ".validators";
+
+    // folder for the content files, replaced as a whole by each download
+    private final static String CONTENT_FILES_DIR_NAME = "content";
+
+    // content file cache limits, and content files read in advance
+    private final static int CONTENT_CACHE_MAX_CHARS = 1024 * 1024;
+    private final static int CONTENT_CACHE_MAX_PAGES = 8;
+    private final static String CONTENT_PAGE_SUFFIX = ".html";
+
+    // session startup stages
+    private final static String STAGE_CONFIGURATION = "configuration";
+    private final static String STAGE_CONTENT = "content";
+    private final static String STAGE_TAGS = "tags";
+    private final static String STAGE_STREAM = "stream";
+    private final static String STAGE_ON_LINE = "on_line";
+
     /**
      * Connection states of the Roundware session.
      */
@@ -127,8 +170,18 @@ import java.util.TimerTask;
 
     private RWStreamProxy mProxy;
     private WifiLock mWifiLock;
-    private Timer mQueueTimer;
-    private long mLastRequestMsec;
+    private HandlerThread mQueueThread;
+    private Handler mQueueHandler;
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+    private volatile boolean mQueueProcessing = false;
+    private long mQueueRetryDelayMsec = 0;
+    private final Random mQueueRetryRandom = new Random();
+    private ExecutorService mQueueDrainPool;
+    private RWActionExecutor mActionExecutor;
+    private long mDrainedActionCount = 0;
+    private float mDrainedActionsPerSec = 0;
+    private volatile long mLastRequestMsec;
     private long mLastStateChangeMsec;
     
     private PendingIntent mNotificationPendingIntent;
@@ -140,6 +193,7 @@ import java.util.TimerTask;
     private Class<?> mNotificationActivity = null;
 
     private String mContentFilesLocalDir = null;
+    private final RWContentCache mContentCache = new RWContentCache(CONTENT_CACHE_MAX_CHARS, CONTENT_CACHE_MAX_PAGES);
     private boolean mAlwaysDownloadContent = false;
     private boolean mUseExternalStorageForContent = false;
     
@@ -160,6 +214,9 @@ import java.util.TimerTask;
     private RWConfiguration configuration;
     private RWTags tags;
     private int boundActivities = 0;
+    private RWStartupPipeline mStartup;
+    private RWLocationReporter mLocationReporter;
+    private RWLogEventBuffer mLogEventBuffer;
 
 
     //TODO support telephony interruption support?
@@ -180,75 +237,251 @@ import java.util.TimerTask;
      * the server. When the request is successful it will also start the timer
      * that controls the queue processing and sending idle pings when playing
      * a stream and there is no other activity. 
+     * 
+     * The first time the cached configuration and tags are applied and
+     * broadcasted right away, with the EXTRA_REVALIDATING extra, so that
+     * the app does not have to wait for the server. The configuration is
+     * always retrieved from the server, since it includes a new session ID.
      */
     void retrieveConfiguration(final Context context, final String deviceId, final String projectId) {
         debugLog("Retrieving configuration for project");
-        perform(mActionFactory.createRetrieveProjectConfigurationAction(deviceId, projectId), true,
-                new ServicePerformListener() {
+        final RWAction action = mActionFactory.createRetrieveProjectConfigurationAction(deviceId, projectId);
+        final ServicePerformListener listener = new ServicePerformListener() {
 
-                    @Override
-                    public void onPerformComplete(String result) {
-                        debugLog("Retrieve project configuration result: " + result);
-
-                        // try to use cache when no server data received
-                        boolean usingCache = false;
-                        if (result == null) {
-                            result = RWSharedPrefsHelper.loadJSONArray(context, RW.PROJECT_CONFIG_CACHE, projectId);
-                            usingCache = true;
-                        } else {
-                            // cache current data
-                            RWSharedPrefsHelper.saveJSONArray(context, RW.PROJECT_CONFIG_CACHE, projectId, result);
-                        }
+            @Override
+            public void onPerformComplete(String result) {
+                debugLog("Retrieve project configuration result: " + result);
 
-                        if (result == null) {
-                            Log.i(TAG, "Could not retrieve configuration data from server and no cached data available!");
-                            broadcast(RW.NO_CONFIGURATION);
-                        } else {
-                            configuration.assignFromJsonServerResponse(result, usingCache);
-                            if (usingCache) {
-                                configuration.setSessionId("-1");
-                            }
-                            broadcast(RW.CONFIGURATION_LOADED);
-                        }
+                // try to use cache when no server data received
+                boolean usingCache = false;
+                RWResponseCache cache = new RWResponseCache(context, RW.PROJECT_CONFIG_CACHE);
+                if (result == null) {
+                    if (configuration.getDataSource() == RWConfiguration.FROM_CACHE) {
+                        // cached data has already been applied
+                        broadcast(RW.CONFIGURATION_LOADED);
+                        return;
                     }
+                    result = loadCachedJson(context, cache, RW.PROJECT_CONFIG_CACHE, projectId, JsonToken.BEGIN_ARRAY);
+                    usingCache = true;
+                } else {
+                    // cache current data
+                    saveCachedJson(cache, projectId, result, JsonToken.BEGIN_ARRAY);
                 }
-        );
+
+                if (result == null) {
+                    Log.i(TAG, "Could not retrieve configuration data from server and no cached data available!");
+                    broadcast(RW.NO_CONFIGURATION);
+                } else {
+                    configuration.assignFromJsonServerResponse(result, usingCache);
+                    if (usingCache) {
+                        configuration.setSessionId("-1");
+                    }
+                    broadcast(RW.CONFIGURATION_LOADED);
+                }
+            }
+        };
+
+        if (configuration.getDataSource() == RWConfiguration.DEFAULTS) {
+            RWActionExecutor.Task task = mActionExecutor.submit(RWActionExecutor.Lane.INTERACTIVE, new Runnable() {
+                @Override
+                public void run() {
+                    applyCachedProjectData(context, projectId);
+                    perform(action, true, listener);
+                }
+            });
+            if (task == null) {
+                broadcast(RW.NO_CONFIGURATION);
+            }
+        } else {
+            perform(action, true, listener);
+        }
     }
 
+
     /**
-     * Retrieves the configuration settings for a project from
-     * the server. When the request is successful it will also start the timer
-     * that controls the queue processing and sending idle pings when playing
-     * a stream and there is no other activity. 
+     * Applies the cached configuration and tags of the project, if any,
+     * and broadcasts them as being revalidated.
+     */
+    private void applyCachedProjectData(Context context, String projectId) {
+        RWResponseCache configCache = new RWResponseCache(context, RW.PROJECT_CONFIG_CACHE);
+        String config = loadCachedJson(context, configCache, RW.PROJECT_CONFIG_CACHE, projectId, JsonToken.BEGIN_ARRAY);
+        if ((config == null) || (configCache.getEntry(projectId + JSON_CACHE_SUFFIX) == null)) {
+            debugLog("No cached configuration to start with");
+            return;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(RW.EXTRA_REVALIDATING, true);
+
+        configuration.assignFromJsonServerResponse(config, true);
+        configuration.setSessionId("-1");
+        broadcast(RW.CONFIGURATION_LOADED, extras);
+
+        RWResponseCache tagsCache = new RWResponseCache(context, RW.PROJECT_TAGS_CACHE);
+        if (loadCachedTags(context, tagsCache, projectId) && !tags.getTags().isEmpty()) {
+            broadcast(RW.TAGS_LOADED, extras);
+        }
+    }
+
+
+    /**
+     * Retrieves the tags for a project from the server. When the tags in
+     * use are from the cache, the request is conditional and the server
+     * can confirm that they are still up to date without sending them.
      */
     private void retrieveTags(final Context context, final String projectId) {
-        perform(mActionFactory.createRetrieveTagsForProjectAction(projectId), true, new ServicePerformListener() {
+        final RWResponseCache cache = new RWResponseCache(context, RW.PROJECT_TAGS_CACHE);
+        final RWAction action = mActionFactory.createRetrieveTagsForProjectAction(projectId);
+        String[] validators = null;
+        if (tags.getDataSource() == RWTags.FROM_CACHE) {
+            validators = loadValidators(cache, projectId);
+        }
+        if (validators != null) {
+            action.setCacheValidators(validators[0], validators[1]);
+        } else {
+            action.setCacheValidators(null, null);
+        }
+
+        perform(action, true, new ServicePerformListener() {
             @Override
             public void onPerformComplete(String result) {
+                if ((result != null) && action.isNotModified()) {
+                    // cached tags are up to date, no need to parse anything
+                    debugLog("Project tags not modified");
+                    tags.setDataSource(RWTags.FROM_SERVER);
+                    broadcast(RW.TAGS_LOADED);
+                    return;
+                }
                 debugLog("Retrieve project tags result: " + result);
 
-                // try to use cache when no server data received
-                boolean usingCache = false;
                 if (result == null) {
-                    result = RWSharedPrefsHelper.loadJSONObject(context, RW.PROJECT_TAGS_CACHE, projectId);
-                    usingCache = true;
-                } else {
-                    // cache current data
-                    RWSharedPrefsHelper.saveJSONObject(context, RW.PROJECT_TAGS_CACHE, projectId, result);
+                    // try to use cache when no server data received
+                    if ((tags.getDataSource() == RWTags.FROM_CACHE) || loadCachedTags(context, cache, projectId)) {
+                        broadcast(RW.TAGS_LOADED);
+                    } else {
+                        Log.w(TAG, "Could not retrieve tags data from server and no cached data available!");
+                        broadcast(RW.NO_TAGS);
+                    }
+                    return;
                 }
 
-                if (result == null) {
-                    Log.w(TAG, "Could not retrieve tags data from server and no cached data available!");
-                    broadcast(RW.NO_TAGS);
-                } else {
-                    tags.fromJson(result, usingCache ? RWTags.FROM_CACHE : RWTags.FROM_SERVER);
-                    broadcast(RW.TAGS_LOADED);
+                // cache current data, the old snapshot and validators no longer match
+                cache.remove(projectId + TAGS_SNAPSHOT_SUFFIX);
+                cache.remove(projectId + VALIDATORS_SUFFIX);
+                boolean cached = saveCachedJson(cache, projectId, result, JsonToken.BEGIN_OBJECT);
+
+                tags.fromJson(result, RWTags.FROM_SERVER);
+                if (cached) {
+                    saveTagsSnapshot(cache, projectId);
+                    saveValidators(cache, projectId, action.getETag(), action.getLastModified());
                 }
+                broadcast(RW.TAGS_LOADED);
             }
         });
     }
-    
-    
+
+
+    /**
+     * Replaces the tags with the cached tags, from the snapshot when there
+     * is one, or else from the cached JSON data.
+     *
+     * @return false when there is no valid cached data
+     */
+    private boolean loadCachedTags(Context context, RWResponseCache cache, String projectId) {
+        byte[] snapshot = cache.load(projectId + TAGS_SNAPSHOT_SUFFIX, RWTags.SNAPSHOT_VERSION);
+        if ((snapshot != null) && tags.fromSnapshot(snapshot, RWTags.FROM_CACHE)) {
+            return true;
+        }
+        String result = loadCachedJson(context, cache, RW.PROJECT_TAGS_CACHE, projectId, JsonToken.BEGIN_OBJECT);
+        if (result == null) {
+            return false;
+        }
+        tags.fromJson(result, RWTags.FROM_CACHE);
+        saveTagsSnapshot(cache, projectId);
+        return true;
+    }
+
+
+    private void saveTagsSnapshot(RWResponseCache cache, String projectId) {
+        if (!tags.getTags().isEmpty()) {
+            byte[] snapshot = tags.toSnapshot();
+            if (snapshot != null) {
+                cache.save(projectId + TAGS_SNAPSHOT_SUFFIX, RWTags.SNAPSHOT_VERSION, snapshot);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the ETag and Last-Modified values stored with the cached
+     * data, or null when there are none.
+     */
+    private String[] loadValidators(RWResponseCache cache, String key) {
+        String data = cache.loadString(key + VALIDATORS_SUFFIX, JSON_CACHE_VERSION);
+        if (data == null) {
+            return null;
+        }
+        String[] validators = data.split("\n", -1);
+        if (validators.length != 2) {
+            return null;
+        }
+        for (int i = 0; i < validators.length; i++) {
+            if (validators[i].length() == 0) {
+                validators[i] = null;
+            }
+        }
+        return validators;
+    }
+
+
+    private void saveValidators(RWResponseCache cache, String key, String eTag, String lastModified) {
+        if ((eTag != null) || (lastModified != null)) {
+            String data = ((eTag != null) ? eTag : "") + "\n" + ((lastModified != null) ? lastModified : "");
+            cache.saveString(key + VALIDATORS_SUFFIX, JSON_CACHE_VERSION, data);
+        }
+    }
+
+
+    /**
+     * Stores server data in the response cache, when it is valid JSON data
+     * of the expected type.
+     *
+     * @return true if the data has been stored
+     */
+    private boolean saveCachedJson(RWResponseCache cache, String key, String jsonData, JsonToken type) {
+        if (!RWJsonHelper.isValid(jsonData, type)) {
+            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE);
+            return false;
+        }
+        return cache.saveString(key + JSON_CACHE_SUFFIX, JSON_CACHE_VERSION, jsonData);
+    }
+
+
+    /**
+     * Retrieves server data from the response cache. Data cached in the
+     * shared preferences by older versions is moved to the response cache
+     * the first time.
+     */
+    private String loadCachedJson(Context context, RWResponseCache cache, String cacheName, String key, JsonToken type) {
+        String result = cache.loadString(key + JSON_CACHE_SUFFIX, JSON_CACHE_VERSION);
+        if (result != null) {
+            return result;
+        }
+        if (type == JsonToken.BEGIN_ARRAY) {
+            result = RWSharedPrefsHelper.loadJSONArray(context, cacheName, key);
+        } else {
+            result = RWSharedPrefsHelper.loadJSONObject(context, cacheName, key);
+        }
+        if (RWSharedPrefsHelper.contains(context, cacheName, key)) {
+            if (result != null) {
+                saveCachedJson(cache, key, result, type);
+            }
+            RWSharedPrefsHelper.remove(context, cacheName, key);
+        }
+        return result;
+    }
+
+
     /**
      * Starts play back of a sound stream from the server. When the
      * request is successful it will also start the ping timer that sends heart
@@ -379,6 +612,8 @@ import java.util.TimerTask;
                     manageSessionState(SessionState.OFF_LINE);
                 }
             } else {
+                // network is back, retry queued work right away
+                signalQueue(true);
                 if (mSessionState == SessionState.OFF_LINE) {
                     if (!mOnlyConnectOverWiFi) {
                         manageSessionState(SessionState.ON_LINE);
@@ -405,34 +640,43 @@ import java.util.TimerTask;
         public void onReceive(Context context, Intent intent) {
             debugLog("Received broadcast intent with action: " + intent.getAction());
             
+            // cached data applied at start up, wait for the server data
+            boolean revalidating = intent.getBooleanExtra(RW.EXTRA_REVALIDATING, false);
+
             if (RW.CONFIGURATION_LOADED.equalsIgnoreCase(intent.getAction())) {
-                if (mSessionState != SessionState.ON_LINE) {
+                mLogEventBuffer.setLimits(configuration.getLogEventBatchSize(),
+                        configuration.getLogEventFlushIntervalMSec());
+                mLogEventBuffer.setSamplingRates(configuration.getLogEventSamplingRates());
+                if ((mSessionState != SessionState.ON_LINE) && !revalidating) {
                     if (configuration.getDataSource() != RWConfiguration.FROM_SERVER) {
                         // TODO Check if chached content and tags are available
                         // if so go to off_line state
                         // else go to unitialized state
+                        mStartup.fail(STAGE_CONFIGURATION);
                         manageSessionState(SessionState.OFF_LINE);
-                    } else {
-                        if (isContentDownloadRequired(context)) {
-                            startContentDownload(context);
-                        } else {
-                            // otherwise can go to on_line now
-                            broadcast(RW.CONTENT_LOADED);
-                        }
+                    } else if (!mStartup.complete(STAGE_CONFIGURATION)) {
+                        // not loaded by a startup run, start one from here
+                        mStartup.start();
+                        mStartup.complete(STAGE_CONFIGURATION);
                     }
                 }
             } else if (RW.NO_CONFIGURATION.equalsIgnoreCase(intent.getAction())) {
                 // loading configuration failed - switch to uninitialized if needed
+                mStartup.fail(STAGE_CONFIGURATION);
                 manageSessionState(SessionState.UNINITIALIZED);
             } else if (RW.CONTENT_LOADED.equalsIgnoreCase(intent.getAction())) {
-                if (mSessionState != SessionState.ON_LINE) {
-                    retrieveTags(context, configuration.getProjectId());
-                }                
+                mStartup.complete(STAGE_CONTENT);
+                preloadContentPages();
             } else if (RW.NO_CONTENT.equalsIgnoreCase(intent.getAction())) {
+                mStartup.fail(STAGE_CONTENT);
                 manageSessionState(SessionState.UNINITIALIZED);
             } else if (RW.TAGS_LOADED.equalsIgnoreCase(intent.getAction())) {
-                manageSessionState(SessionState.ON_LINE);
+                // during startup on-line waits for the content too
+                if (!revalidating && !mStartup.complete(STAGE_TAGS)) {
+                    manageSessionState(SessionState.ON_LINE);
+                }
             } else if (RW.NO_TAGS.equalsIgnoreCase(intent.getAction())) {
+                mStartup.fail(STAGE_TAGS);
                 manageSessionState(SessionState.UNINITIALIZED);
             }
             
@@ -518,6 +762,68 @@ import java.util.TimerTask;
     }
     
     
+    /**
+     * Creates the stages of starting a session. The configuration stage is
+     * started by the INITIALIZING state. Content files and tags are both
+     * retrieved as soon as the configuration is available, the stream is
+     * pre-warmed when the tags are available, and the session goes on-line
+     * when both content and tags are available.
+     */
+    private RWStartupPipeline createStartupPipeline() {
+        RWStartupPipeline pipeline = new RWStartupPipeline();
+        pipeline.addStage(STAGE_CONFIGURATION, null);
+        pipeline.addStage(STAGE_CONTENT, new Runnable() {
+            @Override
+            public void run() {
+                if (isContentDownloadRequired(RWService.this)) {
+                    startContentDownload(RWService.this);
+                } else {
+                    broadcast(RW.CONTENT_LOADED);
+                }
+            }
+        }, STAGE_CONFIGURATION);
+        pipeline.addStage(STAGE_TAGS, new Runnable() {
+            @Override
+            public void run() {
+                retrieveTags(RWService.this, configuration.getProjectId());
+            }
+        }, STAGE_CONFIGURATION);
+        pipeline.addStage(STAGE_STREAM, new Runnable() {
+            @Override
+            public void run() {
+                prewarmPlayback();
+                mStartup.complete(STAGE_STREAM);
+            }
+        }, STAGE_TAGS);
+        pipeline.addStage(STAGE_ON_LINE, new Runnable() {
+            @Override
+            public void run() {
+                manageSessionState(SessionState.ON_LINE);
+                mStartup.complete(STAGE_ON_LINE);
+            }
+        }, STAGE_CONTENT, STAGE_TAGS);
+        return pipeline;
+    }
+
+
+    /**
+     * Starts the local stream proxy ahead of playback, so that starting
+     * playback only has to request the stream and prepare the player.
+     */
+    private void prewarmPlayback() {
+        if (mProxy == null) {
+            RWStreamProxy proxy = new RWStreamProxy(this);
+            proxy.init();
+            try {
+                proxy.start();
+                mProxy = proxy;
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Could not pre-warm stream proxy", e);
+            }
+        }
+    }
+
+
     private void startContentDownload(Context context) {
         debugLog("Starting download of new content files");
         
@@ -530,7 +836,7 @@ import java.util.TimerTask;
         } else {
             filesDir = ctx.getFilesDir();
         }
-        final String targetDirName = filesDir.getAbsolutePath();
+        final String targetDirName = new File(filesDir, CONTENT_FILES_DIR_NAME).getAbsolutePath();
 
         // get current content file info from project configuration
         final String fileUrl = configuration.getContentFilesUrl();
@@ -556,6 +862,7 @@ import java.util.TimerTask;
                         new RWSharedPrefsHelper.ContentFilesInfo(fileUrl, filesVersion, targetDir)
                 );
                 mContentFilesLocalDir = targetDir;
+                mContentCache.clear();
                 broadcast(RW.CONTENT_LOADED);
             }
             
@@ -616,8 +923,11 @@ import java.util.TimerTask;
     public void onCreate() {
         super.onCreate();
 
-        // set strict mode usage
-        // StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder().detectCustomSlowCalls().penaltyLog().build());
+        // server calls are never made on the main thread, report any that are in debug builds
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectNetwork().detectCustomSlowCalls().penaltyLog().build());
+        }
 
         // create default configuration and tags
         configuration = new RWConfiguration(this);
@@ -630,8 +940,55 @@ import java.util.TimerTask;
         // create a factory for actions
         mActionFactory = new RWActionFactory(this);
 
-        // create a queue for actions
+        // session startup, content and tags are retrieved in parallel
+        mStartup = createStartupPipeline();
+
+        // create a queue for actions, the thread processing it and the workers to drain it
         RWActionQueue.instance().init(this);
+        RWActionQueue.instance().setStateListener(new RWActionQueue.StateListener() {
+            @Override
+            public void actionAdded() {
+                signalQueue(false);
+            }
+        });
+        mQueueThread = new HandlerThread("RWActionQueue", Process.THREAD_PRIORITY_BACKGROUND);
+        mQueueThread.start();
+        mQueueHandler = new Handler(mQueueThread.getLooper());
+        mQueueDrainPool = Executors.newFixedThreadPool(QUEUE_DRAIN_POOL_SIZE);
+
+        // run actions performed immediately from the main thread by priority
+        mActionExecutor = new RWActionExecutor(ACTION_POOL_SIZE, "RWAction");
+
+        // do work that is only ahead of need, like preloading content pages, on a thread of its own
+        mBackgroundThread = new HandlerThread("RWBackground", Process.THREAD_PRIORITY_BACKGROUND);
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+
+        // report location updates to the server coalesced on the queue thread, in the interactive lane
+        mLocationReporter = new RWLocationReporter(mQueueHandler, mActionExecutor, new RWLocationReporter.Sender() {
+            @Override
+            public boolean send(Location location) {
+                return rwSendMoveListener(true) != null;
+            }
+        }, configuration.getLocationReportIntervalMSec(), configuration.getMinLocationUpdateDistanceMeter());
+
+        // send log events in batches on the queue thread, spill them to the queue when that fails
+        mLogEventBuffer = new RWLogEventBuffer(mQueueHandler, new RWLogEventBuffer.Sender() {
+            @Override
+            public boolean send(RWAction action) {
+                return isConnected() && (perform(action) != null);
+            }
+
+            @Override
+            public void spill(RWAction action) {
+                // queueCheck() leaves the queue alone while off-line and keeps
+                // actions that fail, so spilled events wait for connectivity
+                RWActionQueue.instance().add(action.getProperties());
+            }
+        }, configuration.getLogEventBatchSize(), configuration.getLogEventFlushIntervalMSec(),
+                getString(R.string.rw_et_start_listen), getString(R.string.rw_et_stop_listen),
+                getString(R.string.rw_et_start_record), getString(R.string.rw_et_stop_record));
+        mLogEventBuffer.setSamplingRates(configuration.getLogEventSamplingRates());
 
         // listen to connectivity state broadcasts
         registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
@@ -684,6 +1041,8 @@ import java.util.TimerTask;
             try {
                 // attempt to init the location tracker first
                 if (RWLocationTracker.instance().init(this)) {
+                    mLocationReporter.setLimits(configuration.getLocationReportIntervalMSec(),
+                            configuration.getMinLocationUpdateDistanceMeter());
                     RWLocationTracker.instance().startLocationUpdates(
                             configuration.getMinLocationUpdateTimeMSec(),
                             (float) configuration.getMinLocationUpdateDistanceMeter(),
@@ -715,6 +1074,39 @@ import java.util.TimerTask;
     }
 
     
+    /**
+     * Returns the reporter that sends location updates to the server, e.g.
+     * to check its counters.
+     *
+     * @return location reporter
+     */
+    public RWLocationReporter getLocationReporter() {
+        return mLocationReporter;
+    }
+
+
+    /**
+     * Returns the buffer that sends log events to the server in batches,
+     * e.g. to read its statistics.
+     *
+     * @return log event buffer
+     */
+    public RWLogEventBuffer getLogEventBuffer() {
+        return mLogEventBuffer;
+    }
+
+
+    /**
+     * Returns the executor running the actions performed immediately from
+     * the main thread, e.g. to read its statistics.
+     *
+     * @return action executor
+     */
+    public RWActionExecutor getActionExecutor() {
+        return mActionExecutor;
+    }
+
+
     /**
      * Retrieves the last known location by the location services of the
      * device. This does not force updating and might be out of date.
@@ -802,7 +1194,7 @@ import java.util.TimerTask;
         }
 
 
-        Map<String, String> map = RWIcecastInputStream.parseMetadata(rawMetaData);
+        Map<String, String> map = RWIcecastDemuxer.parseMetadata(rawMetaData);
 
         int asset = -1;
         int tags[] = new int[0];
@@ -811,7 +1203,7 @@ import java.util.TimerTask;
         intent.setAction(RW.STREAM_METADATA_UPDATED);
         // currently we dont care about the map's keys, just the values
         for(String value : map.values()) {
-            String[] subvalues = RWIcecastInputStream.splitMetaValue(value);
+            String[] subvalues = RWIcecastDemuxer.splitMetaValue(value);
             if (subvalues.length == 2) {
                 // we want the second value, which contains the metadata
                 if (!TextUtils.isEmpty(subvalues[1])) {
@@ -833,10 +1225,6 @@ import java.util.TimerTask;
      * @param tags of tags options for the audio
      */
     public void playbackStart(RWList tags) {
-        // FIXME: Not the correct way to handle this.  Don't run on the main thread!!!!!
-        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
-        StrictMode.setThreadPolicy(policy);
-
         debugLog("+++ playbackStart +++");
         if (!isPlaying()) {
             createPlayer();
@@ -931,6 +1319,18 @@ import java.util.TimerTask;
     public void onDestroy() {
         stopService();
         stopLocationUpdates();
+        mQueueThread.quit();
+        mBackgroundThread.quit();
+        mQueueDrainPool.shutdownNow();
+        mActionExecutor.shutdown();
+        RWActionQueue.instance().setStateListener(null);
+        RWActionQueue.instance().close();
+        RWHttpManager.shutdown();
+        if (mProxy != null) {
+            // pre-warmed for playback but not used
+            mProxy.stop();
+            mProxy = null;
+        }
         unregisterReceiver(connectivityReceiver);
         unregisterReceiver(rwReceiver);
         stopForeground(true);
@@ -945,7 +1345,11 @@ import java.util.TimerTask;
      * itself is terminated. 
      */
     public void stopService() {
-        stopQueueTimer();
+        stopQueueProcessing();
+        mLocationReporter.reset();
+        mLogEventBuffer.spill();
+        // playback control for this session is no longer relevant
+        mActionExecutor.cancel(RWActionExecutor.Lane.INTERACTIVE);
         releasePlayer();
         stopSelf();
     }
@@ -969,7 +1373,7 @@ import java.util.TimerTask;
                         configuration.getSessionId(), lat, lon, location.getProvider(),
                         location.getAccuracy()), null);
             }
-            rwSendMoveListener(true);
+            mLocationReporter.update(location);
             broadcastLocationUpdate(lat, lon, location.getProvider(), location.getAccuracy());
         }
     }
@@ -1050,6 +1454,18 @@ import java.util.TimerTask;
     }
     
 
+    /**
+     * Returns how long it took for the session to get on-line after it
+     * was started the last time, including the retrieval of the project
+     * configuration, content files and tags.
+     * 
+     * @return time in milliseconds, or -1 when not on-line yet
+     */
+    public long getStartupTimeMsec() {
+        return mStartup.getEndMsec(STAGE_ON_LINE);
+    }
+
+
     /**
      * Returns the currently used URL to access the Roundware server.
      * 
@@ -1089,29 +1505,56 @@ import java.util.TimerTask;
     /**
      * Reads the specified content file and returns its content as a single
      * String. Some content files might need further processing, e.g. to
-     * replace markers with specific information. 
+     * replace markers with specific information, see getContentPage().
+     * The content is cached, and only read again when the file changes.
      *
      * @param contentFileName to read
      * @return String with content of the file
      * @throws IOException on error
      */
     public String readContentFile(String contentFileName) throws IOException {
-        String data = "";
-        BufferedReader br = new BufferedReader(new FileReader(contentFileName));
-        try {
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
+        return mContentCache.getFile(contentFileName);
+    }
 
-            while (line != null) {
-                sb.append(line);
-                sb.append("\n");
-                line = br.readLine();
-            }
-            data = sb.toString();
-        } finally {
-            br.close();
+
+    /**
+     * Returns the page created from the specified content file by the
+     * renderer, e.g. by replacing markers with the tags data. The page is
+     * cached for the file and the state key, and only created again when
+     * the file changes or for a different state key. The state key must
+     * therefore be different for every state the renderer depends on,
+     * e.g. by using RWList.getWebViewStateKey().
+     *
+     * @param contentFileName to read
+     * @param stateKey of the state the page depends on
+     * @param renderer to create the page with
+     * @return String with the page
+     * @throws IOException on error
+     */
+    public String getContentPage(String contentFileName, String stateKey, RWContentCache.PageRenderer renderer) throws IOException {
+        String page = mContentCache.getPage(contentFileName, stateKey, renderer);
+        if (D) { Log.d(TAG, "Content cache: " + mContentCache); }
+        return page;
+    }
+
+
+    /**
+     * Reads the content pages into the cache in the background, so they
+     * are not read when a screen showing one is opened. It runs on the
+     * background thread, so it does not hold up server calls in any lane
+     * of the action executor; a page that is not preloaded is simply read
+     * when needed.
+     */
+    private void preloadContentPages() {
+        final String dirName = mContentFilesLocalDir;
+        if (dirName != null) {
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mContentCache.preload(dirName, CONTENT_PAGE_SUFFIX);
+                }
+            });
         }
-        return data;
     }
 
     
@@ -1308,28 +1751,62 @@ import java.util.TimerTask;
     }
 
     
-    private void startQueueTimer() {
-        if (mQueueTimer != null) {
-            stopQueueTimer();
+    /**
+     * Task that checks the queue, scheduled on the queue processing thread.
+     */
+    private final Runnable mQueueCheckTask = new Runnable() {
+        @Override
+        public void run() {
+            queueCheck();
         }
+    };
+
 
+    /**
+     * Starts processing of the queue. Instead of polling at a fixed rate
+     * the queue is checked when work is added to it, when connectivity is
+     * restored, after a back off period when processing failed, and when
+     * idle only at the next heartbeat deadline.
+     */
+    private void startQueueProcessing() {
         debugLog("Starting queue processing");
-        mQueueTimer = new Timer();
-        TimerTask task = new TimerTask() {
-            public void run() {
-                queueCheck();
-            }
-        };
-        mQueueTimer.scheduleAtFixedRate(task, 0, configuration.getQueueCheckIntervalSec() * 1000);
+        mQueueProcessing = true;
+        signalQueue(true);
     }
 
-    
-    private void stopQueueTimer() {
-        if (mQueueTimer != null) {
+
+    private void stopQueueProcessing() {
+        if (mQueueProcessing) {
             debugLog("Stopping queue processing");
-            mQueueTimer.cancel();
-            mQueueTimer.purge();
-            mQueueTimer = null;
+            mQueueProcessing = false;
+            mQueueHandler.removeCallbacks(mQueueCheckTask);
+        }
+    }
+
+
+    /**
+     * Signals that the queue should be checked as soon as possible. While
+     * backing off after failures the signal is ignored, unless the back off
+     * period is reset (e.g. because connectivity has been restored).
+     *
+     * @param resetBackOff true to cancel a running back off period
+     */
+    private void signalQueue(boolean resetBackOff) {
+        synchronized (mQueueCheckTask) {
+            if (resetBackOff) {
+                mQueueRetryDelayMsec = 0;
+            }
+            if (mQueueRetryDelayMsec == 0) {
+                scheduleQueueCheck(0);
+            }
+        }
+    }
+
+
+    private void scheduleQueueCheck(long delayMsec) {
+        if (mQueueProcessing) {
+            mQueueHandler.removeCallbacks(mQueueCheckTask);
+            mQueueHandler.postDelayed(mQueueCheckTask, delayMsec);
         }
     }
     
@@ -1370,15 +1847,22 @@ import java.util.TimerTask;
     /**
      * Sends a call to the Roundware server to notify it of a specific
      * event (user started listening, user started a recording, etc.).
+     * Events to be sent immediately are buffered and sent in the next
+     * batch, unless they are sampled out or duplicate the previous event.
      * 
      * @param eventTypeResId of type of log event 
      * @param tags to include in log event, may be null
      * @param data to include in log event, may be null
-     * @param now True to sent immediately, false for queued processing 
-     * @return server response, empty string when queued or on ui thread
+     * @param now True to sent in the next batch, false for queued processing 
+     * @return empty string
      */
     public String rwSendLogEvent(int eventTypeResId, RWList tags, String data, boolean now) {
-        return perform(mActionFactory.createLogEventAction(eventTypeResId, tags, data), now, null);
+        RWAction action = mActionFactory.createLogEventAction(eventTypeResId, tags, data);
+        if (now) {
+            mLogEventBuffer.add(getString(eventTypeResId), data, action);
+            return "";
+        }
+        return perform(action, false, null);
     }
     
 
@@ -1533,11 +2017,19 @@ import java.util.TimerTask;
      * Performs a server call for the specified RWAction instance. It can
      * either be handled directly (i.e. the request is created, sent to the
      * server, and the response is waited for), or put in the queue first.
-     * This queue is processed in the background based on regular intervals,
-     * at which the top item of the queue is 'performed'. Actions that are
-     * performed directly and fail will not automatically be placed in the
-     * queue. Actions that are placed in the queue and fail will stay in the
-     * queue when it concerns file uploads.
+     * The queue is processed in the background when an action is added,
+     * when connectivity is restored and at the heartbeat interval, but not
+     * while there is no connectivity. Queued actions that fail are retried
+     * with back off, or removed or kept aside as dead letter, depending on
+     * why they failed (see performQueuedAction). Actions that are performed
+     * directly and fail are not placed in the queue.
+     * 
+     * Actions performed directly on the ui thread are handed to the action
+     * executor, in the lane for their kind of action. When that lane is
+     * full, uploads and telemetry without a listener are placed in the
+     * queue instead, to be sent later. Any other action is not performed:
+     * its failure is broadcast and the listener is called with a null
+     * result on the queue thread, as when the server call fails.
      * 
      * @param action to perform as Roundware server call
      * @param now True is sent immediately on non-ui thread, false for queued processing
@@ -1547,7 +2039,7 @@ import java.util.TimerTask;
     protected String perform(final RWAction action, boolean now, final ServicePerformListener listener) {
         if (now) {
             if(Looper.myLooper() == Looper.getMainLooper()) {
-                new Thread(new Runnable() {
+                RWActionExecutor.Task task = mActionExecutor.submit(getLane(action), new Runnable() {
 
                     @Override
                     public void run() {
@@ -1556,7 +2048,13 @@ import java.util.TimerTask;
                             listener.onPerformComplete(result);
                         }
                     }
-                }).start();
+                });
+                if (task == null) {
+                    if ((listener == null) && isReplayable(action)) {
+                        return perform(action, false, null);
+                    }
+                    rejectAction(action, listener);
+                }
                 return "";
             }else{
                 String result = perform(action);
@@ -1579,6 +2077,65 @@ import java.util.TimerTask;
     }
 
     
+    /**
+     * Returns true when the specified action can be placed in the queue and
+     * performed later without losing its meaning: uploads and telemetry.
+     * Stream requests and modifications only make sense right away.
+     * 
+     * @param action to check
+     * @return true if the action may be queued
+     */
+    private boolean isReplayable(RWAction action) {
+        return getLane(action) != RWActionExecutor.Lane.INTERACTIVE;
+    }
+
+
+    /**
+     * Reports an action that was refused by the action executor, the same
+     * way as an action for which the server call failed.
+     * 
+     * @param action that was refused
+     * @param listener to update with a null result, may be null
+     */
+    private void rejectAction(RWAction action, final ServicePerformListener listener) {
+        String msg = "Action executor busy, action not performed";
+        Log.w(TAG, msg + ": " + action.getOperation());
+        broadcastActionFailure(action, TAG + ": " + msg, new RejectedExecutionException(msg));
+        if (listener != null) {
+            // listeners may read cached data, keep that off the ui thread
+            mQueueHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPerformComplete(null);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Returns the executor lane for the specified action: uploads and
+     * envelope creation in the upload lane, log events and heart beats in
+     * the telemetry lane, and everything else, e.g. stream requests and
+     * modifications, in the interactive lane.
+     * 
+     * @param action to get the lane for
+     * @return executor lane
+     */
+    private RWActionExecutor.Lane getLane(RWAction action) {
+        String operation = action.getOperation();
+        if ((action.getFilename() != null) || getString(R.string.rw_op_create_envelope).equals(operation)
+                || getString(R.string.rw_op_add_asset_to_envelope).equals(operation)) {
+            return RWActionExecutor.Lane.UPLOAD;
+        } else if (getString(R.string.rw_op_log_event).equals(operation)
+                || getString(R.string.rw_op_heartbeat).equals(operation)) {
+            return RWActionExecutor.Lane.TELEMETRY;
+        } else {
+            return RWActionExecutor.Lane.INTERACTIVE;
+        }
+    }
+
+
     /**
      * Handles the setting of notification texts and broadcasting intents
      * surround the calling of the action.perform() method (that does the
@@ -1590,6 +2147,7 @@ import java.util.TimerTask;
      * @return server response
      */
     protected String perform(RWAction action) {
+        action.setFailure(RWAction.Failure.NONE);
         try {
             // update last request time
             mLastRequestMsec = System.currentTimeMillis();
@@ -1624,7 +2182,7 @@ import java.util.TimerTask;
             }
 
             // actually perform the action
-            String result = action.perform(configuration.getHttpTimeOutSec());
+            String result = action.perform(configuration.getHttpTimeOutSec(), configuration.getUploadChunkSizeKB() * 1024);
             
             // when action is an upload a log event needs to be send now
             if (action.getFilename() != null) {
@@ -1633,11 +2191,22 @@ import java.util.TimerTask;
 
             // broadcast operation SUCCESS intent
             broadcastActionSuccess(action, result);
+
+            // a not modified response has no data and no messages
+            if (action.isNotModified()) {
+                return result;
+            }
             
-            return broadcastServerMessages(result);
+            String response = broadcastServerMessages(result);
+            if (response == null) {
+                // the server answered with an error message
+                action.setFailure(RWAction.Failure.REJECTED);
+            }
+            return response;
         } catch (UnknownHostException e) {
             String msg = "Unknown host error: " + e.getMessage();
             Log.e(TAG, msg, e);
+            action.setFailure(RWAction.Failure.CONNECTIVITY);
             // broadcast operation FAILED intent
             broadcastActionFailure(action, TAG + ": " + msg, e);
             return null;
@@ -1645,6 +2214,7 @@ import java.util.TimerTask;
             // expect http status code in exception message
             String msg = "HTTP error: " + e.getMessage();
             Log.e(TAG, msg, e);
+            action.setFailure(getHttpFailure(Integer.valueOf(e.getMessage())));
             // broadcast operation FAILED intent
             // on server time out pass it as an UnknownHostException
             if (isHttpTimeOut(Integer.valueOf(e.getMessage()))) {
@@ -1656,6 +2226,7 @@ import java.util.TimerTask;
         } catch (Exception e) {
             String msg = "Error: " + e.getMessage();
             Log.e(TAG, msg, e);
+            action.setFailure(isConnectivityError(e) ? RWAction.Failure.CONNECTIVITY : RWAction.Failure.RETRYABLE);
             // when action is an upload a log event needs to be send now
             if (action.getFilename() != null) {
                 rwSendLogEvent(R.string.rw_et_stop_upload, null, "false", true);
@@ -1668,6 +2239,30 @@ import java.util.TimerTask;
     }
     
     
+    /**
+     * Returns the failure reason for the specified HTTP error status: 4xx
+     * responses are rejections, except for time outs and rate limiting,
+     * other errors (5xx) can be retried.
+     */
+    private RWAction.Failure getHttpFailure(int httpStatusResponse) {
+        if ((httpStatusResponse >= 400) && (httpStatusResponse < 500)
+                && !isHttpTimeOut(httpStatusResponse) && (httpStatusResponse != 429)) {
+            return RWAction.Failure.REJECTED;
+        }
+        return RWAction.Failure.RETRYABLE;
+    }
+
+
+    /**
+     * Returns true when the specified exception means the server could not
+     * be reached or did not answer, e.g. a refused connection or a time out.
+     */
+    private boolean isConnectivityError(Exception e) {
+        return (e instanceof SocketException) || (e instanceof InterruptedIOException)
+                || (e instanceof NoHttpResponseException);
+    }
+
+
     private boolean isHttpTimeOut(int httpStatusResponse) {
         if ((HttpStatus.SC_GATEWAY_TIMEOUT == httpStatusResponse) || 
             (HttpStatus.SC_REQUEST_TIMEOUT == httpStatusResponse) || 
@@ -1678,49 +2273,41 @@ import java.util.TimerTask;
     }
     
     
-    private String retrieveServerMessage(ServerMessageType messageType, String response) {
-        // get keyword for message type
-        String key = null;
-        switch (messageType) {
-            case ERROR:
-                key = getString(R.string.rw_key_server_error_message);
-                break;
-            case TRACEBACK:
-                key = getString(R.string.rw_key_server_error_traceback);
-                break;
-            case USER:
-                key = getString(R.string.rw_key_server_user_message);
-                break;
-            case SHARING:
-                key = getString(R.string.rw_key_server_sharing_message);
-                break;
-        }
-        
-        if (key != null) {
-            try {
-                Object json = new JSONTokener(response).nextValue();
-                if (json instanceof JSONArray) {
-                    JSONArray entries = (JSONArray) json;
-                    for (int i = 0; i < entries.length(); i++) {
-                        JSONObject jsonObj = entries.getJSONObject(i);
-                        debugLog( jsonObj.toString());
-                        if (jsonObj.has(key)) {
-                            return jsonObj.getString(key);
-                        }
-                    }
-                } else if (json instanceof JSONObject) {
-                    JSONObject jsonObj = (JSONObject) json;
-                    debugLog( jsonObj.toString());
-                    if (jsonObj.has(key)) {
-                        return jsonObj.getString(key);
-                    }
-                }
-            } catch (JSONException e) {
-                Log.w(TAG, "Could not get server message from response, probably a JSON array instead of a JSON object.");
+    /**
+     * Retrieves the server messages of the specified types from the
+     * response in a single pass, skipping over all other data without
+     * building it.
+     *
+     * @param response to retrieve messages from
+     * @param messageTypes to retrieve
+     * @return messages in the order of the types, null when not present
+     */
+    private String[] retrieveServerMessages(String response, ServerMessageType... messageTypes) {
+        // get keywords for message types
+        String[] keys = new String[messageTypes.length];
+        for (int i = 0; i < messageTypes.length; i++) {
+            switch (messageTypes[i]) {
+                case ERROR:
+                    keys[i] = getString(R.string.rw_key_server_error_message);
+                    break;
+                case TRACEBACK:
+                    keys[i] = getString(R.string.rw_key_server_error_traceback);
+                    break;
+                case USER:
+                    keys[i] = getString(R.string.rw_key_server_user_message);
+                    break;
+                case SHARING:
+                    keys[i] = getString(R.string.rw_key_server_sharing_message);
+                    break;
             }
         }
 
-        return null;
+        try {
+            return RWJsonHelper.findStrings(response, keys);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not get server messages from response, invalid JSON data.");
+            return new String[messageTypes.length];
+        }
     }
     
     
@@ -1738,10 +2325,12 @@ import java.util.TimerTask;
         
         String message;
         Intent intent = new Intent();
+        String[] messages = retrieveServerMessages(response,
+                ServerMessageType.USER, ServerMessageType.ERROR, ServerMessageType.TRACEBACK);
         
         // process none critical messages first (and do not send duplicate messages)
 
-        message = retrieveServerMessage(ServerMessageType.USER, response);
+        message = messages[0];
         if ((message != null) && (!message.equalsIgnoreCase(mPreviousUserMessage))) {
             mPreviousUserMessage = message;
             intent.setAction(RW.USER_MESSAGE);
@@ -1754,10 +2343,10 @@ import java.util.TimerTask;
 
         // process critical messages that stopPlayer further handling of the response
 
-        message = retrieveServerMessage(ServerMessageType.ERROR, response);
+        message = messages[1];
         if (message != null) {
             // see if there is additional traceback info
-            String traceback = retrieveServerMessage(ServerMessageType.TRACEBACK, response); 
+            String traceback = messages[2];
             if (traceback != null) {
                 message = message + "\n\nTraceback: " + traceback;
             }
@@ -1826,18 +2415,21 @@ import java.util.TimerTask;
         
         switch (mSessionState) {
             case UNINITIALIZED:
-                stopQueueTimer();
+                stopQueueProcessing();
                 stopLocationUpdates();
                 playbackStop();
                 break;
             case INITIALIZING:
+                mStartup.start();
                 retrieveConfiguration(this, configuration.getDeviceId(), configuration.getProjectId());
                 break;
             case ON_LINE:
-                // refresh configuration after threshold time so session ID can be refreshed
+                // refresh configuration after threshold time so session ID can be refreshed,
+                // or when there is no session ID from the server yet
                 // TODO Better to have a task that only updates the session ID?
                 long millis = System.currentTimeMillis();
-                if ((millis - mLastStateChangeMsec) > (configuration.getHeartbeatTimerSec() * 5)) {
+                if ((configuration.getDataSource() != RWConfiguration.FROM_SERVER)
+                        || ((millis - mLastStateChangeMsec) > (configuration.getHeartbeatTimerSec() * 5 * 1000L))) {
                     // project ID assumed to be already in configuration and not changing!
                     retrieveConfiguration(this, configuration.getDeviceId(), configuration.getProjectId());
                 }
@@ -1845,7 +2437,7 @@ import java.util.TimerTask;
                 if (tags.getDataSource() != RWTags.FROM_SERVER) {
                     retrieveTags(this, configuration.getProjectId());
                 }
-                startQueueTimer();
+                startQueueProcessing();
                 if (!startLocationUpdates()) {
                     // TODO location tracking might fail if user has not granted permissions
                     debugLog("Could not start location tracking, user might not have granted location permissions to the app");
@@ -1853,8 +2445,8 @@ import java.util.TimerTask;
                 broadcast(RW.SESSION_ON_LINE);
                 break;
             case OFF_LINE:
-                // keep queue timer running to periodically retry the connection
-                startQueueTimer();
+                // keep queue processing running to periodically retry the connection
+                startQueueProcessing();
                 playbackStop();
                 broadcast(RW.SESSION_OFF_LINE);
                 break;
@@ -1953,35 +2545,272 @@ import java.util.TimerTask;
     }
 
     
+    /**
+     * Checks the queue, drains it when not empty, and schedules the next
+     * check. After a failure the next check is backed off exponentially,
+     * starting at the queue check interval from the configuration, with
+     * some random jitter. When the queue is empty the next check is at the
+     * heartbeat deadline, unless work is signalled earlier. Without
+     * connectivity the queue is not drained, it is signalled again when
+     * the network is back.
+     */
     private void queueCheck() {
+        if (!isConnected()) {
+            debugLog("No connectivity, queue will be checked when it is restored");
+            scheduleHeartbeatQueueCheck();
+            return;
+        }
+
         int count = RWActionQueue.instance().count();
-        if (count == 0) {
-            // nothing to do, send ping if idle time threshold exceeded - also used to check on-line status
-            long currentMillis = System.currentTimeMillis();
-            if ((currentMillis - mLastRequestMsec) > (configuration.getHeartbeatTimerSec() * 1000)) {
-                if ((SessionState.OFF_LINE.equals(mSessionState)) ||
-                                (SessionState.ON_LINE.equals(mSessionState) && isPlaying())) {
-                    rwSendHeartbeat();
+        if ((count > 0) && (!drainQueue())) {
+            setNotificationTickerText(getString(R.string.roundware_notification_request_failed));
+            synchronized (mQueueCheckTask) {
+                if (mQueueRetryDelayMsec == 0) {
+                    mQueueRetryDelayMsec = configuration.getQueueCheckIntervalSec() * 1000L;
+                } else {
+                    mQueueRetryDelayMsec = Math.min(mQueueRetryDelayMsec * 2, QUEUE_RETRY_MAX_MSEC);
                 }
+                long jitter = (long) (mQueueRetryDelayMsec * QUEUE_RETRY_JITTER * (2 * mQueueRetryRandom.nextFloat() - 1));
+                debugLog("Queue processing failed, retrying in " + (mQueueRetryDelayMsec + jitter) + " ms");
+                scheduleQueueCheck(mQueueRetryDelayMsec + jitter);
             }
-
-            setNotificationTickerText(null);
             return;
         }
 
-        RWAction action = RWActionQueue.instance().get();
-        if (action != null) {
-            if (perform(action) != null) {
+        synchronized (mQueueCheckTask) {
+            mQueueRetryDelayMsec = 0;
+        }
+
+        // nothing to do, send ping if idle time threshold exceeded - also used to check on-line status
+        long heartbeatMsec = configuration.getHeartbeatTimerSec() * 1000L;
+        long currentMillis = System.currentTimeMillis();
+        if ((currentMillis - mLastRequestMsec) > heartbeatMsec) {
+            if ((SessionState.OFF_LINE.equals(mSessionState)) ||
+                            (SessionState.ON_LINE.equals(mSessionState) && isPlaying())) {
+                rwSendHeartbeat();
+            }
+        }
+
+        setNotificationTickerText(null);
+        scheduleHeartbeatQueueCheck();
+    }
+
+
+    /**
+     * Schedules the next queue check at the next heartbeat deadline.
+     */
+    private void scheduleHeartbeatQueueCheck() {
+        long heartbeatMsec = configuration.getHeartbeatTimerSec() * 1000L;
+        long delayMsec = mLastRequestMsec + heartbeatMsec - System.currentTimeMillis();
+        if (delayMsec <= 0) {
+            delayMsec = heartbeatMsec;
+        }
+        scheduleQueueCheck(delayMsec);
+    }
+
+
+    /**
+     * Processes the queued actions in batches, once through the queue. Each
+     * batch is read from the queue with a single query. File uploads in a
+     * batch are performed in queue order on the calling thread, so they
+     * stay ordered relative to each other and to their just in time
+     * envelope creation. The other actions are performed concurrently by
+     * the drain worker pool, one task per operation that performs the
+     * actions of that operation in queue order, so e.g. an older
+     * modify_stream never lands after a newer one. A modify_stream that
+     * only reports the location is dropped when a newer modify_stream
+     * follows in the batch, since that carries a newer location.
+     * 
+     * The next batch continues after the last action of the previous one,
+     * so actions that failed do not block the actions behind them.
+     * Processing stops early when an action failed for lack of
+     * connectivity, since the rest would fail the same way.
+     *
+     * @return true when the queue was drained without failures
+     */
+    private boolean drainQueue() {
+        long startMillis = System.currentTimeMillis();
+        int drained = 0;
+        boolean failed = false;
+        boolean offline = false;
+        RWAction last = null;
+
+        while (!offline) {
+            List<RWAction> batch = RWActionQueue.instance().get(last, QUEUE_DRAIN_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            last = batch.get(batch.size() - 1);
+
+            // group the non-upload actions by operation, in queue order
+            List<RWAction> uploads = new ArrayList<RWAction>();
+            Map<String, List<RWAction>> operations = new LinkedHashMap<String, List<RWAction>>();
+            for (RWAction action : batch) {
+                if (action.getFilename() != null) {
+                    uploads.add(action);
+                } else {
+                    List<RWAction> actions = operations.get(action.getOperation());
+                    if (actions == null) {
+                        actions = new ArrayList<RWAction>();
+                        operations.put(action.getOperation(), actions);
+                    }
+                    actions.add(action);
+                }
+            }
+            List<RWAction> modifications = operations.get(getString(R.string.rw_op_modify_stream));
+            if (modifications != null) {
+                drained += dropSupersededLocations(modifications);
+            }
+
+            // hand out each operation to the worker pool
+            List<Future<List<RWAction.Failure>>> results = new ArrayList<Future<List<RWAction.Failure>>>();
+            for (final List<RWAction> actions : operations.values()) {
+                results.add(mQueueDrainPool.submit(new Callable<List<RWAction.Failure>>() {
+                    @Override
+                    public List<RWAction.Failure> call() {
+                        return performQueuedActions(actions);
+                    }
+                }));
+            }
+
+            List<RWAction.Failure> failures = new ArrayList<RWAction.Failure>(performQueuedActions(uploads));
+            for (Future<List<RWAction.Failure>> result : results) {
+                try {
+                    failures.addAll(result.get());
+                } catch (Exception e) {
+                    Log.e(TAG, "Queued actions could not be completed", e);
+                    failed = true;
+                }
+            }
+            for (RWAction.Failure failure : failures) {
+                if (failure == RWAction.Failure.NONE) {
+                    drained++;
+                } else {
+                    failed = true;
+                    offline |= (failure == RWAction.Failure.CONNECTIVITY);
+                }
+            }
+        }
+
+        if (drained > 0) {
+            long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+            synchronized (this) {
+                mDrainedActionCount += drained;
+                mDrainedActionsPerSec = (drained * 1000f) / elapsedMillis;
+            }
+            debugLog(String.format(Locale.US, "Drained %d queued actions in %d ms (%.1f actions/sec)",
+                    drained, elapsedMillis, mDrainedActionsPerSec));
+        }
+
+        return !failed;
+    }
+
+
+    /**
+     * Removes the modify_stream actions from the specified list, and from
+     * the queue, that only report a location and are followed by another
+     * modify_stream action.
+     *
+     * @param modifications modify_stream actions in queue order
+     * @return number of actions removed
+     */
+    private int dropSupersededLocations(List<RWAction> modifications) {
+        int dropped = 0;
+        for (int i = modifications.size() - 2; i >= 0; i--) {
+            RWAction action = modifications.get(i);
+            if (action.getSelectedTagsOptions() == null) {
                 RWActionQueue.instance().delete(action);
-                setNotificationTickerText(null);
-            } else {
-                setNotificationTickerText(getString(R.string.roundware_notification_request_failed));
-                // remove failing action from queue, unless it is a file upload
+                modifications.remove(i);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+
+    /**
+     * Performs the specified queued actions one after the other, in order,
+     * until one fails for lack of connectivity.
+     *
+     * @param actions taken from the queue
+     * @return failure reason of each action performed
+     */
+    private List<RWAction.Failure> performQueuedActions(List<RWAction> actions) {
+        List<RWAction.Failure> failures = new ArrayList<RWAction.Failure>(actions.size());
+        for (RWAction action : actions) {
+            RWAction.Failure failure = performQueuedAction(action);
+            failures.add(failure);
+            if (failure == RWAction.Failure.CONNECTIVITY) {
+                break;
+            }
+        }
+        return failures;
+    }
+
+
+    /**
+     * Performs a single action taken from the queue and updates the queue
+     * for the result. The action is removed when it succeeded, or when the
+     * server rejected it and it is not a file upload. A rejected upload is
+     * kept as a dead letter, so the recording is not lost. After other
+     * failures the action stays in the queue, to be retried after the queue
+     * back off period; connectivity failures are retried without limit, the
+     * rest until the action has failed RWDbAdapter.MAX_ATTEMPTS times.
+     *
+     * @param action taken from the queue
+     * @return reason the action failed for, NONE when it was performed
+     */
+    private RWAction.Failure performQueuedAction(RWAction action) {
+        RWActionQueue queue = RWActionQueue.instance();
+        if (perform(action) != null) {
+            queue.delete(action);
+            setNotificationTickerText(null);
+            return RWAction.Failure.NONE;
+        }
+
+        RWAction.Failure failure = action.getFailure();
+        switch (failure) {
+            case CONNECTIVITY:
+                break;
+            case REJECTED:
                 if (action.getFilename() == null) {
-                    RWActionQueue.instance().delete(action);
+                    Log.w(TAG, "Queued action rejected by the server, removed: " + action);
+                    queue.delete(action);
+                } else {
+                    Log.w(TAG, "Queued upload rejected by the server, kept as dead letter: " + action);
+                    queue.deadLetter(action);
                 }
-            }
+                break;
+            default:
+                failure = RWAction.Failure.RETRYABLE;
+                if (queue.recordFailure(action)) {
+                    Log.w(TAG, "Queued action failed " + action.getAttempts() + " times, kept as dead letter: " + action);
+                }
+                break;
         }
+        return failure;
+    }
+
+
+    /**
+     * Returns the total number of queued actions that have been performed
+     * successfully since the service was created.
+     *
+     * @return number of drained queue actions
+     */
+    public synchronized long getDrainedActionCount() {
+        return mDrainedActionCount;
+    }
+
+
+    /**
+     * Returns the rate at which queued actions were performed during the
+     * last time the queue was drained.
+     *
+     * @return drained actions per second
+     */
+    public synchronized float getDrainedActionsPerSec() {
+        return mDrainedActionsPerSec;
     }
     
 
@@ -0,0 +1,269 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Dependency graph of the asynchronous stages of starting a session, e.g.
+ * retrieving the configuration, downloading content, and retrieving tags.
+ * A stage is started as soon as all the stages it depends on have been
+ * completed, so independent stages run in parallel. Stages report their
+ * result with complete() or fail(). The stages depending on a failed
+ * stage are not started.
+ *
+ * The start, end and duration of each stage in a run are recorded, in
+ * milliseconds relative to the start of the run, and logged when the
+ * last stage has finished.
+ */
+public class RWStartupPipeline {
+
+    // debugging
+    private final static String TAG = "RWStartupPipeline";
+    private final static boolean D = false;
+
+    private enum State { WAITING, RUNNING, COMPLETED, FAILED }
+
+    private static class Stage {
+        final String name;
+        final String[] dependencies;
+        final Runnable starter;
+        State state = State.WAITING;
+        long startMsec = -1;
+        long endMsec = -1;
+
+        Stage(String name, Runnable starter, String[] dependencies) {
+            this.name = name;
+            this.starter = starter;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Map<String, Stage> mStages = new LinkedHashMap<String, Stage>();
+    private long mRunStartMsec = -1;
+    private boolean mRunning;
+
+
+    /**
+     * Adds a stage to the pipeline. The stages it depends on must have been
+     * added before.
+     *
+     * @param name of the stage
+     * @param starter to start the stage, null when it is started elsewhere
+     * @param dependencies names of the stages that must be completed first
+     * @return self
+     */
+    public synchronized RWStartupPipeline addStage(String name, Runnable starter, String... dependencies) {
+        for (String dependency : dependencies) {
+            if (!mStages.containsKey(dependency)) {
+                throw new IllegalArgumentException("Unknown stage " + dependency + " for stage " + name);
+            }
+        }
+        mStages.put(name, new Stage(name, starter, dependencies));
+        return this;
+    }
+
+
+    /**
+     * Starts a new run, discarding the state of the previous one, and
+     * starts the stages that do not depend on other stages.
+     */
+    public void start() {
+        List<Stage> ready;
+        synchronized (this) {
+            mRunStartMsec = SystemClock.elapsedRealtime();
+            mRunning = true;
+            for (Stage stage : mStages.values()) {
+                stage.state = State.WAITING;
+                stage.startMsec = -1;
+                stage.endMsec = -1;
+            }
+            ready = collectReadyStages();
+        }
+        startStages(ready);
+    }
+
+
+    /**
+     * Marks a running stage as completed and starts the stages that have
+     * all their dependencies completed now.
+     *
+     * @param name of the stage
+     * @return true if the stage was running in the current run
+     */
+    public boolean complete(String name) {
+        List<Stage> ready;
+        synchronized (this) {
+            if (!finish(name, State.COMPLETED)) {
+                return false;
+            }
+            ready = collectReadyStages();
+        }
+        startStages(ready);
+        return true;
+    }
+
+
+    /**
+     * Marks a running stage as failed. The stages that depend on it will
+     * not be started in the current run.
+     *
+     * @param name of the stage
+     * @return true if the stage was running in the current run
+     */
+    public synchronized boolean fail(String name) {
+        if (!finish(name, State.FAILED)) {
+            return false;
+        }
+        collectReadyStages();
+        return true;
+    }
+
+
+    /**
+     * Returns true if the stage is running in the current run.
+     *
+     * @param name of the stage
+     * @return true if running
+     */
+    public synchronized boolean isRunning(String name) {
+        Stage stage = mStages.get(name);
+        return (stage != null) && (stage.state == State.RUNNING);
+    }
+
+
+    /**
+     * Returns true if the stage has been completed in the current run.
+     *
+     * @param name of the stage
+     * @return true if completed
+     */
+    public synchronized boolean isCompleted(String name) {
+        Stage stage = mStages.get(name);
+        return (stage != null) && (stage.state == State.COMPLETED);
+    }
+
+
+    /**
+     * Returns the time at which the stage finished, relative to the start
+     * of the run.
+     *
+     * @param name of the stage
+     * @return time in milliseconds, or -1 when it has not finished
+     */
+    public synchronized long getEndMsec(String name) {
+        Stage stage = mStages.get(name);
+        return (stage != null) ? stage.endMsec : -1;
+    }
+
+
+    /**
+     * Returns how long the stage took in the current run.
+     *
+     * @param name of the stage
+     * @return duration in milliseconds, or -1 when it has not finished
+     */
+    public synchronized long getDurationMsec(String name) {
+        Stage stage = mStages.get(name);
+        if ((stage == null) || (stage.endMsec < 0)) {
+            return -1;
+        }
+        return stage.endMsec - stage.startMsec;
+    }
+
+
+    /**
+     * Returns a summary of the timing of the stages in the current run,
+     * e.g. "configuration 0-412 ms, tags 412-690 ms (failed), ...".
+     *
+     * @return timing summary
+     */
+    public synchronized String getTimingSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : mStages.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(stage.name).append(' ');
+            if (stage.state == State.WAITING) {
+                sb.append("not started");
+                continue;
+            }
+            sb.append(stage.startMsec).append('-');
+            if (stage.endMsec >= 0) {
+                sb.append(stage.endMsec);
+            }
+            sb.append(" ms");
+            if (stage.state == State.FAILED) {
+                sb.append(" (failed)");
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private boolean finish(String name, State state) {
+        Stage stage = mStages.get(name);
+        if ((stage == null) || (stage.state != State.RUNNING)) {
+            return false;
+        }
+        stage.state = state;
+        stage.endMsec = SystemClock.elapsedRealtime() - mRunStartMsec;
+        if (D) { Log.d(TAG, "Stage " + name + " " + state + " at " + stage.endMsec + " ms"); }
+        return true;
+    }
+
+
+    /**
+     * Marks the stages that can be started as running and returns them.
+     * Logs the timing when no stage is running or can be started anymore.
+     */
+    private List<Stage> collectReadyStages() {
+        List<Stage> ready = new ArrayList<Stage>();
+        boolean running = false;
+        long now = SystemClock.elapsedRealtime() - mRunStartMsec;
+        for (Stage stage : mStages.values()) {
+            if (stage.state == State.WAITING) {
+                boolean canStart = true;
+                for (String dependency : stage.dependencies) {
+                    if (mStages.get(dependency).state != State.COMPLETED) {
+                        canStart = false;
+                        break;
+                    }
+                }
+                if (canStart) {
+                    stage.state = State.RUNNING;
+                    stage.startMsec = now;
+                    ready.add(stage);
+                }
+            }
+            if (stage.state == State.RUNNING) {
+                running = true;
+            }
+        }
+        if (!running && mRunning) {
+            mRunning = false;
+            Log.i(TAG, "Startup stages: " + getTimingSummary());
+        }
+        return ready;
+    }
+
+
+    private void startStages(List<Stage> stages) {
+        for (Stage stage : stages) {
+            if (D) { Log.d(TAG, "Starting stage " + stage.name); }
+            if (stage.starter != null) {
+                stage.starter.run();
+            }
+        }
+    }
+}
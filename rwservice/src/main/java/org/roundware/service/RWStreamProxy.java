@@ -17,92 +17,116 @@ package org.roundware.service;
 
 import android.util.Log;
 
-import org.apache.http.Header;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpResponseFactory;
-import org.apache.http.ParseException;
-import org.apache.http.ProtocolVersion;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.ClientConnectionOperator;
-import org.apache.http.conn.OperatedClientConnection;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.DefaultClientConnection;
-import org.apache.http.impl.conn.DefaultClientConnectionOperator;
-import org.apache.http.impl.conn.DefaultResponseParser;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.io.HttpMessageParser;
-import org.apache.http.io.SessionInputBuffer;
-import org.apache.http.message.BasicHttpRequest;
-import org.apache.http.message.BasicHttpResponse;
-import org.apache.http.message.BasicLineParser;
-import org.apache.http.message.ParserCursor;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.util.CharArrayBuffer;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Proxy input stream for Android's MediaPlayer
  * Adapted from npr-android-app
  * https://code.google.com/p/npr-android-app/
+ *
+ * All client and upstream connections are handled by a single thread with
+ * non-blocking channels and a selector, so the proxy serves concurrent
+ * MediaPlayer requests (e.g. when the player is prepared again while the
+ * old connection is still open). Stream data is relayed through direct
+ * buffers. With Icecast metadata, a RWIcecastDemuxer writes the audio
+ * from the buffer straight to the client and reports title changes to
+ * the listener. Chunked response bodies are decoded before the metadata
+ * is split off, and redirects are followed by the proxy itself, the
+ * client only gets the final response.
+ * Host names are resolved on a helper thread, so a slow DNS lookup does
+ * not hold up the other connections.
+ * Upstream connections of completed responses are kept alive and reused
+ * for later requests to the same server. Stopping the proxy closes its
+ * selector, which ends the proxy thread immediately.
  */
 public class RWStreamProxy implements Runnable {
     private static final String LOG_TAG = RWStreamProxy.class.getName();
 
+    // size of the stream relay buffers
+    private static final int RELAY_BUFFER_SIZE = 1024 * 50;
+    // extra room in the buffer to the client for the rewritten headers
+    private static final int HEADER_SLACK = 1024;
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final int MAX_FREE_BUFFERS = 4;
+
+    private static final long SELECT_TIMEOUT_MSEC = 5000;
+    private static final long IDLE_UPSTREAM_TIMEOUT_MSEC = 30000;
+    private static final int MAX_REDIRECTS = 10;
+
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
     private int port = 0;
 
     protected int getPort() {
         return port;
     }
 
-    private boolean isRunning = true;
-    private ServerSocket socket;
+    private volatile boolean isRunning = true;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
     private Thread thread;
-    RWIcecastInputStream.IcyMetaDataListener metaDataListener = null;
-
-    public RWStreamProxy(RWIcecastInputStream.IcyMetaDataListener listener){
+    private ExecutorService resolver;
+    RWIcecastDemuxer.IcyMetaDataListener metaDataListener = null;
+
+    // only accessed by the proxy thread
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final Map<String, LinkedList<IdleUpstream>> idleUpstreams = new HashMap<String, LinkedList<IdleUpstream>>();
+    private final LinkedList<ByteBuffer> freeBuffers = new LinkedList<ByteBuffer>();
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(1024);
+    // work handed to the proxy thread by other threads
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    public RWStreamProxy(RWIcecastDemuxer.IcyMetaDataListener listener){
         this.metaDataListener = listener;
     }
 
     public void init() {
         try {
-            socket = new ServerSocket(port, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-            socket.setSoTimeout(5000);
-            port = socket.getLocalPort();
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            port = serverChannel.socket().getLocalPort();
             Log.d(LOG_TAG, "port " + port + " obtained");
-        } catch (UnknownHostException e) {
-            Log.e(LOG_TAG, "Error initializing server", e);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error initializing server", e);
+            serverChannel = null;
         }
     }
 
     public void start() {
 
-        if (socket == null) {
+        if (serverChannel == null) {
             throw new IllegalStateException("Cannot start proxy; it has not been initialized.");
         }
 
+        resolver = Executors.newSingleThreadExecutor();
         thread = new Thread(this);
         thread.start();
     }
@@ -114,7 +138,12 @@ public class RWStreamProxy implements Runnable {
             throw new IllegalStateException("Cannot stop proxy; it has not been started.");
         }
 
-        thread.interrupt();
+        // wakes up the proxy thread, which then releases all connections
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing selector", e);
+        }
         try {
             thread.join(5000);
         } catch (InterruptedException e) {
@@ -125,275 +154,810 @@ public class RWStreamProxy implements Runnable {
     @Override
     public void run() {
         Log.d(LOG_TAG, "running");
-        while (isRunning) {
-            try {
-                Socket client = socket.accept();
-                if (client == null) {
-                    continue;
+        try {
+            while (isRunning) {
+                selector.select(SELECT_TIMEOUT_MSEC);
+                if (!isRunning) {
+                    break;
                 }
-                Log.d(LOG_TAG, "client connected");
-                HttpRequest request = readRequest(client);
-                processRequest(request, client);
-            } catch (SocketTimeoutException e) {
-                // Do nothing
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "Error connecting to client", e);
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+                evictIdleUpstreams();
             }
+        } catch (ClosedSelectorException e) {
+            // proxy stopped
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error selecting connections", e);
+        } finally {
+            shutdown();
         }
         Log.d(LOG_TAG, "Proxy interrupted. Shutting down.");
     }
 
-    private HttpRequest readRequest(Socket client) {
-        HttpRequest request = null;
-        InputStream is;
-        String firstLine;
+    private void handleKey(SelectionKey key) {
+        Object attachment = key.attachment();
         try {
-            is = client.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is),
-                    8192);
-            firstLine = reader.readLine();
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error parsing request", e);
-            return request;
+            if (!key.isValid()) {
+                return;
+            }
+            if (attachment instanceof IdleUpstream) {
+                // an idle connection should not receive anything, the server
+                // has closed it or it is not usable anymore
+                ((IdleUpstream) attachment).close();
+                return;
+            }
+            if (attachment == null) {
+                if (key.isAcceptable()) {
+                    accept();
+                }
+                return;
+            }
+
+            Connection connection = (Connection) attachment;
+            boolean isClient = (key.channel() == connection.client);
+            try {
+                if (isClient) {
+                    connection.handleClient(key);
+                } else {
+                    connection.handleUpstream(key);
+                }
+            } catch (IOException e) {
+                if (isClient) {
+                    Log.d(LOG_TAG, "Client connection ended: " + e.getMessage());
+                    connection.close();
+                } else {
+                    connection.upstreamFailed(e);
+                }
+            }
+        } catch (RuntimeException e) {
+            // e.g. a key cancelled while stopping, only end this connection
+            // and keep the proxy running for the others
+            Log.e(LOG_TAG, "Error handling connection", e);
+            if (attachment instanceof Connection) {
+                ((Connection) attachment).close();
+            } else if (attachment instanceof IdleUpstream) {
+                ((IdleUpstream) attachment).close();
+            }
         }
+    }
 
-        if (firstLine == null) {
-            Log.i(LOG_TAG, "Proxy client closed connection without a request.");
-            return request;
+    /**
+     * Runs the work posted to the proxy thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error handling connection", e);
+            }
         }
+    }
 
-        StringTokenizer st = new StringTokenizer(firstLine);
-        String method = st.nextToken();
-        String uri = st.nextToken();
-        Log.d(LOG_TAG, uri);
-        String realUri = uri.substring(1);
-        Log.d(LOG_TAG, realUri);
-        request = new BasicHttpRequest(method, realUri);
-        return request;
+    /**
+     * Hands the task to the proxy thread, it is run after the next wakeup
+     * of the selector.
+     */
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
     }
 
-    private HttpResponse download(String url) {
-        DefaultHttpClient seed = new DefaultHttpClient();
-        SchemeRegistry registry = new SchemeRegistry();
-        int port = 80;
+    private void accept() {
         try {
-            URL qualifiedUrl = new URL(url);
-            port = qualifiedUrl.getPort();
-            if (port <= 0) {
-                port = qualifiedUrl.getDefaultPort();
-            }
-        } catch (MalformedURLException e) {
-        }
-        registry.register(
-                new Scheme("http", PlainSocketFactory.getSocketFactory(), port));
-        SingleClientConnManager mgr = new MyClientConnManager(seed.getParams(),
-                registry);
-        /* TODO add support for https?
-            Maybe copy class suggested here:
-            http://stackoverflow.com/questions/24104746/econnreset-connection-reset-by-peer-on-a-server-with-authentication
-         */
-        DefaultHttpClient http = new DefaultHttpClient(mgr, seed.getParams());
-        HttpGet method = new HttpGet(url);
-        method.setHeader("Icy-MetaData", "1");
-        method.setHeader("Connection", "close");
-        method.setHeader("Accept", null);
-        HttpResponse response = null;
-        try {
-            Log.d(LOG_TAG, "starting download");
-            response = http.execute(method);
-            Log.d(LOG_TAG, "downloaded");
-        } catch (ClientProtocolException e) {
-            Log.e(LOG_TAG, "Error downloading", e);
+            SocketChannel client = serverChannel.accept();
+            if (client == null) {
+                return;
+            }
+            Log.d(LOG_TAG, "client connected");
+            client.configureBlocking(false);
+            Connection connection = new Connection(client);
+            connections.add(connection);
+            connection.clientKey = client.register(selector, SelectionKey.OP_READ, connection);
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Error downloading", e);
+            Log.e(LOG_TAG, "Error connecting to client", e);
         }
-        return response;
     }
 
-    private void processRequest(HttpRequest request, Socket client)
-            throws IllegalStateException, IOException {
-        if (request == null) {
-            return;
+    private void shutdown() {
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            connection.close();
+        }
+        for (List<IdleUpstream> idle : new ArrayList<List<IdleUpstream>>(idleUpstreams.values())) {
+            for (IdleUpstream upstream : new ArrayList<IdleUpstream>(idle)) {
+                upstream.close();
+            }
+        }
+        closeQuietly(serverChannel);
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+        tasks.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
         }
-        Log.d(LOG_TAG, "processing");
-        String url = request.getRequestLine().getUri();
-        HttpResponse realResponse = download(url);
-        if (realResponse == null) {
-            return;
+        freeBuffers.clear();
+    }
+
+    /**
+     * Closes upstream connections that have not been reused in time.
+     */
+    private void evictIdleUpstreams() {
+        long now = System.currentTimeMillis();
+        for (List<IdleUpstream> idle : new ArrayList<List<IdleUpstream>>(idleUpstreams.values())) {
+            for (IdleUpstream upstream : new ArrayList<IdleUpstream>(idle)) {
+                if (now - upstream.idleSinceMsec > IDLE_UPSTREAM_TIMEOUT_MSEC) {
+                    upstream.close();
+                }
+            }
         }
+    }
 
-        Log.d(LOG_TAG, "downloading...");
+    private ByteBuffer obtainBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(RELAY_BUFFER_SIZE + HEADER_SLACK);
+        }
+        buffer.clear();
+        return buffer;
+    }
 
-        StatusLine line = realResponse.getStatusLine();
-        HttpResponse response = new BasicHttpResponse(line);
-        response.setHeaders(realResponse.getAllHeaders());
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (buffer != null && freeBuffers.size() < MAX_FREE_BUFFERS) {
+            freeBuffers.add(buffer);
+        }
+    }
 
-        Log.d(LOG_TAG, "reading headers");
-        StringBuilder httpString = new StringBuilder();
-        httpString.append(response.getStatusLine().toString());
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
 
-        int metaInterval = 0;
-        httpString.append("\r\n");
-        for (Header h : response.getAllHeaders()) {
-            httpString.append(h.getName()).append(": ").append(h.getValue()).append(
-                    "\r\n");
-            if (h.getName().equals("icy-metaint")) {
-                metaInterval = Integer.parseInt(h.getValue());
+    /**
+     * Returns the index of the end of the HTTP headers (the position right
+     * after the empty line) in the first length bytes of the buffer, or -1
+     * when the headers are not complete yet.
+     */
+    private static int findHeaderEnd(ByteBuffer buffer, int length) {
+        for (int i = 0; i + HEADER_END.length <= length; i++) {
+            int j = 0;
+            while (j < HEADER_END.length && buffer.get(i + j) == HEADER_END[j]) {
+                j++;
+            }
+            if (j == HEADER_END.length) {
+                return i + HEADER_END.length;
             }
         }
+        return -1;
+    }
 
+    private static String asciiString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(0);
+        src.limit(length);
+        src.get(bytes);
+        try {
+            return new String(bytes, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return new String(bytes);
+        }
+    }
 
-        httpString.append("\r\n");
-        Log.d(LOG_TAG, "headers done");
-        BufferedInputStream data = null;
 
-        try {
-            byte[] buffer = httpString.toString().getBytes();
-            int readBytes;
-            Log.d(LOG_TAG, "writing header to client");
-            client.getOutputStream().write(buffer, 0, buffer.length);
+    /**
+     * Kept-alive upstream connection, waiting to be reused.
+     */
+    private class IdleUpstream {
+        final String address;
+        final SocketChannel channel;
+        final long idleSinceMsec;
 
-            // Start streaming content.
-            Log.d(LOG_TAG, "writing stream to client");
+        IdleUpstream(String address, SocketChannel channel) {
+            this.address = address;
+            this.channel = channel;
+            this.idleSinceMsec = System.currentTimeMillis();
+        }
 
-            byte[] buff = new byte[1024 * 50];
-            if (metaInterval > 0) {
-                RWIcecastInputStream icy = new RWIcecastInputStream(realResponse.getEntity().getContent(),
-                        buff.length, metaInterval);
-                data = icy;
-                icy.setIcyMetaDataListener(metaDataListener);
-            } else {
-                data = new BufferedInputStream(realResponse.getEntity().getContent(), buff.length);
-            }
+        void close() {
+            remove();
+            closeQuietly(channel);
+        }
 
-            BufferedOutputStream bos = new BufferedOutputStream(client.getOutputStream());
-            while (isRunning && (readBytes = data.read(buff, 0, buff.length)) != -1) {
-                bos.write(buff, 0, readBytes);
-            }
-            bos.close();
-        } catch (Exception e) {
-            Log.d(LOG_TAG, e.getMessage(), e);
-        } finally {
-            if (data != null) {
-                data.close();
+        void remove() {
+            LinkedList<IdleUpstream> idle = idleUpstreams.get(address);
+            if (idle != null) {
+                idle.remove(this);
+                if (idle.isEmpty()) {
+                    idleUpstreams.remove(address);
+                }
             }
-            client.close();
         }
     }
 
-    private class IcyLineParser extends BasicLineParser {
-        private static final String ICY_PROTOCOL_NAME = "ICY";
 
-        private IcyLineParser() {
-            super();
+    /**
+     * A MediaPlayer request and the upstream connection serving it.
+     */
+    private class Connection {
+        static final int READ_REQUEST = 0;
+        static final int CONNECT = 1;
+        static final int SEND_REQUEST = 2;
+        static final int READ_HEADERS = 3;
+        static final int RELAY = 4;
+        static final int RESOLVE = 5;
+
+        final SocketChannel client;
+        SelectionKey clientKey;
+        SocketChannel upstream;
+        SelectionKey upstreamKey;
+        int state = READ_REQUEST;
+
+        URL upstreamUrl;
+        String upstreamAddress;
+        String upstreamHost;
+        int upstreamPort;
+        boolean upstreamReused;
+        ByteBuffer upstreamRequest;
+
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        // data read from upstream, with metadata kept in read mode until
+        // it has been demuxed to the client
+        ByteBuffer in;
+        // data to be written to the client, kept in fill mode
+        ByteBuffer out;
+
+        long contentRemaining = -1;
+        boolean keepAlive;
+        boolean responseDone;
+        int status;
+        String location;
+        int redirects;
+        RWChunkedDecoder chunked;
+
+        int metaInterval;
+        RWIcecastDemuxer demuxer;
+
+        Connection(SocketChannel client) {
+            this.client = client;
         }
 
-        @Override
-        public boolean hasProtocolVersion(CharArrayBuffer buffer,
-                                          ParserCursor cursor) {
-            boolean superFound = super.hasProtocolVersion(buffer, cursor);
-            if (superFound) {
-                return true;
+        void handleClient(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                if (state == READ_REQUEST) {
+                    readRequest();
+                } else {
+                    // nothing more is expected from the client, read only
+                    // to find out when it closes the connection
+                    discardBuffer.clear();
+                    if (client.read(discardBuffer) < 0) {
+                        Log.d(LOG_TAG, "client closed connection");
+                        close();
+                        return;
+                    }
+                }
             }
-            int index = cursor.getPos();
+            if (key.isValid() && key.isWritable()) {
+                if (out.position() > 0) {
+                    out.flip();
+                    client.write(out);
+                    out.compact();
+                }
+                if (out.position() == 0 && demuxer != null) {
+                    demuxer.demux(in, client);
+                }
+                if (!hasPendingOutput() && responseDone) {
+                    close();
+                    return;
+                }
+            }
+            updateInterest();
+        }
 
-            final int protolength = ICY_PROTOCOL_NAME.length();
+        void handleUpstream(SelectionKey key) throws IOException {
+            if (state == CONNECT && key.isConnectable()) {
+                if (upstream.finishConnect()) {
+                    state = SEND_REQUEST;
+                }
+            } else if (state == SEND_REQUEST && key.isWritable()) {
+                upstream.write(upstreamRequest);
+                if (!upstreamRequest.hasRemaining()) {
+                    state = READ_HEADERS;
+                }
+            } else if (state == READ_HEADERS && key.isReadable()) {
+                readResponseHeaders();
+            } else if (state == RELAY && key.isReadable()) {
+                readResponseBody();
+            }
+            if (clientKey.isValid()) {
+                updateInterest();
+            }
+        }
 
-            if (buffer.length() < protolength)
-                return false; // not long enough for "HTTP/1.1"
+        void upstreamFailed(IOException e) {
+            if (upstreamReused && (state == SEND_REQUEST || state == READ_HEADERS) && in.position() == 0) {
+                // a kept-alive connection was closed by the server before
+                // it was reused, try again with a new one
+                Log.d(LOG_TAG, "Reused upstream connection failed, reconnecting");
+                closeQuietly(upstream);
+                try {
+                    connectUpstream(false);
+                    updateInterest();
+                    return;
+                } catch (IOException ex) {
+                    e = ex;
+                }
+            }
+            Log.e(LOG_TAG, "Error downloading", e);
+            close();
+        }
 
-            if (index < 0) {
-                // end of line, no tolerance for trailing whitespace
-                // this works only for single-digit major and minor version
-                index = buffer.length() - protolength;
-            } else if (index == 0) {
-                // beginning of line, tolerate leading whitespace
-                while ((index < buffer.length()) &&
-                        HTTP.isWhitespace(buffer.charAt(index))) {
-                    index++;
+        private void readRequest() throws IOException {
+            if (client.read(request) < 0) {
+                Log.i(LOG_TAG, "Proxy client closed connection without a request.");
+                close();
+                return;
+            }
+            int end = findHeaderEnd(request, request.position());
+            if (end < 0) {
+                if (!request.hasRemaining()) {
+                    Log.e(LOG_TAG, "Error parsing request, too large");
+                    close();
                 }
-            } // else within line, don't tolerate whitespace
+                return;
+            }
 
-            return index + protolength <= buffer.length() &&
-                    buffer.substring(index, index + protolength).equals(ICY_PROTOCOL_NAME);
+            String firstLine = asciiString(request, end);
+            firstLine = firstLine.substring(0, firstLine.indexOf("\r\n"));
+            StringTokenizer st = new StringTokenizer(firstLine);
+            if (st.countTokens() < 2) {
+                Log.e(LOG_TAG, "Error parsing request: " + firstLine);
+                close();
+                return;
+            }
+            st.nextToken();
+            String uri = st.nextToken();
+            Log.d(LOG_TAG, uri);
+            String realUri = uri.substring(1);
+            Log.d(LOG_TAG, realUri);
+            request = null;
+
+            URL url;
+            try {
+                url = new URL(realUri);
+            } catch (MalformedURLException e) {
+                Log.e(LOG_TAG, "Error parsing request: " + realUri, e);
+                close();
+                return;
+            }
+            /* TODO add support for https?
+                Maybe copy class suggested here:
+                http://stackoverflow.com/questions/24104746/econnreset-connection-reset-by-peer-on-a-server-with-authentication
+             */
+            if (!"http".equalsIgnoreCase(url.getProtocol())) {
+                Log.e(LOG_TAG, "Unsupported protocol: " + url.getProtocol());
+                close();
+                return;
+            }
 
+            prepareRequest(url);
+            in = obtainBuffer();
+            out = obtainBuffer();
+            Log.d(LOG_TAG, "starting download");
+            connectUpstream(true);
         }
 
+        /**
+         * Sets up the upstream request for the specified http URL.
+         */
+        private void prepareRequest(URL url) throws IOException {
+            upstreamUrl = url;
+            upstreamHost = url.getHost();
+            upstreamPort = (url.getPort() > 0) ? url.getPort() : url.getDefaultPort();
+            upstreamAddress = upstreamHost + ":" + upstreamPort;
+            String path = url.getFile().length() > 0 ? url.getFile() : "/";
+            String hostHeader = (upstreamPort == 80) ? upstreamHost : upstreamAddress;
+            upstreamRequest = ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + hostHeader + "\r\n"
+                    + "Icy-MetaData: 1\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n").getBytes("ISO-8859-1"));
+        }
+
+        private void connectUpstream(boolean mayReuse) throws IOException {
+            upstreamRequest.rewind();
+            upstreamReused = false;
+            if (mayReuse) {
+                LinkedList<IdleUpstream> idle = idleUpstreams.get(upstreamAddress);
+                if (idle != null) {
+                    IdleUpstream reuse = idle.removeLast();
+                    reuse.remove();
+                    upstream = reuse.channel;
+                    upstreamKey = upstream.keyFor(selector);
+                    upstreamKey.attach(this);
+                    upstreamReused = true;
+                    state = SEND_REQUEST;
+                    return;
+                }
+            }
+            // resolving the host name can block, it is done on the
+            // resolver thread, which posts the result back
+            state = RESOLVE;
+            final String host = upstreamHost;
+            resolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    InetAddress address = null;
+                    try {
+                        address = InetAddress.getByName(host);
+                    } catch (UnknownHostException e) {
+                        // reported on the proxy thread
+                    }
+                    final InetAddress resolved = address;
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectResolved(resolved);
+                        }
+                    });
+                }
+            });
+        }
 
-        @Override
-        public ProtocolVersion parseProtocolVersion(CharArrayBuffer buffer,
-                                                    ParserCursor cursor) throws ParseException {
+        /**
+         * Connects to the resolved upstream address, called on the proxy
+         * thread. The address is null when the host could not be resolved.
+         */
+        void connectResolved(InetAddress address) {
+            if (state != RESOLVE || !connections.contains(this)) {
+                // closed in the meantime
+                return;
+            }
+            try {
+                if (address == null) {
+                    throw new UnknownHostException(upstreamHost);
+                }
+                upstream = SocketChannel.open();
+                upstream.configureBlocking(false);
+                if (upstream.connect(new InetSocketAddress(address, upstreamPort))) {
+                    state = SEND_REQUEST;
+                } else {
+                    state = CONNECT;
+                }
+                upstreamKey = upstream.register(selector, 0, this);
+                updateInterest();
+            } catch (IOException e) {
+                upstreamFailed(e);
+            }
+        }
 
-            if (buffer == null) {
-                throw new IllegalArgumentException("Char array buffer may not be null");
+        private void readResponseHeaders() throws IOException {
+            // leave room for the rewritten headers in the buffer to the client
+            in.limit(RELAY_BUFFER_SIZE);
+            int n = upstream.read(in);
+            if (n < 0) {
+                if (upstreamReused && in.position() == 0) {
+                    throw new IOException("Reused connection closed by server");
+                }
+                Log.e(LOG_TAG, "Error downloading, connection closed before response");
+                close();
+                return;
             }
-            if (cursor == null) {
-                throw new IllegalArgumentException("Parser cursor may not be null");
+            int end = findHeaderEnd(in, in.position());
+            if (end < 0) {
+                if (!in.hasRemaining()) {
+                    Log.e(LOG_TAG, "Error downloading, response headers too large");
+                    close();
+                }
+                return;
             }
 
-            final int protolength = ICY_PROTOCOL_NAME.length();
+            Log.d(LOG_TAG, "reading headers");
+            String headers = responseHeaders(asciiString(in, end));
+            if (location != null && isRedirect(status)) {
+                URL url = redirectUrl();
+                if (url != null) {
+                    followRedirect(url);
+                    return;
+                }
+            }
+            out.put(headers.getBytes("ISO-8859-1"));
+            Log.d(LOG_TAG, "headers done");
 
-            int indexFrom = cursor.getPos();
-            int indexTo = cursor.getUpperBound();
+            in.flip();
+            in.position(end);
+            if (chunked != null) {
+                in.limit(chunked.decode(in, in.position(), in.limit()));
+            }
+            state = RELAY;
+            Log.d(LOG_TAG, "writing stream to client");
+            relay(in.remaining());
+        }
 
-            skipWhitespace(buffer, cursor);
+        /**
+         * Parses the upstream response headers and returns the headers to
+         * be sent to the client. The ICY status line of SHOUTcast servers
+         * is changed into a regular HTTP one.
+         */
+        private String responseHeaders(String headers) {
+            String[] lines = headers.split("\r\n");
+            String statusLine = lines[0];
+            if (statusLine.startsWith("ICY")) {
+                statusLine = "HTTP/1.0" + statusLine.substring(3);
+            }
+            StringTokenizer st = new StringTokenizer(statusLine);
+            String version = st.hasMoreTokens() ? st.nextToken() : "";
+            status = 0;
+            try {
+                status = st.hasMoreTokens() ? Integer.parseInt(st.nextToken()) : 0;
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "Invalid status line: " + statusLine);
+            }
 
-            int i = cursor.getPos();
+            keepAlive = "HTTP/1.1".equals(version);
+            List<String> forward = new ArrayList<String>();
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("icy-metaint")) {
+                    try {
+                        metaInterval = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        Log.w(LOG_TAG, "Invalid icy-metaint: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentRemaining = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        Log.w(LOG_TAG, "Invalid Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive")
+                            || (keepAlive && !value.equalsIgnoreCase("close"));
+                    continue;
+                } else if (name.equalsIgnoreCase("Keep-Alive")) {
+                    continue;
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")
+                        && value.toLowerCase().contains("chunked")) {
+                    // decoded here, the client gets the plain body
+                    chunked = new RWChunkedDecoder();
+                    continue;
+                } else if (name.equalsIgnoreCase("Location")) {
+                    location = value;
+                }
+                forward.add(line);
+            }
 
-            // long enough for "HTTP/1.1"?
-            if (i + protolength + 4 > indexTo) {
-                throw new ParseException
-                        ("Not a valid protocol version: " +
-                                buffer.substring(indexFrom, indexTo));
+            if (chunked != null) {
+                // the chunks determine the length, not Content-Length
+                contentRemaining = -1;
+            }
+            if (status == 204 || status == 304 || (status >= 100 && status < 200)) {
+                contentRemaining = 0;
+                chunked = null;
             }
+            // only responses with a known end can be followed by another one
+            keepAlive = keepAlive && (chunked != null || contentRemaining >= 0);
+
+            StringBuilder httpString = new StringBuilder(statusLine).append("\r\n");
+            for (String line : forward) {
+                // metadata is removed from the stream, its interval and the
+                // original length do not apply to the client
+                if (metaInterval > 0 && (line.regionMatches(true, 0, "icy-metaint", 0, 11)
+                        || line.regionMatches(true, 0, "Content-Length", 0, 14))) {
+                    continue;
+                }
+                if (chunked != null && line.regionMatches(true, 0, "Content-Length", 0, 14)) {
+                    continue;
+                }
+                httpString.append(line).append("\r\n");
+            }
+            httpString.append("Connection: close\r\n\r\n");
 
-            // check the protocol name and slash
-            if (!buffer.substring(i, i + protolength).equals(ICY_PROTOCOL_NAME)) {
-                return super.parseProtocolVersion(buffer, cursor);
+            if (metaInterval > 0) {
+                demuxer = new RWIcecastDemuxer(metaInterval);
+                demuxer.setIcyMetaDataListener(metaDataListener);
             }
+            return httpString.toString();
+        }
 
-            cursor.updatePos(i + protolength);
+        private boolean isRedirect(int status) {
+            return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+        }
 
-            return createProtocolVersion(1, 0);
+        /**
+         * Returns the http URL the response redirects to, or null when the
+         * proxy cannot follow it. Such a redirect (e.g. to https) is passed
+         * on to the client, which can follow it itself.
+         */
+        private URL redirectUrl() {
+            try {
+                URL url = new URL(upstreamUrl, location);
+                if ("http".equalsIgnoreCase(url.getProtocol())) {
+                    return url;
+                }
+                Log.w(LOG_TAG, "Passing on redirect to " + url);
+            } catch (MalformedURLException e) {
+                Log.w(LOG_TAG, "Invalid redirect: " + location, e);
+            }
+            return null;
         }
 
-        @Override
-        public StatusLine parseStatusLine(CharArrayBuffer buffer,
-                                          ParserCursor cursor) throws ParseException {
-            return super.parseStatusLine(buffer, cursor);
+        /**
+         * Requests the location of a redirect response instead, like the
+         * HttpClient of the old proxy did, up to MAX_REDIRECTS times.
+         */
+        private void followRedirect(URL url) throws IOException {
+            // the body of the redirect is not read, so the connection
+            // cannot be reused
+            closeQuietly(upstream);
+            upstream = null;
+            upstreamKey = null;
+
+            if (++redirects > MAX_REDIRECTS) {
+                Log.e(LOG_TAG, "Error downloading, too many redirects");
+                close();
+                return;
+            }
+            Log.d(LOG_TAG, "redirected to " + url);
+
+            status = 0;
+            location = null;
+            contentRemaining = -1;
+            keepAlive = false;
+            metaInterval = 0;
+            demuxer = null;
+            chunked = null;
+            in.clear();
+            prepareRequest(url);
+            connectUpstream(true);
+        }
+
+        private void readResponseBody() throws IOException {
+            int n;
+            if (demuxer != null) {
+                in.clear();
+                in.limit(RELAY_BUFFER_SIZE);
+                n = upstream.read(in);
+                in.flip();
+                if (n > 0 && chunked != null) {
+                    in.limit(chunked.decode(in, in.position(), in.limit()));
+                }
+                if (n > 0) {
+                    demuxer.demux(in, client);
+                }
+            } else {
+                // without metadata the stream is read straight into the
+                // buffer to the client
+                int start = out.position();
+                n = upstream.read(out);
+                if (n > 0 && chunked != null) {
+                    out.position(chunked.decode(out, start, out.position()));
+                }
+            }
+            if (n < 0) {
+                Log.d(LOG_TAG, "upstream closed connection");
+                closeQuietly(upstream);
+                upstream = null;
+                finishResponse();
+                return;
+            }
+            relay(n);
         }
-    }
 
-    class MyClientConnection extends DefaultClientConnection {
-        @Override
-        protected HttpMessageParser createResponseParser(
-                final SessionInputBuffer buffer,
-                final HttpResponseFactory responseFactory, final HttpParams params) {
-            return new DefaultResponseParser(buffer, new IcyLineParser(),
-                    responseFactory, params);
+        /**
+         * Accounts for n bytes of the response body received from upstream.
+         */
+        private void relay(int n) {
+            if (demuxer == null && in.hasRemaining()) {
+                // body bytes received together with the headers
+                out.put(in);
+            }
+            if (chunked != null) {
+                if (chunked.isDone()) {
+                    finishResponse();
+                }
+            } else if (contentRemaining >= 0) {
+                contentRemaining -= n;
+                if (contentRemaining <= 0) {
+                    // anything beyond the announced length is a protocol
+                    // error, do not reuse the connection then
+                    keepAlive = keepAlive && contentRemaining == 0;
+                    finishResponse();
+                }
+            }
         }
-    }
 
-    class MyClientConnectionOperator extends DefaultClientConnectionOperator {
-        public MyClientConnectionOperator(final SchemeRegistry sr) {
-            super(sr);
+        /**
+         * Returns true when data received from upstream still has to be
+         * written to the client.
+         */
+        private boolean hasPendingOutput() {
+            return (out != null && out.position() > 0)
+                    || (demuxer != null && in != null && (in.hasRemaining() || demuxer.hasPendingAudio()));
         }
 
-        @Override
-        public OperatedClientConnection createConnection() {
-            return new MyClientConnection();
+        /**
+         * Called when the complete response has been received from
+         * upstream. The upstream connection is kept for reuse when
+         * possible, and the client is closed once everything is written.
+         */
+        private void finishResponse() {
+            responseDone = true;
+            if (upstream != null) {
+                if (keepAlive) {
+                    IdleUpstream idle = new IdleUpstream(upstreamAddress, upstream);
+                    LinkedList<IdleUpstream> list = idleUpstreams.get(upstreamAddress);
+                    if (list == null) {
+                        list = new LinkedList<IdleUpstream>();
+                        idleUpstreams.put(upstreamAddress, list);
+                    }
+                    list.add(idle);
+                    upstreamKey.attach(idle);
+                    upstreamKey.interestOps(SelectionKey.OP_READ);
+                } else {
+                    closeQuietly(upstream);
+                }
+                upstream = null;
+                upstreamKey = null;
+            }
+            if (!hasPendingOutput()) {
+                close();
+            }
         }
-    }
 
-    class MyClientConnManager extends SingleClientConnManager {
-        private MyClientConnManager(HttpParams params, SchemeRegistry schreg) {
-            super(params, schreg);
+        private void updateInterest() {
+            if (!clientKey.isValid()) {
+                return;
+            }
+            boolean pending = hasPendingOutput();
+            clientKey.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+
+            if (upstreamKey != null && upstreamKey.isValid()) {
+                int ops = 0;
+                if (state == CONNECT) {
+                    ops = SelectionKey.OP_CONNECT;
+                } else if (state == SEND_REQUEST) {
+                    ops = SelectionKey.OP_WRITE;
+                } else if (state == READ_HEADERS) {
+                    ops = SelectionKey.OP_READ;
+                } else if (state == RELAY && !pending) {
+                    // only read more when the client has everything
+                    ops = SelectionKey.OP_READ;
+                }
+                upstreamKey.interestOps(ops);
+            }
         }
 
-        @Override
-        protected ClientConnectionOperator createConnectionOperator(
-                final SchemeRegistry sr) {
-            return new MyClientConnectionOperator(sr);
+        void close() {
+            if (!connections.remove(this)) {
+                return;
+            }
+            closeQuietly(client);
+            closeQuietly(upstream);
+            upstream = null;
+            releaseBuffer(in);
+            releaseBuffer(out);
+            in = null;
+            out = null;
         }
     }
 }
@@ -4,16 +4,31 @@
  */
 package org.roundware.service;
 
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.SparseArray;
+
+import org.roundware.service.util.RWJsonHelper;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 
 /**
@@ -22,6 +37,12 @@ import java.util.List;
  * tag has a number of options, of which none, one or multiple can be
  * selected. The tag_id of selected options is supposed to be unique and
  * included in server calls.
+ *
+ * Lookups go through an immutable Index, built when the tags change, with
+ * the tags by type, by code and type, and by order, and the options by
+ * tag_id. Filtered instances are views that share the index of the
+ * instance they were created from, instead of copying the tags. Changing
+ * a view, e.g. with addTag(), gives it an index of its own.
  * 
  * @author Rob Knapen
  */
@@ -64,10 +85,18 @@ public class RWTags {
     private final static String JSON_SYNTAX_ERROR_MESSAGE = "Invalid JSON data!";
     private static final String CODE_PHYSICAL_OBJECT = "physical_object";
 
+    // version of the binary snapshot format, change when it is modified
+    public final static int SNAPSHOT_VERSION = 1;
+
     private int mDataSource = DEFAULTS;
 
-    // collection of all tags
-    private List<RWTag> mAllTags = new ArrayList<RWTag>();
+    // lookup tables for all tags, shared with filtered views
+    private Index mIndex = new Index(new ArrayList<RWTag>());
+
+    // filter of a view on the index, null for all tags
+    private String mViewType;
+    private String mViewCode;
+    private List<RWTag> mViewTags;
 
     // data for a single tag, including all options
     public class RWTag {
@@ -181,7 +210,7 @@ public class RWTags {
         public int order;
         public int tagId;
         public String value;
-        public ArrayList<Integer> relatedTagIds = new ArrayList<Integer>();
+        public int[] relatedTagIds = new int[0];
         public boolean selectByDefault;
 
         /* (non-Javadoc)
@@ -194,12 +223,122 @@ public class RWTags {
     }
 
 
+    /**
+     * Immutable lookup tables for a list of tags. Keys of types and codes
+     * are lower case, lookups return the first match in list order.
+     */
+    private static class Index {
+        final List<RWTag> tags;
+        final Map<String, List<RWTag>> byType = new HashMap<String, List<RWTag>>();
+        final Map<String, List<RWTag>> byCodeAndType = new HashMap<String, List<RWTag>>();
+        final SparseArray<RWTag> byOrder = new SparseArray<RWTag>();
+        final Map<String, SparseArray<RWTag>> byTypeAndOrder = new HashMap<String, SparseArray<RWTag>>();
+        final SparseArray<RWOption> optionsByTagId = new SparseArray<RWOption>();
+        final SparseArray<RWTag> tagsByOptionTagId = new SparseArray<RWTag>();
+
+        Index(List<RWTag> tags) {
+            this.tags = Collections.unmodifiableList(tags);
+            for (RWTag tag : tags) {
+                if (byOrder.get(tag.order) == null) {
+                    byOrder.put(tag.order, tag);
+                }
+                for (RWOption option : tag.options) {
+                    if (optionsByTagId.get(option.tagId) == null) {
+                        optionsByTagId.put(option.tagId, option);
+                        tagsByOptionTagId.put(option.tagId, tag);
+                    }
+                }
+                if (tag.type == null) {
+                    continue;
+                }
+                String type = key(tag.type);
+                add(byType, type, tag);
+                SparseArray<RWTag> orders = byTypeAndOrder.get(type);
+                if (orders == null) {
+                    orders = new SparseArray<RWTag>();
+                    byTypeAndOrder.put(type, orders);
+                }
+                if (orders.get(tag.order) == null) {
+                    orders.put(tag.order, tag);
+                }
+                if (tag.code != null) {
+                    add(byCodeAndType, codeAndTypeKey(tag.code, tag.type), tag);
+                }
+            }
+        }
+
+        private static void add(Map<String, List<RWTag>> map, String key, RWTag tag) {
+            List<RWTag> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<RWTag>();
+                map.put(key, list);
+            }
+            list.add(tag);
+        }
+
+        static String key(String value) {
+            return value.toLowerCase(Locale.US);
+        }
+
+        static String codeAndTypeKey(String code, String type) {
+            return key(type) + '\n' + key(code);
+        }
+    }
+
+
     /**
      * Creates an empty instance.
      */
     public RWTags() {
         super();
         mDataSource = DEFAULTS;
+        mViewTags = mIndex.tags;
+    }
+
+
+    /**
+     * Creates a view on the index, for the tags matching the specified
+     * type and optionally code.
+     */
+    private RWTags(Index index, int dataSource, String type, String code) {
+        mIndex = index;
+        mDataSource = dataSource;
+        mViewType = type;
+        mViewCode = code;
+        List<RWTag> tags;
+        if (code != null) {
+            tags = index.byCodeAndType.get(Index.codeAndTypeKey(code, type));
+        } else {
+            tags = index.byType.get(Index.key(type));
+        }
+        mViewTags = (tags != null) ? Collections.unmodifiableList(tags) : Collections.<RWTag>emptyList();
+    }
+
+
+    /**
+     * Replaces the tags with the specified ones, building a new index.
+     * A view stops being a view.
+     */
+    private void setTags(List<RWTag> tags) {
+        mIndex = new Index(tags);
+        mViewType = null;
+        mViewCode = null;
+        mViewTags = mIndex.tags;
+    }
+
+
+    /**
+     * Returns true when the tag is part of this instance, i.e. it matches
+     * the filter of a view.
+     */
+    private boolean inView(RWTag tag) {
+        if (mViewType == null) {
+            return true;
+        }
+        if ((tag.type == null) || !mViewType.equalsIgnoreCase(tag.type)) {
+            return false;
+        }
+        return (mViewCode == null) || mViewCode.equalsIgnoreCase(tag.code);
     }
 
 
@@ -212,18 +351,55 @@ public class RWTags {
      * @param dataSource of json data (DEFAULTS, FROM_CACHE, FROM_SERVER)
      */
     public void fromJson(String jsonResponse, int dataSource) {
-        mAllTags.clear();
-        mDataSource = dataSource;
-
         if (D) { Log.d(TAG, "Creating tags from json: " + jsonResponse); }
+        fromJson(new StringReader(jsonResponse), dataSource);
+    }
+
+
+    /**
+     * Replaces the tags with the tags in the specified JSON data, e.g.
+     * read straight from a server response or a cache file. The RWTag and
+     * RWOption instances are filled in while the data is read, without
+     * building a JSON object tree first. Listen tags are placed before
+     * speak tags.
+     *
+     * When the data is not valid JSON there will be no tags. When a tag
+     * is missing a required value, the tags read before it are kept.
+     *
+     * @param in to read the JSON data from, it is not closed
+     * @param dataSource of json data (DEFAULTS, FROM_CACHE, FROM_SERVER)
+     */
+    public void fromJson(Reader in, int dataSource) {
+        List<RWTag> tags = new ArrayList<RWTag>();
+        List<RWTag> speakTags = new ArrayList<RWTag>();
+        mDataSource = dataSource;
 
         try {
-            JSONObject root = new JSONObject(jsonResponse);
-            parseTagsFromJson(JSON_KEY_MODE_LISTEN, root);
-            parseTagsFromJson(JSON_KEY_MODE_SPEAK, root);
+            JsonReader reader = RWJsonHelper.createReader(in);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (JSON_KEY_MODE_LISTEN.equals(name)) {
+                    parseTagsFromJson(JSON_KEY_MODE_LISTEN, reader, tags);
+                } else if (JSON_KEY_MODE_SPEAK.equals(name)) {
+                    parseTagsFromJson(JSON_KEY_MODE_SPEAK, reader, speakTags);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            Log.e(TAG, JSON_SYNTAX_ERROR_MESSAGE, e);
+            tags.clear();
+            speakTags.clear();
+        } catch (IllegalStateException e) {
+            // value of an unexpected type
+            Log.e(TAG, JSON_SYNTAX_ERROR_MESSAGE, e);
         } catch (JSONException e) {
             Log.e(TAG, JSON_SYNTAX_ERROR_MESSAGE, e);
         }
+        tags.addAll(speakTags);
+        setTags(tags);
     }
 
 
@@ -237,7 +413,7 @@ public class RWTags {
         JSONArray speakEntries = new JSONArray();
 
         // create json data for each tag
-        for (RWTag tag : mAllTags) {
+        for (RWTag tag : mViewTags) {
             JSONObject jsonEntry = new JSONObject();
             try {
                 // store the basic properties
@@ -265,7 +441,7 @@ public class RWTags {
 
                     // add related tag ids
                     JSONArray jsonRelatedTagIds = new JSONArray();
-                    for (Integer relatedTagId : option.relatedTagIds) {
+                    for (int relatedTagId : option.relatedTagIds) {
                         jsonRelatedTagIds.put(relatedTagId);
                     }
                     jsonOption.put(JSON_KEY_TAG_OPTION_RELATIONSHIPS, jsonRelatedTagIds);
@@ -319,60 +495,264 @@ public class RWTags {
 
 
     /**
-     * Parse a hierarchical subsection with data for a tag type of the JSON
-     * data.
+     * Creates a binary snapshot of the tags, that can be restored with
+     * fromSnapshot() without parsing JSON data again, e.g. when the tags
+     * are loaded from the cache on start up.
      *
-     * @param type to create tags for
-     * @param root of the JSON data returned by the server
-     * @throws JSONException on parse problems
+     * @return snapshot data, or null when it could not be created
      */
-    private void parseTagsFromJson(String type, JSONObject root) throws JSONException {
-        if (root.has(type)) {
-            JSONArray entries = root.getJSONArray(type);
-            for (int i = 0; i < entries.length(); i++) {
-                JSONObject jsonObj = entries.getJSONObject(i);
-                RWTag tag = new RWTag();
-                tag.type = type;
-                tag.code = jsonObj.optString(JSON_KEY_TAG_CODE);
-                tag.name = jsonObj.optString(JSON_KEY_TAG_NAME);
-                tag.headerText = jsonObj.optString(JSON_KEY_TAG_HEADER_TEXT);
-                tag.order = jsonObj.optInt(JSON_KEY_TAG_ORDER);
-                tag.select = jsonObj.getString(JSON_KEY_TAG_SELECTION_TYPE);
-
-                // retrieve tagIds of options selected by default
-                tag.defaultOptionsTagIds.clear();
-                JSONArray defaults = jsonObj.getJSONArray(JSON_KEY_TAG_DEFAULT_OPTIONS);
-                for (int j = 0; j < defaults.length(); j++) {
-                    tag.defaultOptionsTagIds.add(defaults.getInt(j));
+    public byte[] toSnapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(mViewTags.size());
+            for (RWTag tag : mViewTags) {
+                writeSnapshotString(out, tag.code);
+                writeSnapshotString(out, tag.name);
+                writeSnapshotString(out, tag.headerText);
+                out.writeInt(tag.order);
+                writeSnapshotString(out, tag.select);
+                writeSnapshotString(out, tag.type);
+                out.writeInt(tag.defaultOptionsTagIds.size());
+                for (Integer tagId : tag.defaultOptionsTagIds) {
+                    out.writeInt(tagId);
+                }
+                out.writeInt(tag.options.size());
+                for (RWOption o : tag.options) {
+                    writeSnapshotString(out, o.data);
+                    writeSnapshotString(out, o.description);
+                    out.writeInt(o.order);
+                    out.writeInt(o.tagId);
+                    writeSnapshotString(out, o.value);
+                    out.writeInt(o.relatedTagIds.length);
+                    for (int relatedTagId : o.relatedTagIds) {
+                        out.writeInt(relatedTagId);
+                    }
+                    out.writeBoolean(o.selectByDefault);
                 }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // e.g. a string longer than the snapshot format supports
+            Log.e(TAG, "Could not create snapshot of tags", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
 
-                JSONArray options = jsonObj.getJSONArray(JSON_KEY_TAG_OPTIONS);
-                for (int j = 0; j < options.length(); j++) {
-                    JSONObject option = options.getJSONObject(j);
+
+    /**
+     * Replaces the tags with the tags in the specified snapshot, created
+     * by toSnapshot(). When the snapshot is damaged the tags are not
+     * changed.
+     *
+     * @param snapshot data to restore the tags from
+     * @param dataSource of the snapshot data (DEFAULTS, FROM_CACHE, FROM_SERVER)
+     * @return true if successful
+     */
+    public boolean fromSnapshot(byte[] snapshot, int dataSource) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        try {
+            int tagCount = in.readInt();
+            List<RWTag> tags = new ArrayList<RWTag>(Math.max(0, Math.min(tagCount, 1024)));
+            for (int i = 0; i < tagCount; i++) {
+                RWTag tag = new RWTag();
+                tag.code = readSnapshotString(in);
+                tag.name = readSnapshotString(in);
+                tag.headerText = readSnapshotString(in);
+                tag.order = in.readInt();
+                tag.select = readSnapshotString(in);
+                tag.type = readSnapshotString(in);
+                int defaultsCount = in.readInt();
+                for (int j = 0; j < defaultsCount; j++) {
+                    tag.defaultOptionsTagIds.add(in.readInt());
+                }
+                int optionCount = in.readInt();
+                for (int j = 0; j < optionCount; j++) {
                     RWOption o = new RWOption();
-                    o.order = option.getInt(JSON_KEY_TAG_OPTION_ORDER);
-                    o.data = option.getString(JSON_KEY_TAG_OPTION_DATA);
-                    o.description = option.optString(JSON_KEY_TAG_OPTION_DESCRIPTION);
-                    o.tagId = option.getInt(JSON_KEY_TAG_OPTION_ID);
-                    o.value = option.getString(JSON_KEY_TAG_OPTION_VALUE);
-
-                    // relationships to other tag options (ids)
-                    o.relatedTagIds.clear();
-                    JSONArray relatedTagIds = option.getJSONArray(JSON_KEY_TAG_OPTION_RELATIONSHIPS);
-                    for (int k = 0; k < relatedTagIds.length(); k++) {
-                        o.relatedTagIds.add(relatedTagIds.getInt(k));
+                    o.data = readSnapshotString(in);
+                    o.description = readSnapshotString(in);
+                    o.order = in.readInt();
+                    o.tagId = in.readInt();
+                    o.value = readSnapshotString(in);
+                    int relatedCount = in.readInt();
+                    if ((relatedCount < 0) || (relatedCount > in.available() / 4)) {
+                        throw new IOException("Invalid snapshot data");
+                    }
+                    o.relatedTagIds = new int[relatedCount];
+                    for (int k = 0; k < relatedCount; k++) {
+                        o.relatedTagIds[k] = in.readInt();
                     }
+                    o.selectByDefault = in.readBoolean();
+                    tag.options.add(o);
+                }
+                tags.add(tag);
+            }
+            if (in.available() != 0) {
+                throw new IOException("Invalid snapshot data");
+            }
+            mDataSource = dataSource;
+            setTags(tags);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not restore tags from snapshot", e);
+            return false;
+        }
+    }
 
-                    // check if option needs to be selected by default
-                    o.selectByDefault = tag.defaultOptionsTagIds.contains(o.tagId);
 
-                    tag.options.add(o);
+    private static void writeSnapshotString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+
+    private static String readSnapshotString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+
+    /**
+     * Parse a hierarchical subsection with data for a tag type of the JSON
+     * data.
+     *
+     * @param type to create tags for
+     * @param reader positioned at the array of tags of the type
+     * @param tags to add the created tags to
+     * @throws IOException on read or syntax errors
+     * @throws JSONException when required values are missing
+     */
+    private void parseTagsFromJson(String type, JsonReader reader, List<RWTag> tags) throws IOException, JSONException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            RWTag tag = new RWTag();
+            tag.type = type;
+            tag.code = "";
+            tag.name = "";
+            tag.headerText = "";
+            boolean hasDefaults = false;
+            boolean hasOptions = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (JSON_KEY_TAG_CODE.equals(name)) {
+                    tag.code = RWJsonHelper.nextString(reader, "");
+                } else if (JSON_KEY_TAG_NAME.equals(name)) {
+                    tag.name = RWJsonHelper.nextString(reader, "");
+                } else if (JSON_KEY_TAG_HEADER_TEXT.equals(name)) {
+                    tag.headerText = RWJsonHelper.nextString(reader, "");
+                } else if (JSON_KEY_TAG_ORDER.equals(name)) {
+                    tag.order = RWJsonHelper.nextInt(reader, 0);
+                } else if (JSON_KEY_TAG_SELECTION_TYPE.equals(name)) {
+                    tag.select = RWJsonHelper.requireString(reader, name);
+                } else if (JSON_KEY_TAG_DEFAULT_OPTIONS.equals(name)) {
+                    // retrieve tagIds of options selected by default
+                    tag.defaultOptionsTagIds.clear();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tag.defaultOptionsTagIds.add(RWJsonHelper.requireInt(reader, name));
+                    }
+                    reader.endArray();
+                    hasDefaults = true;
+                } else if (JSON_KEY_TAG_OPTIONS.equals(name)) {
+                    tag.options.clear();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tag.options.add(parseOptionFromJson(reader));
+                    }
+                    reader.endArray();
+                    hasOptions = true;
+                } else {
+                    reader.skipValue();
                 }
+            }
+            reader.endObject();
+
+            if (tag.select == null) {
+                throw new JSONException("No value for " + JSON_KEY_TAG_SELECTION_TYPE);
+            } else if (!hasDefaults) {
+                throw new JSONException("No value for " + JSON_KEY_TAG_DEFAULT_OPTIONS);
+            } else if (!hasOptions) {
+                throw new JSONException("No value for " + JSON_KEY_TAG_OPTIONS);
+            }
+
+            // check if options need to be selected by default
+            for (RWOption o : tag.options) {
+                o.selectByDefault = tag.defaultOptionsTagIds.contains(o.tagId);
+            }
+
+            sortOptionsByOrder(tag);
+            tags.add(tag);
+        }
+        reader.endArray();
+    }
+
 
-                sortOptionsByOrder(tag);
-                mAllTags.add(tag);
+    /**
+     * Parse the data for a single tag option.
+     *
+     * @param reader positioned at the option object
+     * @return the created option
+     * @throws IOException on read or syntax errors
+     * @throws JSONException when required values are missing
+     */
+    private RWOption parseOptionFromJson(JsonReader reader) throws IOException, JSONException {
+        RWOption o = new RWOption();
+        o.description = "";
+        boolean hasOrder = false;
+        boolean hasTagId = false;
+        boolean hasRelationships = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_KEY_TAG_OPTION_ORDER.equals(name)) {
+                o.order = RWJsonHelper.requireInt(reader, name);
+                hasOrder = true;
+            } else if (JSON_KEY_TAG_OPTION_DATA.equals(name)) {
+                o.data = RWJsonHelper.requireString(reader, name);
+            } else if (JSON_KEY_TAG_OPTION_DESCRIPTION.equals(name)) {
+                o.description = RWJsonHelper.nextString(reader, "");
+            } else if (JSON_KEY_TAG_OPTION_ID.equals(name)) {
+                o.tagId = RWJsonHelper.requireInt(reader, name);
+                hasTagId = true;
+            } else if (JSON_KEY_TAG_OPTION_VALUE.equals(name)) {
+                o.value = RWJsonHelper.requireString(reader, name);
+            } else if (JSON_KEY_TAG_OPTION_RELATIONSHIPS.equals(name)) {
+                // relationships to other tag options (ids)
+                int[] ids = new int[8];
+                int count = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = RWJsonHelper.requireInt(reader, name);
+                }
+                reader.endArray();
+                o.relatedTagIds = Arrays.copyOf(ids, count);
+                hasRelationships = true;
+            } else {
+                reader.skipValue();
             }
         }
+        reader.endObject();
+
+        if (!hasOrder) {
+            throw new JSONException("No value for " + JSON_KEY_TAG_OPTION_ORDER);
+        } else if (o.data == null) {
+            throw new JSONException("No value for " + JSON_KEY_TAG_OPTION_DATA);
+        } else if (!hasTagId) {
+            throw new JSONException("No value for " + JSON_KEY_TAG_OPTION_ID);
+        } else if (o.value == null) {
+            throw new JSONException("No value for " + JSON_KEY_TAG_OPTION_VALUE);
+        } else if (!hasRelationships) {
+            throw new JSONException("No value for " + JSON_KEY_TAG_OPTION_RELATIONSHIPS);
+        }
+        return o;
     }
 
 
@@ -380,7 +760,38 @@ public class RWTags {
      * Sorts the tags on the order field.
      */
     public void sortByOrder() {
-        Collections.sort(mAllTags, new TagOrderComparator());
+        List<RWTag> tags = new ArrayList<RWTag>(mViewTags);
+        Collections.sort(tags, new TagOrderComparator());
+        setTags(tags);
+    }
+
+
+    /**
+     * Adds a tag, e.g. one created by the app that is not in the tags
+     * data returned by the server.
+     *
+     * @param tag to add
+     */
+    public void addTag(RWTag tag) {
+        List<RWTag> tags = new ArrayList<RWTag>(mViewTags);
+        tags.add(tag);
+        setTags(tags);
+    }
+
+
+    /**
+     * Removes a tag, e.g. one that the app does not show.
+     *
+     * @param tag to remove
+     * @return true if the tag was removed
+     */
+    public boolean removeTag(RWTag tag) {
+        List<RWTag> tags = new ArrayList<RWTag>(mViewTags);
+        if (!tags.remove(tag)) {
+            return false;
+        }
+        setTags(tags);
+        return true;
     }
 
 
@@ -423,12 +834,13 @@ public class RWTags {
 
 
     /**
-     * Returns the data of all stored tags.
+     * Returns the data of all stored tags. Use addTag() and removeTag() to
+     * change the tags.
      *
-     * @return all tags as a list
+     * @return all tags as an unmodifiable list
      */
     public List<RWTag> getTags() {
-        return mAllTags;
+        return mViewTags;
     }
 
 
@@ -444,41 +856,46 @@ public class RWTags {
 
 
     /**
-     * Returns a subset of the tags in a new RWTags instance for the specified
-     * type.
+     * Sets the data source of the tags, e.g. when the server confirmed
+     * that the cached tags are still up to date.
+     *
+     * @param dataSource of tags data (DEFAULTS, FROM_CACHE, FROM_SERVER)
+     */
+    public void setDataSource(int dataSource) {
+        mDataSource = dataSource;
+    }
+
+
+    /**
+     * Returns a subset of the tags for the specified type, as a view that
+     * shares the index of this instance.
      *
      * @param type of tag to create the subset for
-     * @return new RWTags instance with the matching tags
+     * @return RWTags instance with the matching tags
      */
     public RWTags filterByType(String type) {
-        RWTags result = new RWTags();
-        for (RWTag t : mAllTags) {
-            if ((type != null) && (type.equalsIgnoreCase(t.type))) {
-                result.mAllTags.add(t);
-            }
+        if ((type == null) || ((mViewType != null) && !mViewType.equalsIgnoreCase(type))) {
+            return new RWTags();
         }
-        return result;
+        return new RWTags(mIndex, mDataSource, type, mViewCode);
     }
 
 
     /**
-     * Returns a subset of the tags in a new RWTags instance for the specified
-     * code and type.
+     * Returns a subset of the tags for the specified code and type, as a
+     * view that shares the index of this instance.
      *
      * @param code of tag to create the subset for
      * @param type of tag to create the subset for
-     * @return new RWTags instance with the matching tags
+     * @return RWTags instance with the matching tags
      */
     public RWTags filterByCodeAndType(String code, String type) {
-        RWTags result = new RWTags();
-        for (RWTag t : mAllTags) {
-            if ((code != null) && (code.equalsIgnoreCase(t.code))) {
-                if ((type != null) && (type.equalsIgnoreCase(t.type))) {
-                    result.mAllTags.add(t);
-                }
-            }
+        if ((code == null) || (type == null)
+                || ((mViewType != null) && !mViewType.equalsIgnoreCase(type))
+                || ((mViewCode != null) && !mViewCode.equalsIgnoreCase(code))) {
+            return new RWTags();
         }
-        return result;
+        return new RWTags(mIndex, mDataSource, type, code);
     }
 
 
@@ -489,7 +906,14 @@ public class RWTags {
      * @return tag with matching order value, or null
      */
     public RWTag findTagByOrder(int order) {
-        for (RWTag t : mAllTags) {
+        if (mViewType == null) {
+            return mIndex.byOrder.get(order);
+        } else if (mViewCode == null) {
+            SparseArray<RWTag> orders = mIndex.byTypeAndOrder.get(Index.key(mViewType));
+            return (orders != null) ? orders.get(order) : null;
+        }
+        // view on code and type, usually a single tag
+        for (RWTag t : mViewTags) {
             if (t.order == order) {
                 return t;
             }
@@ -506,14 +930,42 @@ public class RWTags {
      * @return tag with matching code and type values, or null
      */
     public RWTag findTagByCodeAndType(String code, String type) {
-        for (RWTag t : mAllTags) {
-            if ((code != null) && (code.equalsIgnoreCase(t.code))) {
-                if ((type != null) && (type.equalsIgnoreCase(t.type))) {
-                    return t;
-                }
-            }
+        if ((code == null) || (type == null)) {
+            return null;
         }
-        return null;
+        List<RWTag> tags = mIndex.byCodeAndType.get(Index.codeAndTypeKey(code, type));
+        if ((tags == null) || !inView(tags.get(0))) {
+            return null;
+        }
+        return tags.get(0);
+    }
+
+
+    /**
+     * Returns the option with the specified tag_id, if it exists.
+     *
+     * @param tagId of the option
+     * @return option with matching tag_id, or null
+     */
+    public RWOption findOptionByTagId(int tagId) {
+        RWTag tag = mIndex.tagsByOptionTagId.get(tagId);
+        if ((tag == null) || !inView(tag)) {
+            return null;
+        }
+        return mIndex.optionsByTagId.get(tagId);
+    }
+
+
+    /**
+     * Returns the tag that has the option with the specified tag_id, if
+     * it exists.
+     *
+     * @param tagId of the option
+     * @return tag with the option, or null
+     */
+    public RWTag findTagByOptionTagId(int tagId) {
+        RWTag tag = mIndex.tagsByOptionTagId.get(tagId);
+        return ((tag != null) && inView(tag)) ? tag : null;
     }
 
 }
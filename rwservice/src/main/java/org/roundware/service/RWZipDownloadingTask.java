@@ -4,15 +4,36 @@
  */
 package org.roundware.service;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
+
+import org.roundware.service.util.RWZipManifest;
 
 import android.os.AsyncTask;
 import android.util.Log;
@@ -22,6 +43,25 @@ import android.util.Log;
  * Asynchronous task that handles the downloading and unpacking of a zip
  * file.
  * 
+ * The zip file is downloaded to a temporary file next to the target
+ * directory first. When the download is interrupted, e.g. by a flaky
+ * network connection, it is resumed with an HTTP Range request, both in
+ * the next attempt of the task and by a later task for the same URL, as
+ * long as the file on the server has not changed. The completed download
+ * is checked against its length, and the CRC32 checksum of every file in
+ * it is checked while extracting. Files are extracted into a staging
+ * directory that replaces the target directory when all is done, so the
+ * target directory is never left half updated.
+ * 
+ * A manifest of the installed files is kept in the target directory. When
+ * it is available only the files that have changed are downloaded: the
+ * checksums and sizes in the central directory at the end of the new zip
+ * file are compared with the manifest, and the changed files are retrieved
+ * with HTTP Range requests, a few at the same time. Unchanged files are
+ * copied from the installed files, and the result is swapped in the same
+ * way. When the server does not support Range requests, or most of the
+ * files have changed, the whole zip file is downloaded instead.
+ * 
  * @author Rob Knapen
  */
 public class RWZipDownloadingTask extends AsyncTask<Void, Void, String> {
@@ -32,12 +72,48 @@ public class RWZipDownloadingTask extends AsyncTask<Void, Void, String> {
 
     private static final int DOWNLOADING_EVENT_INTERVAL_MSEC = 2000; // 2.0 sec between updates
 
+    // downloading and unpacking
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MSEC = 30000;
+    private static final int READ_TIMEOUT_MSEC = 30000;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int RETRY_DELAY_MSEC = 2000;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // files next to the target directory
+    private static final String DOWNLOAD_FILE_SUFFIX = ".zip.part";
+    private static final String DOWNLOAD_INFO_SUFFIX = ".zip.info";
+    private static final String STAGING_DIR_SUFFIX = ".staging";
+    private static final String OLD_DIR_SUFFIX = ".old";
+    private static final String MANIFEST_FILE_NAME = ".rwmanifest";
+
+    // updating changed files only
+    private static final int TAIL_SIZE = 16 * 1024;
+    private static final int DELTA_THREADS = 4;
+    private static final double MAX_DELTA_RATIO = 0.5;
+
+    private static final String UNPACKING_FAILED_MESSAGE = "Download of app content files failed! Please try again later.";
+
     // fields
     private String mFileUrl = null;
     private String mTargetDirName = null;
     private long mLastDownloadingEventMsec = 0;
+    private boolean mStarted = false;
     private StateListener mListener;
 
+    /**
+     * Data retrieved with a Range request.
+     */
+    private static class Part {
+        byte[] data;
+        long start;
+        long total;
+        String validator;
+    }
+
     /**
      * Listener interface for callbacks during downloading and unpacking
      * 
@@ -50,13 +126,13 @@ public class RWZipDownloadingTask extends AsyncTask<Void, Void, String> {
         public void downloadingFailed(long timeStampMsec, String errorMessage);
     }
 
-    
+
     /**
      * Creates an instance of the downloading task with the specified
      * parameters. Make sure to specify a valid URL for a zip file to be
      * downloaded and a valid directory name for extracting the files to.
-     * When the directory does not exist and attempt will be made to create
-     * it.
+     * The directory is replaced as a whole, so it should not be used for
+     * other files. Temporary files are stored next to it.
      * 
      * @param fileUrl URL of zip file to be downloaded
      * @param targetDirName Name of directory to extract files to
@@ -71,108 +147,656 @@ public class RWZipDownloadingTask extends AsyncTask<Void, Void, String> {
         } else {
             mTargetDirName = targetDirName;
         }
-
-        // ensure target folder exists
-        File targetDir = new File(mTargetDirName);
-        if (!targetDir.exists()) {
-            targetDir.mkdirs();
-        }
     }
-    
+
 
     @Override
     protected String doInBackground(Void... params) {
         if (D) { Log.d(TAG, "Starting download of: " + mFileUrl, null); }
 
-        // download file from server
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(mFileUrl);
-            connection = (HttpURLConnection) url.openConnection();
-            int responseCode = connection.getResponseCode();
+        File targetDir = new File(mTargetDirName);
+        File parentDir = targetDir.getAbsoluteFile().getParentFile();
+        if ((parentDir == null) || (!parentDir.isDirectory() && !parentDir.mkdirs())) {
+            String msg = "Download failed: can not create folder for " + mTargetDirName;
+            Log.e(TAG, msg, null);
+            return msg;
+        }
+        String baseName = targetDir.getName();
+        File downloadFile = new File(parentDir, baseName + DOWNLOAD_FILE_SUFFIX);
+        File infoFile = new File(parentDir, baseName + DOWNLOAD_INFO_SUFFIX);
+        File stagingDir = new File(parentDir, baseName + STAGING_DIR_SUFFIX);
+        File oldDir = new File(parentDir, baseName + OLD_DIR_SUFFIX);
+
+        recoverTargetDir(targetDir, oldDir);
 
-            // follow permanent or temporary redirects to new location
-            if ((responseCode == HttpURLConnection.HTTP_MOVED_PERM) || (responseCode == HttpURLConnection.HTTP_MOVED_TEMP)) {
-                String newUrl = connection.getHeaderField("Location");
-                connection = (HttpURLConnection) (new URL(newUrl).openConnection());
-                if (D) { Log.d(TAG, "Redirected to: " + newUrl); }
-                responseCode = connection.getResponseCode();
+        // update only the changed files of installed content
+        RWZipManifest installed = RWZipManifest.load(new File(targetDir, MANIFEST_FILE_NAME));
+        if (installed != null) {
+            try {
+                if (updateChangedFiles(installed, targetDir, stagingDir, oldDir)) {
+                    downloadFile.delete();
+                    infoFile.delete();
+                    if (D) { Log.d(TAG, "Update complete", null); }
+                    return null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Updating changed files failed, downloading all files: " + e.getMessage());
+                deleteRecursively(stagingDir);
             }
+        }
 
-            if (responseCode != 200) {
-                throw new java.net.ConnectException("HTTP code " + responseCode);
+        // download file from server, resuming after failures
+        for (int attempt = 1; ; attempt++) {
+            try {
+                download(downloadFile, infoFile);
+                break;
+            } catch (IOException e) {
+                String msg = "Download failed: " + e.getMessage();
+                Log.e(TAG, msg + " (attempt " + attempt + " of " + MAX_ATTEMPTS + ")", null);
+                if (attempt >= MAX_ATTEMPTS) {
+                    return msg;
+                }
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MSEC * attempt);
+            } catch (InterruptedException e) {
+                return "Download failed: interrupted";
             }
+        }
+
+        // unpack into the staging folder and swap it in
+        try {
+            extract(downloadFile, stagingDir);
+            replaceTargetDir(stagingDir, targetDir, oldDir);
+            if (D) { Log.d(TAG, "Download complete", null); }
         } catch (IOException e) {
-            String msg = "Download failed: " + e.getMessage();
-            Log.e(TAG, msg, null);
-            return msg;
+            Log.e(TAG, "Error while unpacking: " + e.getMessage(), e);
+            deleteRecursively(stagingDir);
+            return UNPACKING_FAILED_MESSAGE;
+        } finally {
+            // a damaged download has to start over next time
+            downloadFile.delete();
+            infoFile.delete();
         }
 
-        if (mListener != null) {
-            long currentMillis = System.currentTimeMillis();
-            mListener.downloadingStarted(currentMillis);
+        return null;
+    }
+
+
+    /**
+     * Downloads the zip file into the specified file, continuing the data
+     * already in it when it is a partial download of the same file.
+     */
+    private void download(File downloadFile, File infoFile) throws IOException {
+        long offset = 0;
+        String validator = null;
+        if (downloadFile.exists()) {
+            String[] info = readDownloadInfo(infoFile);
+            if ((info != null) && mFileUrl.equals(info[0])) {
+                offset = downloadFile.length();
+                validator = info[1];
+            }
         }
 
+        String range = ((offset > 0) && (validator != null)) ? "bytes=" + offset + "-" : null;
+        HttpURLConnection connection = open(mFileUrl, range, validator);
         try {
-            int contentLength = connection.getContentLength();
-            long bytesProcessed = 0;
+            int responseCode = connection.getResponseCode();
+            boolean append;
+            long totalBytes;
+            if ((responseCode == HttpURLConnection.HTTP_PARTIAL) && (offset > 0)) {
+                long[] contentRange = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (contentRange[0] != offset) {
+                    throw new IOException("Unexpected range: " + connection.getHeaderField("Content-Range"));
+                }
+                totalBytes = contentRange[2];
+                append = true;
+                if (D) { Log.d(TAG, "Resuming download at " + offset + " of " + totalBytes + " bytes"); }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // new download, or the file on the server has changed
+                totalBytes = parseLength(connection.getHeaderField("Content-Length"));
+                append = false;
+                offset = 0;
+                writeDownloadInfo(infoFile, mFileUrl, getValidator(connection));
+            } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                downloadFile.delete();
+                infoFile.delete();
+                throw new IOException("HTTP code " + responseCode + ", restarting download");
+            } else {
+                throw new java.net.ConnectException("HTTP code " + responseCode);
+            }
 
-            ZipInputStream zipInputStream = new ZipInputStream(connection.getInputStream());
+            reportStarted();
 
-            for (ZipEntry zipEntry = zipInputStream.getNextEntry(); zipEntry != null; zipEntry = zipInputStream.getNextEntry()) {
-                if (D) { Log.d(TAG, "Extracting entry: " + zipEntry.getName() + " ..."); }
+            long bytesProcessed = offset;
+            InputStream inputStream = connection.getInputStream();
+            FileOutputStream outputStream = new FileOutputStream(downloadFile, append);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                    bytesProcessed += count;
+                    reportProgress(bytesProcessed, totalBytes, false);
+                }
+            } finally {
+                outputStream.close();
+                inputStream.close();
+            }
+            reportProgress(bytesProcessed, totalBytes, true);
+
+            if ((totalBytes >= 0) && (downloadFile.length() != totalBytes)) {
+                throw new IOException("Incomplete download, " + downloadFile.length() + " of " + totalBytes + " bytes");
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
 
-                String innerFileName = mTargetDirName + zipEntry.getName();
-                File innerFile = new File(innerFileName);
-                if (innerFile.isHidden()) {
+
+    /**
+     * Opens a connection for the specified URL, following up to
+     * MAX_REDIRECTS redirects, also between http and https. When a range
+     * is specified only that part of the file is requested, if the
+     * validator (when specified) still matches the file on the server.
+     */
+    private HttpURLConnection open(String fileUrl, String range, String validator) throws IOException {
+        URL url = new URL(fileUrl);
+        for (int redirects = 0; ; redirects++) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MSEC);
+            connection.setReadTimeout(READ_TIMEOUT_MSEC);
+            // lengths and ranges must be in bytes of the file itself
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+                if (validator != null) {
+                    connection.setRequestProperty("If-Range", validator);
+                }
+            }
+
+            int responseCode = connection.getResponseCode();
+            if ((responseCode == HttpURLConnection.HTTP_MOVED_PERM)
+                    || (responseCode == HttpURLConnection.HTTP_MOVED_TEMP)
+                    || (responseCode == HttpURLConnection.HTTP_SEE_OTHER)
+                    || (responseCode == HTTP_TEMPORARY_REDIRECT)
+                    || (responseCode == HTTP_PERMANENT_REDIRECT)) {
+                String location = connection.getHeaderField("Location");
+                connection.disconnect();
+                if (location == null) {
+                    throw new IOException("Redirect without location");
+                }
+                if (redirects >= MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects");
+                }
+                url = new URL(url, location);
+                if (D) { Log.d(TAG, "Redirected to: " + url); }
+            } else {
+                return connection;
+            }
+        }
+    }
+
+
+    /**
+     * Extracts the files in the zip file into the specified directory,
+     * replacing its contents. Fails when the zip file is incomplete or
+     * the checksum of a file does not match.
+     */
+    private void extract(File zipFile, File targetDir) throws IOException {
+        deleteRecursively(targetDir);
+        if (!targetDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + targetDir);
+        }
+        String targetPath = targetDir.getCanonicalPath() + File.separator;
+
+        // opening it reads the central directory at the end of the file
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry zipEntry = entries.nextElement();
+                File innerFile = getEntryFile(targetDir, targetPath, zipEntry.getName());
+                if (isHidden(innerFile)) {
                     if (D) { Log.d(TAG, "Skipping hidden file: " + innerFile.getName()); }
                     continue;
                 }
 
-                if (innerFileName.endsWith(File.separator)) {
-                    if (!innerFile.exists()) {
-                        if (D) { Log.d(TAG, "Creating folder(s): " + innerFileName + " ..."); }
-                        if (!innerFile.mkdirs()) {
-                            Log.e(TAG, "Could not create directory: " + innerFileName);
-                        }
-                    }
-                } else {
-                    if (D) { Log.d(TAG, "Unpacking file: " + innerFileName + " ..."); }
-                    FileOutputStream outputStream = new FileOutputStream(innerFile);
-                    final int BUFFER_SIZE = 2048;
-                    BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
-                    int count;
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    while ((count = zipInputStream.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                        bufferedOutputStream.write(buffer, 0, count);
-                        bytesProcessed += count;
+                if (zipEntry.isDirectory()) {
+                    if (!innerFile.isDirectory() && !innerFile.mkdirs()) {
+                        throw new IOException("Could not create directory: " + innerFile);
                     }
+                    continue;
+                }
+
+                long crc = writeFile(zip.getInputStream(zipEntry), innerFile, -1, buffer);
+                if ((zipEntry.getCrc() != -1) && (zipEntry.getCrc() != crc)) {
+                    throw new IOException("Checksum mismatch for entry: " + zipEntry.getName());
+                }
+            }
+            RWZipManifest.fromZipFile(zip).save(new File(targetDir, MANIFEST_FILE_NAME));
+        } finally {
+            zip.close();
+        }
+    }
+
+
+    /**
+     * Updates the installed files in the target directory by downloading
+     * only the files that differ from the installed manifest. The new
+     * contents are assembled in the staging directory and swapped in.
+     *
+     * @return false when the whole zip file has to be downloaded instead
+     */
+    private boolean updateChangedFiles(RWZipManifest installed, File targetDir, File stagingDir, File oldDir) throws IOException {
+        // the central directory is at the end of the zip file
+        Part tail = fetchRange("bytes=-" + TAIL_SIZE, null);
+        if (tail == null) {
+            if (D) { Log.d(TAG, "Range requests not supported, downloading all files"); }
+            return false;
+        }
+        RWZipManifest.CentralDirectory directory;
+        try {
+            directory = RWZipManifest.findCentralDirectory(tail.data);
+        } catch (IOException e) {
+            if (tail.start == 0) {
+                throw e;
+            }
+            // the end record has a long comment
+            tail = fetchRange("bytes=-" + RWZipManifest.MAX_END_SIZE, tail.validator);
+            if (tail == null) {
+                return false;
+            }
+            directory = RWZipManifest.findCentralDirectory(tail.data);
+        }
+        String validator = tail.validator;
+        long tailOffset = tail.start;
+        byte[] directoryData = tail.data;
+        if ((directory.offset < tailOffset) || (directory.offset + directory.size > tailOffset + tail.data.length)) {
+            Part part = fetchRange("bytes=" + directory.offset + "-" + (directory.offset + directory.size - 1), validator);
+            if (part == null) {
+                return false;
+            }
+            directoryData = part.data;
+            tailOffset = directory.offset;
+        }
+        RWZipManifest manifest = RWZipManifest.fromCentralDirectory(directoryData,
+                (int) (directory.offset - tailOffset), directory.count);
+
+        // find the changed files
+        String stagingPath = stagingDir.getCanonicalPath() + File.separator;
+        final List<RWZipManifest.Entry> changed = new ArrayList<RWZipManifest.Entry>();
+        Set<String> changedNames = new HashSet<String>();
+        long changedBytes = 0;
+        for (RWZipManifest.Entry entry : manifest.getEntries()) {
+            File installedFile = new File(targetDir, entry.name);
+            if (entry.isDirectory() || isHidden(installedFile)
+                    || (entry.matches(installed.get(entry.name)) && installedFile.isFile() && (installedFile.length() == entry.size))) {
+                continue;
+            }
+            if (!RWZipManifest.isExtractable(entry)) {
+                if (D) { Log.d(TAG, "Unsupported entry " + entry.name + ", downloading all files"); }
+                return false;
+            }
+            changed.add(entry);
+            changedNames.add(entry.name);
+            changedBytes += entry.compressedSize;
+        }
+        if (changed.isEmpty()) {
+            boolean removed = false;
+            for (RWZipManifest.Entry entry : installed.getEntries()) {
+                if (manifest.get(entry.name) == null) {
+                    removed = true;
+                    break;
+                }
+            }
+            if (!removed) {
+                if (D) { Log.d(TAG, "Installed files are up to date"); }
+                return true;
+            }
+        }
+        if (changedBytes > tail.total * MAX_DELTA_RATIO) {
+            if (D) { Log.d(TAG, changedBytes + " of " + tail.total + " bytes changed, downloading all files"); }
+            return false;
+        }
+        if (D) { Log.d(TAG, "Updating " + changed.size() + " of " + manifest.size() + " files, " + changedBytes + " bytes"); }
+        reportStarted();
+
+        // the data of an entry ends where the next one, or the central directory, starts
+        final long[] offsets = new long[manifest.size() + 1];
+        int index = 0;
+        for (RWZipManifest.Entry entry : manifest.getEntries()) {
+            offsets[index++] = entry.localHeaderOffset;
+        }
+        offsets[index] = directory.offset;
+        Arrays.sort(offsets);
+
+        // copy the unchanged files
+        deleteRecursively(stagingDir);
+        if (!stagingDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + stagingDir);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (RWZipManifest.Entry entry : manifest.getEntries()) {
+            File stagingFile = getEntryFile(stagingDir, stagingPath, entry.name);
+            if (entry.isDirectory()) {
+                if (!stagingFile.isDirectory() && !stagingFile.mkdirs()) {
+                    throw new IOException("Could not create directory: " + stagingFile);
+                }
+            } else if (!isHidden(stagingFile) && !changedNames.contains(entry.name)) {
+                writeFile(new FileInputStream(new File(targetDir, entry.name)), stagingFile, -1, buffer);
+            }
+        }
+
+        // download the changed files, a few at the same time
+        final String entryValidator = validator;
+        final File staging = stagingDir;
+        final String path = stagingPath;
+        final long totalBytes = changedBytes;
+        final AtomicLong bytesProcessed = new AtomicLong();
+        if (!changed.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(DELTA_THREADS, changed.size()));
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (final RWZipManifest.Entry entry : changed) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            int next = Arrays.binarySearch(offsets, entry.localHeaderOffset) + 1;
+                            while ((next < offsets.length - 1) && (offsets[next] == entry.localHeaderOffset)) {
+                                next++;
+                            }
+                            fetchEntry(entry, offsets[next], entryValidator, getEntryFile(staging, path, entry.name));
+                            reportProgress(bytesProcessed.addAndGet(entry.compressedSize), totalBytes, false);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw (cause instanceof IOException) ? (IOException) cause : new IOException(String.valueOf(cause));
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        reportProgress(totalBytes, totalBytes, true);
+
+        manifest.save(new File(stagingDir, MANIFEST_FILE_NAME));
+        replaceTargetDir(stagingDir, targetDir, oldDir);
+        return true;
+    }
 
-                    bufferedOutputStream.flush();
-                    bufferedOutputStream.close();
+
+    /**
+     * Downloads the data of a zip entry, which ends before the specified
+     * offset, and unpacks it into the specified file.
+     */
+    private void fetchEntry(RWZipManifest.Entry entry, long endOffset, String validator, File file) throws IOException {
+        HttpURLConnection connection = open(mFileUrl, "bytes=" + entry.localHeaderOffset + "-" + (endOffset - 1), validator);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP code " + connection.getResponseCode() + " for entry: " + entry.name);
+            }
+            DataInputStream inputStream = new DataInputStream(connection.getInputStream());
+            byte[] header = new byte[RWZipManifest.LOCAL_HEADER_SIZE];
+            inputStream.readFully(header);
+            int skip = RWZipManifest.getDataOffset(header) - header.length;
+            while (skip > 0) {
+                int skipped = inputStream.skipBytes(skip);
+                if (skipped <= 0) {
+                    throw new IOException("Incomplete entry: " + entry.name);
                 }
+                skip -= skipped;
+            }
+
+            InputStream dataStream = inputStream;
+            long limit = entry.compressedSize;
+            if (entry.method == ZipEntry.DEFLATED) {
+                dataStream = new InflaterInputStream(inputStream, new Inflater(true), BUFFER_SIZE);
+                limit = -1;
+            }
+            long crc = writeFile(dataStream, file, limit, new byte[BUFFER_SIZE]);
+            if ((crc != entry.crc) || (file.length() != entry.size)) {
+                throw new IOException("Checksum mismatch for entry: " + entry.name);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
 
-                if (D) { Log.d(TAG, "Processed " + bytesProcessed + " bytes"); }
 
-                if (mListener != null) {
-                    long currentMillis = System.currentTimeMillis();
-                    if ((currentMillis - mLastDownloadingEventMsec) > DOWNLOADING_EVENT_INTERVAL_MSEC) {
-                        mLastDownloadingEventMsec = currentMillis;
-                        mListener.downloading(currentMillis, bytesProcessed, contentLength);
+    /**
+     * Retrieves a part of the zip file.
+     *
+     * @return part, or null when the server did not return just the part
+     */
+    private Part fetchRange(String range, String validator) throws IOException {
+        HttpURLConnection connection = open(mFileUrl, range, validator);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return null;
+            }
+            long[] contentRange = parseContentRange(connection.getHeaderField("Content-Range"));
+            Part part = new Part();
+            part.start = contentRange[0];
+            part.total = contentRange[2];
+            part.data = new byte[(int) (contentRange[1] - contentRange[0] + 1)];
+            part.validator = (validator != null) ? validator : getValidator(connection);
+            DataInputStream inputStream = new DataInputStream(connection.getInputStream());
+            try {
+                inputStream.readFully(part.data);
+            } finally {
+                inputStream.close();
+            }
+            return part;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+
+    /**
+     * Writes the data from the input stream, up to the limit when not -1,
+     * into the specified file, creating its directory when needed.
+     *
+     * @return CRC32 checksum of the data
+     */
+    private static long writeFile(InputStream inputStream, File file, long limit, byte[] buffer) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir);
+        }
+        CRC32 crc = new CRC32();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            long remaining = (limit < 0) ? Long.MAX_VALUE : limit;
+            int count;
+            while ((remaining > 0) && ((count = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1)) {
+                outputStream.write(buffer, 0, count);
+                crc.update(buffer, 0, count);
+                remaining -= count;
+            }
+            if ((limit >= 0) && (remaining > 0)) {
+                throw new IOException("Incomplete file: " + file.getName());
+            }
+        } finally {
+            outputStream.close();
+            inputStream.close();
+        }
+        return crc.getValue();
+    }
+
+
+    /**
+     * Returns the file for a zip entry in the specified directory, making
+     * sure it is not outside of it.
+     */
+    private static File getEntryFile(File dir, String dirPath, String name) throws IOException {
+        File file = new File(dir, name);
+        if (!(file.getCanonicalPath() + File.separator).startsWith(dirPath)) {
+            throw new IOException("Invalid entry: " + name);
+        }
+        return file;
+    }
+
+
+    private static boolean isHidden(File file) {
+        return file.isHidden() || file.getName().startsWith(".");
+    }
+
+
+    private static String getValidator(HttpURLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        return (eTag != null) ? eTag : connection.getHeaderField("Last-Modified");
+    }
+
+
+    /**
+     * Replaces the target directory with the staging directory. The old
+     * target directory is renamed out of the way first, and restored by
+     * recoverTargetDir() when the task is interrupted in between.
+     */
+    private void replaceTargetDir(File stagingDir, File targetDir, File oldDir) throws IOException {
+        deleteRecursively(oldDir);
+        if (targetDir.exists() && !targetDir.renameTo(oldDir)) {
+            throw new IOException("Could not move " + targetDir + " to " + oldDir);
+        }
+        if (!stagingDir.renameTo(targetDir)) {
+            oldDir.renameTo(targetDir);
+            throw new IOException("Could not move " + stagingDir + " to " + targetDir);
+        }
+        deleteRecursively(oldDir);
+    }
+
+
+    /**
+     * Restores the previous target directory when a task was interrupted
+     * while replacing it, and removes it when it was replaced already.
+     */
+    private void recoverTargetDir(File targetDir, File oldDir) {
+        if (oldDir.exists()) {
+            if (!targetDir.exists()) {
+                oldDir.renameTo(targetDir);
+            } else {
+                deleteRecursively(oldDir);
+            }
+        }
+    }
+
+
+    private void reportStarted() {
+        if ((mListener != null) && !mStarted) {
+            mStarted = true;
+            long currentMillis = System.currentTimeMillis();
+            mListener.downloadingStarted(currentMillis);
+        }
+    }
+
+
+    private synchronized void reportProgress(long bytesProcessed, long totalBytes, boolean force) {
+        if (mListener != null) {
+            long currentMillis = System.currentTimeMillis();
+            if (force || ((currentMillis - mLastDownloadingEventMsec) > DOWNLOADING_EVENT_INTERVAL_MSEC)) {
+                mLastDownloadingEventMsec = currentMillis;
+                mListener.downloading(currentMillis, bytesProcessed, totalBytes);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the first, last and total byte numbers in a Content-Range
+     * header value, e.g. "bytes 100-199/200". The total is -1 when unknown.
+     */
+    private static long[] parseContentRange(String contentRange) throws IOException {
+        if (contentRange != null) {
+            int space = contentRange.indexOf(' ');
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            if ((space >= 0) && (dash > space) && (slash > dash)) {
+                try {
+                    long first = Long.parseLong(contentRange.substring(space + 1, dash).trim());
+                    long last = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+                    if ((first >= 0) && (last >= first)) {
+                        return new long[] { first, last, parseLength(contentRange.substring(slash + 1)) };
                     }
+                } catch (NumberFormatException e) {
+                    // fall through
                 }
+            }
+        }
+        throw new IOException("Invalid range: " + contentRange);
+    }
 
-                zipInputStream.closeEntry();
+
+    private static long parseLength(String value) {
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // unknown length
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Returns the URL and validator (ETag or Last-Modified) of a partial
+     * download, or null when not available.
+     */
+    private static String[] readDownloadInfo(File infoFile) {
+        if (!infoFile.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(infoFile));
+            try {
+                String url = reader.readLine();
+                String validator = reader.readLine();
+                if ((url == null) || (validator == null) || (validator.length() == 0)) {
+                    return null;
+                }
+                return new String[] { url, validator };
+            } finally {
+                reader.close();
             }
-            zipInputStream.close();
-            if (D) { Log.d(TAG, "Download complete", null); }
         } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "Error while downloading and unpacking: " + e.getMessage());
-            return "Download of app content files failed! Please try again later.";
+            return null;
         }
+    }
 
-        return null;
+
+    private static void writeDownloadInfo(File infoFile, String url, String validator) throws IOException {
+        FileWriter writer = new FileWriter(infoFile);
+        try {
+            writer.write(url);
+            writer.write('\n');
+            if (validator != null) {
+                writer.write(validator);
+            }
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
     }
 
 
@@ -0,0 +1,356 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Base class for the stage of the recording pipeline that turns 16 bit
+ * mono PCM audio into an audio file while recording.
+ *
+ * The encoder is a lossless reader of the RWAudioRingBuffer the capture
+ * thread writes to. A separate I/O thread reads the audio from it in
+ * blocks and calls encode() for each block. So the capture thread does
+ * not wait for encoding or the file system, and memory use does not
+ * depend on the length of the recording. Closing only has to wait for
+ * the data still in the ring buffer, after which finish() can complete
+ * the file, e.g. by filling in sizes in its header.
+ *
+ * Optionally leading and trailing silence is trimmed, using a
+ * RWVoiceActivityDetector on the I/O thread. Until activity starts the
+ * audio is held in a buffer of MAX_LEADING_SILENCE_MSEC. When activity
+ * starts within it, the silence before it is dropped except for the last
+ * PRE_ROLL_MSEC. When the buffer fills up first, or activity never starts,
+ * all held audio is encoded and nothing is trimmed at the start, so a
+ * quiet recording is kept whole. After that everything is encoded, and
+ * finish() cuts the file at HANGOVER_MSEC after the last activity, if
+ * any, see getKeepSampleCount(), so the file is never read back.
+ *
+ * Subclasses write their file header in their constructor and then call
+ * start(). Use create() to get the encoder for a format.
+ */
+public abstract class RWAudioEncoder {
+
+    // supported formats, also used as file extension
+    public static final String FORMAT_WAV = "wav";
+    public static final String FORMAT_FLAC = "flac";
+
+    // silence trimming
+    private static final int PRE_ROLL_MSEC = 250;
+    private static final int HANGOVER_MSEC = 500;
+    private static final int MAX_LEADING_SILENCE_MSEC = 5000;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final RWAudioRingBuffer mRingBuffer;
+    private final RWAudioRingBuffer.Reader mReader;
+    private final byte[] mBlock;
+    private Thread mEncoderThread;
+
+    // silence trimming, detector is null when not trimming
+    private final RWVoiceActivityDetector mDetector;
+    private final int mPreRollSamples;
+    private final int mHangoverSamples;
+    private byte[] mLeading;
+    private int mLeadingLength;
+    private long mTrimmedSamples;
+
+    private volatile IOException mWriteError;
+    private volatile long mDataLength;
+    private boolean mClosed;
+
+
+    /**
+     * Creates an encoder for the specified format, writing to the file.
+     *
+     * @param format FORMAT_WAV or FORMAT_FLAC
+     * @param file to write, an existing file is replaced
+     * @param sampleRate of the audio in Hz
+     * @param ringBuffer to read the audio from
+     * @param blockSize in bytes, maximum read from the ring buffer at once
+     * @param trimSilence true to trim leading and trailing silence
+     * @return encoder, with its I/O thread started
+     * @throws IOException when the file can not be created
+     */
+    public static RWAudioEncoder create(String format, File file, int sampleRate, RWAudioRingBuffer ringBuffer, int blockSize, boolean trimSilence) throws IOException {
+        if (FORMAT_FLAC.equalsIgnoreCase(format)) {
+            return new RWFlacEncoder(file, sampleRate, ringBuffer, blockSize, trimSilence);
+        } else if (FORMAT_WAV.equalsIgnoreCase(format)) {
+            return new RWWavWriter(file, sampleRate, ringBuffer, blockSize, trimSilence);
+        }
+        throw new IllegalArgumentException("Unsupported audio format: " + format);
+    }
+
+
+    /**
+     * Returns true when create() supports the format.
+     *
+     * @param format to check
+     * @return true when supported
+     */
+    public static boolean isSupportedFormat(String format) {
+        return FORMAT_WAV.equalsIgnoreCase(format) || FORMAT_FLAC.equalsIgnoreCase(format);
+    }
+
+
+    /**
+     * Creates the file, replacing an existing one, and starts reading from
+     * the ring buffer. The subclass should write its header and then call
+     * start().
+     *
+     * @param file to write
+     * @param sampleRate of the audio in Hz
+     * @param ringBuffer to read the audio from
+     * @param blockSize in bytes, maximum read from the ring buffer at once
+     * @param trimSilence true to trim leading and trailing silence
+     * @throws IOException when the file can not be created
+     */
+    protected RWAudioEncoder(File file, int sampleRate, RWAudioRingBuffer ringBuffer, int blockSize, boolean trimSilence) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mBlock = new byte[blockSize];
+        mRingBuffer = ringBuffer;
+        mReader = ringBuffer.newReader(true);
+
+        mPreRollSamples = sampleRate * PRE_ROLL_MSEC / 1000;
+        mHangoverSamples = sampleRate * HANGOVER_MSEC / 1000;
+        if (trimSilence) {
+            mDetector = new RWVoiceActivityDetector(sampleRate);
+            mLeading = new byte[2 * (sampleRate * MAX_LEADING_SILENCE_MSEC / 1000)];
+        } else {
+            mDetector = null;
+        }
+    }
+
+
+    /**
+     * Starts the I/O thread that calls encode() for the audio data.
+     */
+    protected void start() {
+        mEncoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeBlocks();
+            }
+        }, getClass().getSimpleName());
+        mEncoderThread.start();
+    }
+
+
+    /**
+     * Returns the format of the files created by this encoder.
+     *
+     * @return FORMAT_WAV or FORMAT_FLAC
+     */
+    public abstract String getFormat();
+
+
+    /**
+     * Encodes and writes audio data, called from the I/O thread.
+     *
+     * @param data with 16 bit little-endian PCM samples
+     * @param offset of the first byte in data
+     * @param length number of bytes, at most the block size
+     * @throws IOException when writing fails
+     */
+    protected abstract void encode(byte[] data, int offset, int length) throws IOException;
+
+
+    /**
+     * Completes the file after all data has been encoded, called from
+     * close() before the file is closed.
+     *
+     * @throws IOException when writing fails
+     */
+    protected abstract void finish() throws IOException;
+
+
+    /**
+     * Returns the number of PCM audio bytes encoded so far.
+     *
+     * @return length of the audio data in bytes
+     */
+    public long getDataLength() {
+        return mDataLength;
+    }
+
+
+    /**
+     * Returns the number of samples at the start of the stream that were
+     * trimmed as silence.
+     *
+     * @return trimmed samples
+     */
+    public long getTrimmedSampleCount() {
+        return mTrimmedSamples;
+    }
+
+
+    /**
+     * Returns the number of encoded samples to keep in the file, for use
+     * by finish() and while encoding. This ends HANGOVER_MSEC after the
+     * last activity detected so far, it only grows while encoding.
+     *
+     * @return samples to keep, Long.MAX_VALUE when not trimming silence
+     */
+    protected long getKeepSampleCount() {
+        if (mDetector == null || mLeading != null || mDetector.getActivityEnd() < 0) {
+            return Long.MAX_VALUE;
+        }
+        return mDetector.getActivityEnd() + mHangoverSamples - mTrimmedSamples;
+    }
+
+
+    /**
+     * Returns true when encoding failed, the error is thrown by close().
+     *
+     * @return true after an error
+     */
+    public boolean hasFailed() {
+        return mWriteError != null;
+    }
+
+
+    /**
+     * Closes the ring buffer, since no more audio will follow, waits for
+     * the remaining data in it to be encoded, completes the file and
+     * closes it.
+     *
+     * @throws IOException when writing the file failed
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mRingBuffer.close();
+            try {
+                mEncoderThread.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for the encoder");
+            }
+            IOException error = mWriteError;
+            if (error != null) {
+                throw error;
+            }
+            if (mLeading != null) {
+                // no activity at all, keep everything
+                encodeLeading(0);
+            }
+            finish();
+        } finally {
+            mFile.close();
+        }
+    }
+
+
+    private void encodeBlocks() {
+        try {
+            int n;
+            while ((n = mReader.read(mBlock, 0, mBlock.length, true)) >= 0) {
+                if (n == 0) {
+                    continue;
+                }
+                if (mDetector != null) {
+                    mDetector.process(mBlock, 0, n);
+                }
+                if (mLeading != null) {
+                    holdLeading(mBlock, n);
+                } else {
+                    encodeCounted(mBlock, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            mWriteError = e;
+            // stop holding back the capture thread
+            mReader.detach();
+        } catch (RuntimeException e) {
+            // a bug in the encoder, fail the recording instead of blocking
+            // the capture thread on a full ring buffer
+            mWriteError = new IOException("Encoding failed", e);
+            mReader.detach();
+        }
+    }
+
+
+    /**
+     * Holds audio until activity starts, then encodes the pre-roll. When
+     * the leading silence is longer than the buffer, everything is kept.
+     */
+    private void holdLeading(byte[] data, int length) throws IOException {
+        if (length > mLeading.length - mLeadingLength) {
+            encodeLeading(0);
+            encodeCounted(data, 0, length);
+            return;
+        }
+        System.arraycopy(data, 0, mLeading, mLeadingLength, length);
+        mLeadingLength += length;
+        long activityStart = mDetector.getActivityStart();
+        if (activityStart >= 0) {
+            encodeLeading(Math.max(0, activityStart - mPreRollSamples) * 2);
+        }
+    }
+
+
+    /**
+     * Encodes the held audio from the byte position in the stream, and
+     * stops holding.
+     */
+    private void encodeLeading(long from) throws IOException {
+        int start = (int) Math.min(from, mLeadingLength);
+        start -= start & 1;
+        mTrimmedSamples = start / 2;
+        encodeCounted(mLeading, start, mLeadingLength - start);
+        mLeading = null;
+    }
+
+
+    private void encodeCounted(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, mBlock.length);
+            encode(data, offset, n);
+            mDataLength += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+
+    /**
+     * Cuts the file at the specified size.
+     */
+    protected void truncate(long size) throws IOException {
+        mChannel.truncate(size);
+    }
+
+
+    /**
+     * Writes the buffer at the current position of the file.
+     */
+    protected void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+
+    /**
+     * Writes the buffer at the specified position of the file, without
+     * changing the current position.
+     */
+    protected void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
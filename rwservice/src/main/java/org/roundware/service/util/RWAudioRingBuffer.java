@@ -0,0 +1,274 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Ring buffer passing recorded audio from the capture thread to its
+ * consumers, such as an encoder and the level analyser, without locks.
+ *
+ * There is one writer, the capture thread, and any number of readers,
+ * each with its own read position. The writer publishes data by updating
+ * the volatile write position after copying, readers publish their
+ * progress the same way, so neither side ever waits for a lock held by
+ * the other. Lossless readers, like the encoder, hold back the writer
+ * when they fall behind a full buffer. Lossy readers, like the level
+ * analyser, never do and skip ahead instead. Threads only park when there
+ * is nothing to do, and are woken by the other side.
+ */
+public class RWAudioRingBuffer {
+
+    // safety net for a missed wake up, normally threads are unparked
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final byte[] mData;
+    private final int mMask;
+    private final CopyOnWriteArrayList<Reader> mReaders = new CopyOnWriteArrayList<Reader>();
+
+    private volatile long mWritePosition;
+    private volatile boolean mClosed;
+    private volatile Thread mWaitingWriter;
+
+
+    /**
+     * Creates a ring buffer of at least the specified capacity, rounded up
+     * to a power of two.
+     *
+     * @param minCapacity in bytes
+     */
+    public RWAudioRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        mData = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+
+    /**
+     * Returns the capacity of the buffer.
+     *
+     * @return capacity in bytes
+     */
+    public int getCapacity() {
+        return mData.length;
+    }
+
+
+    /**
+     * Adds a reader, starting at the current write position. Readers
+     * should be added before the writer starts.
+     *
+     * @param lossless true when the writer must wait for the reader
+     * @return new reader
+     */
+    public Reader newReader(boolean lossless) {
+        Reader reader = new Reader(lossless, mWritePosition);
+        mReaders.add(reader);
+        return reader;
+    }
+
+
+    /**
+     * Writes the data, called from the writer thread only. Waits when a
+     * lossless reader has not consumed enough data to make room.
+     *
+     * @param data to write
+     * @param offset of the first byte to write
+     * @param length number of bytes to write
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    public void write(byte[] data, int offset, int length) throws InterruptedIOException {
+        if (mClosed) {
+            throw new IllegalStateException("Ring buffer is closed");
+        }
+        while (length > 0) {
+            long position = mWritePosition;
+            int free = mData.length - (int) (position - slowestLosslessPosition(position));
+            if (free == 0) {
+                waitForSpace(position);
+                continue;
+            }
+            int n = Math.min(length, free);
+            int start = (int) position & mMask;
+            int first = Math.min(n, mData.length - start);
+            System.arraycopy(data, offset, mData, start, first);
+            System.arraycopy(data, offset + first, mData, 0, n - first);
+            mWritePosition = position + n;
+            wakeReaders();
+            offset += n;
+            length -= n;
+        }
+    }
+
+
+    /**
+     * Marks the end of the data, readers return -1 when they have read
+     * all data written before.
+     */
+    public void close() {
+        mClosed = true;
+        wakeReaders();
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+
+    private long slowestLosslessPosition(long writePosition) {
+        long slowest = writePosition;
+        for (Reader reader : mReaders) {
+            if (reader.mLossless) {
+                slowest = Math.min(slowest, reader.mPosition);
+            }
+        }
+        return slowest;
+    }
+
+
+    private void waitForSpace(long position) throws InterruptedIOException {
+        mWaitingWriter = Thread.currentThread();
+        // check again after announcing, a reader may just have moved on
+        if (position - slowestLosslessPosition(position) == mData.length) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        mWaitingWriter = null;
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for a reader");
+        }
+    }
+
+
+    private void wakeReaders() {
+        for (Reader reader : mReaders) {
+            Thread thread = reader.mWaitingThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+
+    /**
+     * Read position in the ring buffer, for use by one consumer thread.
+     */
+    public class Reader {
+        private final boolean mLossless;
+        private volatile long mPosition;
+        private volatile Thread mWaitingThread;
+        private long mSkipped;
+
+
+        private Reader(boolean lossless, long position) {
+            mLossless = lossless;
+            mPosition = position;
+        }
+
+
+        /**
+         * Returns the number of bytes available for reading.
+         *
+         * @return available bytes, at most the capacity for lossy readers
+         */
+        public int available() {
+            return (int) Math.min(mData.length, mWritePosition - mPosition);
+        }
+
+
+        /**
+         * Returns the number of bytes a lossy reader skipped because they
+         * were overwritten before they could be read.
+         *
+         * @return skipped bytes
+         */
+        public long getSkipped() {
+            return mSkipped;
+        }
+
+
+        /**
+         * Reads up to length bytes.
+         *
+         * @param buffer to read into
+         * @param offset in buffer of the first byte to read
+         * @param length maximum number of bytes to read
+         * @param wait true to wait until data is available
+         * @return number of bytes read, 0 when no data is available and
+         *         not waiting, or -1 when the buffer is closed and all its
+         *         data has been read
+         * @throws InterruptedIOException when interrupted while waiting
+         */
+        public int read(byte[] buffer, int offset, int length, boolean wait) throws InterruptedIOException {
+            while (true) {
+                long position = mPosition;
+                boolean closed = mClosed;
+                long writePosition = mWritePosition;
+                if (writePosition - position > mData.length) {
+                    // only lossy readers can fall this far behind, keep
+                    // half a buffer and stay aligned to whole samples
+                    long next = writePosition - (mData.length / 2);
+                    next -= (next - position) & 1;
+                    mSkipped += next - position;
+                    mPosition = next;
+                    continue;
+                }
+                int n = (int) Math.min(length, writePosition - position);
+                if (n > 0) {
+                    int start = (int) position & mMask;
+                    int first = Math.min(n, mData.length - start);
+                    System.arraycopy(mData, start, buffer, offset, first);
+                    System.arraycopy(mData, 0, buffer, offset + first, n - first);
+                    if (!mLossless && mWritePosition - position > mData.length) {
+                        // overwritten while copying
+                        continue;
+                    }
+                    mPosition = position + n;
+                    Thread writer = mWaitingWriter;
+                    if (mLossless && writer != null) {
+                        LockSupport.unpark(writer);
+                    }
+                    return n;
+                }
+                if (closed) {
+                    return -1;
+                }
+                if (!wait || length == 0) {
+                    return 0;
+                }
+                mWaitingThread = Thread.currentThread();
+                // check again after announcing, the writer may just have written
+                if (mWritePosition == position && !mClosed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                mWaitingThread = null;
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for audio data");
+                }
+            }
+        }
+
+
+        /**
+         * Removes the reader from the ring buffer, so that it no longer
+         * holds back the writer, e.g. after an error in its consumer.
+         */
+        public void detach() {
+            mReaders.remove(this);
+            Thread writer = mWaitingWriter;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Memory cache for the content files shown in web views, e.g. the HTML
+ * pages of the speak and refine screens. It holds the text of recently
+ * read files, and the pages rendered from them, i.e. with the markers in
+ * them replaced, so that reopening a screen does not read and process the
+ * file again.
+ *
+ * A file is checked against its modification time and length on every
+ * request, and read again when it has changed. A rendered page is cached
+ * for a state key, which must be different for every state that affects
+ * the rendering, e.g. the selected tags. The least recently used files
+ * and pages are removed when the cache is full.
+ */
+public class RWContentCache {
+
+    // debugging
+    private final static String TAG = "RWContentCache";
+    private final static boolean D = false;
+
+    private final static String CHARSET = "UTF-8";
+
+    /**
+     * Renders a page from the text of a content file.
+     */
+    public interface PageRenderer {
+        public String render(String content);
+    }
+
+    private static class FileData {
+        final long lastModified;
+        final long length;
+        final String content;
+
+        FileData(long lastModified, long length, String content) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.content = content;
+        }
+    }
+
+    private static class PageData {
+        final FileData file;
+        final String page;
+
+        PageData(FileData file, String page) {
+            this.file = file;
+            this.page = page;
+        }
+    }
+
+    private final int mMaxFileChars;
+    private final int mMaxPages;
+    private final LinkedHashMap<String, FileData> mFiles = new LinkedHashMap<String, FileData>(16, 0.75f, true);
+    private final LinkedHashMap<String, PageData> mPages = new LinkedHashMap<String, PageData>(16, 0.75f, true);
+    private int mFileChars;
+
+    // statistics
+    private int mFileHits;
+    private int mFileMisses;
+    private int mPageHits;
+    private int mPageMisses;
+
+
+    /**
+     * Creates an instance with the specified limits.
+     *
+     * @param maxFileChars total number of characters of the files cached
+     * @param maxPages number of rendered pages cached
+     */
+    public RWContentCache(int maxFileChars, int maxPages) {
+        mMaxFileChars = maxFileChars;
+        mMaxPages = maxPages;
+    }
+
+
+    /**
+     * Returns the text of the specified file, from the cache when it has
+     * not changed since it was read.
+     *
+     * @param fileName of the file to read
+     * @return text of the file
+     * @throws IOException on read error
+     */
+    public String getFile(String fileName) throws IOException {
+        return getFileData(fileName).content;
+    }
+
+
+    /**
+     * Returns the page rendered from the specified file for the state,
+     * from the cache when it has been rendered for the same state and the
+     * file has not changed since.
+     *
+     * @param fileName of the file to render
+     * @param stateKey of the state the rendering depends on, or null
+     * @param renderer to render the page with
+     * @return rendered page
+     * @throws IOException on read error
+     */
+    public String getPage(String fileName, String stateKey, PageRenderer renderer) throws IOException {
+        FileData file = getFileData(fileName);
+        String key = fileName + '\n' + stateKey;
+        synchronized (this) {
+            PageData cached = mPages.get(key);
+            if ((cached != null) && (cached.file == file)) {
+                mPageHits++;
+                return cached.page;
+            }
+            mPageMisses++;
+        }
+
+        String page = renderer.render(file.content);
+        synchronized (this) {
+            mPages.put(key, new PageData(file, page));
+            Iterator<PageData> iterator = mPages.values().iterator();
+            while ((mPages.size() > mMaxPages) && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return page;
+    }
+
+
+    /**
+     * Reads the files in the specified folder with names ending in the
+     * suffix into the cache, e.g. to avoid reading them when the first
+     * screen using them is opened.
+     *
+     * @param dirName of the folder
+     * @param suffix of the files, e.g. ".html"
+     */
+    public void preload(String dirName, String suffix) {
+        File[] files = new File(dirName).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(suffix)) {
+                try {
+                    getFileData(file.getPath());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not preload " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes all files and pages from the cache, e.g. when the content
+     * files have been replaced.
+     */
+    public synchronized void clear() {
+        mFiles.clear();
+        mPages.clear();
+        mFileChars = 0;
+    }
+
+
+    public synchronized int getFileHits() {
+        return mFileHits;
+    }
+
+
+    public synchronized int getFileMisses() {
+        return mFileMisses;
+    }
+
+
+    public synchronized int getPageHits() {
+        return mPageHits;
+    }
+
+
+    public synchronized int getPageMisses() {
+        return mPageMisses;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "files " + mFiles.size() + " (" + mFileChars + " chars, " + mFileHits + " hits, " + mFileMisses
+                + " misses), pages " + mPages.size() + " (" + mPageHits + " hits, " + mPageMisses + " misses)";
+    }
+
+
+    private FileData getFileData(String fileName) throws IOException {
+        File file = new File(fileName);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            FileData cached = mFiles.get(fileName);
+            if ((cached != null) && (cached.lastModified == lastModified) && (cached.length == length)) {
+                mFileHits++;
+                return cached;
+            }
+            mFileMisses++;
+        }
+
+        FileData data = new FileData(lastModified, length, read(file));
+        synchronized (this) {
+            FileData previous = mFiles.put(fileName, data);
+            if (previous != null) {
+                mFileChars -= previous.content.length();
+            }
+            mFileChars += data.content.length();
+            Iterator<FileData> iterator = mFiles.values().iterator();
+            while ((mFileChars > mMaxFileChars) && (mFiles.size() > 1) && iterator.hasNext()) {
+                mFileChars -= iterator.next().content.length();
+                iterator.remove();
+            }
+        }
+        if (D) { Log.d(TAG, "Read " + fileName + ", " + this); }
+        return data;
+    }
+
+
+    /**
+     * Reads the whole file with a single read.
+     */
+    private static String read(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + file);
+        }
+        if ((length == 0) && !file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        byte[] data = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int total = 0;
+            while (total < data.length) {
+                int count = in.read(data, total, data.length - total);
+                if (count < 0) {
+                    break;
+                }
+                total += count;
+            }
+            return new String(data, 0, total, CHARSET);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Lossless encoder for 16 bit mono PCM audio to FLAC files, in pure Java.
+ *
+ * Audio is encoded while recording, see RWAudioEncoder, in frames of
+ * 4096 samples. Each frame is stored as a constant, a verbatim or a fixed
+ * linear prediction subframe (order 0 to 4), whichever is smallest, with
+ * the prediction residual Rice coded in up to 256 partitions. This is the
+ * same set of tools the reference encoder uses at its fastest settings,
+ * and it typically stores speech in 40 to 60 percent of the WAV size.
+ * The STREAMINFO block, with the total number of samples and the MD5
+ * signature of the audio, is completed when the encoder is closed. When
+ * trimming silence the file is cut at the first frame boundary after the
+ * samples to keep, and STREAMINFO is restored from a snapshot taken at
+ * that boundary while encoding.
+ *
+ * See https://xiph.org/flac/format.html for the format.
+ */
+public class RWFlacEncoder extends RWAudioEncoder {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    // STREAMINFO is the only metadata block, right after the "fLaC" marker
+    private static final int STREAMINFO_OFFSET = 4;
+    private static final int STREAMINFO_LENGTH = 34;
+
+    private final int mSampleRate;
+    private final MessageDigest mMd5;
+
+    // samples of the frame being collected
+    private final int[] mSamples = new int[BLOCK_SIZE];
+    private final byte[] mSampleBytes = new byte[BLOCK_SIZE * 2];
+    private int mSampleCount;
+    private int mPendingByte = -1;
+
+    // residuals for each fixed predictor order, and rice partition sums
+    private final int[][] mResiduals = new int[MAX_FIXED_ORDER + 1][BLOCK_SIZE];
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] mBestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+
+    private final BitWriter mFrame = new BitWriter(BLOCK_SIZE * 2 * 2 + 64);
+    private final ByteBuffer mFrameBuffer = ByteBuffer.wrap(mFrame.mData);
+
+    private long mFrameNumber;
+    private long mTotalSamples;
+    private int mMinFrameSize = Integer.MAX_VALUE;
+    private int mMaxFrameSize;
+    private long mLength = STREAMINFO_OFFSET + 4 + STREAMINFO_LENGTH;
+
+    // state at the frame boundary to cut the file at, for trimming silence
+    private long mCutSamples = -1;
+    private long mCutLength;
+    private int mCutMinFrameSize;
+    private int mCutMaxFrameSize;
+    private MessageDigest mCutMd5;
+
+
+    /**
+     * Creates the FLAC file, replacing an existing one, and starts the I/O
+     * thread encoding to it.
+     *
+     * @param file to write
+     * @param sampleRate of the audio in Hz
+     * @param ringBuffer to read the audio from
+     * @param blockSize in bytes, maximum read from the ring buffer at once
+     * @param trimSilence true to trim leading and trailing silence
+     * @throws IOException when the file can not be created
+     */
+    public RWFlacEncoder(File file, int sampleRate, RWAudioRingBuffer ringBuffer, int blockSize, boolean trimSilence) throws IOException {
+        super(file, sampleRate, ringBuffer, blockSize, trimSilence);
+        mSampleRate = sampleRate;
+        try {
+            mMd5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available: " + e.getMessage());
+        }
+        writeFully(ByteBuffer.wrap(new byte[] {'f', 'L', 'a', 'C'}));
+        writeFully(ByteBuffer.wrap(createStreamInfo(new byte[16])));
+        start();
+    }
+
+
+    @Override
+    public String getFormat() {
+        return FORMAT_FLAC;
+    }
+
+
+    @Override
+    protected void encode(byte[] data, int offset, int length) throws IOException {
+        int i = offset;
+        int end = offset + length;
+        if (mPendingByte >= 0 && i < end) {
+            // sample split over two blocks
+            addSample((short) ((data[i] << 8) | mPendingByte));
+            mPendingByte = -1;
+            i++;
+        }
+        for (; i + 1 < end; i += 2) {
+            addSample((short) ((data[i + 1] << 8) | (data[i] & 0xff)));
+        }
+        if (i < end) {
+            mPendingByte = data[i] & 0xff;
+        }
+    }
+
+
+    private void addSample(int sample) throws IOException {
+        mSamples[mSampleCount++] = sample;
+        if (mSampleCount == BLOCK_SIZE) {
+            encodeFrame();
+        }
+    }
+
+
+    @Override
+    protected void finish() throws IOException {
+        long keep = getKeepSampleCount();
+        if (mCutSamples >= keep) {
+            // trailing silence, cut at the snapshot
+            truncate(mCutLength);
+            mTotalSamples = mCutSamples;
+            mMinFrameSize = mCutMinFrameSize;
+            mMaxFrameSize = mCutMaxFrameSize;
+            writeFully(ByteBuffer.wrap(createStreamInfo(mCutMd5.digest())), STREAMINFO_OFFSET);
+            return;
+        }
+        if (keep > mTotalSamples && keep < mTotalSamples + mSampleCount) {
+            // trailing silence in the last frame
+            mSampleCount = (int) (keep - mTotalSamples);
+        }
+        if (mSampleCount > 0) {
+            encodeFrame();
+        }
+        writeFully(ByteBuffer.wrap(createStreamInfo(mMd5.digest())), STREAMINFO_OFFSET);
+    }
+
+
+    /**
+     * Creates the STREAMINFO metadata block, including its header, for the
+     * audio encoded so far.
+     */
+    private byte[] createStreamInfo(byte[] md5) {
+        BitWriter out = new BitWriter(4 + STREAMINFO_LENGTH);
+        out.writeBits(1, 1); // last metadata block
+        out.writeBits(0, 7); // STREAMINFO
+        out.writeBits(STREAMINFO_LENGTH, 24);
+        out.writeBits(BLOCK_SIZE, 16); // only the last block may be smaller
+        out.writeBits(BLOCK_SIZE, 16);
+        out.writeBits(mMaxFrameSize > 0 ? mMinFrameSize : 0, 24);
+        out.writeBits(mMaxFrameSize, 24);
+        out.writeBits(mSampleRate, 20);
+        out.writeBits(0, 3); // one channel
+        out.writeBits(BITS_PER_SAMPLE - 1, 5);
+        out.writeBits((int) (mTotalSamples >>> 32), 4);
+        out.writeBits((int) mTotalSamples, 32);
+        for (byte b : md5) {
+            out.writeBits(b, 8);
+        }
+        return out.toByteArray();
+    }
+
+
+    private void encodeFrame() throws IOException {
+        int n = mSampleCount;
+        for (int i = 0; i < n; i++) {
+            mSampleBytes[2 * i] = (byte) mSamples[i];
+            mSampleBytes[2 * i + 1] = (byte) (mSamples[i] >> 8);
+        }
+        mMd5.update(mSampleBytes, 0, 2 * n);
+
+        BitWriter out = mFrame;
+        out.reset();
+
+        // frame header
+        out.writeBits(0x3ffe, 14); // sync code
+        out.writeBits(0, 1);
+        out.writeBits(0, 1); // fixed block size
+        out.writeBits(n == BLOCK_SIZE ? 0xc : 0x7, 4); // 4096, or 16 bit size at end of header
+        int sampleRateCode = sampleRateCode(mSampleRate);
+        out.writeBits(sampleRateCode, 4);
+        out.writeBits(0, 4); // one channel
+        out.writeBits(0x4, 3); // 16 bits per sample
+        out.writeBits(0, 1);
+        writeUtf8(out, mFrameNumber);
+        if (n != BLOCK_SIZE) {
+            out.writeBits(n - 1, 16);
+        }
+        if (sampleRateCode == 0xc) {
+            out.writeBits(mSampleRate / 1000, 8);
+        } else if (sampleRateCode == 0xd) {
+            out.writeBits(mSampleRate, 16);
+        }
+        out.writeBits(crc8(out.mData, out.byteLength()), 8);
+
+        encodeSubframe(out, n);
+
+        out.padToByte();
+        int crc = crc16(out.mData, out.byteLength());
+        out.writeBits(crc, 16);
+
+        int size = out.byteLength();
+        mFrameBuffer.clear();
+        mFrameBuffer.limit(size);
+        writeFully(mFrameBuffer);
+
+        mMinFrameSize = Math.min(mMinFrameSize, size);
+        mMaxFrameSize = Math.max(mMaxFrameSize, size);
+        mLength += size;
+        mTotalSamples += n;
+        mFrameNumber++;
+        mSampleCount = 0;
+
+        // the first boundary after the samples to keep is where the file
+        // is cut when no more activity follows
+        long keep = getKeepSampleCount();
+        if (keep != Long.MAX_VALUE && mTotalSamples >= keep && mCutSamples < keep) {
+            try {
+                mCutMd5 = (MessageDigest) mMd5.clone();
+                mCutSamples = mTotalSamples;
+                mCutLength = mLength;
+                mCutMinFrameSize = mMinFrameSize;
+                mCutMaxFrameSize = mMaxFrameSize;
+            } catch (CloneNotSupportedException e) {
+                // no trimming then
+            }
+        }
+    }
+
+
+    private void encodeSubframe(BitWriter out, int n) {
+        int[] x = mSamples;
+
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = (x[i] == x[0]);
+        }
+        if (constant) {
+            out.writeBits(0, 8); // CONSTANT subframe
+            out.writeBits(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        // residuals of the fixed predictors, computed from the previous order
+        int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        System.arraycopy(x, 0, mResiduals[0], 0, n);
+        for (int order = 1; order <= maxOrder; order++) {
+            int[] prev = mResiduals[order - 1];
+            int[] res = mResiduals[order];
+            for (int i = order; i < n; i++) {
+                res[i] = prev[i] - prev[i - 1];
+            }
+        }
+
+        // pick the order and partitioning with the fewest bits
+        long bestBits = (long) n * BITS_PER_SAMPLE;
+        int bestOrder = -1;
+        int bestPartitionOrder = 0;
+        for (int order = 0; order <= maxOrder; order++) {
+            for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER; partitionOrder++) {
+                if ((n % (1 << partitionOrder)) != 0 || (n >> partitionOrder) <= order) {
+                    break;
+                }
+                long bits = order * BITS_PER_SAMPLE + 2 + 4
+                        + riceBits(mResiduals[order], n, order, partitionOrder);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestOrder = order;
+                    bestPartitionOrder = partitionOrder;
+                    System.arraycopy(mRiceParameters, 0, mBestRiceParameters, 0, 1 << partitionOrder);
+                }
+            }
+        }
+
+        if (bestOrder < 0) {
+            out.writeBits(0x2, 8); // VERBATIM subframe
+            for (int i = 0; i < n; i++) {
+                out.writeBits(x[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        out.writeBits(0x10 | (bestOrder << 1), 8); // FIXED subframe
+        for (int i = 0; i < bestOrder; i++) {
+            out.writeBits(x[i], BITS_PER_SAMPLE);
+        }
+        out.writeBits(0, 2); // rice coding with 4 bit parameters
+        out.writeBits(bestPartitionOrder, 4);
+        int[] res = mResiduals[bestOrder];
+        int partitionSize = n >> bestPartitionOrder;
+        int i = bestOrder;
+        for (int p = 0; p < (1 << bestPartitionOrder); p++) {
+            int k = mBestRiceParameters[p];
+            out.writeBits(k, 4);
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                out.writeRice(res[i], k);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of bits needed to Rice code the residuals with the
+     * specified partition order, and stores the parameter used for each
+     * partition. The estimate n * (k + 1) + sum >> k is never lower than
+     * the actual size.
+     */
+    private long riceBits(int[] res, int n, int order, int partitionOrder) {
+        int partitions = 1 << partitionOrder;
+        int partitionSize = n >> partitionOrder;
+        int i = order;
+        long total = 0;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * partitionSize;
+            int count = end - i;
+            long sum = 0;
+            for (; i < end; i++) {
+                int r = res[i];
+                sum += (r << 1) ^ (r >> 31);
+            }
+            mPartitionSums[p] = sum;
+
+            // parameter close to log2 of the mean, then check its neighbours
+            int k = 0;
+            while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+                k++;
+            }
+            long bits = (long) count * (k + 1) + (sum >> k);
+            if (k > 0) {
+                long lower = (long) count * k + (sum >> (k - 1));
+                if (lower < bits) {
+                    bits = lower;
+                    k--;
+                }
+            }
+            mRiceParameters[p] = k;
+            total += 4 + bits;
+        }
+        return total;
+    }
+
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 88200: return 0x1;
+            case 176400: return 0x2;
+            case 192000: return 0x3;
+            case 8000: return 0x4;
+            case 16000: return 0x5;
+            case 22050: return 0x6;
+            case 24000: return 0x7;
+            case 32000: return 0x8;
+            case 44100: return 0x9;
+            case 48000: return 0xa;
+            case 96000: return 0xb;
+            default:
+                if (sampleRate % 1000 == 0 && sampleRate / 1000 <= 255) {
+                    return 0xc;
+                } else if (sampleRate <= 0xffff) {
+                    return 0xd;
+                }
+                return 0x0; // from STREAMINFO
+        }
+    }
+
+
+    /**
+     * Writes the frame number in the UTF-8 like coding used by FLAC.
+     */
+    private static void writeUtf8(BitWriter out, long value) {
+        if (value < 0x80) {
+            out.writeBits((int) value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && value >= (1L << (5 * bytes + 1))) {
+            bytes++;
+        }
+        int shift = (bytes - 1) * 6;
+        out.writeBits((int) ((0xff00 >> bytes) & 0xff) | (int) (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            out.writeBits(0x80 | (int) ((value >>> shift) & 0x3f), 8);
+        }
+    }
+
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xff;
+            for (int b = 0; b < 8; b++) {
+                crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        return crc;
+    }
+
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int b = 0; b < 8; b++) {
+                crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+            }
+        }
+        return crc;
+    }
+
+
+    /**
+     * Writes bits most significant first into a preallocated byte array.
+     */
+    private static class BitWriter {
+        final byte[] mData;
+        int mBytePos;
+        long mBits;
+        int mBitCount;
+
+        BitWriter(int capacity) {
+            mData = new byte[capacity];
+        }
+
+        void reset() {
+            mBytePos = 0;
+            mBits = 0;
+            mBitCount = 0;
+        }
+
+        /**
+         * Writes the lowest count bits of value, count at most 32.
+         */
+        void writeBits(int value, int count) {
+            mBits = (mBits << count) | (value & ((1L << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                mData[mBytePos++] = (byte) (mBits >>> mBitCount);
+            }
+        }
+
+        void writeRice(int value, int k) {
+            int u = (value << 1) ^ (value >> 31);
+            int q = u >>> k;
+            while (q >= 32) {
+                writeBits(0, 32);
+                q -= 32;
+            }
+            writeBits(1, q + 1);
+            if (k > 0) {
+                writeBits(u, k);
+            }
+        }
+
+        void padToByte() {
+            if (mBitCount > 0) {
+                writeBits(0, 8 - mBitCount);
+            }
+        }
+
+        int byteLength() {
+            return mBytePos;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[mBytePos];
+            System.arraycopy(mData, 0, result, 0, mBytePos);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+
+/**
+ * Helper methods for reading JSON data with a streaming JsonReader, instead
+ * of building an org.json object tree for it first.
+ *
+ * The next and require methods convert values the way the opt and get
+ * methods of org.json do, e.g. a number in a string is accepted where an
+ * int is expected, so that server data is interpreted the same by both.
+ */
+public class RWJsonHelper {
+
+    /**
+     * Creates a JsonReader for the specified source. It is lenient, like
+     * the org.json parser.
+     *
+     * @param in to read JSON data from
+     * @return reader for the data
+     */
+    public static JsonReader createReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+
+    /**
+     * Reads the next value as a string. Numbers and booleans are converted
+     * to their text, null to "null". Objects and arrays are skipped.
+     *
+     * @param reader to read from
+     * @param fallback returned when the value can not be converted
+     * @return value read
+     * @throws IOException on read error
+     */
+    public static String nextString(JsonReader reader, String fallback) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "null";
+            default:
+                reader.skipValue();
+                return fallback;
+        }
+    }
+
+
+    /**
+     * Reads the next value as a string, which must not be an object or an
+     * array.
+     *
+     * @param reader to read from
+     * @param name of the value, for the error message
+     * @return value read
+     * @throws IOException on read error
+     * @throws JSONException when the value is an object or an array
+     */
+    public static String requireString(JsonReader reader, String name) throws IOException, JSONException {
+        String result = nextString(reader, null);
+        if (result == null) {
+            throw new JSONException("Value at " + name + " is not a string");
+        }
+        return result;
+    }
+
+
+    /**
+     * Reads the next value as a long. Decimal numbers are truncated, and
+     * strings are parsed.
+     *
+     * @param reader to read from
+     * @param fallback returned when the value can not be converted
+     * @return value read
+     * @throws IOException on read error
+     */
+    public static long nextLong(JsonReader reader, long fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if ((token == JsonToken.NUMBER) || (token == JsonToken.STRING)) {
+            String value = reader.nextString();
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return toLong(value, fallback);
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+
+    /**
+     * Reads the next value as an int, see nextLong().
+     *
+     * @param reader to read from
+     * @param fallback returned when the value can not be converted
+     * @return value read
+     * @throws IOException on read error
+     */
+    public static int nextInt(JsonReader reader, int fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if ((token == JsonToken.NUMBER) || (token == JsonToken.STRING)) {
+            String value = reader.nextString();
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return (int) toLong(value, fallback);
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+
+    /**
+     * Reads the next value as an int, which must be a number or a string
+     * with a number.
+     *
+     * @param reader to read from
+     * @param name of the value, for the error message
+     * @return value read
+     * @throws IOException on read error
+     * @throws JSONException when the value is not a number
+     */
+    public static int requireInt(JsonReader reader, String name) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        if ((token == JsonToken.NUMBER) || (token == JsonToken.STRING)) {
+            String value = reader.nextString();
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                try {
+                    return (int) Double.parseDouble(value);
+                } catch (NumberFormatException e2) {
+                    // not a number
+                }
+            }
+        } else {
+            reader.skipValue();
+        }
+        throw new JSONException("Value at " + name + " is not an int");
+    }
+
+
+    private static long toLong(String value, long fallback) {
+        try {
+            return (long) Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+
+    /**
+     * Reads the next value as a double. Strings are parsed.
+     *
+     * @param reader to read from
+     * @param fallback returned when the value can not be converted
+     * @return value read
+     * @throws IOException on read error
+     */
+    public static double nextDouble(JsonReader reader, double fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if ((token != JsonToken.NUMBER) && (token != JsonToken.STRING)) {
+            reader.skipValue();
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(reader.nextString());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+
+    /**
+     * Reads the next value as a boolean. The strings "true" and "false"
+     * are accepted in any case.
+     *
+     * @param reader to read from
+     * @param fallback returned when the value can not be converted
+     * @return value read
+     * @throws IOException on read error
+     */
+    public static boolean nextBoolean(JsonReader reader, boolean fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            String value = reader.nextString();
+            if ("true".equalsIgnoreCase(value)) {
+                return true;
+            } else if ("false".equalsIgnoreCase(value)) {
+                return false;
+            }
+            return fallback;
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+
+    /**
+     * Checks that the specified data is a single valid JSON object or array,
+     * without building it.
+     *
+     * @param json data to check
+     * @param expected JsonToken.BEGIN_OBJECT or JsonToken.BEGIN_ARRAY
+     * @return true if the data is valid
+     */
+    public static boolean isValid(String json, JsonToken expected) {
+        if (json == null) {
+            return false;
+        }
+        try {
+            JsonReader reader = createReader(new StringReader(json));
+            if (reader.peek() != expected) {
+                return false;
+            }
+            reader.skipValue();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException e) {
+            return false;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Finds the string values for the specified keys in a JSON object, or
+     * in the objects of a JSON array, where the first object with the key
+     * is used. Only the top level is searched, other values are skipped
+     * without being built.
+     *
+     * @param json data to search
+     * @param keys to find values for
+     * @return values in the same order as the keys, null when not found
+     * @throws IOException when the data is not valid JSON
+     */
+    public static String[] findStrings(String json, String... keys) throws IOException {
+        String[] result = new String[keys.length];
+        JsonReader reader = createReader(new StringReader(json));
+        try {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                findStrings(reader, keys, result);
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        findStrings(reader, keys, result);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage());
+        }
+        return result;
+    }
+
+
+    private static void findStrings(JsonReader reader, String[] keys, String[] result) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            boolean found = false;
+            for (int i = 0; i < keys.length; i++) {
+                if ((result[i] == null) && name.equals(keys[i])) {
+                    result[i] = nextString(reader, null);
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
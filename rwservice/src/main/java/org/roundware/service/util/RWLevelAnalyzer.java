@@ -0,0 +1,172 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+
+
+/**
+ * Measures the level of recorded audio for display, e.g. in a level meter.
+ *
+ * The analyser is a lossy reader of the RWAudioRingBuffer the capture
+ * thread writes to, so it never holds back recording. On its own thread
+ * it wakes up at a fixed interval, computes the RMS (with any DC offset
+ * removed) and the peak over all audio recorded since the previous
+ * interval, and passes them to the listener. No objects are allocated
+ * while analysing.
+ */
+public class RWLevelAnalyzer {
+
+    // debugging
+    private final static String TAG = "RWLevelAnalyzer";
+    private final static boolean D = false;
+
+    // full scale for 16 bit samples
+    private static final float MAX_16_BIT = 32768f;
+    private static final int READ_SIZE = 4096;
+
+    private final RWAudioRingBuffer.Reader mReader;
+    private final long mIntervalMsec;
+    private final LevelListener mListener;
+    private final byte[] mBuffer;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+
+    // analysis of the current interval
+    private long mSum;
+    private long mSquareSum;
+    private int mPeak;
+    private int mCount;
+    private int mPendingByte = -1;
+
+
+    /**
+     * Listener interface for the measured levels.
+     */
+    public interface LevelListener {
+        /**
+         * Callback with the levels of the latest interval, made from the
+         * analyser thread.
+         *
+         * @param timeStampMsec of the measurement
+         * @param rms level, 0 to 1 of full scale
+         * @param peak level, 0 to 1 of full scale
+         */
+        public void level(long timeStampMsec, float rms, float peak);
+    }
+
+
+    /**
+     * Creates the analyser and starts its thread.
+     *
+     * @param ringBuffer to read the audio from
+     * @param intervalMsec between measurements
+     * @param listener for the measurements
+     */
+    public RWLevelAnalyzer(RWAudioRingBuffer ringBuffer, long intervalMsec, LevelListener listener) {
+        mReader = ringBuffer.newReader(false);
+        mIntervalMsec = intervalMsec;
+        mListener = listener;
+        mBuffer = new byte[READ_SIZE];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                analyze();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+
+    /**
+     * Stops the analyser and waits for its thread to end.
+     */
+    public void stop() {
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void analyze() {
+        long next = System.currentTimeMillis() + mIntervalMsec;
+        try {
+            while (!mStopped) {
+                long delay = next - System.currentTimeMillis();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                    next += mIntervalMsec;
+                } else {
+                    // fell behind, e.g. while the device was busy
+                    next = System.currentTimeMillis() + mIntervalMsec;
+                }
+
+                int n;
+                while ((n = mReader.read(mBuffer, 0, mBuffer.length, false)) > 0) {
+                    add(mBuffer, n);
+                }
+                if (mCount > 0) {
+                    publish();
+                }
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (InterruptedIOException e) {
+            // stopped
+        }
+        if (D) { Log.d(TAG, "Analyser stopped, skipped bytes: " + mReader.getSkipped()); }
+    }
+
+
+    private void add(byte[] data, int length) {
+        int i = 0;
+        if (mPendingByte >= 0) {
+            addSample((short) ((data[0] << 8) | mPendingByte));
+            mPendingByte = -1;
+            i = 1;
+        }
+        for (; i + 1 < length; i += 2) {
+            addSample((short) ((data[i + 1] << 8) | (data[i] & 0xff)));
+        }
+        if (i < length) {
+            mPendingByte = data[i] & 0xff;
+        }
+    }
+
+
+    private void addSample(int sample) {
+        mSum += sample;
+        mSquareSum += (long) sample * sample;
+        int abs = (sample < 0) ? -sample : sample;
+        if (abs > mPeak) {
+            mPeak = abs;
+        }
+        mCount++;
+    }
+
+
+    private void publish() {
+        double mean = (double) mSum / mCount;
+        double power = (double) mSquareSum / mCount - mean * mean;
+        float rms = (float) Math.sqrt(Math.max(0, power)) / MAX_16_BIT;
+        float peak = mPeak / MAX_16_BIT;
+        mSum = 0;
+        mSquareSum = 0;
+        mPeak = 0;
+        mCount = 0;
+        if (mListener != null) {
+            mListener.level(System.currentTimeMillis(), rms, peak);
+        }
+    }
+}
@@ -19,14 +19,26 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 
 /**
  * The RWList contains all the selectable options for all tags. It is a
  * convenience mechanism to pass this tag data to views and to the action
  * factory.
+ *
+ * Selection queries and changes use an index of the list, with the
+ * positions of the items per tag, a BitSet of the selected positions and
+ * the number of selected items per tag. The index is rebuilt when items
+ * are added or removed, or when the selection of an item changes outside
+ * of this list, e.g. through a filtered list sharing the items. Those
+ * changes are counted per group of items, see RWListItem.SelectionChanges,
+ * so changes to the items of unrelated lists do not affect the index.
  *  
  * @author Rob Knapen
  */
@@ -44,8 +56,20 @@ public class RWList extends ArrayList<RWListItem> {
     
     // fields
     private RWTags mTags;
+    private int mTagsHash;
     private int mMinSelectionRequired = 1;
     private int mMaxSelectionAllowed = 1;
+
+    // selection index, see ensureIndex()
+    private transient Map<RWTag, Integer> mTagSlots;
+    private transient RWTag[] mSlotTags;
+    private transient int[][] mSlotPositions;
+    private transient int[] mSlotSelectedCounts;
+    private transient int[] mItemSlots;
+    private transient BitSet mSelected;
+    private transient int mIndexModCount;
+    private transient RWListItem.SelectionChanges[] mIndexCounters;
+    private transient int[] mIndexCounts;
     
     
     /**
@@ -78,9 +102,12 @@ public class RWList extends ArrayList<RWListItem> {
      */
     public void initFromTags(RWTags tags) {
         mTags = new RWTags();
+        mTagsHash = 0;
         clear();
         if (tags != null) {
-            mTags.fromJson(tags.toJsonString(), tags.getDataSource());
+            String json = tags.toJsonString();
+            mTags.fromJson(json, tags.getDataSource());
+            mTagsHash = json.hashCode();
             for (RWTag tag : tags.getTags()) {
                 if (tag.options != null) {
                     // assume options are already in the right order
@@ -149,6 +176,26 @@ public class RWList extends ArrayList<RWListItem> {
     }
 
 
+    /**
+     * Returns a key for the result of toJsonForWebView(), which is only
+     * the same for lists with the same tags and selected options. It can
+     * be used to cache the result, or pages created with it, without
+     * creating the JSON data.
+     * 
+     * @param type (e.g. "listen", "speak") of the json data
+     * @return key for the web view data
+     */
+    public String getWebViewStateKey(String type) {
+        ensureIndex();
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(':').append(Integer.toHexString(mTagsHash)).append(':');
+        for (int i = mSelected.nextSetBit(0); i >= 0; i = mSelected.nextSetBit(i + 1)) {
+            sb.append(get(i).getTagId()).append(',');
+        }
+        return sb.toString();
+    }
+
+
     /**
      * Removes tags that would not be valid for the WebView
      */
@@ -158,9 +205,11 @@ public class RWList extends ArrayList<RWListItem> {
         for(int i = allTags.size() - 1; i >= 0; i--) {
             RWTag tag = allTags.get(i);
             if( isNonWebTag(tag) ) {
-                allTags.remove(i);
+                mTags.removeTag(tag);
             }
         }
+        // the web view state key must follow the tags that remain
+        mTagsHash = mTags.toJsonString().hashCode();
         RWTag refTags[] = getAllTags();
         for(int i = refTags.length - 1; i >= 0; i--) {
             RWTag tag = refTags[i];
@@ -208,9 +257,7 @@ public class RWList extends ArrayList<RWListItem> {
         boolean done = false;
 
         // set all tags to off
-        for (RWListItem item : this) {
-            item.setOff();
-        }
+        clearSelection();
 
         // process the url
         String query = webViewMessageUri.getQuery(); // everything after ? to #
@@ -243,13 +290,16 @@ public class RWList extends ArrayList<RWListItem> {
                 }
 
                 // check tags
-                for (RWListItem item : this) {
-                    RWTag tag = item.getTag();
-                    String tagId = String.valueOf(item.getTagId());
-                    if (tag.code.equals(parameterName)) {
+                for (int slot = 0; slot < mSlotTags.length; slot++) {
+                    RWTag tag = mSlotTags[slot];
+                    if ((tag == null) || !tag.code.equals(parameterName)) {
+                        continue;
+                    }
+                    for (int position : mSlotPositions[slot]) {
+                        String tagId = String.valueOf(get(position).getTagId());
                         for (String value : values) {
                             if (tagId.equals(value)) {
-                                item.setOn();
+                                setSelected(position, true);
                                 break;
                             }
                         }
@@ -272,10 +322,8 @@ public class RWList extends ArrayList<RWListItem> {
     public RWList filter(RWTag tag) {
         RWList result = new RWList();
         if (tag != null) {
-            for (RWListItem item : this) {
-                if (tag.equals(item.getTag())) {
-                    result.add(item);
-                }
+            for (int position : positionsOf(tag)) {
+                result.add(get(position));
             }
             result.mMinSelectionRequired = tag.getMinSelectedOptions();
             result.mMaxSelectionAllowed = tag.getMaxSelectedOptions();
@@ -294,10 +342,8 @@ public class RWList extends ArrayList<RWListItem> {
     public RWList createSublist(RWTag tag) {
         RWList result = new RWList();
         if (tag != null) {
-            for (RWListItem item : this) {
-                if (tag.equals(item.getTag())) {
-                    result.add(RWListItem.create(item));
-                }
+            for (int position : positionsOf(tag)) {
+                result.add(RWListItem.create(get(position)));
             }
             result.mMinSelectionRequired = tag.getMinSelectedOptions();
             result.mMaxSelectionAllowed = tag.getMaxSelectedOptions();
@@ -333,8 +379,9 @@ public class RWList extends ArrayList<RWListItem> {
      * @return self, with all items deselected
      */
     public RWList clearSelection() {
-        for (RWListItem item : this) {
-            item.setOff();
+        ensureIndex();
+        for (int i = mSelected.nextSetBit(0); i >= 0; i = mSelected.nextSetBit(i + 1)) {
+            setSelected(i, false);
         }
         return this;
     }
@@ -351,10 +398,8 @@ public class RWList extends ArrayList<RWListItem> {
         if (tag == null) {
             clearSelection();
         } else {
-            for (RWListItem item : this) {
-                if (tag.equals(item.getTag())) {
-                    item.setOff();
-                }
+            for (int position : positionsOf(tag)) {
+                setSelected(position, false);
             }
         }
         return this;
@@ -367,13 +412,8 @@ public class RWList extends ArrayList<RWListItem> {
      * @return number of selected items
      */
     public int getSelectedCount() {
-        int result = 0;
-        for (RWListItem item : this) {
-            if (item.isOn()) {
-                result++;
-            }
-        }
-        return result;
+        ensureIndex();
+        return mSelected.cardinality();
     }
 
     
@@ -384,15 +424,8 @@ public class RWList extends ArrayList<RWListItem> {
      * @return number of selected items
      */
     public int getSelectedCount(RWTag tag) {
-        int result = 0;
-        for (RWListItem item : this) {
-            if (tag.equals(item.getTag())) {
-                if (item.isOn()) {
-                    result++;
-                }
-            }
-        }
-        return result;
+        int slot = slotOf(tag);
+        return (slot < 0) ? 0 : mSlotSelectedCounts[slot];
     }
     
     
@@ -403,8 +436,10 @@ public class RWList extends ArrayList<RWListItem> {
      * @return true if the list is single select
      */
     public boolean isSingleSelect(RWTag tag) {
-        RWList sublist = filter(tag);
-        return ((sublist.mMinSelectionRequired == 1) && (sublist.mMaxSelectionAllowed == 1));
+        if (tag == null) {
+            return true;
+        }
+        return ((tag.getMinSelectedOptions() == 1) && (tag.getMaxSelectedOptions() == 1));
     }
     
     
@@ -414,10 +449,9 @@ public class RWList extends ArrayList<RWListItem> {
      * of allowed selected items is reached.
      */
     private void deselectFirstSelected(RWTag tag) {
-        RWList sublist = filter(tag);
-        for (RWListItem item : sublist) {
-            if (item.isOn()) {
-                item.setOff();
+        for (int position : positionsOf(tag)) {
+            if (mSelected.get(position)) {
+                setSelected(position, false);
                 return;
             }
         }
@@ -435,18 +469,17 @@ public class RWList extends ArrayList<RWListItem> {
      */
     public boolean select(RWListItem item) {
         RWTag tag = item.getTag();
-        RWList sublist = filter(tag);
         if (!item.isOn()) {
             // only allow if does not break max selections
-            if (sublist.getSelectedCount(tag) >= sublist.mMaxSelectionAllowed) {
-                if (sublist.isSingleSelect(tag)) {
+            if ((tag != null) && (getSelectedCount(tag) >= tag.getMaxSelectedOptions())) {
+                if (isSingleSelect(tag)) {
                     // for single select auto switch the selection
-                    sublist.deselectFirstSelected(tag);
-                    item.setOn();
+                    deselectFirstSelected(tag);
+                    setSelected(item, true);
                     return true;
                 }
             } else {
-                item.setOn();
+                setSelected(item, true);
                 return true;
             }
         }
@@ -467,7 +500,7 @@ public class RWList extends ArrayList<RWListItem> {
         if (item.isOn()) {
             // only allow if does not break min selections
             if (getSelectedCount(tag) > mMinSelectionRequired) {
-                item.setOff();
+                setSelected(item, false);
                 return true;
             }
         }
@@ -481,11 +514,10 @@ public class RWList extends ArrayList<RWListItem> {
      * @return RWList with the selected RWListItems
      */
     public RWList getSelectedItems() {
+        ensureIndex();
         RWList result = new RWList();
-        for (RWListItem item : this) {
-            if (item.isOn()) {
-                result.add(item);
-            }
+        for (int i = mSelected.nextSetBit(0); i >= 0; i = mSelected.nextSetBit(i + 1)) {
+            result.add(get(i));
         }
         return result;
     }
@@ -499,9 +531,9 @@ public class RWList extends ArrayList<RWListItem> {
      */
     public RWList getSelectedItems(RWTag tag) {
         RWList result = new RWList();
-        for (RWListItem item : this) {
-            if ((tag.equals(item.getTag())) && (item.isOn())) {
-                result.add(item);
+        for (int position : positionsOf(tag)) {
+            if (mSelected.get(position)) {
+                result.add(get(position));
             }
         }
         return result;
@@ -515,8 +547,9 @@ public class RWList extends ArrayList<RWListItem> {
      * @return Self, with all items set to selected
      */
     public RWList selectAll() {
-        for (RWListItem item : this) {
-            item.setOn();
+        ensureIndex();
+        for (int i = mSelected.nextClearBit(0); i < size(); i = mSelected.nextClearBit(i + 1)) {
+            setSelected(i, true);
         }
         return this;
     }
@@ -534,10 +567,8 @@ public class RWList extends ArrayList<RWListItem> {
         if (tag == null) {
             selectAll();
         } else {
-            for (RWListItem item : this) {
-                if (tag.equals(item.getTag())) {
-                    item.setOn();
-                }
+            for (int position : positionsOf(tag)) {
+                setSelected(position, true);
             }
         }
         return this;
@@ -567,15 +598,10 @@ public class RWList extends ArrayList<RWListItem> {
      * @return Self, with single option tags selected
      */
     public RWList autoSelectSingleItemForTag(RWTag tag) {
-        RWList tagItems = new RWList();
         if (tag != null) {
-            for (RWListItem item : this) {
-                if (tag.equals(item.getTag())) {
-                    tagItems.add(item);
-                }
-            }
-            if (tagItems.size() == 1) {
-                tagItems.get(0).setOn();
+            int[] positions = positionsOf(tag);
+            if (positions.length == 1) {
+                setSelected(positions[0], true);
             }
         }
         return this;
@@ -589,13 +615,8 @@ public class RWList extends ArrayList<RWListItem> {
      * @return list of all RWTag instances referenced
      */
     public RWTag[] getAllTags() {
-        List<RWTag> result = new ArrayList<RWTag>();
-        for (RWListItem item : this) {
-            if (!result.contains(item.getTag())) {
-                result.add(item.getTag());
-            }
-        }
-        return result.toArray(new RWTag[]{});
+        ensureIndex();
+        return mSlotTags.clone();
     }
     
     
@@ -610,10 +631,14 @@ public class RWList extends ArrayList<RWListItem> {
      */
     public boolean hasValidSelectionsForTags(RWTag... tags) {
         for (RWTag tag : tags) {
-            RWList sublist = filter(tag);
-            int selected = sublist.getSelectedCount();
-            if ((selected < sublist.mMinSelectionRequired) || (selected > sublist.mMaxSelectionAllowed)) {
-                if (D) { Log.d(TAG, "Invalid selection for tag " + tag + " " + sublist.mMinSelectionRequired + " < " + selected + " < " + sublist.mMaxSelectionAllowed); }
+            if (tag == null) {
+                return false;
+            }
+            int selected = getSelectedCount(tag);
+            int min = tag.getMinSelectedOptions();
+            int max = tag.getMaxSelectedOptions();
+            if ((selected < min) || (selected > max)) {
+                if (D) { Log.d(TAG, "Invalid selection for tag " + tag + " " + min + " < " + selected + " < " + max); }
                 return false;
             }
         }
@@ -664,9 +689,11 @@ public class RWList extends ArrayList<RWListItem> {
      */
     public boolean restoreSelectionState(SharedPreferences prefs) {
         if (prefs != null) {
-            for (RWListItem item : this) {
+            ensureIndex();
+            for (int i = 0; i < size(); i++) {
+                RWListItem item = get(i);
                 String key = item.getTag().type + "_" + item.getTag().code + "_" + item.getTagId();
-                item.set(prefs.getBoolean(key, item.isOn()));
+                setSelected(i, prefs.getBoolean(key, item.isOn()));
             }
             return true;
         }
@@ -674,6 +701,173 @@ public class RWList extends ArrayList<RWListItem> {
     }
 
 
+    @Override
+    public RWListItem set(int index, RWListItem item) {
+        // replacing does not count as a structural modification
+        mTagSlots = null;
+        return super.set(index, item);
+    }
+
+
+    @Override
+    public Object clone() {
+        RWList result = (RWList) super.clone();
+        result.mTagSlots = null;
+        return result;
+    }
+
+
+    /**
+     * Makes sure the selection index matches the list. It is rebuilt when
+     * items were added or removed since it was built, or when the
+     * selection of a list item changed other than through setSelected.
+     * Items without a change counter get a new one, shared by them.
+     */
+    private void ensureIndex() {
+        if ((mTagSlots != null) && (mIndexModCount == modCount) && !selectionChanged()) {
+            return;
+        }
+
+        int size = size();
+        RWListItem.SelectionChanges newCounter = null;
+        List<RWListItem.SelectionChanges> counters = new ArrayList<RWListItem.SelectionChanges>(1);
+        Map<RWTag, Integer> tagSlots = new HashMap<RWTag, Integer>();
+        List<RWTag> slotTags = new ArrayList<RWTag>();
+        int[] itemSlots = new int[size];
+        int[] itemCounts = new int[size];
+        int[] selectedCounts = new int[size];
+        BitSet selected = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            RWListItem item = get(i);
+            RWListItem.SelectionChanges counter = item.getSelectionChanges();
+            if (counter == null) {
+                if (newCounter == null) {
+                    newCounter = new RWListItem.SelectionChanges();
+                }
+                counter = newCounter;
+                item.setSelectionChanges(counter);
+            }
+            if (!containsCounter(counters, counter)) {
+                counters.add(counter);
+            }
+            Integer slot = tagSlots.get(item.getTag());
+            if (slot == null) {
+                slot = slotTags.size();
+                tagSlots.put(item.getTag(), slot);
+                slotTags.add(item.getTag());
+            }
+            itemSlots[i] = slot;
+            itemCounts[slot]++;
+            if (item.isOn()) {
+                selected.set(i);
+                selectedCounts[slot]++;
+            }
+        }
+
+        int slots = slotTags.size();
+        int[][] slotPositions = new int[slots][];
+        for (int slot = 0; slot < slots; slot++) {
+            slotPositions[slot] = new int[itemCounts[slot]];
+            itemCounts[slot] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            int slot = itemSlots[i];
+            slotPositions[slot][itemCounts[slot]++] = i;
+        }
+
+        mTagSlots = tagSlots;
+        mSlotTags = slotTags.toArray(new RWTag[slots]);
+        mSlotPositions = slotPositions;
+        mSlotSelectedCounts = Arrays.copyOf(selectedCounts, slots);
+        mItemSlots = itemSlots;
+        mSelected = selected;
+        mIndexModCount = modCount;
+        mIndexCounters = counters.toArray(new RWListItem.SelectionChanges[counters.size()]);
+        mIndexCounts = new int[mIndexCounters.length];
+        updateSelectionCounts();
+    }
+
+
+    /**
+     * Returns true when the selection of any item changed since the last
+     * call of updateSelectionCounts().
+     */
+    private boolean selectionChanged() {
+        for (int i = 0; i < mIndexCounters.length; i++) {
+            if (mIndexCounters[i].count != mIndexCounts[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private void updateSelectionCounts() {
+        for (int i = 0; i < mIndexCounters.length; i++) {
+            mIndexCounts[i] = mIndexCounters[i].count;
+        }
+    }
+
+
+    private static boolean containsCounter(List<RWListItem.SelectionChanges> counters,
+            RWListItem.SelectionChanges counter) {
+        // usually all items share one counter, check the last one first
+        for (int i = counters.size() - 1; i >= 0; i--) {
+            if (counters.get(i) == counter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private int slotOf(RWTag tag) {
+        ensureIndex();
+        Integer slot = mTagSlots.get(tag);
+        return (slot == null) ? -1 : slot;
+    }
+
+
+    private int[] positionsOf(RWTag tag) {
+        int slot = slotOf(tag);
+        return (slot < 0) ? new int[0] : mSlotPositions[slot];
+    }
+
+
+    /**
+     * Sets the selection of the item at the specified position and updates
+     * the index. The index must be up to date.
+     */
+    private void setSelected(int position, boolean on) {
+        RWListItem item = get(position);
+        if (item.isOn() != on) {
+            item.set(on);
+            mSelected.set(position, on);
+            mSlotSelectedCounts[mItemSlots[position]] += on ? 1 : -1;
+            updateSelectionCounts();
+        }
+    }
+
+
+    /**
+     * Sets the selection of the specified item, which does not have to be
+     * in the list, and updates the index.
+     */
+    private void setSelected(RWListItem item, boolean on) {
+        for (int position : positionsOf(item.getTag())) {
+            if (get(position) == item) {
+                setSelected(position, on);
+                return;
+            }
+        }
+        if (item.isOn() != on) {
+            // not in this list, so the index stays valid
+            item.set(on);
+            updateSelectionCounts();
+        }
+    }
+
+
     public int getMinSelectionRequired() {
         return mMinSelectionRequired;
     }
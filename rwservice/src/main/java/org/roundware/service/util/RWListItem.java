@@ -13,11 +13,22 @@ import org.roundware.service.RWTags.RWTag;
  */
 public class RWListItem {
 
+    /**
+     * Counter of selection state changes, shared by the items indexed by
+     * a RWList. It lets the lists holding the items notice changes made
+     * to them directly or through another list, without being affected
+     * by changes to the items of unrelated lists.
+     */
+    static final class SelectionChanges {
+        int count;
+    }
+
     // fields
     private RWTag mTag;
     private String mText;
     private boolean mOn;
     private int mTagId;
+    private SelectionChanges mSelectionChanges;
 
 
     /**
@@ -99,12 +110,18 @@ public class RWListItem {
 
 
     public void setOn() {
-        mOn = true;
+        if (!mOn) {
+            mOn = true;
+            countSelectionChange();
+        }
     }
 
 
     public void setOff() {
-        mOn = false;
+        if (mOn) {
+            mOn = false;
+            countSelectionChange();
+        }
     }
 
 
@@ -115,4 +132,21 @@ public class RWListItem {
             setOff();
     }
 
+
+    private void countSelectionChange() {
+        if (mSelectionChanges != null) {
+            mSelectionChanges.count++;
+        }
+    }
+
+
+    SelectionChanges getSelectionChanges() {
+        return mSelectionChanges;
+    }
+
+
+    void setSelectionChanges(SelectionChanges selectionChanges) {
+        mSelectionChanges = selectionChanges;
+    }
+
 }
@@ -8,11 +8,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.Vector;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -23,9 +28,16 @@ import android.util.Log;
 
 /**
  * Customized HttpEntity for simple multipart file uploads.
- * 
+ *
+ * Parts are kept as a list of small header and value byte arrays, and
+ * references to (ranges of) files. File contents are not buffered but
+ * streamed from disk when the entity is written, so memory use does not
+ * depend on the size of the uploaded files. The content length is computed
+ * up front from the part headers and the file sizes, and the entity can be
+ * written more than once (e.g. when a request is retried).
+ *
  * Original code by Rafael Sanches, adapted by Rob Knapen.
- * 
+ *
  * @author Rafael Sanches, Rob Knapen
  */
 public class RWMultipartEntity implements HttpEntity {
@@ -35,11 +47,89 @@ public class RWMultipartEntity implements HttpEntity {
 
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
 
+    private final static int FILE_BUFFER_SIZE = 8192;
+
     private String boundary = null;
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    // byte[] or FileRange instances, in order
+    private final List<Object> parts = new ArrayList<Object>();
+
+
+    /**
+     * Range of bytes of a file to be included in a part.
+     */
+    private static class FileRange {
+        final File file;
+        final long offset;
+        final long length;
+
+        FileRange(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Opens the file positioned at the offset, returning a stream that
+         * ends after length bytes.
+         */
+        InputStream open() throws IOException {
+            final InputStream fin = new FileInputStream(file);
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = fin.skip(offset - skipped);
+                if (n <= 0) {
+                    fin.close();
+                    throw new IOException("Could not skip to offset " + offset + " in " + file.getName());
+                }
+                skipped += n;
+            }
+            return new FilterInputStream(fin) {
+                private long remaining = length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = super.read();
+                    if (b != -1) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int l = super.read(b, off, (int) Math.min(len, remaining));
+                    if (l > 0) {
+                        remaining -= l;
+                    }
+                    return l;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long s = super.skip(Math.min(n, remaining));
+                    remaining -= s;
+                    return s;
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return (int) Math.min(super.available(), remaining);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+    }
 
 
     public RWMultipartEntity() {
@@ -53,42 +143,43 @@ public class RWMultipartEntity implements HttpEntity {
     }
 
 
-    public void writeFirstBoundaryIfNeeds() {
-        if (!isSetFirst) {
-            try {
-                out.write(("--" + boundary + "\r\n").getBytes());
-            } catch (final IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-            }
+    private static byte[] bytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return text.getBytes();
         }
-        isSetFirst = true;
     }
 
 
-    public void writeLastBoundaryIfNeeds() {
-        if (isSetLast) {
-            return;
+    private byte[] partHeader(final String key, final String fileName, final String type, final String encoding) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--").append(boundary).append("\r\n");
+        sb.append("Content-Disposition: form-data; name=\"").append(key).append('"');
+        if (fileName != null) {
+            sb.append("; filename=\"").append(fileName).append('"');
         }
-        try {
-            out.write(("\r\n--" + boundary + "--\r\n").getBytes());
-        } catch (final IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
-        isSetLast = true;
+        sb.append("\r\n");
+        sb.append("Content-Type: ").append(type).append("\r\n");
+        sb.append("Content-Transfer-Encoding: ").append(encoding).append("\r\n\r\n");
+        return bytes(sb.toString());
+    }
+
+
+    private byte[] partFooter() {
+        return bytes("\r\n");
+    }
+
+
+    private byte[] lastBoundary() {
+        return bytes("--" + boundary + "--\r\n");
     }
 
 
     public void addPart(final String key, final String value) {
-        writeFirstBoundaryIfNeeds();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" + key + "\"\r\n").getBytes());
-            out.write("Content-Type: text/plain; charset=UTF-8\r\n".getBytes());
-            out.write("Content-Transfer-Encoding: 8bit\r\n\r\n".getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        parts.add(partHeader(key, null, "text/plain; charset=UTF-8", "8bit"));
+        parts.add(bytes(value));
+        parts.add(partFooter());
     }
 
 
@@ -97,21 +188,22 @@ public class RWMultipartEntity implements HttpEntity {
     }
 
 
+    /**
+     * Adds a part with the content of the specified stream. The stream is
+     * read completely into memory, so for large content use the addPart
+     * variant for a File instead.
+     */
     public void addPart(final String key, final String fileName, final InputStream fin, String type) {
-        writeFirstBoundaryIfNeeds();
         try {
-            type = "Content-Type: " + type + "\r\n";
-            out.write(("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n")
-                    .getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
-
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
             final byte[] tmp = new byte[4096];
             int l;
             while ((l = fin.read(tmp)) != -1) {
                 out.write(tmp, 0, l);
             }
-            out.flush();
+            parts.add(partHeader(key, fileName, type, "binary"));
+            parts.add(out.toByteArray());
+            parts.add(partFooter());
         } catch (final IOException e) {
             Log.e(TAG, e.getMessage(), e);
         } finally {
@@ -124,19 +216,42 @@ public class RWMultipartEntity implements HttpEntity {
     }
 
 
+    /**
+     * Adds a part with the content of the specified file. The file is only
+     * read when the entity is written, and must not change in between.
+     */
     public void addPart(final String key, final File value) {
-        try {
-            addPart(key, value.getName(), new FileInputStream(value));
-        } catch (final FileNotFoundException e) {
-            Log.e(TAG, e.getMessage(), e);
+        addPart(key, value, 0, value.length());
+    }
+
+
+    /**
+     * Adds a part with the specified range of bytes from the file, e.g.
+     * for uploading a large file in chunks. The file is only read when the
+     * entity is written, and must not change in between.
+     */
+    public void addPart(final String key, final File value, final long offset, final long length) {
+        if (!value.isFile()) {
+            Log.e(TAG, "File to upload not found: " + value.getAbsolutePath());
+            return;
         }
+        parts.add(partHeader(key, value.getName(), "application/octet-stream", "binary"));
+        parts.add(new FileRange(value, offset, length));
+        parts.add(partFooter());
     }
 
 
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long length = lastBoundary().length;
+        for (Object part : parts) {
+            if (part instanceof FileRange) {
+                length += ((FileRange) part).length;
+            } else {
+                length += ((byte[]) part).length;
+            }
+        }
+        return length;
     }
 
 
@@ -154,7 +269,7 @@ public class RWMultipartEntity implements HttpEntity {
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        return true;
     }
 
 
@@ -166,7 +281,30 @@ public class RWMultipartEntity implements HttpEntity {
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        outstream.write(out.toByteArray());
+        final byte[] tmp = new byte[FILE_BUFFER_SIZE];
+        for (Object part : parts) {
+            if (part instanceof FileRange) {
+                final FileRange range = (FileRange) part;
+                final InputStream fin = range.open();
+                try {
+                    long remaining = range.length;
+                    int l;
+                    while ((remaining > 0) && ((l = fin.read(tmp, 0, (int) Math.min(tmp.length, remaining))) != -1)) {
+                        outstream.write(tmp, 0, l);
+                        remaining -= l;
+                    }
+                    if (remaining > 0) {
+                        throw new IOException("File " + range.file.getName() + " is shorter than expected");
+                    }
+                } finally {
+                    fin.close();
+                }
+            } else {
+                outstream.write((byte[]) part);
+            }
+        }
+        outstream.write(lastBoundary());
+        outstream.flush();
     }
 
 
@@ -186,6 +324,15 @@ public class RWMultipartEntity implements HttpEntity {
 
     @Override
     public InputStream getContent() throws IOException, UnsupportedOperationException {
-        return new ByteArrayInputStream(out.toByteArray());
+        final Vector<InputStream> streams = new Vector<InputStream>();
+        for (Object part : parts) {
+            if (part instanceof FileRange) {
+                streams.add(((FileRange) part).open());
+            } else {
+                streams.add(new ByteArrayInputStream((byte[]) part));
+            }
+        }
+        streams.add(new ByteArrayInputStream(lastBoundary()));
+        return new SequenceInputStream(streams.elements());
     }
 }
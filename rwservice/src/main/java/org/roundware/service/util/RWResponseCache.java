@@ -0,0 +1,357 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * File based cache for data retrieved from the server, e.g. the project
+ * configuration and tags, for use in an off-line state. Each entry is a
+ * file in a folder of the app's private files directory, named after the
+ * cache and the key of the entry.
+ *
+ * A file starts with a small index header with the version, save time,
+ * size and CRC32 checksum of the data, followed by the data itself. It is
+ * read with a single sequential read, and an entry of which the header
+ * does not match the data, e.g. because it has been truncated, is treated
+ * as missing and deleted. Entries are written to a temporary file first,
+ * which is then renamed, so that readers never see a partially written
+ * entry.
+ */
+public class RWResponseCache {
+
+    // debugging
+    private final static String TAG = "RWResponseCache";
+    private final static boolean D = false;
+
+    // file header layout: magic, format, version, save time, size, checksum
+    private final static int MAGIC = 0x52574331; // "RWC1"
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 8;
+
+    private final static String TEMP_FILE_SUFFIX = ".tmp";
+    private final static String CHARSET = "UTF-8";
+
+    private final File mDir;
+
+
+    /**
+     * Index data of a cache entry, read from the header of its file.
+     */
+    public static class Entry {
+        public final int version;
+        public final long savedMsec;
+        public final int size;
+        public final long checksum;
+
+        Entry(int version, long savedMsec, int size, long checksum) {
+            this.version = version;
+            this.savedMsec = savedMsec;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+
+    /**
+     * Creates an instance for the cache with the specified name, stored in
+     * the private files directory of the app.
+     *
+     * @param context to be used to access the files directory
+     * @param cacheName of the cache, used as folder name
+     */
+    public RWResponseCache(Context context, String cacheName) {
+        this(new File(context.getFilesDir(), cacheName));
+    }
+
+
+    /**
+     * Creates an instance for the cache stored in the specified folder.
+     *
+     * @param dir to store the cache files in
+     */
+    public RWResponseCache(File dir) {
+        mDir = dir;
+    }
+
+
+    /**
+     * Returns the file used for the entry with the specified key.
+     *
+     * @param key of the entry
+     * @return file of the entry, it might not exist
+     */
+    public File getFile(String key) {
+        StringBuilder name = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+                    || ((c >= '0') && (c <= '9')) || (c == '.') || (c == '-')) {
+                name.append(c);
+            } else {
+                name.append('_');
+            }
+        }
+        return new File(mDir, name.toString());
+    }
+
+
+    /**
+     * Stores the data for the specified key, replacing the existing entry.
+     *
+     * @param key of the entry
+     * @param version of the data format, checked when the data is loaded
+     * @param data to be stored
+     * @return true if successful
+     */
+    public boolean save(String key, int version, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(version);
+        header.putLong(System.currentTimeMillis());
+        header.putInt(data.length);
+        header.putLong(crc.getValue());
+
+        File file = getFile(key);
+        File tempFile = new File(mDir, file.getName() + TEMP_FILE_SUFFIX);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "Could not create cache folder " + mDir);
+            return false;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(header.array());
+            out.write(data);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+            if (D) { Log.d(TAG, "Saved " + data.length + " bytes to " + file); }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save cache entry " + key, e);
+            tempFile.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // void
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Stores the text for the specified key, replacing the existing entry.
+     *
+     * @param key of the entry
+     * @param version of the data format, checked when the data is loaded
+     * @param text to be stored
+     * @return true if successful
+     */
+    public boolean saveString(String key, int version, String text) {
+        try {
+            return save(key, version, text.getBytes(CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Could not save cache entry " + key, e);
+            return false;
+        }
+    }
+
+
+    /**
+     * Retrieves the data for the specified key.
+     *
+     * @param key of the entry
+     * @param version of the data format expected
+     * @return data, or null when there is no valid entry of the version
+     */
+    public byte[] load(String key, int version) {
+        byte[] contents = read(key, version);
+        if (contents == null) {
+            return null;
+        }
+        return Arrays.copyOfRange(contents, HEADER_SIZE, contents.length);
+    }
+
+
+    /**
+     * Retrieves the text for the specified key.
+     *
+     * @param key of the entry
+     * @param version of the data format expected
+     * @return text, or null when there is no valid entry of the version
+     */
+    public String loadString(String key, int version) {
+        byte[] contents = read(key, version);
+        if (contents == null) {
+            return null;
+        }
+        try {
+            return new String(contents, HEADER_SIZE, contents.length - HEADER_SIZE, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Could not load cache entry " + key, e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns the index data of the entry for the specified key, without
+     * reading and checking the data itself.
+     *
+     * @param key of the entry
+     * @return index data, or null when there is no entry
+     */
+    public Entry getEntry(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            if (readFully(in, header) < HEADER_SIZE) {
+                return null;
+            }
+            return parseHeader(header, file.length());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read cache entry " + key, e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+
+    /**
+     * Removes the entry for the specified key.
+     *
+     * @param key of the entry
+     */
+    public void remove(String key) {
+        File file = getFile(key);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete cache entry " + file);
+        }
+    }
+
+
+    /**
+     * Reads the whole file of the entry with one read and checks it,
+     * deleting it when it is damaged.
+     */
+    private byte[] read(String key, int version) {
+        File file = getFile(key);
+        long length = file.length();
+        if (length == 0) {
+            // no entry
+            return null;
+        }
+
+        byte[] contents = null;
+        if ((length >= HEADER_SIZE) && (length <= Integer.MAX_VALUE)) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                contents = new byte[(int) length];
+                if (readFully(in, contents) < contents.length) {
+                    contents = null;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read cache entry " + key, e);
+                return null;
+            } finally {
+                close(in);
+            }
+        }
+
+        Entry entry = (contents != null) ? parseHeader(contents, length) : null;
+        if (entry != null) {
+            CRC32 crc = new CRC32();
+            crc.update(contents, HEADER_SIZE, entry.size);
+            if (crc.getValue() != entry.checksum) {
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            Log.w(TAG, "Deleting damaged cache entry " + file);
+            file.delete();
+            return null;
+        }
+        if (entry.version != version) {
+            if (D) { Log.d(TAG, "Ignoring cache entry " + file + " of version " + entry.version); }
+            return null;
+        }
+        return contents;
+    }
+
+
+    /**
+     * Returns the index data in the header, or null when it does not
+     * match a file of the specified length.
+     */
+    private static Entry parseHeader(byte[] contents, long fileLength) {
+        ByteBuffer header = ByteBuffer.wrap(contents, 0, HEADER_SIZE);
+        if ((header.getInt() != MAGIC) || (header.getInt() != FORMAT_VERSION)) {
+            return null;
+        }
+        int version = header.getInt();
+        long savedMsec = header.getLong();
+        int size = header.getInt();
+        long checksum = header.getLong();
+        if ((size < 0) || (HEADER_SIZE + (long) size != fileLength)) {
+            return null;
+        }
+        return new Entry(version, savedMsec, size, checksum);
+    }
+
+
+    private static int readFully(FileInputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int count = in.read(buffer, total, buffer.length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+
+    private static void close(FileInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // void
+            }
+        }
+    }
+}
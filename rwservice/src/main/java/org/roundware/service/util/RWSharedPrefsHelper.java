@@ -6,14 +6,11 @@ package org.roundware.service.util;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.JsonToken;
 import android.util.Log;
 
 import org.roundware.service.RWConfiguration;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 
 /**
  * Helper methods for saving and loading JSON data in Shared Preferences. It
@@ -77,9 +74,8 @@ public class RWSharedPrefsHelper {
 
 
     /**
-     * Parses the specified JSON data into a JSON Object and stores its
-     * string representation into the shared preferences with the specified
-     * name.
+     * Checks that the specified JSON data is a valid JSON Object and stores
+     * it into the shared preferences with the specified name.
      *
      * @param context to be used to access shared preferences
      * @param preferencesName of shared preferences to be used
@@ -87,22 +83,13 @@ public class RWSharedPrefsHelper {
      * @param jsonData to be stored
      */
     public static void saveJSONObject(Context context, String preferencesName, String key, String jsonData) {
-        try {
-            JSONObject object = new JSONObject(jsonData);
-            SharedPreferences settings = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = settings.edit();
-            editor.putString(RWSharedPrefsHelper.JSON_DATA_PREFIX + key, object.toString());
-            editor.commit();
-        } catch (JSONException e) {
-            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE, e);
-        }
+        saveJSON(context, preferencesName, key, jsonData, JsonToken.BEGIN_OBJECT);
     }
 
 
     /**
-     * Parses the specified JSON data into a JSON Array and stores its
-     * string representation into the shared preferences with the specified
-     * name.
+     * Checks that the specified JSON data is a valid JSON Array and stores
+     * it into the shared preferences with the specified name.
      *
      * @param context to be used to access shared preferences
      * @param preferencesName of shared preferences to be used
@@ -110,59 +97,73 @@ public class RWSharedPrefsHelper {
      * @param jsonData to be stored
      */
     public static void saveJSONArray(Context context, String preferencesName, String key, String jsonData) {
-        try {
-            JSONArray array = new JSONArray(jsonData);
-            SharedPreferences settings = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = settings.edit();
-            editor.putString(RWSharedPrefsHelper.JSON_DATA_PREFIX + key, array.toString());
-            editor.commit();
-        } catch (JSONException e) {
-            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE, e);
-        }
+        saveJSON(context, preferencesName, key, jsonData, JsonToken.BEGIN_ARRAY);
     }
 
 
     /**
      * Retrieves the data for the specified key from the shared preferences
-     * and tries to create a JSON Object from it, which string representation
-     * will be returned
+     * and checks that it is a valid JSON Object.
      *
      * @param context to be used to access shared preferences
      * @param preferencesName of shared preferences to be used
      * @param key for retrieving the data
-     * @return string representation of the JSON object data retrieved
+     * @return JSON object data retrieved, "{}" when there is none
      */
     public static String loadJSONObject(Context context, String preferencesName, String key) {
-        try {
-            SharedPreferences settings = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
-            JSONObject object = new JSONObject(settings.getString(RWSharedPrefsHelper.JSON_DATA_PREFIX + key, "{}"));
-            return object.toString();
-        } catch (JSONException e) {
-            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE, e);
-            return null;
-        }
+        return loadJSON(context, preferencesName, key, "{}", JsonToken.BEGIN_OBJECT);
     }
 
 
     /**
      * Retrieves the data for the specified key from the shared preferences
-     * and tries to create a JSON Array from it, which string representation
-     * will be returned
+     * and checks that it is a valid JSON Array.
      *
      * @param context to be used to access shared preferences
      * @param preferencesName of shared preferences to be used
      * @param key for retrieving the data
-     * @return string representation of the JSON array data retrieved
+     * @return JSON array data retrieved, "[]" when there is none
      */
     public static String loadJSONArray(Context context, String preferencesName, String key) {
-        try {
+        return loadJSON(context, preferencesName, key, "[]", JsonToken.BEGIN_ARRAY);
+    }
+
+
+    private static void saveJSON(Context context, String preferencesName, String key, String jsonData, JsonToken type) {
+        if (!RWJsonHelper.isValid(jsonData, type)) {
+            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE);
+            return;
+        }
         SharedPreferences settings = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
-        JSONArray array = new JSONArray(settings.getString(RWSharedPrefsHelper.JSON_DATA_PREFIX + key, "[]"));
-        return array.toString();
-        } catch (JSONException e) {
-            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE, e);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(RWSharedPrefsHelper.JSON_DATA_PREFIX + key, jsonData);
+        editor.commit();
+    }
+
+
+    private static String loadJSON(Context context, String preferencesName, String key, String empty, JsonToken type) {
+        SharedPreferences settings = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
+        String jsonData = settings.getString(RWSharedPrefsHelper.JSON_DATA_PREFIX + key, empty);
+        if (!RWJsonHelper.isValid(jsonData, type)) {
+            Log.e(TAG, RWConfiguration.JSON_SYNTAX_ERROR_MESSAGE);
             return null;
         }
+        return jsonData;
+    }
+
+
+    /**
+     * Checks if there is data with the specified key in the indicated
+     * shared preferences.
+     *
+     * @param context to be used to access shared preferences
+     * @param preferencesName of shared preferences to be used
+     * @param key for the data
+     * @return true if there is data for the key
+     */
+    public static boolean contains(Context context, String preferencesName, String key) {
+        SharedPreferences settings = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
+        return settings.contains(RWSharedPrefsHelper.JSON_DATA_PREFIX + key);
     }
 
 
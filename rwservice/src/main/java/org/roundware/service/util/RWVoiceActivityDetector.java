@@ -0,0 +1,147 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+
+/**
+ * Energy and zero-crossing based voice activity detector, marking where
+ * sound starts and ends in a stream of 16 bit mono PCM audio.
+ *
+ * The audio is analysed in frames of 20 ms. A frame is active when its
+ * RMS level is above ENERGY_THRESHOLD, or above a lower threshold while
+ * crossing zero often, which catches soft unvoiced sounds like "s" and
+ * "f". The thresholds are absolute instead of adapting to the noise
+ * floor, so a recording of ambient sound is not mistaken for silence.
+ * Activity only counts as a start when it lasts for ONSET_FRAMES frames,
+ * so e.g. the click of the record button is ignored.
+ *
+ * Positions are sample numbers from the start of the stream.
+ */
+public class RWVoiceActivityDetector {
+
+    private static final int FRAMES_PER_SECOND = 50;
+    // about -40 dBFS, and -52 dBFS for frames with many zero crossings
+    private static final double ENERGY_THRESHOLD = 0.01;
+    private static final double LOW_ENERGY_THRESHOLD = 0.0025;
+    private static final double ZERO_CROSSING_THRESHOLD = 0.25;
+    private static final int ONSET_FRAMES = 3;
+
+    private final int mFrameSize;
+    private final double mEnergyThreshold;
+    private final double mLowEnergyThreshold;
+
+    // current frame
+    private long mSquareSum;
+    private int mZeroCrossings;
+    private int mFrameCount;
+    private int mPrevious;
+    private int mPendingByte = -1;
+
+    private long mPosition;
+    private int mActiveRun;
+    private long mActivityStart = -1;
+    private long mActivityEnd = -1;
+
+
+    /**
+     * Creates a detector for audio with the specified sample rate.
+     *
+     * @param sampleRate of the audio in Hz
+     */
+    public RWVoiceActivityDetector(int sampleRate) {
+        mFrameSize = Math.max(1, sampleRate / FRAMES_PER_SECOND);
+        // compare sums of squares per frame, no square root needed
+        double fullScale = 32768.0 * 32768.0 * mFrameSize;
+        mEnergyThreshold = ENERGY_THRESHOLD * ENERGY_THRESHOLD * fullScale;
+        mLowEnergyThreshold = LOW_ENERGY_THRESHOLD * LOW_ENERGY_THRESHOLD * fullScale;
+    }
+
+
+    /**
+     * Analyses the next audio data of the stream.
+     *
+     * @param data with 16 bit little-endian PCM samples
+     * @param offset of the first byte
+     * @param length number of bytes
+     */
+    public void process(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        if (mPendingByte >= 0 && i < end) {
+            addSample((short) ((data[i] << 8) | mPendingByte));
+            mPendingByte = -1;
+            i++;
+        }
+        for (; i + 1 < end; i += 2) {
+            addSample((short) ((data[i + 1] << 8) | (data[i] & 0xff)));
+        }
+        if (i < end) {
+            mPendingByte = data[i] & 0xff;
+        }
+    }
+
+
+    private void addSample(int sample) {
+        mSquareSum += (long) sample * sample;
+        if ((sample < 0) != (mPrevious < 0)) {
+            mZeroCrossings++;
+        }
+        mPrevious = sample;
+        mPosition++;
+        if (++mFrameCount == mFrameSize) {
+            endFrame();
+        }
+    }
+
+
+    private void endFrame() {
+        boolean active = mSquareSum > mEnergyThreshold
+                || (mSquareSum > mLowEnergyThreshold && mZeroCrossings > ZERO_CROSSING_THRESHOLD * mFrameSize);
+        if (active) {
+            mActiveRun++;
+            if (mActiveRun >= ONSET_FRAMES) {
+                if (mActivityStart < 0) {
+                    mActivityStart = mPosition - (long) mActiveRun * mFrameSize;
+                }
+                mActivityEnd = mPosition;
+            }
+        } else {
+            mActiveRun = 0;
+        }
+        mSquareSum = 0;
+        mZeroCrossings = 0;
+        mFrameCount = 0;
+    }
+
+
+    /**
+     * Returns the number of samples analysed so far.
+     *
+     * @return samples
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+
+    /**
+     * Returns where the first activity starts.
+     *
+     * @return sample number, or -1 when no activity has been detected
+     */
+    public long getActivityStart() {
+        return mActivityStart;
+    }
+
+
+    /**
+     * Returns where the last activity detected so far ends.
+     *
+     * @return sample number, or -1 when no activity has been detected
+     */
+    public long getActivityEnd() {
+        return mActivityEnd;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Streaming writer for 16 bit mono PCM WAV files.
+ *
+ * The audio data is written to the file as it arrives, see RWAudioEncoder.
+ * The WAV header is written with zero sizes first, and the RIFF and data
+ * chunk sizes are filled in when the writer is closed, after cutting off
+ * trailing silence when trimming.
+ */
+public class RWWavWriter extends RWAudioEncoder {
+
+    // size of the WAV header and offsets of the sizes in it
+    public static final int HEADER_SIZE = 44;
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+
+    private final ByteBuffer mBuffer;
+
+
+    /**
+     * Creates the WAV file, replacing an existing one, and starts the I/O
+     * thread writing to it.
+     *
+     * @param file to write
+     * @param sampleRate of the audio in Hz
+     * @param ringBuffer to read the audio from
+     * @param blockSize in bytes, maximum read from the ring buffer at once
+     * @param trimSilence true to trim leading and trailing silence
+     * @throws IOException when the file can not be created
+     */
+    public RWWavWriter(File file, int sampleRate, RWAudioRingBuffer ringBuffer, int blockSize, boolean trimSilence) throws IOException {
+        super(file, sampleRate, ringBuffer, blockSize, trimSilence);
+        mBuffer = ByteBuffer.allocate(blockSize);
+        writeFully(ByteBuffer.wrap(createHeader(sampleRate, 0)));
+        start();
+    }
+
+
+    @Override
+    public String getFormat() {
+        return FORMAT_WAV;
+    }
+
+
+    @Override
+    protected void encode(byte[] data, int offset, int length) throws IOException {
+        mBuffer.clear();
+        mBuffer.put(data, offset, length);
+        mBuffer.flip();
+        writeFully(mBuffer);
+    }
+
+
+    @Override
+    protected void finish() throws IOException {
+        long dataLength = getDataLength();
+        long keepSamples = getKeepSampleCount();
+        if (keepSamples < dataLength / 2) {
+            // trailing silence
+            dataLength = 2 * keepSamples;
+            truncate(HEADER_SIZE + dataLength);
+        }
+        writeFully(ByteBuffer.wrap(intToBytes((int) (dataLength + HEADER_SIZE - 8))), RIFF_SIZE_OFFSET);
+        writeFully(ByteBuffer.wrap(intToBytes((int) dataLength)), DATA_SIZE_OFFSET);
+    }
+
+
+    /**
+     * Creates a valid WAV header for 16 bit mono PCM audio data.
+     *
+     * @param sampleRate of the audio in Hz
+     * @param len The length of the sound data to be appraised
+     * @return The header, ready to be written to a file
+     */
+    public static byte[] createHeader(int sampleRate, int len) {
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer out = ByteBuffer.wrap(header);
+        out.put(new byte[] {'R','I','F','F'});
+        out.put(intToBytes(len + HEADER_SIZE - 8));
+        out.put(new byte[] {'W','A','V','E'});
+
+        out.put(new byte[] {'f','m','t',' '});
+        out.put(new byte[] {0x10,0x00,0x00,0x00}); // 16 bit chunks
+        out.put(new byte[] {0x01,0x00,0x01,0x00}); // mono
+        out.put(intToBytes(sampleRate)); // sampling rate
+        out.put(intToBytes(sampleRate * 2)); // bytes per second
+        out.put(new byte[] {0x02,0x00,0x10,0x00}); // 2 bytes per sample
+
+        out.put(new byte[] {'d','a','t','a'});
+        out.put(intToBytes(len));
+        return header;
+    }
+
+
+    /**
+     * Turns an integer into its little-endian four-byte representation.
+     *
+     * @param in The integer to be converted
+     * @return The bytes representing this integer
+     */
+    public static byte[] intToBytes(int in) {
+        byte[] bytes = new byte[4];
+        for (int i=0; i<4; i++) {
+            bytes[i] = (byte) ((in >>> i*8) & 0xFF);
+        }
+        return bytes;
+    }
+}
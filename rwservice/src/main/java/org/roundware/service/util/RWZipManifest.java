@@ -0,0 +1,320 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * List of the files in a zip file with their CRC32 checksum and size, used
+ * to find out which files have changed between two versions of the content
+ * files. It is read from the central directory at the end of the zip file,
+ * so that it can be retrieved with a HTTP Range request, without the need
+ * for a separate manifest on the server. The offsets in the central
+ * directory are kept, to retrieve the data of single files the same way.
+ *
+ * A manifest of installed files is stored as a text file, with a line for
+ * each file: the checksum in hex, the size and the name, separated by
+ * spaces.
+ */
+public class RWZipManifest {
+
+    // zip file record signatures and sizes
+    public final static int LOCAL_HEADER_SIZE = 30;
+    private final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private final static int CENTRAL_HEADER_SIZE = 46;
+    private final static int END_SIGNATURE = 0x06054b50;
+    private final static int END_SIZE = 22;
+    private final static int MAX_COMMENT_SIZE = 0xffff;
+
+    /** Number of bytes at the end of a zip file that hold the end record */
+    public final static int MAX_END_SIZE = END_SIZE + MAX_COMMENT_SIZE;
+
+    private final static long ZIP64_MARKER = 0xffffffffL;
+    private final static int FLAG_ENCRYPTED = 0x1;
+    private final static String CHARSET = "UTF-8";
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+
+    /**
+     * A file in the zip file. The compression method, compressed size and
+     * offset are only known when read from a central directory.
+     */
+    public static class Entry {
+        public final String name;
+        public final long crc;
+        public final long size;
+        public int method = -1;
+        public int flags;
+        public long compressedSize = -1;
+        public long localHeaderOffset = -1;
+
+        public Entry(String name, long crc, long size) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * Returns true if the entry has the same contents as the other.
+         */
+        public boolean matches(Entry other) {
+            return (other != null) && (crc == other.crc) && (size == other.size);
+        }
+    }
+
+
+    /**
+     * Location of the central directory in a zip file, read from the end
+     * of central directory record.
+     */
+    public static class CentralDirectory {
+        public final long offset;
+        public final long size;
+        public final int count;
+
+        CentralDirectory(long offset, long size, int count) {
+            this.offset = offset;
+            this.size = size;
+            this.count = count;
+        }
+    }
+
+
+    public void add(Entry entry) {
+        mEntries.put(entry.name, entry);
+    }
+
+
+    public Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+
+    public Collection<Entry> getEntries() {
+        return mEntries.values();
+    }
+
+
+    public int size() {
+        return mEntries.size();
+    }
+
+
+    /**
+     * Finds the end of central directory record in the last bytes of a zip
+     * file, with the same length as MAX_END_SIZE or the length of the file
+     * when smaller.
+     *
+     * @param tail last bytes of the zip file
+     * @return location of the central directory
+     * @throws IOException when the record is missing, or the zip file is
+     * a zip64 or multi-disk file
+     */
+    public static CentralDirectory findCentralDirectory(byte[] tail) throws IOException {
+        for (int pos = tail.length - END_SIZE; pos >= 0; pos--) {
+            if ((readInt(tail, pos) == END_SIGNATURE) && (pos + END_SIZE + readShort(tail, pos + 20) == tail.length)) {
+                if ((readShort(tail, pos + 4) != 0) || (readShort(tail, pos + 6) != 0)) {
+                    throw new IOException("Multi-disk zip files are not supported");
+                }
+                int count = readShort(tail, pos + 10);
+                long size = readUnsignedInt(tail, pos + 12);
+                long offset = readUnsignedInt(tail, pos + 16);
+                if ((count == 0xffff) || (size == ZIP64_MARKER) || (offset == ZIP64_MARKER)) {
+                    throw new IOException("Zip64 files are not supported");
+                }
+                return new CentralDirectory(offset, size, count);
+            }
+        }
+        throw new IOException("End of central directory not found");
+    }
+
+
+    /**
+     * Creates a manifest from the records in a central directory.
+     *
+     * @param data containing the central directory
+     * @param offset of the central directory in data
+     * @param count number of records in the central directory
+     * @return manifest
+     * @throws IOException when a record is not valid
+     */
+    public static RWZipManifest fromCentralDirectory(byte[] data, int offset, int count) throws IOException {
+        RWZipManifest manifest = new RWZipManifest();
+        int pos = offset;
+        for (int i = 0; i < count; i++) {
+            if ((pos + CENTRAL_HEADER_SIZE > data.length) || (readInt(data, pos) != CENTRAL_HEADER_SIGNATURE)) {
+                throw new IOException("Invalid central directory record " + i);
+            }
+            int flags = readShort(data, pos + 8);
+            int method = readShort(data, pos + 10);
+            long crc = readUnsignedInt(data, pos + 16);
+            long compressedSize = readUnsignedInt(data, pos + 20);
+            long size = readUnsignedInt(data, pos + 24);
+            int nameLength = readShort(data, pos + 28);
+            int extraLength = readShort(data, pos + 30);
+            int commentLength = readShort(data, pos + 32);
+            long localHeaderOffset = readUnsignedInt(data, pos + 42);
+            if ((compressedSize == ZIP64_MARKER) || (size == ZIP64_MARKER) || (localHeaderOffset == ZIP64_MARKER)) {
+                throw new IOException("Zip64 files are not supported");
+            }
+            if (pos + CENTRAL_HEADER_SIZE + nameLength > data.length) {
+                throw new IOException("Invalid central directory record " + i);
+            }
+            String name = new String(data, pos + CENTRAL_HEADER_SIZE, nameLength, CHARSET);
+
+            Entry entry = new Entry(name, crc, size);
+            entry.flags = flags;
+            entry.method = method;
+            entry.compressedSize = compressedSize;
+            entry.localHeaderOffset = localHeaderOffset;
+            manifest.add(entry);
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return manifest;
+    }
+
+
+    /**
+     * Creates a manifest of the files in a zip file.
+     *
+     * @param zipFile to list
+     * @return manifest
+     */
+    public static RWZipManifest fromZipFile(ZipFile zipFile) {
+        RWZipManifest manifest = new RWZipManifest();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry zipEntry = entries.nextElement();
+            manifest.add(new Entry(zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize()));
+        }
+        return manifest;
+    }
+
+
+    /**
+     * Returns true if the data of the entry can be read with the offsets
+     * from the central directory, i.e. it is not encrypted and stored or
+     * deflated.
+     *
+     * @param entry to check
+     * @return true if supported
+     */
+    public static boolean isExtractable(Entry entry) {
+        return (entry.localHeaderOffset >= 0) && ((entry.flags & FLAG_ENCRYPTED) == 0)
+                && ((entry.method == ZipEntry.STORED) || (entry.method == ZipEntry.DEFLATED));
+    }
+
+
+    /**
+     * Returns the offset of the file data in the specified bytes, which
+     * start with the local file header of an entry.
+     *
+     * @param data starting with the local file header
+     * @return offset of the file data
+     * @throws IOException when the local file header is not valid
+     */
+    public static int getDataOffset(byte[] data) throws IOException {
+        if ((data.length < LOCAL_HEADER_SIZE) || (readInt(data, 0) != LOCAL_HEADER_SIGNATURE)) {
+            throw new IOException("Invalid local file header");
+        }
+        return LOCAL_HEADER_SIZE + readShort(data, 26) + readShort(data, 28);
+    }
+
+
+    /**
+     * Loads a manifest stored with save().
+     *
+     * @param file to load from
+     * @return manifest, or null when the file does not exist or is invalid
+     */
+    public static RWZipManifest load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        RWZipManifest manifest = new RWZipManifest();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int first = line.indexOf(' ');
+                    int second = line.indexOf(' ', first + 1);
+                    if ((first < 0) || (second < 0)) {
+                        return null;
+                    }
+                    long crc = Long.parseLong(line.substring(0, first), 16);
+                    long size = Long.parseLong(line.substring(first + 1, second));
+                    manifest.add(new Entry(line.substring(second + 1), crc, size));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return manifest;
+    }
+
+
+    /**
+     * Stores the manifest in the specified file.
+     *
+     * @param file to save to
+     * @throws IOException on write error
+     */
+    public void save(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), CHARSET);
+        try {
+            for (Entry entry : mEntries.values()) {
+                writer.write(Long.toHexString(entry.crc));
+                writer.write(' ');
+                writer.write(Long.toString(entry.size));
+                writer.write(' ');
+                writer.write(entry.name);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    private static int readShort(byte[] data, int pos) {
+        return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8);
+    }
+
+
+    private static int readInt(byte[] data, int pos) {
+        return readShort(data, pos) | (readShort(data, pos + 2) << 16);
+    }
+
+
+    private static long readUnsignedInt(byte[] data, int pos) {
+        return readInt(data, pos) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Local stand-in for an Icecast server, for tests of the stream proxy. It
+ * answers one request per connection with the response of its Responder
+ * and then closes the connection. Also builds stream bodies with icy
+ * metadata and chunked transfer encoding.
+ */
+public class FakeIcecastServer {
+
+    /** Writes the complete response for a request */
+    public interface Responder {
+        void respond(String path, OutputStream out) throws IOException;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Responder mResponder;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+
+    public FakeIcecastServer(Responder responder) throws IOException {
+        mResponder = responder;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                Thread connection = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+
+    private void serve(Socket socket) {
+        try {
+            String request = readHeaders(socket.getInputStream());
+            mRequestCount.incrementAndGet();
+            String path = request.split(" ")[1];
+            OutputStream out = socket.getOutputStream();
+            mResponder.respond(path, out);
+            out.flush();
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+
+    /**
+     * Returns the request headers read from the stream.
+     */
+    public static String readHeaders(InputStream in) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed in headers");
+            }
+            headers.write(b);
+            matched = (b == ((matched % 2 == 0) ? '\r' : '\n')) ? matched + 1 : ((b == '\r') ? 1 : 0);
+        }
+        return headers.toString("ISO-8859-1");
+    }
+
+
+    /**
+     * Returns audio test data of the specified length.
+     */
+    public static byte[] audio(int length) {
+        byte[] audio = new byte[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (byte) (i * 31 + 7);
+        }
+        return audio;
+    }
+
+
+    /**
+     * Returns the title sent in the metadata of the specified block.
+     */
+    public static String title(int block, int blocksPerTitle) {
+        return "Song " + (block / blocksPerTitle);
+    }
+
+
+    /**
+     * Interleaves the audio with a metadata block after every interval
+     * bytes, like an Icecast server does for a client that sent
+     * "Icy-MetaData: 1". The title changes every blocksPerTitle blocks,
+     * in between the blocks are empty.
+     */
+    public static byte[] icyBody(byte[] audio, int interval, int blocksPerTitle) throws IOException {
+        return icyBody(audio, interval, blocksPerTitle, false);
+    }
+
+
+    /**
+     * Like icyBody(byte[], int, int), but when repeatTitle is true every
+     * metadata block has the current title, as some servers send it.
+     */
+    public static byte[] icyBody(byte[] audio, int interval, int blocksPerTitle, boolean repeatTitle)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(audio.length + audio.length / interval * 64);
+        int block = 0;
+        for (int offset = 0; offset < audio.length; offset += interval) {
+            int n = Math.min(interval, audio.length - offset);
+            body.write(audio, offset, n);
+            if (n < interval) {
+                break;
+            }
+            if (repeatTitle || block % blocksPerTitle == 0) {
+                byte[] meta = ("StreamTitle='" + title(block, blocksPerTitle) + "';").getBytes("UTF-8");
+                int blocks = (meta.length + 15) / 16;
+                body.write(blocks);
+                body.write(meta);
+                body.write(new byte[blocks * 16 - meta.length]);
+            } else {
+                body.write(0);
+            }
+            block++;
+        }
+        return body.toByteArray();
+    }
+
+
+    /**
+     * Encodes the body with "Transfer-Encoding: chunked", in chunks of the
+     * specified size.
+     */
+    public static byte[] chunked(byte[] body, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + body.length / chunkSize * 12 + 16);
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            int n = Math.min(chunkSize, body.length - offset);
+            out.write((Integer.toHexString(n) + ";ext=1\r\n").getBytes("ISO-8859-1"));
+            out.write(body, offset, n);
+            out.write("\r\n".getBytes("ISO-8859-1"));
+        }
+        out.write("0\r\nX-Trailer: 1\r\n\r\n".getBytes("ISO-8859-1"));
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Writes the data in pieces of the specified size, flushing each one,
+     * so the client receives it in many reads.
+     */
+    public static void writeInPieces(OutputStream out, byte[] data, int pieceSize) throws IOException {
+        for (int offset = 0; offset < data.length; offset += pieceSize) {
+            out.write(data, offset, Math.min(pieceSize, data.length - offset));
+            out.flush();
+        }
+    }
+}
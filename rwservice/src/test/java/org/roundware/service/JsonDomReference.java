@@ -0,0 +1,209 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.roundware.service.RWTags.RWOption;
+import org.roundware.service.RWTags.RWTag;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Reference copies of the parsing of tags and configuration data with an
+ * org.json object tree, as RWTags and RWConfiguration did before they read
+ * with a streaming JsonReader, for comparing the results of both. Values
+ * added to the configuration since are read the same way as the others.
+ */
+public class JsonDomReference {
+
+    /**
+     * Parses the tags like RWTags.fromJson() did. Returns the tags read
+     * before an error, like it kept them.
+     */
+    public static List<RWTag> parseTags(RWTags owner, String json) {
+        List<RWTag> tags = new ArrayList<RWTag>();
+        try {
+            JSONObject root = new JSONObject(json);
+            parseTags(owner, RWTags.JSON_KEY_MODE_LISTEN, root, tags);
+            parseTags(owner, RWTags.JSON_KEY_MODE_SPEAK, root, tags);
+        } catch (JSONException e) {
+            // keep the tags read so far
+        }
+        return tags;
+    }
+
+
+    private static void parseTags(RWTags owner, String type, JSONObject root, List<RWTag> tags)
+            throws JSONException {
+        if (root.has(type)) {
+            JSONArray entries = root.getJSONArray(type);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject jsonObj = entries.getJSONObject(i);
+                RWTag tag = owner.new RWTag();
+                tag.type = type;
+                tag.code = jsonObj.optString(RWTags.JSON_KEY_TAG_CODE);
+                tag.name = jsonObj.optString(RWTags.JSON_KEY_TAG_NAME);
+                tag.headerText = jsonObj.optString(RWTags.JSON_KEY_TAG_HEADER_TEXT);
+                tag.order = jsonObj.optInt(RWTags.JSON_KEY_TAG_ORDER);
+                tag.select = jsonObj.getString(RWTags.JSON_KEY_TAG_SELECTION_TYPE);
+
+                tag.defaultOptionsTagIds.clear();
+                JSONArray defaults = jsonObj.getJSONArray(RWTags.JSON_KEY_TAG_DEFAULT_OPTIONS);
+                for (int j = 0; j < defaults.length(); j++) {
+                    tag.defaultOptionsTagIds.add(defaults.getInt(j));
+                }
+
+                JSONArray options = jsonObj.getJSONArray(RWTags.JSON_KEY_TAG_OPTIONS);
+                for (int j = 0; j < options.length(); j++) {
+                    JSONObject option = options.getJSONObject(j);
+                    RWOption o = owner.new RWOption();
+                    o.order = option.getInt(RWTags.JSON_KEY_TAG_OPTION_ORDER);
+                    o.data = option.getString(RWTags.JSON_KEY_TAG_OPTION_DATA);
+                    o.description = option.optString(RWTags.JSON_KEY_TAG_OPTION_DESCRIPTION);
+                    o.tagId = option.getInt(RWTags.JSON_KEY_TAG_OPTION_ID);
+                    o.value = option.getString(RWTags.JSON_KEY_TAG_OPTION_VALUE);
+
+                    JSONArray relatedTagIds = option.getJSONArray(RWTags.JSON_KEY_TAG_OPTION_RELATIONSHIPS);
+                    o.relatedTagIds = new int[relatedTagIds.length()];
+                    for (int k = 0; k < relatedTagIds.length(); k++) {
+                        o.relatedTagIds[k] = relatedTagIds.getInt(k);
+                    }
+                    o.selectByDefault = tag.defaultOptionsTagIds.contains(o.tagId);
+                    tag.options.add(o);
+                }
+
+                owner.sortOptionsByOrder(tag);
+                tags.add(tag);
+            }
+        }
+    }
+
+
+    /**
+     * Assigns the configuration values like
+     * RWConfiguration.assignFromJsonServerResponse() did, except for the
+     * data source, which it set privately.
+     */
+    public static void assignConfiguration(RWConfiguration config, String json, boolean fromCache) {
+        try {
+            JSONArray entries = new JSONArray(json);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject jsonObj = entries.getJSONObject(i);
+                JSONObject specs;
+                if (jsonObj.has("device")) {
+                    specs = jsonObj.getJSONObject("device");
+                    config.setDeviceId(specs.optString("device_id", config.getDeviceId()));
+                } else if (jsonObj.has("session")) {
+                    specs = jsonObj.getJSONObject("session");
+                    config.setSessionId(specs.optString("session_id", config.getSessionId()));
+                } else if (jsonObj.has("project")) {
+                    specs = jsonObj.getJSONObject("project");
+                    config.setProjectId(specs.optString("project_id", config.getProjectId()));
+                    config.setProjectName(specs.optString("project_name", config.getProjectName()));
+                    config.setContentFilesUrl(specs.optString("files_url", config.getContentFilesUrl()));
+                    config.setContentFilesVersion(specs.optInt("files_version", config.getContentFilesVersion()));
+                    config.setHeartbeatTimerSec(specs.optInt("heartbeat_timer", config.getHeartbeatTimerSec()));
+                    config.setMaxRecordingTimeSec(specs.optInt("max_recording_length", config.getMaxRecordingTimeSec()));
+                    config.setSharingMessage(specs.optString("sharing_message", config.getSharingMessage()));
+                    config.setSharingUrl(specs.optString("sharing_url", config.getSharingUrl()));
+                    config.setLegalAgreement(specs.optString("legal_agreement", config.getLegalAgreement()));
+                    config.setDynamicListenQuestions(specs.optBoolean("listen_questions_dynamic",
+                            config.isDynamicListenQuestions()));
+                    config.setDynamicSpeakQuestions(specs.optBoolean("speak_questions_dynamic",
+                            config.isDynamicSpeakQuestions()));
+                    config.setListenEnabled(specs.optBoolean("listen_enabled", config.isListenEnabled()));
+                    config.setGeoListenEnabled(specs.optBoolean("geo_listen_enabled", config.isGeoListenEnabled()));
+                    config.setSpeakEnabled(specs.optBoolean("speak_enabled", config.isSpeakEnabled()));
+                    config.setGeoSpeakEnabled(specs.optBoolean("geo_speak_enabled", config.isGeoSpeakEnabled()));
+                    config.setResetTagsDefaultsOnStartup(specs.optBoolean("reset_tag_defaults_on_startup",
+                            config.isResetTagsDefaultOnStartup()));
+                    config.setStreamMetadataEnabled(specs.optBoolean("stream_metadata_enabled",
+                            config.isStreamMetadataEnabled()));
+                    config.setMinLocationUpdateTimeMSec(specs.optLong("min_location_update_time_msec",
+                            config.getMinLocationUpdateTimeMSec()));
+                    config.setMinLocationUpdateDistanceMeter(specs.optDouble("min_location_update_distance_meter",
+                            config.getMinLocationUpdateDistanceMeter()));
+                    config.setLocationReportIntervalMSec(specs.optLong("location_report_interval_msec",
+                            config.getLocationReportIntervalMSec()));
+                    config.setLogEventBatchSize(specs.optInt("log_event_batch_size", config.getLogEventBatchSize()));
+                    config.setLogEventFlushIntervalMSec(specs.optLong("log_event_flush_interval_msec",
+                            config.getLogEventFlushIntervalMSec()));
+                    if (specs.has("log_event_sampling_rates")) {
+                        config.setLogEventSamplingRates(specs.optString("log_event_sampling_rates", null));
+                    }
+                    config.setHttpTimeOutSec(specs.optInt("http_timeout_sec", config.getHttpTimeOutSec()));
+                    config.setUploadChunkSizeKB(specs.optInt("upload_chunk_size_kb", config.getUploadChunkSizeKB()));
+                    config.setRecordingFormat(specs.optString("recording_format", config.getRecordingFormat()));
+                    config.setTrimSilence(specs.optBoolean("trim_silence", config.isTrimSilence()));
+                    config.setUseGpsIfPossible(specs.optBoolean("use_gps_if_possible", config.getUseGpsIfPossible()));
+                } else if (jsonObj.has("server")) {
+                    specs = jsonObj.getJSONObject("server");
+                    config.setServerVersion(specs.optString("version", config.getServerVersion()));
+                }
+            }
+            if (fromCache) {
+                config.setSessionId(null);
+            }
+        } catch (JSONException e) {
+            // keep the values assigned so far
+        }
+    }
+
+
+    /**
+     * Returns a description of all values of the tags, for comparing them.
+     */
+    public static String describe(List<RWTag> tags) {
+        StringBuilder sb = new StringBuilder();
+        for (RWTag tag : tags) {
+            sb.append(tag.type).append('|').append(tag.code).append('|').append(tag.name).append('|')
+                    .append(tag.headerText).append('|').append(tag.order).append('|').append(tag.select).append('|')
+                    .append(tag.defaultOptionsTagIds).append('\n');
+            for (RWOption option : tag.options) {
+                sb.append("  ").append(option.order).append('|').append(option.tagId).append('|')
+                        .append(option.value).append('|').append(option.data).append('|')
+                        .append(option.description).append('|').append(Arrays.toString(option.relatedTagIds))
+                        .append('|').append(option.selectByDefault).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns a description of the values of all getters of the
+     * configuration, except the data source, for comparing them.
+     */
+    public static String describe(RWConfiguration config) {
+        Method[] methods = RWConfiguration.class.getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method a, Method b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (Method method : methods) {
+            String name = method.getName();
+            if (method.getDeclaringClass() != RWConfiguration.class || method.getParameterTypes().length > 0
+                    || !(name.startsWith("get") || name.startsWith("is")) || name.equals("getDataSource")) {
+                continue;
+            }
+            try {
+                sb.append(name).append('=').append(method.invoke(config)).append('\n');
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+        return sb.toString();
+    }
+}
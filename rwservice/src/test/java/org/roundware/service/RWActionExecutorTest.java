@@ -0,0 +1,84 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests that a task failing with an exception or an error does not stop
+ * the worker that ran it, nor keep its place in the lane.
+ */
+public class RWActionExecutorTest {
+
+    private RWActionExecutor mExecutor;
+
+
+    @Before
+    public void setUp() {
+        mExecutor = new RWActionExecutor(1, "RWActionExecutorTest");
+    }
+
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+
+    @Test
+    public void workerSurvivesRuntimeException() throws InterruptedException {
+        assertNextTaskRuns(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("task failed");
+            }
+        });
+    }
+
+
+    @Test
+    public void workerSurvivesError() throws InterruptedException {
+        assertNextTaskRuns(new Runnable() {
+            @Override
+            public void run() {
+                throw new StackOverflowError();
+            }
+        });
+    }
+
+
+    /**
+     * Submits the failing task to the upload lane, which runs one task at
+     * a time, and checks that a task submitted after it still runs on the
+     * only worker.
+     */
+    private void assertNextTaskRuns(Runnable failing) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        assertNotNull(mExecutor.submit(RWActionExecutor.Lane.UPLOAD, failing));
+        assertNotNull(mExecutor.submit(RWActionExecutor.Lane.UPLOAD, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // the count is updated after the task returns
+        for (int i = 0; (i < 100) && (mExecutor.getCompletedCount(RWActionExecutor.Lane.UPLOAD) < 2); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mExecutor.getCompletedCount(RWActionExecutor.Lane.UPLOAD));
+    }
+}
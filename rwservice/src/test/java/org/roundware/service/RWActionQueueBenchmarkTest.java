@@ -0,0 +1,109 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the long-lived queue database of RWActionQueue with opening
+ * the database for each call, as the queue did before, for rounds of
+ * adding, counting, reading and deleting an action.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWActionQueueBenchmarkTest {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 200;
+
+    private Context mContext;
+
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        RWActionQueue.instance().init(mContext);
+    }
+
+
+    @After
+    public void tearDown() {
+        RWActionQueue.instance().close();
+        RWDbAdapter.drop(mContext);
+    }
+
+
+    @Test
+    public void longLivedDatabaseIsFasterThanOpenPerCall() {
+        runOpenPerCall(WARMUP_ROUNDS);
+        runLongLived(WARMUP_ROUNDS);
+
+        long start = System.nanoTime();
+        runOpenPerCall(ROUNDS);
+        long openPerCallNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runLongLived(ROUNDS);
+        long longLivedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("Queue round (add, count, get, delete): open per call %.3f ms, long-lived %.3f ms",
+                openPerCallNanos / 1e6 / ROUNDS, longLivedNanos / 1e6 / ROUNDS));
+        assertTrue(longLivedNanos < openPerCallNanos);
+    }
+
+
+    private void runOpenPerCall(int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            RWDbAdapter db = new RWDbAdapter(mContext);
+            db.insert(createProperties(i));
+            db.close();
+
+            db = new RWDbAdapter(mContext);
+            assertEquals(1, db.count());
+            db.close();
+
+            db = new RWDbAdapter(mContext);
+            List<RWAction> actions = db.getActions(10);
+            db.close();
+
+            db = new RWDbAdapter(mContext);
+            db.delete(actions.get(0).getDatabaseId());
+            db.close();
+        }
+    }
+
+
+    private void runLongLived(int rounds) {
+        RWActionQueue queue = RWActionQueue.instance();
+        for (int i = 0; i < rounds; i++) {
+            queue.add(createProperties(i));
+            assertEquals(1, queue.count());
+            List<RWAction> actions = queue.get(10);
+            queue.delete(actions.get(0));
+        }
+    }
+
+
+    private Properties createProperties(int i) {
+        Properties props = new Properties();
+        props.setProperty(mContext.getString(R.string.rw_key_operation), mContext.getString(R.string.rw_op_log_event));
+        props.setProperty(mContext.getString(R.string.rw_key_event_type), "client_error");
+        props.setProperty(mContext.getString(R.string.rw_key_data), "event " + i);
+        return props;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the retry bookkeeping of the action queue: failed attempts, dead
+ * letters and paging past actions that failed.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWActionQueueTest {
+
+    private Context mContext;
+    private RWActionQueue mQueue;
+
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mQueue = RWActionQueue.instance();
+        mQueue.init(mContext);
+    }
+
+
+    @After
+    public void tearDown() {
+        mQueue.close();
+        RWDbAdapter.drop(mContext);
+    }
+
+
+    @Test
+    public void failedAttemptsAreStored() {
+        mQueue.add(createProperties(0));
+        RWAction action = mQueue.get();
+
+        assertFalse(mQueue.recordFailure(action));
+        assertFalse(mQueue.recordFailure(action));
+
+        assertEquals(2, mQueue.get().getAttempts());
+    }
+
+
+    @Test
+    public void actionBecomesDeadLetterAfterMaxAttempts() {
+        mQueue.add(createProperties(0));
+        mQueue.add(createProperties(1));
+        RWAction action = mQueue.get();
+
+        for (int i = 1; i < RWDbAdapter.MAX_ATTEMPTS; i++) {
+            assertFalse(mQueue.recordFailure(action));
+        }
+        assertTrue(mQueue.recordFailure(action));
+
+        assertEquals(1, mQueue.count());
+        assertEquals("event 1", getData(mQueue.get()));
+    }
+
+
+    @Test
+    public void deadLetterIsSkipped() {
+        mQueue.add(createProperties(0));
+        mQueue.add(createProperties(1));
+
+        mQueue.deadLetter(mQueue.get());
+
+        assertEquals(1, mQueue.count());
+        List<RWAction> actions = mQueue.get(10);
+        assertEquals(1, actions.size());
+        assertEquals("event 1", getData(actions.get(0)));
+    }
+
+
+    @Test
+    public void pagesContinueAfterTheLastAction() {
+        for (int i = 0; i < 25; i++) {
+            mQueue.add(createProperties(i));
+        }
+
+        List<RWAction> first = mQueue.get(null, 10);
+        List<RWAction> second = mQueue.get(first.get(9), 10);
+        List<RWAction> third = mQueue.get(second.get(9), 10);
+
+        assertEquals("event 0", getData(first.get(0)));
+        assertEquals("event 10", getData(second.get(0)));
+        assertEquals(5, third.size());
+        assertEquals("event 24", getData(third.get(4)));
+        assertTrue(mQueue.get(third.get(4), 10).isEmpty());
+    }
+
+
+    private Properties createProperties(int i) {
+        Properties props = new Properties();
+        props.setProperty(mContext.getString(R.string.rw_key_operation), mContext.getString(R.string.rw_op_log_event));
+        props.setProperty(mContext.getString(R.string.rw_key_data), "event " + i);
+        return props;
+    }
+
+
+    private String getData(RWAction action) {
+        return action.getProperties().getProperty(mContext.getString(R.string.rw_key_data));
+    }
+}
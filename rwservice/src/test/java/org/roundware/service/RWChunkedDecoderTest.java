@@ -0,0 +1,137 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests the in-place decoding of chunked response bodies, with chunks
+ * split over reads at every possible position.
+ */
+public class RWChunkedDecoderTest {
+
+    @Test
+    public void decodesWholeBody() throws IOException {
+        byte[] body = FakeIcecastServer.audio(10000);
+        byte[] encoded = FakeIcecastServer.chunked(body, 777);
+
+        RWChunkedDecoder decoder = new RWChunkedDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(encoded.clone());
+        int end = decoder.decode(buffer, 0, encoded.length);
+
+        assertTrue(decoder.isDone());
+        assertEquals(body.length, end);
+        byte[] decoded = new byte[end];
+        buffer.get(decoded);
+        assertArrayEquals(body, decoded);
+    }
+
+
+    @Test
+    public void decodesBodySplitOverReads() throws IOException {
+        byte[] body = FakeIcecastServer.audio(300);
+        byte[] encoded = FakeIcecastServer.chunked(body, 17);
+        for (int readSize = 1; readSize <= 40; readSize++) {
+            assertArrayEquals("read size " + readSize, body, decodeInReads(encoded, readSize, false));
+            assertArrayEquals("read size " + readSize, body, decodeInReads(encoded, readSize, true));
+        }
+    }
+
+
+    @Test
+    public void decodesUppercaseSizesWithoutExtensions() throws IOException {
+        byte[] encoded = "A\r\n0123456789\r\n1F \r\n0123456789012345678901234567890\r\n0\r\n\r\n"
+                .getBytes("ISO-8859-1");
+
+        byte[] decoded = decodeInReads(encoded, encoded.length, false);
+
+        assertEquals("01234567890123456789012345678901234567890", new String(decoded, "ISO-8859-1"));
+    }
+
+
+    @Test
+    public void ignoresDataAfterTheLastChunk() throws IOException {
+        byte[] encoded = "3\r\nabc\r\n0\r\n\r\nHTTP/1.1 200 OK".getBytes("ISO-8859-1");
+        RWChunkedDecoder decoder = new RWChunkedDecoder();
+
+        int end = decoder.decode(ByteBuffer.wrap(encoded), 0, encoded.length);
+
+        assertTrue(decoder.isDone());
+        assertEquals(3, end);
+    }
+
+
+    @Test
+    public void notDoneBeforeTheTrailerEnds() throws IOException {
+        byte[] encoded = "3\r\nabc\r\n0\r\nX-Trailer: 1\r\n".getBytes("ISO-8859-1");
+        RWChunkedDecoder decoder = new RWChunkedDecoder();
+
+        decoder.decode(ByteBuffer.wrap(encoded), 0, encoded.length);
+
+        assertFalse(decoder.isDone());
+    }
+
+
+    @Test
+    public void rejectsInvalidChunkSize() throws IOException {
+        assertInvalid("xyz\r\nabc\r\n0\r\n\r\n");
+        assertInvalid("\r\nabc\r\n0\r\n\r\n");
+        assertInvalid("3\r\nabcd\r\n0\r\n\r\n");
+        assertInvalid("ffffffffffffffffff\r\n");
+    }
+
+
+    /**
+     * Decodes the encoded data, received in reads of the specified size
+     * that are appended to the data decoded so far in one buffer, as the
+     * stream proxy does.
+     */
+    private byte[] decodeInReads(byte[] encoded, int readSize, boolean direct) throws IOException {
+        RWChunkedDecoder decoder = new RWChunkedDecoder();
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(encoded.length) : ByteBuffer.allocate(encoded.length);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        for (int offset = 0; offset < encoded.length; offset += readSize) {
+            int start = buffer.position();
+            buffer.put(encoded, offset, Math.min(readSize, encoded.length - offset));
+            buffer.position(decoder.decode(buffer, start, buffer.position()));
+            if (buffer.remaining() < readSize) {
+                // hand the data on and start over, like a relay buffer
+                buffer.flip();
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                decoded.write(data);
+                buffer.clear();
+            }
+        }
+        buffer.flip();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        decoded.write(data);
+        assertTrue(decoder.isDone());
+        return decoded.toByteArray();
+    }
+
+
+    private void assertInvalid(String encoded) throws IOException {
+        byte[] data = encoded.getBytes("ISO-8859-1");
+        try {
+            new RWChunkedDecoder().decode(ByteBuffer.wrap(data), 0, data.length);
+            fail("accepted invalid chunked data: " + encoded);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
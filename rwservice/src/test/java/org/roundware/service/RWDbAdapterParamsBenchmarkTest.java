@@ -0,0 +1,99 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the binary encoding of queued action parameters with the XML
+ * Properties format that was stored before, for a typical file upload
+ * action.
+ */
+public class RWDbAdapterParamsBenchmarkTest {
+
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int ROUNDS = 5000;
+
+
+    @Test
+    public void binaryParamsAreSmallerAndFasterThanXml() throws IOException {
+        Properties props = createUploadProperties();
+        byte[] binary = RWDbAdapter.encodeParams(props);
+        byte[] xml = toXml(props);
+        assertEquals(props, RWDbAdapter.decodeParams(binary));
+        assertEquals(props, fromXml(xml));
+
+        runBinary(props, WARMUP_ROUNDS);
+        runXml(props, WARMUP_ROUNDS);
+
+        long start = System.nanoTime();
+        runXml(props, ROUNDS);
+        long xmlNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runBinary(props, ROUNDS);
+        long binaryNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("Action params encode + decode: XML %d bytes %.1f us, binary %d bytes %.1f us",
+                xml.length, xmlNanos / 1e3 / ROUNDS, binary.length, binaryNanos / 1e3 / ROUNDS));
+        assertTrue(binary.length < xml.length);
+        assertTrue(binaryNanos < xmlNanos);
+    }
+
+
+    private void runBinary(Properties props, int rounds) throws IOException {
+        for (int i = 0; i < rounds; i++) {
+            RWDbAdapter.decodeParams(RWDbAdapter.encodeParams(props));
+        }
+    }
+
+
+    private void runXml(Properties props, int rounds) throws IOException {
+        for (int i = 0; i < rounds; i++) {
+            fromXml(toXml(props));
+        }
+    }
+
+
+    private byte[] toXml(Properties props) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        props.storeToXML(stream, null);
+        return stream.toByteArray();
+    }
+
+
+    private Properties fromXml(byte[] xml) throws IOException {
+        Properties props = new Properties();
+        props.loadFromXML(new ByteArrayInputStream(xml));
+        return props;
+    }
+
+
+    private Properties createUploadProperties() {
+        Properties props = new Properties();
+        props.setProperty("operation", "add_asset_to_envelope");
+        props.setProperty("label", "Uploading recording");
+        props.setProperty("session_id", "184502");
+        props.setProperty("project_id", "12");
+        props.setProperty("envelope_id", "30219");
+        props.setProperty("latitude", "42.3601");
+        props.setProperty("longitude", "-71.0589");
+        props.setProperty("accuracy", "12.0");
+        props.setProperty("tags", "3,7,12,19");
+        props.setProperty("filename", "/storage/emulated/0/roundware/queue/rw_recording_1476712345678.flac");
+        props.setProperty("url", "https://prod.roundware.com/api/1/");
+        props.setProperty("submitted", "Y");
+        return props;
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests the queue database, its binary encoding of action parameters, and
+ * the upgrades of databases created by older versions.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWDbAdapterTest {
+
+    private Context mContext;
+
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        RWDbAdapter.drop(mContext);
+    }
+
+
+    @After
+    public void tearDown() {
+        RWDbAdapter.drop(mContext);
+    }
+
+
+    @Test
+    public void paramsRoundTrip() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("operation", "add_asset_to_envelope");
+        props.setProperty("empty", "");
+        props.setProperty("unicode", "caf\u00e9 \u65e5\u672c \ud83c\udfb5");
+        props.setProperty("newlines", "line 1\nline 2\r\n<tag attr=\"&amp;\"/>");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        props.setProperty("long", sb.toString());
+
+        assertEquals(props, RWDbAdapter.decodeParams(RWDbAdapter.encodeParams(props)));
+        assertEquals(new Properties(), RWDbAdapter.decodeParams(RWDbAdapter.encodeParams(new Properties())));
+    }
+
+
+    @Test
+    public void decodeRejectsUnknownFormat() {
+        byte[] data = new byte[] { 99, 0, 0, 0, 0 };
+        try {
+            RWDbAdapter.decodeParams(data);
+            fail("decoded unknown format version");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void decodeRejectsTruncatedData() throws Exception {
+        byte[] data = RWDbAdapter.encodeParams(createProperties("truncated"));
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        try {
+            RWDbAdapter.decodeParams(truncated);
+            fail("decoded truncated data");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void upgradeFromVersion3ConvertsXmlParams() throws Exception {
+        Properties props = createProperties("caf\u00e9 <&>");
+        // stored as version 3 did, the XML bytes as text in the default charset of Android
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        props.storeToXML(stream, null);
+        String xml = stream.toString("UTF-8");
+        createDatabase(3, "create table actions (_id integer primary key autoincrement, params TEXT not null)",
+                "insert into actions (_id, params) values (3, ?)", xml);
+        insertRow("insert into actions (_id, params) values (4, 'not xml')");
+        insertRow("insert into actions (_id, params) values (5, ?)", xml);
+
+        RWDbAdapter db = new RWDbAdapter(mContext);
+        List<RWAction> actions = db.getActions(10);
+        int count = db.count();
+        db.close();
+
+        // the unreadable row is dropped, the others keep their ids
+        assertEquals(2, count);
+        assertEquals(Long.valueOf(3), actions.get(0).getDatabaseId());
+        assertEquals(Long.valueOf(5), actions.get(1).getDatabaseId());
+        assertEquals(props, actions.get(0).getProperties());
+        assertEquals(0, actions.get(0).getUploadOffset());
+        assertEquals(0, actions.get(0).getAttempts());
+    }
+
+
+    @Test
+    public void upgradeFromVersion5KeepsActionsAndOffsets() throws Exception {
+        final byte[] params = RWDbAdapter.encodeParams(createProperties("kept"));
+        createDatabase(5, "create table actions (_id integer primary key autoincrement, params BLOB not null, "
+                + "upload_offset integer not null default 0)",
+                "insert into actions (_id, params, upload_offset) values (7, ?, 4096)", params);
+
+        RWDbAdapter db = new RWDbAdapter(mContext);
+        List<RWAction> actions = db.getActions(10);
+        db.close();
+
+        assertEquals(1, actions.size());
+        assertEquals(Long.valueOf(7), actions.get(0).getDatabaseId());
+        assertEquals(4096, actions.get(0).getUploadOffset());
+        assertEquals(0, actions.get(0).getAttempts());
+        assertEquals("kept", getData(actions.get(0)));
+    }
+
+
+    /**
+     * Creates the queue database as an older version would have, with one
+     * row inserted with the specified statement and parameter.
+     */
+    private void createDatabase(int version, final String create, final String insert, final Object param) {
+        SQLiteOpenHelper helper = new SQLiteOpenHelper(mContext, "RoundwareDB", null, version) {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL(create);
+                db.execSQL(insert, new Object[] { param });
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+        };
+        helper.getWritableDatabase();
+        helper.close();
+    }
+
+
+    /**
+     * Inserts a row into the existing queue database, without upgrading it.
+     */
+    private void insertRow(String insert, Object... params) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mContext.getDatabasePath("RoundwareDB").getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL(insert, params);
+        db.close();
+    }
+
+
+    private Properties createProperties(String data) {
+        Properties props = new Properties();
+        props.setProperty(mContext.getString(R.string.rw_key_operation), mContext.getString(R.string.rw_op_log_event));
+        props.setProperty(mContext.getString(R.string.rw_key_data), data);
+        return props;
+    }
+
+
+    private String getData(RWAction action) {
+        return action.getProperties().getProperty(mContext.getString(R.string.rw_key_data));
+    }
+}
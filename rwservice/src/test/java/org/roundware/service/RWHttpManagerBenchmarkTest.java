@@ -0,0 +1,174 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the shared keep-alive HttpClient of RWHttpManager with a new
+ * HttpClient for each call, as before, for a series of small requests to
+ * the same server. The local server delays the first response on each new
+ * connection, standing in for the TCP and TLS handshakes with a remote
+ * server.
+ */
+public class RWHttpManagerBenchmarkTest {
+
+    private static final int WARMUP_REQUESTS = 5;
+    private static final int REQUESTS = 50;
+    private static final int HANDSHAKE_MSEC = 20;
+    private static final String BODY = "{\"status\":\"ok\"}";
+
+    private ServerSocket mServerSocket;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private String mUrl;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0);
+        mUrl = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/api/1/";
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        RWHttpManager.shutdown();
+        mServerSocket.close();
+    }
+
+
+    @Test
+    public void sharedClientReusesOneConnection() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("operation", "heartbeat");
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            RWHttpManager.doGet(mUrl, props, 10);
+            doGetWithNewClient(mUrl + "?operation=heartbeat");
+        }
+        RWHttpManager.shutdown();
+        mConnectionCount.set(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals(BODY, RWHttpManager.doGet(mUrl, props, 10));
+        }
+        long sharedNanos = System.nanoTime() - start;
+        int sharedConnections = mConnectionCount.getAndSet(0);
+
+        start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals(BODY, doGetWithNewClient(mUrl + "?operation=heartbeat"));
+        }
+        long newClientNanos = System.nanoTime() - start;
+        int newClientConnections = mConnectionCount.get();
+
+        System.out.println(String.format("%d requests: new client per call %d connections %.2f ms/request, "
+                + "shared client %d connections %.2f ms/request", REQUESTS,
+                newClientConnections, newClientNanos / 1e6 / REQUESTS,
+                sharedConnections, sharedNanos / 1e6 / REQUESTS));
+        assertEquals(1, sharedConnections);
+        assertEquals(REQUESTS, newClientConnections);
+        assertTrue(sharedNanos < newClientNanos);
+    }
+
+
+    /**
+     * Performs a GET request the way RWHttpManager did before it shared
+     * its client.
+     */
+    private String doGetWithNewClient(String url) throws IOException {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, 10000);
+        HttpConnectionParams.setSoTimeout(params, 10000);
+        DefaultHttpClient client = new DefaultHttpClient(params);
+        try {
+            HttpResponse response = client.execute(new HttpGet(url));
+            return EntityUtils.toString(response.getEntity());
+        } finally {
+            client.getConnectionManager().shutdown();
+        }
+    }
+
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                Thread connection = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+
+    /**
+     * Answers the requests on one keep-alive connection until the client
+     * closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            Thread.sleep(HANDSHAKE_MSEC);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    continue;
+                }
+                // one write, so the response is not held back waiting for an ack
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=UTF-8\r\n"
+                        + "Content-Length: " + BODY.length() + "\r\n\r\n" + BODY).getBytes("UTF-8"));
+                out.flush();
+            }
+        } catch (Exception e) {
+            // connection closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.HttpException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests the chunked upload of RWHttpManager against a local HTTP server:
+ * resuming from a stored offset, continuing from the offset the server
+ * acknowledged, and failing when a chunk is not acknowledged.
+ */
+public class RWHttpManagerUploadTest {
+
+    private static final int FILE_SIZE = 10000;
+    private static final int CHUNK_SIZE = 4096;
+    private static final String DONE = "[{\"success\":true}]";
+
+    private HttpServer mServer;
+    private String mUrl;
+    private File mFile;
+    private byte[] mData;
+
+    /** Decides the status and Range header of the answer to a chunk */
+    private interface Answer {
+        /** @return status code, and Range header value or null */
+        Object[] answer(long first, long last, long total);
+    }
+
+    private volatile Answer mAnswer;
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final List<byte[]> mBodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final List<Long> mAcknowledged = new ArrayList<Long>();
+
+
+    @Before
+    public void setUp() throws IOException {
+        mData = new byte[FILE_SIZE];
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) (i % 251);
+        }
+        mFile = File.createTempFile("rw_upload", ".wav");
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(mData);
+        out.close();
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/api/1/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                receive(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/api/1/";
+    }
+
+
+    @After
+    public void tearDown() {
+        RWHttpManager.shutdown();
+        mServer.stop(0);
+        mFile.delete();
+    }
+
+
+    @Test
+    public void resumesFromStartOffset() throws Exception {
+        mAnswer = acknowledgeAll(308);
+
+        String response = upload(CHUNK_SIZE);
+
+        assertEquals(DONE, response);
+        assertEquals(list("bytes 4096-8191/10000", "bytes 8192-9999/10000"), mRanges);
+        assertEquals(list(8192L, 10000L), mAcknowledged);
+        assertReceived(0, 4096, 8192);
+        assertReceived(1, 8192, FILE_SIZE);
+    }
+
+
+    @Test
+    public void continuesFromAcknowledgedOffset() throws Exception {
+        mAnswer = new Answer() {
+            @Override
+            public Object[] answer(long first, long last, long total) {
+                if (last == total - 1) {
+                    return new Object[] { 200, null };
+                }
+                // the server only stored part of the chunk
+                return new Object[] { 308, "bytes=0-" + (first + 999) };
+            }
+        };
+
+        String response = upload(0);
+
+        assertEquals(DONE, response);
+        assertEquals(list("bytes 0-4095/10000", "bytes 1000-5095/10000", "bytes 2000-6095/10000",
+                "bytes 3000-7095/10000", "bytes 4000-8095/10000", "bytes 5000-9095/10000",
+                "bytes 6000-9999/10000"), mRanges);
+        assertEquals(list(1000L, 2000L, 3000L, 4000L, 5000L, 6000L, 10000L), mAcknowledged);
+        assertReceived(6, 6000, FILE_SIZE);
+    }
+
+
+    @Test
+    public void acceptsOkWithRange() throws Exception {
+        mAnswer = acknowledgeAll(200);
+
+        assertEquals(DONE, upload(0));
+        assertEquals(list(4096L, 8192L, 10000L), mAcknowledged);
+    }
+
+
+    @Test
+    public void plainOkForIntermediateChunkFails() throws Exception {
+        mAnswer = new Answer() {
+            @Override
+            public Object[] answer(long first, long last, long total) {
+                // a server that does not support chunks
+                return new Object[] { 200, null };
+            }
+        };
+
+        try {
+            upload(0);
+            fail("plain 200 for the first chunk taken as acknowledgement");
+        } catch (HttpException e) {
+            assertEquals("200", e.getMessage());
+        }
+        assertEquals(1, mRanges.size());
+        assertTrue(mAcknowledged.isEmpty());
+    }
+
+
+    @Test
+    public void serverErrorKeepsAcknowledgedOffset() throws Exception {
+        mAnswer = new Answer() {
+            @Override
+            public Object[] answer(long first, long last, long total) {
+                if (first > 0) {
+                    return new Object[] { 503, null };
+                }
+                return new Object[] { 308, "bytes=0-" + last };
+            }
+        };
+
+        try {
+            upload(0);
+            fail("server error not reported");
+        } catch (HttpException e) {
+            assertEquals("503", e.getMessage());
+        }
+        assertEquals(list(4096L), mAcknowledged);
+
+        // resuming later sends only the rest of the file
+        mRanges.clear();
+        mAcknowledged.clear();
+        mAnswer = acknowledgeAll(308);
+        assertEquals(DONE, upload(4096));
+        assertEquals("bytes 4096-8191/10000", mRanges.get(0));
+    }
+
+
+    private String upload(long startOffset) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("operation", "add_asset_to_envelope");
+        props.setProperty("envelope_id", "30219");
+        return RWHttpManager.uploadFileChunked(mUrl, props, "file", mFile.getAbsolutePath(), startOffset,
+                CHUNK_SIZE, 10, new RWHttpManager.UploadProgressListener() {
+            @Override
+            public void uploadAcknowledged(long offset) {
+                mAcknowledged.add(offset);
+            }
+        });
+    }
+
+
+    /**
+     * Returns an answer that acknowledges each chunk completely with the
+     * specified status, and the last chunk with a 200.
+     */
+    private Answer acknowledgeAll(final int status) {
+        return new Answer() {
+            @Override
+            public Object[] answer(long first, long last, long total) {
+                if (last == total - 1) {
+                    return new Object[] { 200, null };
+                }
+                return new Object[] { status, "bytes=0-" + last };
+            }
+        };
+    }
+
+
+    private void receive(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Content-Range");
+        mRanges.add(range);
+        mBodies.add(readAll(exchange.getRequestBody()));
+
+        // "bytes first-last/total"
+        String[] parts = range.substring(6).split("[-/]");
+        long first = Long.parseLong(parts[0]);
+        long last = Long.parseLong(parts[1]);
+        long total = Long.parseLong(parts[2]);
+        Object[] answer = mAnswer.answer(first, last, total);
+
+        int status = (Integer) answer[0];
+        if (answer[1] != null) {
+            exchange.getResponseHeaders().set("Range", (String) answer[1]);
+        }
+        byte[] body = ((status == 200) && (answer[1] == null)) ? DONE.getBytes("UTF-8") : new byte[0];
+        if (body.length > 0) {
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } else {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+    }
+
+
+    /**
+     * Asserts that the request with the specified index contained exactly
+     * the bytes of the file from start up to end.
+     */
+    private void assertReceived(int request, int start, int end) throws IOException {
+        byte[] body = mBodies.get(request);
+        byte[] expected = new byte[end - start];
+        System.arraycopy(mData, start, expected, 0, expected.length);
+        int index = indexOf(body, expected);
+        assertTrue("file part not found in request " + request, index >= 0);
+        // the file part is followed by the closing boundary
+        byte[] next = new byte[2];
+        System.arraycopy(body, index + expected.length, next, 0, 2);
+        assertArrayEquals("\r\n".getBytes("ISO-8859-1"), next);
+    }
+
+
+    private static int indexOf(byte[] data, byte[] part) {
+        outer:
+        for (int i = 0; i <= data.length - part.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (data[i + j] != part[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+
+    private static <T> List<T> list(T... items) {
+        List<T> result = new ArrayList<T>();
+        Collections.addAll(result, items);
+        return result;
+    }
+}
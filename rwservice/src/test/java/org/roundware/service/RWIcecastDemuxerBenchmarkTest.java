@@ -0,0 +1,304 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares RWIcecastDemuxer with the RWIcecastInputStream it replaced, for
+ * relaying an Icecast stream with the title in every metadata block. The
+ * old stream is copied below as a reference, and is used the way the old
+ * proxy did. Counts the reads from upstream, the writes to the client (the
+ * system calls on real sockets) and the metadata notifications.
+ */
+public class RWIcecastDemuxerBenchmarkTest {
+
+    private static final int STREAM_SIZE = 16 * 1024 * 1024;
+    // the Icecast and SHOUTcast defaults
+    private static final int ICECAST_META_INTERVAL = 16000;
+    private static final int SHOUTCAST_META_INTERVAL = 8192;
+    private static final int BLOCKS_PER_TITLE = 20;
+    // data available from the socket for each read
+    private static final int SOCKET_READ_SIZE = 16384;
+    // relay buffer size of the old and new proxy
+    private static final int RELAY_BUFFER_SIZE = 1024 * 50;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+
+    @Test
+    public void icecastInterval() throws IOException {
+        Result[] results = compare(ICECAST_META_INTERVAL);
+
+        // each socket read holds about one interval, so both write once
+        // per read, but the demuxer only reports title changes
+        assertTrue(results[1].writes <= results[0].writes);
+        assertTrue(results[1].notifications < results[0].notifications);
+    }
+
+
+    @Test
+    public void shoutcastInterval() throws IOException {
+        Result[] results = compare(SHOUTCAST_META_INTERVAL);
+
+        // the input stream ends each read at the next metadata block, the
+        // demuxer writes all audio of a socket read at once
+        assertTrue(results[1].writes < results[0].writes);
+        assertTrue(results[1].notifications < results[0].notifications);
+    }
+
+
+    /**
+     * Relays a stream with the specified metadata interval with the input
+     * stream and the demuxer, and returns the results of both.
+     */
+    private Result[] compare(int interval) throws IOException {
+        byte[] audio = FakeIcecastServer.audio(STREAM_SIZE);
+        byte[] body = FakeIcecastServer.icyBody(audio, interval, BLOCKS_PER_TITLE, true);
+        CRC32 crc = new CRC32();
+        crc.update(audio);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runInputStream(body, interval);
+            runDemuxer(body, interval);
+        }
+
+        Result stream = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            stream = runInputStream(body, interval);
+        }
+        long streamNanos = System.nanoTime() - start;
+
+        Result demuxer = null;
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            demuxer = runDemuxer(body, interval);
+        }
+        long demuxerNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%d MB stream, metaint %d: input stream %d reads %d writes "
+                + "%d notifications %.0f MB/s, demuxer %d reads %d writes %d notifications %.0f MB/s",
+                STREAM_SIZE >> 20, interval,
+                stream.reads, stream.writes, stream.notifications, mbPerSec(streamNanos),
+                demuxer.reads, demuxer.writes, demuxer.notifications, mbPerSec(demuxerNanos)));
+        assertEquals(audio.length, stream.bytes);
+        assertEquals(audio.length, demuxer.bytes);
+        assertEquals(crc.getValue(), stream.crc.getValue());
+        assertEquals(crc.getValue(), demuxer.crc.getValue());
+        assertEquals(stream.reads, demuxer.reads);
+        return new Result[] { stream, demuxer };
+    }
+
+
+    /**
+     * Relays the stream like the old proxy: RWIcecastInputStream over the
+     * upstream content, copied to the client through a BufferedOutputStream.
+     */
+    private Result runInputStream(byte[] body, int interval) throws IOException {
+        final Result result = new Result();
+        IcecastInputStream icy = new IcecastInputStream(new Upstream(body, result), RELAY_BUFFER_SIZE,
+                interval);
+        icy.setListener(result);
+        BufferedOutputStream bos = new BufferedOutputStream(new Client(result));
+        byte[] buff = new byte[RELAY_BUFFER_SIZE];
+        int readBytes;
+        while ((readBytes = icy.read(buff, 0, buff.length)) != -1) {
+            bos.write(buff, 0, readBytes);
+        }
+        bos.close();
+        return result;
+    }
+
+
+    /**
+     * Relays the stream like the new proxy: each read from upstream goes
+     * into one buffer, which the demuxer writes to the client.
+     */
+    private Result runDemuxer(byte[] body, int interval) throws IOException {
+        Result result = new Result();
+        Upstream upstream = new Upstream(body, result);
+        Client client = new Client(result);
+        RWIcecastDemuxer demuxer = new RWIcecastDemuxer(interval);
+        demuxer.setIcyMetaDataListener(result);
+        ByteBuffer in = ByteBuffer.allocate(RELAY_BUFFER_SIZE);
+        int n;
+        while ((n = upstream.read(in.array(), 0, in.capacity())) > 0) {
+            in.clear();
+            in.limit(n);
+            demuxer.demux(in, client);
+        }
+        return result;
+    }
+
+
+    private static double mbPerSec(long nanos) {
+        return (double) STREAM_SIZE * ROUNDS / (1024 * 1024) / (nanos / 1e9);
+    }
+
+
+    /** Counts of one relay run */
+    private static class Result implements RWIcecastDemuxer.IcyMetaDataListener {
+        int reads;
+        int writes;
+        int notifications;
+        long bytes;
+        final CRC32 crc = new CRC32();
+
+        @Override
+        public void OnMetaDataReceived(String metaData) {
+            notifications++;
+        }
+    }
+
+
+    /**
+     * Upstream socket, each read returns at most the data that arrived in
+     * one network read. All of the stream is reported as available, else
+     * the old stream reads metadata blocks split across reads only partly
+     * and loses audio.
+     */
+    private static class Upstream extends InputStream {
+        private final ByteArrayInputStream data;
+        private final Result result;
+
+        Upstream(byte[] body, Result result) {
+            this.data = new ByteArrayInputStream(body);
+            this.result = result;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) > 0) ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int available() {
+            return data.available();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            result.reads++;
+            return data.read(b, off, Math.min(len, SOCKET_READ_SIZE));
+        }
+    }
+
+
+    /**
+     * Client socket, counts the writes and checks the written audio.
+     */
+    private static class Client extends OutputStream implements GatheringByteChannel {
+        private final Result result;
+
+        Client(Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            result.writes++;
+            result.bytes += len;
+            result.crc.update(b, off, len);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            result.writes++;
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                ByteBuffer src = srcs[i];
+                int n = src.remaining();
+                result.crc.update(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+                written += n;
+            }
+            result.bytes += written;
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+
+    /**
+     * Reference copy of the reading of RWIcecastInputStream, as it was
+     * before RWIcecastDemuxer replaced it.
+     */
+    private static class IcecastInputStream extends BufferedInputStream {
+        private int metadataInterval;
+        private int streamBytesRemaining;
+        private RWIcecastDemuxer.IcyMetaDataListener listener = null;
+
+        IcecastInputStream(InputStream in, int size, int metadataInterval) {
+            super(in, size);
+            this.metadataInterval = streamBytesRemaining = metadataInterval;
+        }
+
+        void setListener(RWIcecastDemuxer.IcyMetaDataListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            int bytesRead = 0;
+            if (0 == streamBytesRemaining) {
+                examineMetaData();
+            }
+            bytesRead = super.read(buffer, byteOffset, Math.min(streamBytesRemaining, byteCount));
+            streamBytesRemaining = streamBytesRemaining - bytesRead;
+
+            return bytesRead;
+        }
+
+        private void examineMetaData() throws IOException {
+            streamBytesRemaining = this.metadataInterval;
+            int len = super.read() * 16;
+            if (len > 0) {
+                byte buffer[] = new byte[len];
+                super.read(buffer, 0, len);
+                String metadata = new String(buffer, "UTF-8");
+
+                // notify listener
+                if (listener != null) {
+                    listener.OnMetaDataReceived(metadata);
+                }
+            }
+        }
+    }
+}
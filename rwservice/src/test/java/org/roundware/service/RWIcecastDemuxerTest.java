@@ -0,0 +1,185 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the splitting of Icecast streams into audio and metadata, with
+ * the stream received in reads that split audio, metadata length bytes
+ * and metadata blocks at every position, and with outputs that do not
+ * accept all audio at once.
+ */
+public class RWIcecastDemuxerTest {
+
+    private static final int META_INTERVAL = 100;
+    private static final int BLOCKS_PER_TITLE = 3;
+
+    private final List<String> mMetaData = new ArrayList<String>();
+
+
+    @Test
+    public void metadataSplitAcrossReads() throws IOException {
+        byte[] audio = FakeIcecastServer.audio(2000);
+        byte[] body = FakeIcecastServer.icyBody(audio, META_INTERVAL, BLOCKS_PER_TITLE);
+        // metadata blocks are 32 bytes plus the length byte, so read sizes
+        // up to 40 split them at every position
+        for (int readSize = 1; readSize <= 40; readSize++) {
+            mMetaData.clear();
+            assertArrayEquals("read size " + readSize, audio, demux(body, readSize, Integer.MAX_VALUE));
+            assertEquals("read size " + readSize, expectedTitles(audio.length), mMetaData);
+        }
+    }
+
+
+    @Test
+    public void repeatedTitleIsReportedOnce() throws IOException {
+        byte[] audio = FakeIcecastServer.audio(2000);
+        byte[] body = FakeIcecastServer.icyBody(audio, META_INTERVAL, BLOCKS_PER_TITLE, true);
+
+        assertArrayEquals(audio, demux(body, 7, Integer.MAX_VALUE));
+        assertEquals(expectedTitles(audio.length), mMetaData);
+    }
+
+
+    @Test
+    public void partialWritesAreResumed() throws IOException {
+        byte[] audio = FakeIcecastServer.audio(5000);
+        byte[] body = FakeIcecastServer.icyBody(audio, META_INTERVAL, BLOCKS_PER_TITLE);
+
+        for (int writeSize = 1; writeSize <= 130; writeSize += 43) {
+            mMetaData.clear();
+            assertArrayEquals("write size " + writeSize, audio, demux(body, 4096, writeSize));
+            assertEquals(expectedTitles(audio.length), mMetaData);
+        }
+    }
+
+
+    @Test
+    public void moreRangesThanOneGatheringWrite() throws IOException {
+        // a small interval gives more audio ranges in one read than the
+        // demuxer writes at once
+        byte[] audio = FakeIcecastServer.audio(20000);
+        byte[] body = FakeIcecastServer.icyBody(audio, 16, 1000);
+        Output output = new Output(Integer.MAX_VALUE);
+
+        RWIcecastDemuxer demuxer = new RWIcecastDemuxer(16);
+        assertTrue(demuxer.demux(ByteBuffer.wrap(body), output));
+
+        assertArrayEquals(audio, output.toByteArray());
+        assertTrue(output.writes > 1);
+    }
+
+
+    @Test
+    public void pendingAudioWhenOutputIsFull() throws IOException {
+        byte[] audio = FakeIcecastServer.audio(500);
+        byte[] body = FakeIcecastServer.icyBody(audio, META_INTERVAL, BLOCKS_PER_TITLE);
+        Output output = new Output(0);
+        RWIcecastDemuxer demuxer = new RWIcecastDemuxer(META_INTERVAL);
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+
+        assertFalse(demuxer.demux(buffer, output));
+        assertTrue(demuxer.hasPendingAudio());
+
+        output.maxWrite = Integer.MAX_VALUE;
+        assertTrue(demuxer.demux(buffer, output));
+        assertFalse(demuxer.hasPendingAudio());
+        assertArrayEquals(audio, output.toByteArray());
+    }
+
+
+    /**
+     * Demuxes the body, received in reads of readSize bytes, to an output
+     * that takes at most maxWrite bytes per write, and returns the audio.
+     */
+    private byte[] demux(byte[] body, int readSize, int maxWrite) throws IOException {
+        RWIcecastDemuxer demuxer = new RWIcecastDemuxer(META_INTERVAL);
+        demuxer.setIcyMetaDataListener(new RWIcecastDemuxer.IcyMetaDataListener() {
+            @Override
+            public void OnMetaDataReceived(String metaData) {
+                mMetaData.add(metaData);
+            }
+        });
+        Output output = new Output(maxWrite);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(readSize);
+        for (int offset = 0; offset < body.length; offset += readSize) {
+            buffer.clear();
+            buffer.put(body, offset, Math.min(readSize, body.length - offset));
+            buffer.flip();
+            int calls = 0;
+            while (!demuxer.demux(buffer, output)) {
+                assertTrue("no progress", ++calls < 100000);
+            }
+            assertFalse(buffer.hasRemaining());
+        }
+        return output.toByteArray();
+    }
+
+
+    private List<String> expectedTitles(int audioLength) {
+        List<String> titles = new ArrayList<String>();
+        for (int block = 0; block < audioLength / META_INTERVAL; block += BLOCKS_PER_TITLE) {
+            titles.add("StreamTitle='" + FakeIcecastServer.title(block, BLOCKS_PER_TITLE) + "';");
+        }
+        return titles;
+    }
+
+
+    /**
+     * Output channel that takes at most maxWrite bytes per write, like a
+     * non-blocking socket with a small send buffer.
+     */
+    private static class Output extends ByteArrayOutputStream implements GatheringByteChannel {
+        int maxWrite;
+        int writes;
+
+        Output(int maxWrite) {
+            this.maxWrite = maxWrite;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long written = 0;
+            for (int i = offset; i < offset + length && written < maxWrite; i++) {
+                int n = (int) Math.min(srcs[i].remaining(), maxWrite - written);
+                for (int j = 0; j < n; j++) {
+                    write(srcs[i].get());
+                }
+                written += n;
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the parse time and the memory allocated by the streaming
+ * parsing of RWTags and RWConfiguration with the org.json parsing it
+ * replaced, copied in JsonDomReference, for the tags of a project with
+ * 200 tags and a full configuration response. The streaming tags parsing
+ * also builds the tag indexes, which the reference does not. The
+ * configuration data is so small that creating the JsonReader, with its
+ * buffers, is a large part of its parsing.
+ *
+ * Robolectric adds a call to its shadowing to every method of JsonReader,
+ * but not to the org.json classes, so the times measured here favour
+ * org.json. The allocated bytes are not affected.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWJsonParsingBenchmarkTest {
+
+    private static final int TAG_COUNT = 200;
+    private static final int TAGS_ROUNDS = 100;
+    private static final int CONFIGURATION_ROUNDS = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final String CONFIGURATION_JSON = "[{\"device\":{\"device_id\":\"2f1f8e5c-0b9a-4f7e\"}},"
+            + "{\"session\":{\"session_id\":81275}},{\"project\":{\"project_id\":12,\"project_name\":\"Roundware\","
+            + "\"heartbeat_timer\":15,\"max_recording_length\":45,\"sharing_message\":\"Listen to this!\","
+            + "\"sharing_url\":\"http://roundware.org/s/?eid=[id]\",\"legal_agreement\":\"By recording you agree "
+            + "that your recording may be played back to other listeners.\",\"listen_questions_dynamic\":false,"
+            + "\"speak_questions_dynamic\":false,\"geo_listen_enabled\":true,\"geo_speak_enabled\":true,"
+            + "\"listen_enabled\":true,\"speak_enabled\":true,\"files_url\":\"http://roundware.org/files.zip\","
+            + "\"files_version\":4,\"stream_metadata_enabled\":true,\"reset_tag_defaults_on_startup\":true,"
+            + "\"min_location_update_time_msec\":10000,\"min_location_update_distance_meter\":5.0,"
+            + "\"location_report_interval_msec\":2000,\"http_timeout_sec\":45,\"upload_chunk_size_kb\":256,"
+            + "\"recording_format\":\"wav\",\"trim_silence\":false,\"use_gps_if_possible\":true,"
+            + "\"audio_format\":\"MP3\",\"out_of_range_message\":\"You are out of range\","
+            + "\"out_of_range_url\":\"http://roundware.org/out.mp3\",\"recording_radius\":15}},"
+            + "{\"server\":{\"version\":\"2.0\"}}]";
+
+    private interface Parse {
+        void run() throws IOException;
+    }
+
+
+    @Test
+    public void tags() throws IOException {
+        final String json = RWJsonParsingTest.createTagsJson(TAG_COUNT, true);
+        final byte[] bytes = json.getBytes("UTF-8");
+        final RWTags tags = new RWTags();
+        tags.fromJson(json, RWTags.FROM_SERVER);
+        assertEquals(JsonDomReference.describe(JsonDomReference.parseTags(new RWTags(), json)),
+                JsonDomReference.describe(tags.getTags()));
+
+        Parse dom = new Parse() {
+            @Override
+            public void run() {
+                JsonDomReference.parseTags(tags, json);
+            }
+        };
+        Parse streaming = new Parse() {
+            @Override
+            public void run() {
+                tags.fromJson(json, RWTags.FROM_SERVER);
+            }
+        };
+        Parse streamingFromBytes = new Parse() {
+            @Override
+            public void run() throws IOException {
+                tags.fromJson(new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"), RWTags.FROM_CACHE);
+            }
+        };
+        double[] domResult = measure(dom, TAGS_ROUNDS);
+        double[] streamingResult = measure(streaming, TAGS_ROUNDS);
+        double[] bytesResult = measure(streamingFromBytes, TAGS_ROUNDS);
+
+        System.out.println(String.format("Tags, %d tags %d KB, per parse: org.json %.2f ms %d KB, streaming "
+                + "%.2f ms %d KB, streaming from bytes %.2f ms %d KB", TAG_COUNT, bytes.length / 1024,
+                domResult[0] / 1e6, (long) domResult[1] / 1024, streamingResult[0] / 1e6,
+                (long) streamingResult[1] / 1024, bytesResult[0] / 1e6, (long) bytesResult[1] / 1024));
+        assertTrue(streamingResult[1] < domResult[1]);
+    }
+
+
+    @Test
+    public void configuration() throws IOException {
+        final RWConfiguration config = new RWConfiguration(RuntimeEnvironment.application);
+        final RWConfiguration reference = new RWConfiguration(RuntimeEnvironment.application);
+        reference.setDeviceId(config.getDeviceId());
+        config.assignFromJsonServerResponse(CONFIGURATION_JSON, false);
+        JsonDomReference.assignConfiguration(reference, CONFIGURATION_JSON, false);
+        assertEquals(JsonDomReference.describe(reference), JsonDomReference.describe(config));
+
+        Parse dom = new Parse() {
+            @Override
+            public void run() {
+                JsonDomReference.assignConfiguration(reference, CONFIGURATION_JSON, false);
+            }
+        };
+        Parse streaming = new Parse() {
+            @Override
+            public void run() {
+                config.assignFromJsonServerResponse(CONFIGURATION_JSON, false);
+            }
+        };
+        double[] domResult = measure(dom, CONFIGURATION_ROUNDS);
+        double[] streamingResult = measure(streaming, CONFIGURATION_ROUNDS);
+
+        System.out.println(String.format("Configuration, %d bytes, per parse: org.json %.1f us %d bytes, "
+                + "streaming %.1f us %d bytes", CONFIGURATION_JSON.length(), domResult[0] / 1e3,
+                (long) domResult[1], streamingResult[0] / 1e3, (long) streamingResult[1]));
+    }
+
+
+    /**
+     * Runs the parsing the specified number of rounds after warming up,
+     * and returns the time in nanoseconds and the bytes allocated by this
+     * thread per round.
+     */
+    private static double[] measure(Parse parse, int rounds) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS * rounds; i++) {
+            parse.run();
+        }
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            parse.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        return new double[] { (double) nanos / rounds, (double) allocated / rounds };
+    }
+
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
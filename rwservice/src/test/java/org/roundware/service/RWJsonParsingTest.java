@@ -0,0 +1,221 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests that the streaming parsing of RWTags and RWConfiguration gives the
+ * same tags and configuration values as the org.json parsing it replaced,
+ * which is copied in JsonDomReference.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWJsonParsingTest {
+
+    @Test
+    public void largeProjectTags() {
+        String json = createTagsJson(200, true);
+        String tags = assertSameTags(json);
+        assertTrue(tags.contains("speak|"));
+        assertTrue(tags.contains("caf\u00e9 \"quoted\"\n\ttabbed \\ slashed"));
+    }
+
+
+    @Test
+    public void tagsWithStringNumbersAndNulls() {
+        assertSameTags("{\"listen\":[{\"code\":null,\"name\":\"Age\",\"header_text\":null,\"order\":\"7\","
+                + "\"select\":\"single\",\"defaults\":[\"12\"],\"options\":[{\"tag_id\":\"12\",\"order\":\"2\","
+                + "\"value\":\"Old\",\"data\":\"\",\"description\":null,\"relationships\":[\"13\",14]},"
+                + "{\"tag_id\":13.0,\"order\":1,\"value\":\"Young\",\"data\":\"d\",\"relationships\":[]}]}]}");
+    }
+
+
+    @Test
+    public void tagsWithUnknownKeys() {
+        assertSameTags("{\"version\":3,\"extra\":{\"listen\":[1,{\"a\":[]}]},\"listen\":[{\"code\":\"c\","
+                + "\"unknown\":{\"nested\":[{\"options\":[]},null,true]},\"select\":\"multi\",\"defaults\":[],"
+                + "\"options\":[{\"tag_id\":1,\"order\":0,\"value\":\"v\",\"data\":\"\",\"relationships\":[],"
+                + "\"color\":[1,2,{\"x\":null}]}]}],\"other\":null}");
+    }
+
+
+    @Test
+    public void tagsBeforeAnErrorAreKept() {
+        String speak = "{\"code\":\"s\",\"select\":\"single\",\"defaults\":[],\"options\":[]}";
+        String broken = "{\"code\":\"b\",\"defaults\":[],\"options\":[]}";
+
+        // the last speak tag has no selection type
+        assertEquals(2, countTags(assertSameTags("{\"listen\":[" + speak + "],\"speak\":[" + speak + ","
+                + broken + "]}")));
+        // an option without an id stops the parsing of the listen tags,
+        // before the speak tags are read
+        assertEquals(1, countTags(assertSameTags("{\"listen\":[" + speak + ",{\"code\":\"o\",\"select\":\"multi\","
+                + "\"defaults\":[],\"options\":[{\"order\":0,\"value\":\"v\",\"data\":\"\",\"relationships\":[]}]}],"
+                + "\"speak\":[" + speak + "]}")));
+    }
+
+
+    @Test
+    public void truncatedTags() {
+        String json = createTagsJson(20, false);
+        assertSameTags(json.substring(0, json.length() / 2));
+        assertSameTags(json.substring(0, json.length() - 2));
+        assertEquals(0, countTags(assertSameTags("[]")));
+        assertEquals(0, countTags(assertSameTags("")));
+    }
+
+
+    @Test
+    public void tagsFromReader() throws Exception {
+        String json = createTagsJson(50, true);
+        RWTags tags = new RWTags();
+        tags.fromJson(new InputStreamReader(new ByteArrayInputStream(json.getBytes("UTF-8")), "UTF-8"),
+                RWTags.FROM_CACHE);
+
+        assertEquals(JsonDomReference.describe(JsonDomReference.parseTags(new RWTags(), json)),
+                JsonDomReference.describe(tags.getTags()));
+    }
+
+
+    @Test
+    public void configuration() {
+        String json = "[{\"device\":{\"device_id\":\"d-1\"}},{\"session\":{\"session_id\":4711}},"
+                + "{\"project\":{\"project_id\":12,\"project_name\":\"Caf\u00e9 \\\"Roundware\\\"\\n\","
+                + "\"heartbeat_timer\":\"45\",\"max_recording_length\":45.0,\"sharing_message\":null,"
+                + "\"sharing_url\":\"http://example.org/\\u00e9?a=1&b=2\",\"legal_agreement\":\"Line 1\\nLine 2\","
+                + "\"listen_questions_dynamic\":\"true\",\"speak_questions_dynamic\":true,"
+                + "\"geo_listen_enabled\":false,\"geo_speak_enabled\":\"FALSE\",\"listen_enabled\":\"yes\","
+                + "\"speak_enabled\":1,\"files_url\":\"http://example.org/files.zip\",\"files_version\":\"3\","
+                + "\"stream_metadata_enabled\":true,\"reset_tag_defaults_on_startup\":\"true\","
+                + "\"min_location_update_time_msec\":\"60000\",\"min_location_update_distance_meter\":\"2.5\","
+                + "\"location_report_interval_msec\":1.5e4,\"log_event_batch_size\":\"20\","
+                + "\"log_event_flush_interval_msec\":90000,\"log_event_sampling_rates\":\"move_listener=0.25\","
+                + "\"http_timeout_sec\":\"abc\",\"upload_chunk_size_kb\":null,\"recording_format\":\"flac\","
+                + "\"trim_silence\":true,\"use_gps_if_possible\":false,"
+                + "\"unknown\":{\"project\":{\"project_id\":99},\"list\":[1,[2],{}]}}},"
+                + "{\"server\":{\"version\":\"2.1\"}},{\"other\":[{\"session\":{}}]}]";
+
+        RWConfiguration config = assertSameConfiguration(json, false);
+        assertEquals("4711", config.getSessionId());
+        assertEquals(45, config.getHeartbeatTimerSec());
+        assertEquals(2.5, config.getMinLocationUpdateDistanceMeter(), 0);
+        assertEquals(RWConfiguration.FROM_SERVER, config.getDataSource());
+    }
+
+
+    @Test
+    public void configurationFromCache() throws Exception {
+        String json = "[{\"session\":{\"session_id\":\"s-1\"}},{\"project\":{\"project_id\":\"7\","
+                + "\"listen_enabled\":false}},{\"device\":{}}]";
+        RWConfiguration config = assertSameConfiguration(json, true);
+        assertNull(config.getSessionId());
+        assertEquals(RWConfiguration.FROM_CACHE, config.getDataSource());
+
+        RWConfiguration fromReader = new RWConfiguration(RuntimeEnvironment.application);
+        fromReader.setDeviceId(config.getDeviceId());
+        fromReader.assignFromJsonServerResponse(new InputStreamReader(
+                new ByteArrayInputStream(json.getBytes("UTF-8")), "UTF-8"), true);
+        assertEquals(JsonDomReference.describe(config), JsonDomReference.describe(fromReader));
+    }
+
+
+    @Test
+    public void truncatedConfiguration() {
+        String json = "[{\"device\":{\"device_id\":\"d-1\"}},{\"project\":{\"project_id\":\"7\","
+                + "\"heartbeat_timer\":30,\"project_name\":\"cut";
+        assertSameConfiguration(json, false);
+        assertSameConfiguration("{}", false);
+    }
+
+
+    /**
+     * Parses the tags with both parsers, asserts that the results are the
+     * same and returns their description.
+     */
+    private static String assertSameTags(String json) {
+        RWTags tags = new RWTags();
+        tags.fromJson(json, RWTags.FROM_SERVER);
+        String expected = JsonDomReference.describe(JsonDomReference.parseTags(new RWTags(), json));
+        String actual = JsonDomReference.describe(tags.getTags());
+        assertEquals(expected, actual);
+        return actual;
+    }
+
+
+    private static int countTags(String description) {
+        int count = 0;
+        for (String line : description.split("\n")) {
+            if (line.length() > 0 && !line.startsWith(" ")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static RWConfiguration assertSameConfiguration(String json, boolean fromCache) {
+        RWConfiguration config = new RWConfiguration(RuntimeEnvironment.application);
+        String deviceId = config.getDeviceId();
+        config.assignFromJsonServerResponse(json, fromCache);
+        RWConfiguration reference = new RWConfiguration(RuntimeEnvironment.application);
+        // a new configuration has a random device id
+        reference.setDeviceId(deviceId);
+        JsonDomReference.assignConfiguration(reference, json, fromCache);
+        assertEquals(JsonDomReference.describe(reference), JsonDomReference.describe(config));
+        return config;
+    }
+
+
+    /**
+     * Creates the JSON of listen tags, and speak tags when speak is true,
+     * with 1 to 20 options each in shuffled order, descriptions with
+     * escaped characters, relationships and keys that are not used.
+     */
+    static String createTagsJson(int count, boolean speak) {
+        String[] selects = { RWTags.JSON_VALUE_SELECT_SINGLE, "multi", RWTags.JSON_VALUE_SELECT_AT_LEAST_ONE };
+        StringBuilder json = new StringBuilder("{\"listen\":[");
+        int tagId = 1;
+        for (int i = 0; i < count; i++) {
+            if (speak && i == count / 2) {
+                json.append("],\"speak\":[");
+            } else if (i > 0) {
+                json.append(',');
+            }
+            String select = selects[i % selects.length];
+            int options = 1 + (i * 7 + 4) % 20;
+            json.append("{\"code\":\"tag").append(i).append("\",\"name\":\"Tag ").append(i)
+                    .append("\",\"header_text\":\"Which one of these \u00e0 \u4e2d?\",\"order\":").append(count - i)
+                    .append(",\"select\":\"").append(select).append("\",\"defaults\":[")
+                    .append("multi".equals(select) ? "" : String.valueOf(tagId + options - 1))
+                    .append("],\"data\":{\"color\":\"#fff\"},\"options\":[");
+            for (int j = 0; j < options; j++) {
+                json.append(j > 0 ? "," : "").append("{\"tag_id\":").append(tagId + j).append(",\"order\":")
+                        .append((j * 7) % options).append(",\"value\":\"Option ").append(j)
+                        .append("\",\"data\":\"http://example.org/").append(j).append("\",\"description\":\"")
+                        .append(j % 3 == 0 ? "caf\\u00e9 \\\"quoted\\\"\\n\\ttabbed \\\\ slashed" : "plain")
+                        .append("\",\"relationships\":[");
+                for (int k = 0; k < j % 4; k++) {
+                    json.append(k > 0 ? "," : "").append(tagId + k);
+                }
+                json.append("],\"loc_msg\":null}");
+            }
+            tagId += options;
+            json.append("]}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+}
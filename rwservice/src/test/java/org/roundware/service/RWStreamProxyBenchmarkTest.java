@@ -0,0 +1,174 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Measures the throughput and the time to the first audio byte of a
+ * stream served by a fake Icecast server, read directly and through
+ * RWStreamProxy, which also removes the metadata and decodes chunked
+ * streams.
+ */
+public class RWStreamProxyBenchmarkTest {
+
+    private static final int STREAM_SIZE = 32 * 1024 * 1024;
+    private static final int META_INTERVAL = 16000;
+    private static final int WRITE_SIZE = 16384;
+    private static final int LATENCY_REQUESTS = 50;
+    private static final int WARMUP_ROUNDS = 2;
+
+    private FakeIcecastServer mServer;
+    private RWStreamProxy mProxy;
+    private byte[] mIcyBody;
+    private byte[] mChunkedBody;
+    private int mAudioSize;
+
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] audio = FakeIcecastServer.audio(STREAM_SIZE);
+        mAudioSize = audio.length;
+        mIcyBody = FakeIcecastServer.icyBody(audio, META_INTERVAL, 10);
+        mChunkedBody = FakeIcecastServer.chunked(mIcyBody, WRITE_SIZE);
+        mServer = new FakeIcecastServer(new FakeIcecastServer.Responder() {
+            @Override
+            public void respond(String path, OutputStream out) throws IOException {
+                if (path.equals("/chunked")) {
+                    out.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nicy-metaint: " + META_INTERVAL
+                            + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                    FakeIcecastServer.writeInPieces(out, mChunkedBody, WRITE_SIZE);
+                } else if (path.equals("/short")) {
+                    out.write(("ICY 200 OK\r\nicy-metaint: " + META_INTERVAL + "\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.write(mIcyBody, 0, META_INTERVAL);
+                } else {
+                    out.write(("ICY 200 OK\r\nicy-metaint: " + META_INTERVAL + "\r\n\r\n").getBytes("ISO-8859-1"));
+                    FakeIcecastServer.writeInPieces(out, mIcyBody, WRITE_SIZE);
+                }
+            }
+        });
+        mProxy = new RWStreamProxy(null);
+        mProxy.init();
+        mProxy.start();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        mProxy.stop();
+        mServer.close();
+    }
+
+
+    @Test
+    public void streamThroughProxy() throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            read(direct("/stream"));
+            read(proxied("/stream"));
+            read(proxied("/chunked"));
+        }
+
+        long start = System.nanoTime();
+        long directBytes = read(direct("/stream"));
+        long directNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long proxyBytes = read(proxied("/stream"));
+        long proxyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long chunkedBytes = read(proxied("/chunked"));
+        long chunkedNanos = System.nanoTime() - start;
+
+        long directLatency = 0;
+        long proxyLatency = 0;
+        for (int i = 0; i < LATENCY_REQUESTS; i++) {
+            start = System.nanoTime();
+            directLatency += firstByteNanos(direct("/short"), start);
+            start = System.nanoTime();
+            proxyLatency += firstByteNanos(proxied("/short"), start);
+        }
+
+        System.out.println(String.format("%d MB stream: direct %.0f MB/s, proxy %.0f MB/s, chunked through proxy "
+                + "%.0f MB/s; first audio byte: direct %.3f ms, proxy %.3f ms", STREAM_SIZE >> 20,
+                mbPerSec(directBytes, directNanos), mbPerSec(proxyBytes, proxyNanos),
+                mbPerSec(chunkedBytes, chunkedNanos), directLatency / 1e6 / LATENCY_REQUESTS,
+                proxyLatency / 1e6 / LATENCY_REQUESTS));
+        assertEquals(mIcyBody.length, directBytes);
+        assertEquals(mAudioSize, proxyBytes);
+        assertEquals(mAudioSize, chunkedBytes);
+    }
+
+
+    /**
+     * Opens a connection straight to the fake server and sends a request
+     * for the path, returning the stream after the response headers.
+     */
+    private InputStream direct(String path) throws IOException {
+        return request(new Socket("127.0.0.1", mServer.getPort()), path);
+    }
+
+
+    private InputStream proxied(String path) throws IOException {
+        return request(new Socket("127.0.0.1", mProxy.getPort()), "/" + mServer.getUrl(path));
+    }
+
+
+    private InputStream request(Socket socket, String path) throws IOException {
+        socket.setSoTimeout(10000);
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nIcy-MetaData: 1\r\n\r\n")
+                .getBytes("ISO-8859-1"));
+        return socket.getInputStream();
+    }
+
+
+    /**
+     * Reads the response to the end and returns the number of body bytes.
+     */
+    private long read(InputStream in) throws IOException {
+        try {
+            FakeIcecastServer.readHeaders(in);
+            byte[] buffer = new byte[65536];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Returns the time from the start of the request to the first body
+     * byte.
+     */
+    private long firstByteNanos(InputStream in, long start) throws IOException {
+        try {
+            FakeIcecastServer.readHeaders(in);
+            in.read();
+            return System.nanoTime() - start;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static double mbPerSec(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests RWStreamProxy against a fake Icecast server: metadata removal,
+ * chunked streams, redirects and hosts that cannot be resolved.
+ */
+public class RWStreamProxyTest {
+
+    private static final int AUDIO_SIZE = 200000;
+    private static final int META_INTERVAL = 8192;
+    private static final int BLOCKS_PER_TITLE = 5;
+    private static final int MAX_REDIRECTS = 10;
+
+    private FakeIcecastServer mServer;
+    private RWStreamProxy mProxy;
+    private final List<String> mMetaData = Collections.synchronizedList(new ArrayList<String>());
+    private byte[] mAudio;
+    private byte[] mIcyBody;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mAudio = FakeIcecastServer.audio(AUDIO_SIZE);
+        mIcyBody = FakeIcecastServer.icyBody(mAudio, META_INTERVAL, BLOCKS_PER_TITLE);
+        mServer = new FakeIcecastServer(new FakeIcecastServer.Responder() {
+            @Override
+            public void respond(String path, OutputStream out) throws IOException {
+                RWStreamProxyTest.this.respond(path, out);
+            }
+        });
+        mProxy = new RWStreamProxy(new RWIcecastDemuxer.IcyMetaDataListener() {
+            @Override
+            public void OnMetaDataReceived(String metaData) {
+                mMetaData.add(metaData);
+            }
+        });
+        mProxy.init();
+        mProxy.start();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        mProxy.stop();
+        mServer.close();
+    }
+
+
+    @Test
+    public void removesMetadataFromStream() throws IOException {
+        Response response = fetch(mServer.getUrl("/stream"));
+
+        assertTrue(response.headers, response.headers.startsWith("HTTP/1.0 200 OK\r\n"));
+        assertFalse(response.headers, response.headers.toLowerCase().contains("icy-metaint"));
+        assertArrayEquals(mAudio, response.body);
+        assertEquals(expectedTitles(), mMetaData);
+    }
+
+
+    @Test
+    public void decodesChunkedStream() throws IOException {
+        Response response = fetch(mServer.getUrl("/chunked"));
+
+        assertTrue(response.headers, response.headers.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertFalse(response.headers, response.headers.toLowerCase().contains("transfer-encoding"));
+        assertArrayEquals(mAudio, response.body);
+        assertEquals(expectedTitles(), mMetaData);
+    }
+
+
+    @Test
+    public void decodesChunkedBodyWithoutMetadata() throws IOException {
+        Response response = fetch(mServer.getUrl("/chunked-plain"));
+
+        assertFalse(response.headers, response.headers.toLowerCase().contains("transfer-encoding"));
+        assertArrayEquals(mAudio, response.body);
+    }
+
+
+    @Test
+    public void followsRedirects() throws IOException {
+        Response response = fetch(mServer.getUrl("/redirect/3"));
+
+        assertTrue(response.headers, response.headers.startsWith("HTTP/1.0 200 OK\r\n"));
+        assertArrayEquals(mAudio, response.body);
+        assertEquals(4, mServer.getRequestCount());
+    }
+
+
+    @Test
+    public void stopsAfterTooManyRedirects() throws IOException {
+        Response response = fetch(mServer.getUrl("/redirect/100"));
+
+        assertEquals("", response.headers);
+        assertEquals(MAX_REDIRECTS + 1, mServer.getRequestCount());
+    }
+
+
+    @Test
+    public void passesOnRedirectToHttps() throws IOException {
+        Response response = fetch(mServer.getUrl("/https"));
+
+        assertTrue(response.headers, response.headers.startsWith("HTTP/1.1 301 Moved\r\n"));
+        assertTrue(response.headers, response.headers.contains("Location: https://127.0.0.1/stream\r\n"));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+
+    @Test
+    public void closesClientForUnknownHostAndKeepsRunning() throws IOException {
+        Response response = fetch("http://stream.invalid/live");
+        assertEquals("", response.headers);
+
+        response = fetch(mServer.getUrl("/stream"));
+        assertArrayEquals(mAudio, response.body);
+    }
+
+
+    private void respond(String path, OutputStream out) throws IOException {
+        if (path.equals("/stream")) {
+            out.write(("ICY 200 OK\r\nicy-name: test\r\nicy-metaint: " + META_INTERVAL + "\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            FakeIcecastServer.writeInPieces(out, mIcyBody, 16384);
+        } else if (path.equals("/chunked")) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: audio/mpeg\r\nTransfer-Encoding: chunked\r\n"
+                    + "icy-metaint: " + META_INTERVAL + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            FakeIcecastServer.writeInPieces(out, FakeIcecastServer.chunked(mIcyBody, 1000), 1777);
+        } else if (path.equals("/chunked-plain")) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: audio/mpeg\r\nTransfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            FakeIcecastServer.writeInPieces(out, FakeIcecastServer.chunked(mAudio, 4000), 2999);
+        } else if (path.startsWith("/redirect/")) {
+            int remaining = Integer.parseInt(path.substring(10));
+            // relative and absolute locations
+            String location = (remaining > 1) ? "/redirect/" + (remaining - 1)
+                    : mServer.getUrl("/stream");
+            out.write(("HTTP/1.1 302 Found\r\nLocation: " + location + "\r\nContent-Length: 5\r\n\r\nmoved")
+                    .getBytes("ISO-8859-1"));
+        } else if (path.equals("/https")) {
+            out.write("HTTP/1.1 301 Moved\r\nLocation: https://127.0.0.1/stream\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes("ISO-8859-1"));
+        } else {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+        }
+    }
+
+
+    private List<String> expectedTitles() {
+        List<String> titles = new ArrayList<String>();
+        int blocks = AUDIO_SIZE / META_INTERVAL;
+        for (int block = 0; block < blocks; block += BLOCKS_PER_TITLE) {
+            titles.add("StreamTitle='" + FakeIcecastServer.title(block, BLOCKS_PER_TITLE) + "';");
+        }
+        return titles;
+    }
+
+
+    /**
+     * Requests the URL through the proxy, like MediaPlayer does, and
+     * returns the response, with empty headers when the proxy closed the
+     * connection without one.
+     */
+    private Response fetch(String url) throws IOException {
+        Socket socket = new Socket("127.0.0.1", mProxy.getPort());
+        socket.setSoTimeout(10000);
+        try {
+            socket.getOutputStream().write(("GET /" + url + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            InputStream in = socket.getInputStream();
+            Response response = new Response();
+            try {
+                response.headers = FakeIcecastServer.readHeaders(in);
+            } catch (IOException e) {
+                response.headers = "";
+                response.body = new byte[0];
+                return response;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+            response.body = body.toByteArray();
+            return response;
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    private static class Response {
+        String headers;
+        byte[] body;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the silence trimming of RWAudioEncoder, writing WAV files so the
+ * kept audio can be compared with the input byte for byte.
+ */
+public class RWAudioEncoderTest {
+
+    private static final int SAMPLE_RATE = 22050;
+    private static final int WRITE_SIZE = 1764;
+    // amplitude of audio the detector finds active, and of quiet ambient
+    // sound below its thresholds
+    private static final int LOUD = 8000;
+    private static final int QUIET = 40;
+
+    private File mFile;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("rwencoder", ".wav");
+    }
+
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+
+    @Test
+    public void quietRecordingIsKeptWhole() throws IOException {
+        byte[] pcm = pcm(30 * SAMPLE_RATE, QUIET, 0, 0);
+
+        RWAudioEncoder encoder = encode(pcm, true);
+
+        assertEquals(0, encoder.getTrimmedSampleCount());
+        assertArrayEquals(pcm, readData());
+    }
+
+
+    @Test
+    public void shortQuietRecordingIsKeptWhole() throws IOException {
+        byte[] pcm = pcm(2 * SAMPLE_RATE, QUIET, 0, 0);
+
+        encode(pcm, true);
+
+        assertArrayEquals(pcm, readData());
+    }
+
+
+    @Test
+    public void leadingSilenceIsTrimmed() throws IOException {
+        int start = 3 * SAMPLE_RATE;
+        int end = 5 * SAMPLE_RATE;
+        byte[] pcm = pcm(6 * SAMPLE_RATE, LOUD, start, end);
+
+        RWAudioEncoder encoder = encode(pcm, true);
+
+        // up to the pre-roll of 250 ms before the sound starts, and the
+        // hangover of 500 ms after it ends
+        int trimmed = (int) encoder.getTrimmedSampleCount();
+        assertTrue("trimmed " + trimmed, trimmed >= start - SAMPLE_RATE / 4 - SAMPLE_RATE / 20
+                && trimmed <= start - SAMPLE_RATE / 4);
+        byte[] data = readData();
+        assertEquals(2 * (end + SAMPLE_RATE / 2 - trimmed), data.length);
+        assertArrayEquals(Arrays.copyOfRange(pcm, 2 * trimmed, 2 * trimmed + data.length), data);
+    }
+
+
+    @Test
+    public void longLeadingSilenceIsKept() throws IOException {
+        // the sound starts after the longest leading silence that is held
+        int start = 8 * SAMPLE_RATE;
+        byte[] pcm = pcm(10 * SAMPLE_RATE, LOUD, start, 10 * SAMPLE_RATE);
+
+        RWAudioEncoder encoder = encode(pcm, true);
+
+        assertEquals(0, encoder.getTrimmedSampleCount());
+        assertArrayEquals(pcm, readData());
+    }
+
+
+    @Test
+    public void nothingIsTrimmedWhenOff() throws IOException {
+        byte[] pcm = pcm(6 * SAMPLE_RATE, LOUD, 3 * SAMPLE_RATE, 4 * SAMPLE_RATE);
+
+        encode(pcm, false);
+
+        assertArrayEquals(pcm, readData());
+    }
+
+
+    /**
+     * Returns PCM audio of the specified number of samples: a 440 Hz tone
+     * of the amplitude from start to end, or everywhere when end is not
+     * larger than start, with silence around it.
+     */
+    private static byte[] pcm(int samples, int amplitude, int start, int end) {
+        Random random = new Random(3);
+        byte[] pcm = new byte[2 * samples];
+        for (int i = 0; i < samples; i++) {
+            int sample = 0;
+            if (end <= start || (i >= start && i < end)) {
+                sample = (int) (amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE)) + random.nextInt(3) - 1;
+            }
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+
+    /**
+     * Writes the audio to the ring buffer like the capture thread and
+     * closes the encoder.
+     */
+    private RWAudioEncoder encode(byte[] pcm, boolean trimSilence) throws IOException {
+        RWAudioRingBuffer ringBuffer = new RWAudioRingBuffer(4 * WRITE_SIZE);
+        RWAudioEncoder encoder = RWAudioEncoder.create(RWAudioEncoder.FORMAT_WAV, mFile, SAMPLE_RATE, ringBuffer,
+                WRITE_SIZE, trimSilence);
+        for (int offset = 0; offset < pcm.length; offset += WRITE_SIZE) {
+            ringBuffer.write(pcm, offset, Math.min(WRITE_SIZE, pcm.length - offset));
+        }
+        encoder.close();
+        return encoder;
+    }
+
+
+    /**
+     * Returns the audio data of the WAV file, checking the sizes in the
+     * header.
+     */
+    private byte[] readData() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] header = new byte[RWWavWriter.HEADER_SIZE];
+            in.readFully(header);
+            byte[] data = new byte[(int) (in.length() - header.length)];
+            in.readFully(data);
+            assertArrayEquals(RWWavWriter.createHeader(SAMPLE_RATE, data.length), header);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
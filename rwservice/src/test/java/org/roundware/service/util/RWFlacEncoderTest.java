@@ -0,0 +1,504 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Encodes PCM audio with RWFlacEncoder and decodes the file again with the
+ * minimal FLAC decoder below, which checks the stream against the format
+ * specification: header and frame CRCs, frame sizes, the sample count and
+ * MD5 signature in STREAMINFO, and the decoded samples themselves.
+ */
+public class RWFlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 22050;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int WRITE_SIZE = 1600;
+
+    // subframe types, index in Decoded.subframeTypes
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 2;
+
+    private File mFile;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("rwflac", ".flac");
+    }
+
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+
+    @Test
+    public void silenceUsesConstantSubframes() throws IOException {
+        short[] samples = new short[3 * BLOCK_SIZE + 100];
+
+        Decoded decoded = roundTrip(samples, SAMPLE_RATE, WRITE_SIZE);
+
+        assertArrayEquals(samples, decoded.samples);
+        assertEquals(4, decoded.frames);
+        assertEquals(4, decoded.subframeTypes[SUBFRAME_CONSTANT]);
+    }
+
+
+    @Test
+    public void noiseUsesVerbatimSubframes() throws IOException {
+        Random random = new Random(42);
+        short[] samples = new short[2 * BLOCK_SIZE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        // extreme values
+        samples[0] = Short.MIN_VALUE;
+        samples[1] = Short.MAX_VALUE;
+
+        Decoded decoded = roundTrip(samples, SAMPLE_RATE, WRITE_SIZE);
+
+        assertArrayEquals(samples, decoded.samples);
+        assertEquals(2, decoded.subframeTypes[SUBFRAME_VERBATIM]);
+    }
+
+
+    @Test
+    public void toneUsesFixedPrediction() throws IOException {
+        short[] samples = tone(5 * BLOCK_SIZE + 1234, 0, 0);
+
+        Decoded decoded = roundTrip(samples, SAMPLE_RATE, WRITE_SIZE);
+
+        assertArrayEquals(samples, decoded.samples);
+        assertEquals(6, decoded.subframeTypes[SUBFRAME_FIXED]);
+        assertTrue("size " + mFile.length(), mFile.length() < samples.length);
+    }
+
+
+    @Test
+    public void writesSplittingSamples() throws IOException {
+        short[] samples = tone(3 * BLOCK_SIZE + 7, 0, 0);
+
+        // odd write sizes split samples over two reads of the encoder
+        for (int writeSize : new int[] { 1, 333, 8191 }) {
+            assertArrayEquals("write size " + writeSize, samples,
+                    roundTrip(samples, SAMPLE_RATE, writeSize).samples);
+        }
+    }
+
+
+    @Test
+    public void sampleRates() throws IOException {
+        short[] samples = tone(BLOCK_SIZE + 10, 0, 0);
+
+        // rates with a code in the frame header, rates stored in the header
+        // in kHz and in Hz, and a rate only in STREAMINFO
+        for (int sampleRate : new int[] { 8000, 16000, 44100, 48000, 96000, 11000, 11025, 100001 }) {
+            Decoded decoded = roundTrip(samples, sampleRate, WRITE_SIZE);
+            assertEquals(sampleRate, decoded.sampleRate);
+            assertArrayEquals("sample rate " + sampleRate, samples, decoded.samples);
+        }
+    }
+
+
+    @Test
+    public void emptyRecording() throws IOException {
+        Decoded decoded = roundTrip(new short[0], SAMPLE_RATE, WRITE_SIZE);
+
+        assertEquals(0, decoded.samples.length);
+        assertEquals(0, decoded.frames);
+    }
+
+
+    @Test
+    public void trimsSilence() throws IOException {
+        int second = SAMPLE_RATE;
+        short[] samples = tone(6 * second, 2 * second, 4 * second);
+
+        RWAudioEncoder encoder = encode(samples, SAMPLE_RATE, WRITE_SIZE, true);
+        Decoded decoded = decode(mFile);
+
+        // a contiguous part of the input around the tone is kept
+        int trimmed = (int) encoder.getTrimmedSampleCount();
+        assertTrue("trimmed " + trimmed, trimmed > 0 && trimmed < 2 * second);
+        int end = trimmed + decoded.samples.length;
+        assertTrue("end " + end, end > 4 * second && end < 6 * second);
+        assertArrayEquals(Arrays.copyOfRange(samples, trimmed, end), decoded.samples);
+    }
+
+
+    /**
+     * Returns a 440 Hz tone with a little noise, silent outside of the
+     * range from start to end when end is larger than start.
+     */
+    private static short[] tone(int length, int start, int end) {
+        Random random = new Random(7);
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            if (end <= start || (i >= start && i < end)) {
+                samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) + random.nextInt(16));
+            }
+        }
+        return samples;
+    }
+
+
+    private Decoded roundTrip(short[] samples, int sampleRate, int writeSize) throws IOException {
+        encode(samples, sampleRate, writeSize, false);
+        return decode(mFile);
+    }
+
+
+    /**
+     * Writes the samples to the ring buffer in pieces of writeSize bytes,
+     * like the capture thread, and closes the encoder.
+     */
+    private RWAudioEncoder encode(short[] samples, int sampleRate, int writeSize, boolean trimSilence)
+            throws IOException {
+        byte[] pcm = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        RWAudioRingBuffer ringBuffer = new RWAudioRingBuffer(4 * 3200);
+        RWAudioEncoder encoder = RWAudioEncoder.create(RWAudioEncoder.FORMAT_FLAC, mFile, sampleRate, ringBuffer,
+                3200, trimSilence);
+        for (int offset = 0; offset < pcm.length; offset += writeSize) {
+            ringBuffer.write(pcm, offset, Math.min(writeSize, pcm.length - offset));
+        }
+        encoder.close();
+        return encoder;
+    }
+
+
+    /** Result of decoding a file */
+    private static class Decoded {
+        short[] samples;
+        int sampleRate;
+        int frames;
+        final int[] subframeTypes = new int[3];
+    }
+
+
+    /**
+     * Decodes a 16 bit mono FLAC file with the subframe types the encoder
+     * uses, failing the test for anything that does not follow the format.
+     */
+    private static Decoded decode(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        BitReader reader = new BitReader(data);
+        assertEquals("fLaC", new String(data, 0, 4, "ISO-8859-1"));
+        reader.skip(32);
+
+        // STREAMINFO must be the first metadata block
+        boolean last = reader.read(1) == 1;
+        assertEquals(0, reader.read(7));
+        assertEquals(34, reader.read(24));
+        int minBlockSize = reader.read(16);
+        int maxBlockSize = reader.read(16);
+        int minFrameSize = reader.read(24);
+        int maxFrameSize = reader.read(24);
+        Decoded decoded = new Decoded();
+        decoded.sampleRate = reader.read(20);
+        assertEquals("channels", 0, reader.read(3));
+        assertEquals("bits per sample", 15, reader.read(5));
+        long totalSamples = ((long) reader.read(4) << 32) | (reader.read(32) & 0xffffffffL);
+        byte[] md5 = new byte[16];
+        for (int i = 0; i < md5.length; i++) {
+            md5[i] = (byte) reader.read(8);
+        }
+        while (!last) {
+            last = reader.read(1) == 1;
+            reader.skip(7);
+            reader.skip(8 * reader.read(24));
+        }
+        assertEquals(BLOCK_SIZE, minBlockSize);
+        assertEquals(BLOCK_SIZE, maxBlockSize);
+
+        short[] samples = new short[(int) totalSamples];
+        int position = 0;
+        int smallestFrame = Integer.MAX_VALUE;
+        int largestFrame = 0;
+        while (reader.hasMore()) {
+            int frameStart = reader.getBytePosition();
+            assertTrue("more frames than samples", position < samples.length);
+            int n = decodeFrame(reader, decoded, samples, position);
+            assertTrue("only the last frame is short", n == BLOCK_SIZE || position + n == samples.length);
+            int frameSize = reader.getBytePosition() - frameStart;
+            smallestFrame = Math.min(smallestFrame, frameSize);
+            largestFrame = Math.max(largestFrame, frameSize);
+            position += n;
+            decoded.frames++;
+        }
+        assertEquals("total samples", totalSamples, position);
+        assertEquals(decoded.frames > 0 ? smallestFrame : 0, minFrameSize);
+        assertEquals(largestFrame, maxFrameSize);
+
+        byte[] pcm = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        assertArrayEquals("MD5 signature", md5(pcm), md5);
+        decoded.samples = samples;
+        return decoded;
+    }
+
+
+    /**
+     * Decodes one frame into the samples at the position and returns the
+     * block size.
+     */
+    private static int decodeFrame(BitReader reader, Decoded decoded, short[] samples, int position) {
+        int headerStart = reader.getBytePosition();
+        assertEquals("sync code", 0x3ffe, reader.read(14));
+        assertEquals(0, reader.read(1));
+        assertEquals("fixed block size", 0, reader.read(1));
+        int blockSizeCode = reader.read(4);
+        int sampleRateCode = reader.read(4);
+        assertEquals("mono", 0, reader.read(4));
+        assertEquals("16 bits", 0x4, reader.read(3));
+        assertEquals(0, reader.read(1));
+        assertEquals("frame number", position / BLOCK_SIZE, readUtf8(reader));
+        int blockSize;
+        if (blockSizeCode == 0xc) {
+            blockSize = BLOCK_SIZE;
+        } else if (blockSizeCode == 0x7) {
+            blockSize = reader.read(16) + 1;
+        } else if (blockSizeCode == 0x6) {
+            blockSize = reader.read(8) + 1;
+        } else {
+            fail("unexpected block size code " + blockSizeCode);
+            return 0;
+        }
+        int sampleRate;
+        switch (sampleRateCode) {
+            case 0x1: sampleRate = 88200; break;
+            case 0x2: sampleRate = 176400; break;
+            case 0x3: sampleRate = 192000; break;
+            case 0x4: sampleRate = 8000; break;
+            case 0x5: sampleRate = 16000; break;
+            case 0x6: sampleRate = 22050; break;
+            case 0x7: sampleRate = 24000; break;
+            case 0x8: sampleRate = 32000; break;
+            case 0x9: sampleRate = 44100; break;
+            case 0xa: sampleRate = 48000; break;
+            case 0xb: sampleRate = 96000; break;
+            case 0xc: sampleRate = reader.read(8) * 1000; break;
+            case 0xd: sampleRate = reader.read(16); break;
+            case 0xe: sampleRate = reader.read(16) * 10; break;
+            default: sampleRate = decoded.sampleRate; // from STREAMINFO
+        }
+        assertEquals("sample rate", decoded.sampleRate, sampleRate);
+        int crc8 = crc8(reader.getData(), headerStart, reader.getBytePosition());
+        assertEquals("header CRC", crc8, reader.read(8));
+
+        // subframe
+        assertEquals("subframe padding", 0, reader.read(1));
+        int type = reader.read(6);
+        assertEquals("wasted bits", 0, reader.read(1));
+        if (type == 0) {
+            decoded.subframeTypes[SUBFRAME_CONSTANT]++;
+            Arrays.fill(samples, position, position + blockSize, (short) reader.readSigned(16));
+        } else if (type == 1) {
+            decoded.subframeTypes[SUBFRAME_VERBATIM]++;
+            for (int i = 0; i < blockSize; i++) {
+                samples[position + i] = (short) reader.readSigned(16);
+            }
+        } else if (type >= 8 && type <= 12) {
+            decoded.subframeTypes[SUBFRAME_FIXED]++;
+            decodeFixed(reader, type - 8, blockSize, samples, position);
+        } else {
+            fail("unexpected subframe type " + type);
+        }
+
+        reader.alignToByte();
+        int crc16 = crc16(reader.getData(), headerStart, reader.getBytePosition());
+        assertEquals("frame CRC", crc16, reader.read(16));
+        return blockSize;
+    }
+
+
+    private static void decodeFixed(BitReader reader, int order, int blockSize, short[] samples, int position) {
+        int[] s = new int[blockSize];
+        for (int i = 0; i < order; i++) {
+            s[i] = reader.readSigned(16);
+        }
+
+        // residual
+        int method = reader.read(2);
+        assertTrue("residual coding method " + method, method <= 1);
+        int parameterBits = (method == 0) ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = reader.read(4);
+        int partitions = 1 << partitionOrder;
+        assertEquals("partitions", 0, blockSize % partitions);
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * (blockSize >> partitionOrder);
+            int parameter = reader.read(parameterBits);
+            if (parameter == escape) {
+                int bits = reader.read(5);
+                for (; i < end; i++) {
+                    s[i] = (bits == 0) ? 0 : reader.readSigned(bits);
+                }
+            } else {
+                for (; i < end; i++) {
+                    s[i] = reader.readRice(parameter);
+                }
+            }
+        }
+
+        // prediction
+        for (i = order; i < blockSize; i++) {
+            switch (order) {
+                case 1: s[i] += s[i - 1]; break;
+                case 2: s[i] += 2 * s[i - 1] - s[i - 2]; break;
+                case 3: s[i] += 3 * s[i - 1] - 3 * s[i - 2] + s[i - 3]; break;
+                case 4: s[i] += 4 * s[i - 1] - 6 * s[i - 2] + 4 * s[i - 3] - s[i - 4]; break;
+                default: break;
+            }
+        }
+        for (i = 0; i < blockSize; i++) {
+            assertTrue("sample out of range", s[i] >= Short.MIN_VALUE && s[i] <= Short.MAX_VALUE);
+            samples[position + i] = (short) s[i];
+        }
+    }
+
+
+    /**
+     * Reads a number coded like UTF-8 characters, used for the frame
+     * number.
+     */
+    private static long readUtf8(BitReader reader) {
+        int first = reader.read(8);
+        if (first < 0x80) {
+            return first;
+        }
+        int following = Integer.numberOfLeadingZeros(~(first << 24));
+        long value = first & (0x7f >> following);
+        for (int i = 1; i < following; i++) {
+            int b = reader.read(8);
+            assertEquals("UTF-8 continuation byte", 0x80, b & 0xc0);
+            value = (value << 6) | (b & 0x3f);
+        }
+        return value;
+    }
+
+
+    private static int crc8(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        return crc;
+    }
+
+
+    private static int crc16(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+            }
+        }
+        return crc;
+    }
+
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    /** Reads big-endian bit fields from a byte array */
+    private static class BitReader {
+        private final byte[] mData;
+        private long mBitPosition;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        byte[] getData() {
+            return mData;
+        }
+
+        boolean hasMore() {
+            return mBitPosition < 8L * mData.length;
+        }
+
+        int getBytePosition() {
+            assertEquals("byte aligned", 0, mBitPosition & 7);
+            return (int) (mBitPosition >> 3);
+        }
+
+        void skip(long bits) {
+            mBitPosition += bits;
+        }
+
+        void alignToByte() {
+            mBitPosition = (mBitPosition + 7) & ~7L;
+        }
+
+        int read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                assertTrue("read past the end of the file", hasMore());
+                int b = mData[(int) (mBitPosition >> 3)] >> (7 - (int) (mBitPosition & 7));
+                value = (value << 1) | (b & 1);
+                mBitPosition++;
+            }
+            return (int) value;
+        }
+
+        int readSigned(int count) {
+            int value = read(count);
+            return (value << (32 - count)) >> (32 - count);
+        }
+
+        int readRice(int parameter) {
+            int quotient = 0;
+            while (read(1) == 0) {
+                quotient++;
+            }
+            int u = (quotient << parameter) | read(parameter);
+            return (u >>> 1) ^ -(u & 1);
+        }
+    }
+}
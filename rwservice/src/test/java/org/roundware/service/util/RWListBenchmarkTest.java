@@ -0,0 +1,323 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.roundware.service.RWTags;
+import org.roundware.service.RWTags.RWTag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Compares the indexed selection of RWList with the filtering it replaced,
+ * for a project with 200 tags of the single, multi and at least one
+ * selection types. The old selection code is copied below as a reference.
+ * Also measures the selection while the items of an unrelated list
+ * change, which must not invalidate the index, and checks that random
+ * operations give the same results with both.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWListBenchmarkTest {
+
+    private static final int TAG_COUNT = 200;
+    private static final int OPERATIONS = 20000;
+    private static final int WARMUP_ROUNDS = 2;
+
+    private RWTags mTags;
+
+
+    @Before
+    public void setUp() {
+        mTags = RWListTest.createTags(TAG_COUNT);
+    }
+
+
+    @Test
+    public void sameResultsAsReference() {
+        RWList list = new RWList(mTags);
+        ReferenceList reference = new ReferenceList(list);
+        RWList unrelated = new RWList(mTags);
+        Random random = new Random(1);
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            int position = random.nextInt(list.size());
+            RWListItem item = list.get(position);
+            RWListItem referenceItem = reference.get(position);
+            RWTag tag = item.getTag();
+            switch (random.nextInt(6)) {
+                case 0:
+                    assertEquals(referenceItem.isOn() ? reference.deselect(referenceItem) : reference.select(referenceItem),
+                            item.isOn() ? list.deselect(item) : list.select(item));
+                    break;
+                case 1:
+                    // through a filtered list sharing the items
+                    assertEquals(reference.filter(tag).select(referenceItem), list.filter(tag).select(item));
+                    break;
+                case 2:
+                    referenceItem.set(!referenceItem.isOn());
+                    item.set(!item.isOn());
+                    break;
+                case 3:
+                    unrelated.get(position).set(!unrelated.get(position).isOn());
+                    break;
+                case 4:
+                    assertEquals(reference.getSelectedItems().size(), list.getSelectedItems().size());
+                    break;
+                default:
+                    assertEquals(reference.getAllTags().length, list.getAllTags().length);
+                    break;
+            }
+            assertEquals(reference.getSelectedCount(tag), list.getSelectedCount(tag));
+            assertEquals(reference.getSelectedCount(), list.getSelectedCount());
+            assertEquals(reference.hasValidSelectionsForTags(tag), list.hasValidSelectionsForTags(tag));
+        }
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(reference.get(i).isOn(), list.get(i).isOn());
+        }
+    }
+
+
+    @Test
+    public void selection() {
+        RWList list = new RWList(mTags);
+        ReferenceList reference = new ReferenceList(list);
+        RWList unrelated = new RWList(mTags);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            selectAndDeselect(list, null);
+            selectAndDeselect(list, unrelated);
+            selectAndDeselect(reference);
+            validate(list, reference);
+        }
+
+        System.out.println(String.format("%d tags, %d options, us/op: select + deselect %.2f, with changes to an "
+                + "unrelated list %.2f, reference %.2f", TAG_COUNT, list.size(), selectAndDeselect(list, null),
+                selectAndDeselect(list, unrelated), selectAndDeselect(reference)));
+        double[] times = validate(list, reference);
+        System.out.println(String.format("us/op: hasValidSelectionsForTags %.2f, reference %.2f; "
+                + "getSelectedItems %.2f, reference %.2f; getAllTags %.2f, reference %.2f",
+                times[0], times[1], times[2], times[3], times[4], times[5]));
+    }
+
+
+    /**
+     * Toggles random items and returns the time per operation in
+     * microseconds. When unrelated is not null, an item of it is toggled
+     * before each operation.
+     */
+    private double selectAndDeselect(RWList list, RWList unrelated) {
+        Random random = new Random(2);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int position = random.nextInt(list.size());
+            if (unrelated != null) {
+                RWListItem other = unrelated.get(position);
+                other.set(!other.isOn());
+            }
+            RWListItem item = list.get(position);
+            if (item.isOn()) {
+                list.deselect(item);
+            } else {
+                list.select(item);
+            }
+        }
+        return (System.nanoTime() - start) / 1e3 / OPERATIONS;
+    }
+
+
+    private double selectAndDeselect(ReferenceList list) {
+        Random random = new Random(2);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            RWListItem item = list.get(random.nextInt(list.size()));
+            if (item.isOn()) {
+                list.deselect(item);
+            } else {
+                list.select(item);
+            }
+        }
+        return (System.nanoTime() - start) / 1e3 / OPERATIONS;
+    }
+
+
+    /**
+     * Returns the time per call in microseconds of the queries, for the
+     * list and the reference in turn.
+     */
+    private double[] validate(RWList list, ReferenceList reference) {
+        int rounds = OPERATIONS / 20;
+        double[] times = new double[6];
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            list.hasValidSelectionsForTags();
+        }
+        times[0] = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            reference.hasValidSelectionsForTags(reference.getAllTags());
+        }
+        times[1] = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            list.getSelectedItems();
+        }
+        times[2] = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            reference.getSelectedItems();
+        }
+        times[3] = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            list.getAllTags();
+        }
+        times[4] = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            reference.getAllTags();
+        }
+        times[5] = (System.nanoTime() - start) / 1e3 / rounds;
+        return times;
+    }
+
+
+    /**
+     * Reference copy of the selection code of RWList before it had an
+     * index, working on copies of the items of a list.
+     */
+    private static class ReferenceList extends ArrayList<RWListItem> {
+        private int mMinSelectionRequired;
+        private int mMaxSelectionAllowed;
+
+        ReferenceList() {
+        }
+
+        ReferenceList(RWList list) {
+            for (RWListItem item : list) {
+                add(RWListItem.create(item));
+            }
+            mMinSelectionRequired = list.getMinSelectionRequired();
+            mMaxSelectionAllowed = list.getMaxSelectionAllowed();
+        }
+
+        ReferenceList filter(RWTag tag) {
+            ReferenceList result = new ReferenceList();
+            if (tag != null) {
+                for (RWListItem item : this) {
+                    if (tag.equals(item.getTag())) {
+                        result.add(item);
+                    }
+                }
+                result.mMinSelectionRequired = tag.getMinSelectedOptions();
+                result.mMaxSelectionAllowed = tag.getMaxSelectedOptions();
+            }
+            return result;
+        }
+
+        int getSelectedCount() {
+            int result = 0;
+            for (RWListItem item : this) {
+                if (item.isOn()) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        int getSelectedCount(RWTag tag) {
+            int result = 0;
+            for (RWListItem item : this) {
+                if (tag.equals(item.getTag())) {
+                    if (item.isOn()) {
+                        result++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        boolean isSingleSelect(RWTag tag) {
+            ReferenceList sublist = filter(tag);
+            return ((sublist.mMinSelectionRequired == 1) && (sublist.mMaxSelectionAllowed == 1));
+        }
+
+        void deselectFirstSelected(RWTag tag) {
+            ReferenceList sublist = filter(tag);
+            for (RWListItem item : sublist) {
+                if (item.isOn()) {
+                    item.setOff();
+                    return;
+                }
+            }
+        }
+
+        boolean select(RWListItem item) {
+            RWTag tag = item.getTag();
+            ReferenceList sublist = filter(tag);
+            if (!item.isOn()) {
+                if (sublist.getSelectedCount(tag) >= sublist.mMaxSelectionAllowed) {
+                    if (sublist.isSingleSelect(tag)) {
+                        sublist.deselectFirstSelected(tag);
+                        item.setOn();
+                        return true;
+                    }
+                } else {
+                    item.setOn();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean deselect(RWListItem item) {
+            RWTag tag = item.getTag();
+            if (item.isOn()) {
+                if (getSelectedCount(tag) > mMinSelectionRequired) {
+                    item.setOff();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<RWListItem> getSelectedItems() {
+            List<RWListItem> result = new ArrayList<RWListItem>();
+            for (RWListItem item : this) {
+                if (item.isOn()) {
+                    result.add(item);
+                }
+            }
+            return result;
+        }
+
+        RWTag[] getAllTags() {
+            List<RWTag> result = new ArrayList<RWTag>();
+            for (RWListItem item : this) {
+                if (!result.contains(item.getTag())) {
+                    result.add(item.getTag());
+                }
+            }
+            return result.toArray(new RWTag[]{});
+        }
+
+        boolean hasValidSelectionsForTags(RWTag... tags) {
+            for (RWTag tag : tags) {
+                ReferenceList sublist = filter(tag);
+                int selected = sublist.getSelectedCount();
+                if ((selected < sublist.mMinSelectionRequired) || (selected > sublist.mMaxSelectionAllowed)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
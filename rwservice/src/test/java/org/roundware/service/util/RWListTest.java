@@ -0,0 +1,157 @@
+/**
+ * Roundware Android code is released under the terms of the GNU General Public License.
+ * See COPYRIGHT.txt, AUTHORS.txt, and LICENSE.txt in the project root directory for details.
+ */
+package org.roundware.service.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.roundware.service.RWTags;
+import org.roundware.service.RWTags.RWTag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests that the selection index of RWList follows changes made to its
+ * items through other lists sharing them and directly, and is not
+ * affected by other lists.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RWListTest {
+
+    private RWTags mTags;
+    private RWList mList;
+    private RWTag mSingle;
+    private RWTag mMulti;
+
+
+    @Before
+    public void setUp() {
+        mTags = createTags(3);
+        mList = new RWList(mTags);
+        mSingle = mTags.getTags().get(0);
+        mMulti = mTags.getTags().get(1);
+    }
+
+
+    @Test
+    public void singleSelectSwitchesSelection() {
+        RWList options = mList.filter(mSingle);
+        assertEquals(1, mList.getSelectedCount(mSingle));
+
+        assertTrue(mList.select(options.get(1)));
+
+        assertEquals(1, mList.getSelectedCount(mSingle));
+        assertFalse(options.get(0).isOn());
+        assertTrue(options.get(1).isOn());
+    }
+
+
+    @Test
+    public void changesThroughFilteredListAreSeen() {
+        RWList options = mList.filter(mMulti);
+        int selected = mList.getSelectedCount();
+
+        assertTrue(options.select(options.get(0)));
+        assertTrue(options.select(options.get(1)));
+
+        assertEquals(selected + 2, mList.getSelectedCount());
+        assertEquals(2, mList.getSelectedCount(mMulti));
+        assertEquals(2, mList.getSelectedItems(mMulti).size());
+    }
+
+
+    @Test
+    public void changesThroughParentListAreSeen() {
+        RWList options = mList.filter(mMulti);
+        assertEquals(0, options.getSelectedCount());
+
+        mList.selectAll(mMulti);
+
+        assertEquals(options.size(), options.getSelectedCount());
+    }
+
+
+    @Test
+    public void directItemChangesAreSeen() {
+        RWList options = mList.filter(mMulti);
+        assertEquals(0, mList.getSelectedCount(mMulti));
+
+        options.get(2).setOn();
+        assertEquals(1, mList.getSelectedCount(mMulti));
+        assertEquals(1, options.getSelectedCount());
+
+        options.get(2).setOff();
+        assertEquals(0, mList.getSelectedCount(mMulti));
+        assertEquals(0, options.getSelectedCount());
+    }
+
+
+    @Test
+    public void listsWithOtherItemsAreIndependent() {
+        RWList other = new RWList(mTags);
+        int selected = mList.getSelectedCount();
+
+        other.selectAll();
+        other.get(0).setOff();
+
+        assertEquals(selected, mList.getSelectedCount());
+        assertEquals(other.size() - 1, other.getSelectedCount());
+    }
+
+
+    @Test
+    public void itemsOfSeveralListsAreSeenByAll() {
+        RWList other = new RWList(mTags);
+        RWListItem item = mList.filter(mMulti).get(0);
+        RWListItem otherItem = other.filter(mMulti).get(0);
+        RWList mixed = new RWList();
+        mixed.add(item);
+        mixed.add(otherItem);
+        assertEquals(0, mixed.getSelectedCount());
+
+        mList.select(item);
+        assertEquals(1, mixed.getSelectedCount());
+        other.select(otherItem);
+        assertEquals(2, mixed.getSelectedCount());
+
+        assertTrue(mixed.deselect(item));
+        assertEquals(0, mList.getSelectedCount(mMulti));
+        assertEquals(1, other.getSelectedCount(mMulti));
+    }
+
+
+    /**
+     * Creates listen tags with the single, multi and at least one selection
+     * types in turn, with 1 to 20 options each. The first option of the
+     * single and at least one tags is selected by default.
+     */
+    static RWTags createTags(int count) {
+        String[] selects = { RWTags.JSON_VALUE_SELECT_SINGLE, "multi", RWTags.JSON_VALUE_SELECT_AT_LEAST_ONE };
+        StringBuilder json = new StringBuilder("{\"listen\":[");
+        int tagId = 1;
+        for (int i = 0; i < count; i++) {
+            String select = selects[i % selects.length];
+            int options = 1 + (i * 7 + 4) % 20;
+            json.append(i > 0 ? "," : "").append("{\"code\":\"tag").append(i).append("\",\"name\":\"Tag ").append(i)
+                    .append("\",\"order\":").append(i).append(",\"select\":\"").append(select)
+                    .append("\",\"defaults\":[").append("multi".equals(select) ? "" : String.valueOf(tagId))
+                    .append("],\"options\":[");
+            for (int j = 0; j < options; j++) {
+                json.append(j > 0 ? "," : "").append("{\"tag_id\":").append(tagId++).append(",\"order\":")
+                        .append(j).append(",\"value\":\"Option ").append(j).append("\",\"data\":\"\"")
+                        .append(",\"relationships\":[]}");
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+        RWTags tags = new RWTags();
+        tags.fromJson(json.toString(), RWTags.FROM_SERVER);
+        return tags;
+    }
+}